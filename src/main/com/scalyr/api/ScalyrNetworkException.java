@@ -23,11 +23,33 @@ package com.scalyr.api;
  * the request (such as insufficient permissions), and are typically retriable.
  */
 public class ScalyrNetworkException extends ScalyrException {
+  /**
+   * HTTP status code of the server's response, or -1 if we did not receive a response.
+   */
+  private final int responseCode;
+
   public ScalyrNetworkException(String message) {
-    super(message);
+    this(message, -1);
   }
 
   public ScalyrNetworkException(String message, Throwable cause) {
     super(message, cause);
+    this.responseCode = -1;
+  }
+
+  /**
+   * @param responseCode HTTP status code of the server's response.
+   */
+  public ScalyrNetworkException(String message, int responseCode) {
+    super(message);
+    this.responseCode = responseCode;
+  }
+
+  /**
+   * Return the HTTP status code of the server's response (e.g. 413 if the request was too large), or -1 if
+   * we did not receive a response.
+   */
+  public int getResponseCode() {
+    return responseCode;
   }
 }
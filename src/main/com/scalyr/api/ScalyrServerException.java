@@ -21,11 +21,32 @@ package com.scalyr.api;
  * Exception thrown for errors returned from the Scalyr server.
  */
 public class ScalyrServerException extends ScalyrException {
+  /**
+   * The status field of the server's response (e.g. "error/client/badParam"), or null if not known.
+   */
+  private final String status;
+
   public ScalyrServerException(String message) {
-    super(message);
+    this(message, (String) null);
   }
 
   public ScalyrServerException(String message, Throwable cause) {
     super(message, cause);
+    this.status = null;
+  }
+
+  /**
+   * @param status The status field of the server's response.
+   */
+  public ScalyrServerException(String message, String status) {
+    super(message);
+    this.status = status;
+  }
+
+  /**
+   * Return the status field of the server's response (e.g. "error/client/badParam"), or null if not known.
+   */
+  public String getStatus() {
+    return status;
   }
 }
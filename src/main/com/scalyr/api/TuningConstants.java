@@ -31,12 +31,99 @@ public class TuningConstants {
    */
   public static final int MAXIMUM_RETRY_PERIOD_MS = 60000;
 
+  /**
+   * Bounds on the delay before retrying a failed request (see RetryPolicy.nextDelayMs). The delay is
+   * randomized, growing up to threefold with each successive retry.
+   */
+  public static final long RETRY_BASE_DELAY_MS = 100;
+  public static final long RETRY_MAX_DELAY_MS = 10000;
+
+  /**
+   * Retries of failed requests are limited, per ScalyrService, to this fraction of requests, so that retries
+   * can't multiply the load on the servers during an outage. Each request earns this fraction of a retry, and
+   * up to RETRY_BUDGET_BURST unused retries may be saved up.
+   */
+  public static final double RETRY_BUDGET_RATIO = 0.1;
+  public static final double RETRY_BUDGET_BURST = 10;
+
   /**
    * Maximum time (in milliseconds) for opening an HTTP connection to the Scalyr server.
    * If this time is exceeded, we consider server invocation to have failed.
    */
   public static final int HTTP_CONNECT_TIMEOUT_MS = 10000;
 
+  /**
+   * Number of consecutive failed requests to a server after which we open its circuit breaker, and stop
+   * sending it requests (other than as a last resort) until ENDPOINT_BREAKER_OPEN_MS has passed.
+   */
+  public static final int ENDPOINT_BREAKER_FAILURE_THRESHOLD = 3;
+
+  /**
+   * Time (in milliseconds) for which a server's circuit breaker stays open before we send it a single probe
+   * request. If the probe succeeds, the breaker closes; otherwise it stays open for another interval.
+   */
+  public static final long ENDPOINT_BREAKER_OPEN_MS = 30000;
+
+  /**
+   * Weight given to each new observation in the moving averages of latency and error rate kept for each
+   * server.
+   */
+  public static final double ENDPOINT_HEALTH_AVERAGING_WEIGHT = 0.2;
+
+  /**
+   * Half-life (in milliseconds) with which the latency and error rate observed for a server fade while it
+   * receives no requests, so that a server which was slow is eventually given another chance.
+   */
+  public static final long ENDPOINT_HEALTH_HALF_LIFE_MS = 30000;
+
+  /**
+   * Factor by which a server's error rate inflates its latency when choosing between servers: a server
+   * failing half of its requests is treated as (1 + ENDPOINT_ERROR_PENALTY / 2) times slower.
+   */
+  public static final double ENDPOINT_ERROR_PENALTY = 10;
+
+  /**
+   * When hedging a request (see ScalyrService.hedgeIdempotentRequests), we send it to a second server if no
+   * response has arrived by this percentile of the method's recent latencies.
+   */
+  public static final double HEDGE_DELAY_PERCENTILE = 0.95;
+
+  /**
+   * Number of recent latencies per API method from which we compute the hedge delay, and the number we must
+   * have observed before using them. Until then, we wait HEDGE_DEFAULT_DELAY_MS before hedging.
+   */
+  public static final int HEDGE_LATENCY_SAMPLES = 100;
+  public static final int HEDGE_MIN_LATENCY_SAMPLES = 20;
+
+  public static final long HEDGE_DEFAULT_DELAY_MS = 1000;
+
+  /**
+   * Lower bound on the hedge delay, so that a method which is usually very fast isn't hedged at the slightest
+   * hiccup.
+   */
+  public static final long HEDGE_MIN_DELAY_MS = 10;
+
+  /**
+   * Hedge requests are limited, across all ScalyrService instances, to this fraction of hedgeable requests,
+   * so that hedging can't multiply the load on the servers during an outage (when every request is slow).
+   * Each hedgeable request earns this fraction of a hedge, and up to HEDGE_BUDGET_BURST unused hedges may be
+   * saved up.
+   */
+  public static final double HEDGE_BUDGET_FRACTION = 0.05;
+  public static final double HEDGE_BUDGET_BURST = 10;
+
+  /**
+   * Time (in milliseconds) for which we keep an idle HTTP connection to the Scalyr server open for reuse,
+   * unless the server asks for less (in a Keep-Alive header). Servers and load balancers commonly close idle
+   * connections after 60 seconds, so we stay well under that.
+   */
+  public static final int HTTP_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+
+  /**
+   * Minimum interval (in milliseconds) between checks for idle HTTP connections to close.
+   */
+  public static final int HTTP_IDLE_CONNECTION_CHECK_INTERVAL_MS = 5000;
+
   /**
    * Time (in milliseconds) from when HostedConfigurationFile completes fetching a file from
    * the server, until it issues the next request. If the fetch failed, subsequent requests
@@ -74,6 +161,13 @@ public class TuningConstants {
    */
   public static final int MAX_EVENT_UPLOAD_BYTES = 5 * 1024 * 1024;
 
+  /**
+   * When an upload times out, we split its batch of events in two and retry the halves separately, unless
+   * the batch is no larger than this (in bytes). A batch rejected by the server as malformed or too large is
+   * split all the way down to single events.
+   */
+  public static final int MIN_BISECTED_UPLOAD_BYTES = 256 * 1024;
+
   /**
    * Payload size which triggers invocation of LogService.uploadEvents. We wait for
    * this payload size (or EVENT_UPLOAD_TIME_THRESHOLD_MS).
@@ -87,6 +181,19 @@ public class TuningConstants {
    */
   public static final int EVENT_UPLOAD_CHECK_INTERVAL = 1000;
 
+  /**
+   * Maximum interval between upload checks when an EventUploader has nothing to upload. (Uploads are
+   * normally scheduled for when they become due, or when an event makes a batch ready; this check is a
+   * backstop.)
+   */
+  public static final int EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS = 10000;
+
+  /**
+   * While a flush is pending, the interval at which we retry when no upload could be initiated (e.g. because
+   * the oldest chunk is still being compressed). Uploads which complete wake the flush immediately.
+   */
+  public static final int FLUSH_RETRY_INTERVAL_MS = 100;
+
   /**
    * Time delay which triggers invocation of LogService.uploadEvents. We wait for
    * this time delay (or EVENT_UPLOAD_BYTE_THRESHOLD). We choose a value below 5
@@ -114,8 +221,12 @@ public class TuningConstants {
   public static volatile Knob.Integer adjustableEventUploadSpacingFloorMs = null;
 
   /**
-   * Factor by which we adjust our upload spacing after a backoff response.
+   * Factor by which we used to adjust our upload spacing after a backoff response.
+   *
+   * @deprecated No longer used: the upload spacing after a failure is now randomized (see
+   *     RetryPolicy.nextDelayMs), bounded by MIN_EVENT_UPLOAD_SPACING_MS and MAX_EVENT_UPLOAD_SPACING_MS.
    */
+  @Deprecated
   public static final double UPLOAD_SPACING_FACTOR_ON_BACKOFF = 1.5;
 
   /**
@@ -140,12 +251,110 @@ public class TuningConstants {
   public static final int EVENT_BUFFER_END_EVENT_RESERVED_PERCENT = 1;
 
   /**
-   * When uploading a batch of log events to the Scalyr server, we include thread metadata
-   * for threads whose oldest event is no older than this. See the reference to this constant
-   * in EventUploader.
+   * Under EventUploader.OverflowPolicy.DropLowestSeverityFirst, the additional percentage of the buffer
+   * reserved for each severity level above an event's severity. For instance, Severity.info events are
+   * discarded once they would leave less than 3 * 5% (plus EVENT_BUFFER_RESERVED_PERCENT) of the buffer
+   * free, keeping that space for warning, error, and fatal events.
+   */
+  public static final int EVENT_BUFFER_SEVERITY_RESERVED_PERCENT = 5;
+
+  /**
+   * When evicting low-severity events to make room for a more severe one (see
+   * EventUploader.UploaderOptions.evictionSeverityThreshold), we free at least this fraction of the oldest
+   * chunk at a time, so that the cost of compacting the chunk is amortized over several events.
+   */
+  public static final int EVENT_EVICTION_BATCH_FRACTION = 16;
+
+  /**
+   * Number of counters in each of the four rows of the sketch EventUploader uses to track event rates per
+   * key value, when UploaderOptions.samplingBudget is set. Rounded up to a power of 2. Key values which
+   * collide in every row share a budget, so larger values sample fewer events unnecessarily.
+   */
+  public static final int EVENT_SAMPLER_SKETCH_WIDTH = 1024;
+
+  /**
+   * When UploaderOptions.targetLatencyMs is set, the smallest batch size (in bytes) at which EventUploader
+   * will upload a batch before its batch delay expires.
+   */
+  public static final int ADAPTIVE_MIN_BATCH_BYTES = 16 * 1024;
+
+  /**
+   * When UploaderOptions.targetLatencyMs is set, the amount by which EventUploader grows its batch size after
+   * an upload which was well within the latency target.
+   */
+  public static final int ADAPTIVE_BATCH_BYTES_STEP = 16 * 1024;
+
+  /**
+   * When UploaderOptions.targetLatencyMs is set, the amount by which EventUploader grows its batch delay after
+   * an upload which was well within the latency target.
+   */
+  public static final long ADAPTIVE_BATCH_DELAY_STEP_MS = 100;
+
+  /**
+   * When UploaderOptions.targetLatencyMs is set, the lower bound on EventUploader's batch delay and on the
+   * start-to-start spacing of its uploads. (Otherwise, uploads are spaced at least MIN_EVENT_UPLOAD_SPACING_MS
+   * apart.)
+   */
+  public static final long ADAPTIVE_MIN_UPLOAD_SPACING_MS = 100;
+
+  /**
+   * Weight given to each new observation in the moving averages of upload latency and throughput kept when
+   * UploaderOptions.targetLatencyMs is set.
+   */
+  public static final double ADAPTIVE_BATCH_AVERAGING_WEIGHT = 0.2;
+
+  /**
+   * If EventUploader has a spill directory, then whenever its buffer is more than this
+   * percent full, it moves the oldest chunks of buffered events to disk.
+   */
+  public static final int EVENT_SPILL_THRESHOLD_PERCENT = 50;
+
+  /**
+   * Size, in bytes, of the Zstandard dictionaries which EventUploader trains when configured
+   * with a ZstdDictionaryPublisher.
+   */
+  public static final int ZSTD_DICTIONARY_SIZE = 32 * 1024;
+
+  /**
+   * Maximum number of bytes of buffered events used to train a Zstandard dictionary. Training
+   * waits until at least ZSTD_DICTIONARY_MIN_SAMPLE_BYTES are buffered.
+   */
+  public static final int ZSTD_DICTIONARY_SAMPLE_BYTES = 1024 * 1024;
+
+  public static final int ZSTD_DICTIONARY_MIN_SAMPLE_BYTES = 64 * 1024;
+
+  /**
+   * Size of the individual samples into which buffered events are divided for dictionary training.
+   */
+  public static final int ZSTD_DICTIONARY_SAMPLE_CHUNK_BYTES = 1024;
+
+  /**
+   * Interval at which EventUploader retrains its Zstandard dictionary, to track changes in the
+   * events being logged.
+   */
+  public static final long ZSTD_DICTIONARY_RETRAIN_INTERVAL_MS = 3600 * 1000L;
+
+  /**
+   * When uploading a batch of log events to the Scalyr server, we used to include thread metadata
+   * for threads whose oldest event is no older than this.
+   *
+   * @deprecated No longer used: each upload request now lists exactly the threads which recorded an
+   *     event in the batch.
    */
+  @Deprecated
   public static final long MAX_THREAD_AGE_FOR_UPLOAD_NS = 3600 * 1000000000L;
 
+  /**
+   * EventUploader forgets a thread once it has recorded no events for this long, and none of its events
+   * are awaiting upload. If the thread records another event, it is simply registered again.
+   */
+  public static final long THREAD_IDLE_SCAVENGE_NS = 600 * 1000000000L;
+
+  /**
+   * Interval at which EventUploader checks for idle threads to forget (see THREAD_IDLE_SCAVENGE_NS).
+   */
+  public static final long THREAD_SCAVENGE_INTERVAL_MS = 60 * 1000L;
+
   /**
    * We discard a batch of log events if we've persistently failed to upload it for this many seconds.
    */
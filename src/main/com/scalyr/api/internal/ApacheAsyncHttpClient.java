@@ -0,0 +1,214 @@
+package com.scalyr.api.internal;
+
+import com.scalyr.api.internal.ScalyrService.RpcOptions;
+import com.scalyr.api.knobs.Knob;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AbstractHttpClient implementation based on the Apache HttpAsyncClient library. Requests are
+ * performed by a small, shared pool of non-blocking I/O threads, so no caller thread is tied up
+ * while a request is in flight. Use execute() to issue a request; the returned future completes
+ * with an ApacheAsyncHttpClient holding the (fully buffered) response.
+ * Has Gzip and Zstandard compression capability.
+ */
+public class ApacheAsyncHttpClient extends AbstractHttpClient {
+  private static final Knob.Integer scalyrClientIoThreads = new Knob.Integer("scalyrClientIoThreads", 2);
+
+  /**
+   * Client used to issue all asynchronous requests to the Scalyr server, and its connection pool. Created on
+   * first use. The pool is sized by the same knobs as HttpClientPool, and likewise resized if they change.
+   */
+  private static volatile CloseableHttpAsyncClient httpClient;
+  private static volatile PoolingNHttpClientConnectionManager connectionManager;
+
+  private final HttpResponse response;
+  private final InputStream responseStream;
+  private final String responseContentType;
+  private final String responseEncoding;
+
+  private ApacheAsyncHttpClient(HttpResponse response) throws IOException {
+    this.response = response;
+
+    HttpEntity responseEntity = response.getEntity();
+    responseContentType = (responseEntity != null && responseEntity.getContentType() != null) ? responseEntity.getContentType().getValue() : null;
+    responseEncoding = (responseEntity != null && responseEntity.getContentEncoding() != null) ? responseEntity.getContentEncoding().getValue() : null;
+    responseStream = ApacheHttpClient.getResponseStream(responseEntity, responseEncoding);
+  }
+
+  /**
+   * Issue a POST request with the given body. The returned future completes once the response has
+   * been received, or completes exceptionally if the request fails. Cancelling the future aborts the
+   * request.
+   * <p>
+   * The future is completed on an I/O thread, so dependent actions which do any real work (such as
+   * parsing the response) should be run on another executor, e.g. with whenCompleteAsync.
+   */
+  public static CompletableFuture<ApacheAsyncHttpClient> execute(URL url, RpcOptions options,
+                                                                 byte[] requestBody, int requestBodyLength,
+                                                                 String contentType, String contentEncoding) {
+    final CompletableFuture<ApacheAsyncHttpClient> future = new CompletableFuture<>();
+
+    try {
+      RequestConfig.Builder configBuilder = RequestConfig.custom();
+      configBuilder.setRedirectsEnabled(false);
+      configBuilder.setConnectionRequestTimeout(options.connectionTimeoutMs);
+      configBuilder.setConnectTimeout(options.connectionTimeoutMs);
+      configBuilder.setSocketTimeout(options.readTimeoutMs);
+
+      HttpPost request = new HttpPost(url.toString());
+      request.setHeader("errorStatus", "always200");
+      request.setHeader("X-XSS-Protection", "1; mode=block");
+
+      if (contentEncoding != null && contentEncoding.length() > 0) {
+        request.setHeader("Content-Encoding", contentEncoding);
+        request.setHeader("Accept-Encoding", contentEncoding + ", identity");
+      }
+
+      ZstdDictionary dictionary = ApacheHttpClient.zstdDictionary(options, contentEncoding);
+      if (dictionary != null)
+        request.setHeader(ZstdDictionary.ID_HEADER, Long.toString(dictionary.id));
+
+      request.setEntity(getEntity(requestBody, requestBodyLength, contentType, contentEncoding, dictionary));
+      request.setConfig(configBuilder.build());
+
+      final Future<HttpResponse> httpFuture = getHttpClient().execute(request, new FutureCallback<HttpResponse>() {
+        @Override public void completed(HttpResponse response) {
+          try {
+            future.complete(new ApacheAsyncHttpClient(response));
+          } catch (IOException ex) {
+            future.completeExceptionally(ex);
+          }
+        }
+
+        @Override public void failed(Exception ex) {
+          future.completeExceptionally(ex);
+        }
+
+        @Override public void cancelled() {
+          future.cancel(false);
+        }
+      });
+
+      future.whenComplete((value, throwable) -> {
+        if (future.isCancelled())
+          httpFuture.cancel(true);
+      });
+    } catch (IOException | RuntimeException ex) {
+      future.completeExceptionally(ex);
+    }
+
+    return future;
+  }
+
+  /**
+   * Return the request entity. The I/O threads must never block or do heavy work, so any compression is
+   * performed here, before the request is submitted, on the thread calling execute(), and the result
+   * buffered.
+   */
+  private static HttpEntity getEntity(byte[] requestBody, int requestBodyLength, String contentType,
+                                      String contentEncoding, ZstdDictionary dictionary) throws IOException {
+    HttpEntity entity = ApacheHttpClient.getEntity(requestBody, requestBodyLength, contentType, contentEncoding,
+        dictionary);
+
+    NByteArrayEntity buffered;
+    if (entity.getContentEncoding() == null) {
+      buffered = new NByteArrayEntity(requestBody, 0, requestBodyLength);
+    } else {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      entity.writeTo(compressed);
+      buffered = new NByteArrayEntity(compressed.toByteArray());
+      buffered.setContentEncoding(entity.getContentEncoding());
+    }
+
+    buffered.setContentType(contentType);
+    return buffered;
+  }
+
+  private static CloseableHttpAsyncClient getHttpClient() throws IOReactorException {
+    if (httpClient == null) {
+      synchronized (ApacheAsyncHttpClient.class) {
+        if (httpClient == null) {
+          httpClient = createHttpClient();
+        }
+      }
+    }
+
+    HttpClientPool.applyPoolLimits(connectionManager);
+    return httpClient;
+  }
+
+  private static CloseableHttpAsyncClient createHttpClient() throws IOReactorException {
+    // Use daemon threads, so that an idle client doesn't prevent the process from exiting.
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(1);
+      @Override public Thread newThread(Runnable runnable) {
+        Thread t = new Thread(runnable, "Scalyr I/O " + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }};
+
+    IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount(scalyrClientIoThreads.get())
+        .build();
+    connectionManager = new PoolingNHttpClientConnectionManager(
+        new DefaultConnectingIOReactor(ioReactorConfig, threadFactory));
+
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .setThreadFactory(threadFactory)
+        .build();
+    client.start();
+    return client;
+  }
+
+  @Override public OutputStream getOutputStream() {
+    throw new RuntimeException("Not implemented for ApacheAsyncHttpClient (pass request body to execute)");
+  }
+
+  @Override public int getResponseCode() {
+    return response.getStatusLine().getStatusCode();
+  }
+
+  @Override public String getResponseContentType() {
+    return responseContentType;
+  }
+
+  @Override public String getResponseEncoding() {
+    return responseEncoding;
+  }
+
+  @Override public InputStream getInputStream() {
+    return responseStream;
+  }
+
+  @Override public void finishedReadingResponse() throws IOException {
+    // The response body is already buffered in memory, and the connection has been returned to the pool.
+    if (responseStream != null) {
+      responseStream.close();
+    }
+  }
+
+  @Override public void disconnect() {
+  }
+}
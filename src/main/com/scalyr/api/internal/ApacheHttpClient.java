@@ -1,17 +1,13 @@
 package com.scalyr.api.internal;
 
 import com.scalyr.api.internal.ScalyrService.RpcOptions;
-import com.scalyr.api.knobs.Knob;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -20,18 +16,11 @@ import java.net.URL;
 import java.util.zip.GZIPInputStream;
 
 /**
- * AbstractHttpClient implementation based on the Apache HTTP client library.
+ * AbstractHttpClient implementation based on the Apache HTTP client library. Requests are issued through a
+ * long-lived client with a pool of keep-alive connections (see HttpClientPool).
  * Has Gzip compression capability.
  */
 public class ApacheHttpClient extends AbstractHttpClient {
-  private static final Knob.Integer scalyrClientMaxConnections = new Knob.Integer("scalyrClientMaxConnections", 20);
-  private static final Knob.Integer scalyrClientMaxConnectionsPreRoute = new Knob.Integer("scalyrClientMaxConnectionsPreRoute", 15);
-
-  /**
-   * Connection manager used to issue requests to the Scalyr server.
-   */
-  private static volatile PoolingHttpClientConnectionManager connectionManager;
-
   private final CloseableHttpResponse response;
   private final InputStream responseStream;
   private final String responseContentType;
@@ -43,19 +32,26 @@ public class ApacheHttpClient extends AbstractHttpClient {
   public ApacheHttpClient(URL url, RpcOptions options,
                           byte[] requestBody, int requestBodyLength,
                           String contentType, String contentEncoding) throws IOException {
-    if (connectionManager == null) {
-      synchronized (ApacheHttpClient.class) {
-        if (connectionManager == null) {
-          createConnectionManager();
-        }
-      }
-    }
+    this(url, options, new ByteArrayEntity(requestBody, 0, requestBodyLength), contentType, contentEncoding);
+  }
 
-    HttpClientBuilder clientBuilder = HttpClients.custom()
-        .setConnectionManager(connectionManager)
-        ;
+  /**
+   * Version of constructor which sends the given entity (e.g. a JsonRequestEntity, which streams the
+   * request body) rather than a byte array.
+   */
+  public ApacheHttpClient(URL url, RpcOptions options, AbstractHttpEntity requestEntity,
+                          String contentType, String contentEncoding) throws IOException {
+    this(HttpClientPool.shared(), url, options, requestEntity, contentType, contentEncoding, false);
+  }
 
-    CloseableHttpClient httpClient = clientBuilder.build();
+  /**
+   * Version of constructor which issues the request through the given pool.
+   *
+   * @param closeConnection If true, we ask the server to close the connection after responding, rather than
+   *     keeping it open for reuse.
+   */
+  public ApacheHttpClient(HttpClientPool pool, URL url, RpcOptions options, AbstractHttpEntity requestEntity,
+                          String contentType, String contentEncoding, boolean closeConnection) throws IOException {
     RequestConfig.Builder configBuilder = RequestConfig.custom();
     configBuilder.setRedirectsEnabled(false);
     configBuilder.setConnectionRequestTimeout(options.connectionTimeoutMs);
@@ -65,17 +61,23 @@ public class ApacheHttpClient extends AbstractHttpClient {
     HttpPost request = new HttpPost(url.toString());
     request.setHeader("errorStatus", "always200");
     request.setHeader("X-XSS-Protection", "1; mode=block");
+    if (closeConnection)
+      request.setHeader("Connection", "close");
 
     if (contentEncoding != null && contentEncoding.length() > 0) {
       request.setHeader("Content-Encoding", contentEncoding);
       request.setHeader("Accept-Encoding", contentEncoding + ", identity");
     }
 
-    request.setEntity(getEntity(requestBody, requestBodyLength, contentType, contentEncoding));
+    ZstdDictionary dictionary = zstdDictionary(options, contentEncoding);
+    if (dictionary != null)
+      request.setHeader(ZstdDictionary.ID_HEADER, Long.toString(dictionary.id));
+
+    request.setEntity(getEntity(requestEntity, contentType, contentEncoding, dictionary));
 
     request.setConfig(configBuilder.build());
 
-    response = httpClient.execute(request);
+    response = pool.getClient().execute(request);
 
     HttpEntity responseEntity = response.getEntity();
     responseContentType = (responseEntity != null && responseEntity.getContentType() != null) ? responseEntity.getContentType().getValue() : null;
@@ -84,23 +86,41 @@ public class ApacheHttpClient extends AbstractHttpClient {
   }
 
   /** Returns the entity with the given body, content type, and supporting the given content encoding, mainly in the form of compression */
-  private HttpEntity getEntity(byte[] requestBody, int requestBodyLength, String contentType, String contentEncoding) {
-    ByteArrayEntity inputEntity = new ByteArrayEntity(requestBody, 0, requestBodyLength);
+  static HttpEntity getEntity(byte[] requestBody, int requestBodyLength, String contentType, String contentEncoding,
+                              ZstdDictionary dictionary) {
+    return getEntity(new ByteArrayEntity(requestBody, 0, requestBodyLength), contentType, contentEncoding, dictionary);
+  }
+
+  /** Returns the given entity with the given content type, wrapped to support the given content encoding, mainly in the form of compression */
+  static HttpEntity getEntity(AbstractHttpEntity inputEntity, String contentType, String contentEncoding,
+                              ZstdDictionary dictionary) {
     inputEntity.setContentType(contentType);
     if (contentEncoding == null)
       return inputEntity;
+
+    // JSON request bodies may contain precompressed values, which SegmentedCompressingEntity splices in
+    // without recompressing them.
+    if (inputEntity instanceof JsonRequestEntity && SegmentedCompressingEntity.normalizeEncoding(contentEncoding) != null)
+      return new SegmentedCompressingEntity(inputEntity, contentEncoding, dictionary);
+
     switch (contentEncoding) {
       case "gzip":
         return new GzipCompressingEntity(inputEntity);
       case "zstandard":
       case "zstd":
-        return new ZstdCompressingEntity(inputEntity);
+        return new ZstdCompressingEntity(inputEntity, dictionary);
       default:
         return inputEntity;
     }
   }
 
-  private InputStream getResponseStream(HttpEntity responseEntity, String responseEncoding) throws IOException {
+  /** Returns the dictionary with which to compress a request, or null if none */
+  static ZstdDictionary zstdDictionary(RpcOptions options, String contentEncoding) {
+    boolean zstd = "zstandard".equals(contentEncoding) || "zstd".equals(contentEncoding);
+    return zstd ? options.zstdDictionary : null;
+  }
+
+  static InputStream getResponseStream(HttpEntity responseEntity, String responseEncoding) throws IOException {
     if (responseEntity != null) {
       if (responseEncoding != null && responseEncoding.contains("gzip")) {
         return new GZIPInputStream(responseEntity.getContent());
@@ -112,12 +132,6 @@ public class ApacheHttpClient extends AbstractHttpClient {
     }
   }
 
-  private static void createConnectionManager() {
-    connectionManager = new PoolingHttpClientConnectionManager();
-    connectionManager.setMaxTotal(scalyrClientMaxConnections.get());
-    connectionManager.setDefaultMaxPerRoute(scalyrClientMaxConnectionsPreRoute.get());
-  }
-
   @Override public OutputStream getOutputStream() {
     throw new RuntimeException("Not implemented for ApacheHttpClient (pass request body to our constructor)");
   }
@@ -17,49 +17,182 @@
 
 package com.scalyr.api.internal;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class tracks the size of a series of data chunks. It is used to
  * organize a circular buffer into chunks of bounded size.
+ * <p>
+ * Each chunk also carries metadata describing the events appended to it (see Chunk). Chunks are held in a
+ * ring, so that adding a chunk at the end, removing one from the front, and indexed access are all O(1).
  */
 public class ChunkSizeList {
   /**
-   * Defines a series of chunks in pendingEventBuffer.
+   * Ring of chunks: the oldest is at ring[head], and the newest at ring[(head + count - 1) % ring.length].
+   * Grows (by doubling) as needed.
    */
-  private final List<MutableInt> chunkSizes = new ArrayList<MutableInt>();
+  private Chunk[] ring = new Chunk[16];
+  private int head = 0;
+  private int count = 0;
 
   /**
-   * True if the first entry in chunkSizes can no longer be incremented,
-   * due to a call to closeFirst().
+   * Number of distinct severity levels tracked per chunk (see Chunk.getSeverityCount). Events with other
+   * severities are counted, but not by severity.
    */
-  private boolean firstIsClosed;
+  private final int severityLevels;
+
+  /**
+   * True if the last entry in chunkSizes can no longer be incremented,
+   * due to a call to closeFirst() or close(). (Entries other than the last
+   * are never incremented.)
+   */
+  private boolean lastIsClosed;
+
+  public ChunkSizeList() {
+    this(0);
+  }
+
+  /**
+   * @param severityLevels Number of severity levels (0 through severityLevels - 1) for which each chunk
+   *     counts its events.
+   */
+  public ChunkSizeList(int severityLevels) {
+    this.severityLevels = severityLevels;
+  }
 
   /**
    * Return the size of the first (oldest) chunk. If there are no chunks, return 0.
    */
   public int getFirst() {
-    if (chunkSizes.size() == 0)
+    if (count == 0)
+      return 0;
+
+    return ring[head].value;
+  }
+
+  /**
+   * Return the number of bytes in the first (oldest) chunk which were marked as evictable when appended (see
+   * append). If there are no chunks, return 0.
+   */
+  public int getFirstEvictable() {
+    if (count == 0)
       return 0;
 
-    return chunkSizes.get(0).value;
+    return ring[head].evictable;
+  }
+
+  /**
+   * Record that removedBytes have been removed from the first (oldest) chunk, leaving evictableRemaining
+   * evictable bytes in it. If the chunk becomes empty, it is removed. removedBytes may be zero, in which case
+   * we simply update the chunk's evictable byte count. The caller should also report each removed event to
+   * Chunk.removeEvent.
+   */
+  public void shrinkFirst(int removedBytes, int evictableRemaining) {
+    Chunk first = ring[head];
+    if (removedBytes < 0 || removedBytes > first.value)
+      ScalyrUtil.Assert(false, "invalid chunk shrink (" + removedBytes + " of " + first.value + " bytes)");
+
+    first.value -= removedBytes;
+    first.evictable = Math.max(Math.min(evictableRemaining, first.value), 0);
+    if (first.value == 0 && removedBytes > 0)
+      removeFirst();
+  }
+
+  /**
+   * Return the number of chunks.
+   */
+  public int size() {
+    return count;
   }
 
   /**
-   * Prevent the first (oldest) chunk from being further incremented. The next
-   * append() call will start a new chunk.
+   * Return the size of the chunk at the given index (0 being the oldest).
+   */
+  public int get(int index) {
+    return getChunk(index).value;
+  }
+
+  /**
+   * Return the chunk at the given index (0 being the oldest). The chunk's metadata continues to change
+   * while it is open, or if events are removed from it, so callers should hold the same lock as for any
+   * other access to this list.
+   */
+  public Chunk getChunk(int index) {
+    if (index < 0 || index >= count)
+      throw new IndexOutOfBoundsException("chunk " + index + " of " + count);
+
+    return ring[(head + index) & (ring.length - 1)];
+  }
+
+  /**
+   * Return true if the chunk at the given index can no longer be incremented.
+   */
+  public boolean isClosed(int index) {
+    return index < count - 1 || lastIsClosed;
+  }
+
+  /**
+   * Prevent the first (oldest) chunk from being further incremented. If it is
+   * the only chunk, the next append() call will start a new chunk.
    */
   public void closeFirst() {
-    firstIsClosed = true;
+    close(0);
+  }
+
+  /**
+   * Prevent the chunk at the given index from being further incremented. If it
+   * is the last chunk, the next append() call will start a new chunk. (Other
+   * chunks are never incremented in any case.)
+   */
+  public void close(int index) {
+    if (index == count - 1)
+      lastIsClosed = true;
   }
 
   /**
    * Remove the first (oldest) chunk.
    */
   public void removeFirst() {
-    chunkSizes.remove(0);
-    firstIsClosed = false;
+    if (count == 0)
+      throw new IndexOutOfBoundsException("no chunks to remove");
+
+    ring[head] = null;
+    head = (head + 1) & (ring.length - 1);
+    count--;
+    if (count == 0)
+      lastIsClosed = false;
+  }
+
+  /**
+   * Split the chunk at the given index in two: its first firstSize bytes remain in it, and the rest move to a
+   * new chunk inserted after it, which we return. Both chunks start with a copy of the original's metadata;
+   * the caller should report each event which ended up in the other chunk to Chunk.removeEvent. Each chunk's
+   * time range and thread set remain those of the original, and so are a (conservative) superset, as is its
+   * evictable byte count.
+   */
+  public Chunk split(int index, int firstSize) {
+    Chunk first = getChunk(index);
+    if (firstSize <= 0 || firstSize >= first.value)
+      ScalyrUtil.Assert(false, "invalid chunk split (" + firstSize + " of " + first.value + " bytes)");
+
+    if (count == ring.length)
+      grow();
+
+    for (int i = count; i > index + 1; i--)
+      ring[(head + i) & (ring.length - 1)] = ring[(head + i - 1) & (ring.length - 1)];
+
+    Chunk second = new Chunk(first);
+    second.value = first.value - firstSize;
+    second.evictable = Math.min(first.evictable, second.value);
+    first.value = firstSize;
+    first.evictable = Math.min(first.evictable, firstSize);
+
+    ring[(head + index + 1) & (ring.length - 1)] = second;
+    count++;
+    return second;
   }
 
   /**
@@ -67,26 +200,176 @@ public class ChunkSizeList {
    * exceed maxChunkSize, then start a new chunk of the given size.
    */
   public void append(int size, int maxChunkSize) {
-    ScalyrUtil.Assert(size > 0, "event upload chunk has zero or negative size (" + size + ")");
+    append(size, 0, maxChunkSize);
+  }
+
+  /**
+   * Like append(size, maxChunkSize), but also record that evictableSize of the bytes (0 or size) may be
+   * evicted under memory pressure. See getFirstEvictable.
+   */
+  public void append(int size, int evictableSize, int maxChunkSize) {
+    appendBytes(size, evictableSize, maxChunkSize);
+  }
+
+  /**
+   * Like append(size, evictableSize, maxChunkSize), where the appended bytes hold a single event, which
+   * we record in the chunk's metadata.
+   *
+   * @param timestamp The event's timestamp.
+   * @param threadId The ID of the thread which recorded the event.
+   * @param severity The event's severity level.
+   */
+  public void appendEvent(int size, int evictableSize, int maxChunkSize, long timestamp, String threadId,
+      int severity) {
+    appendBytes(size, evictableSize, maxChunkSize).addEvent(timestamp, threadId, severity);
+  }
 
-    int chunkCount = chunkSizes.size();
-    if (chunkCount == 0 || (chunkCount == 1 && firstIsClosed)) {
-      chunkSizes.add(new MutableInt(size));
+  private Chunk appendBytes(int size, int evictableSize, int maxChunkSize) {
+    // Test the condition before calling Assert, so that we don't build the message string on every call.
+    if (size <= 0)
+      ScalyrUtil.Assert(false, "event upload chunk has zero or negative size (" + size + ")");
+
+    Chunk last;
+    if (count == 0 || lastIsClosed) {
+      last = addLast();
+      lastIsClosed = false;
     } else {
-      MutableInt last = chunkSizes.get(chunkSizes.size() - 1);
-      if (last.value + size > maxChunkSize) {
-        chunkSizes.add(new MutableInt(size));
-      } else {
-        last.value += size;
-      }
+      last = ring[(head + count - 1) & (ring.length - 1)];
+      if (last.value + size > maxChunkSize)
+        last = addLast();
     }
+
+    last.value += size;
+    last.evictable += evictableSize;
+    return last;
+  }
+
+  private Chunk addLast() {
+    if (count == ring.length)
+      grow();
+
+    Chunk chunk = new Chunk(severityLevels);
+    ring[(head + count) & (ring.length - 1)] = chunk;
+    count++;
+    return chunk;
   }
 
-  private static class MutableInt {
-    public int value;
+  private void grow() {
+    Chunk[] grown = new Chunk[ring.length * 2];
+    for (int i = 0; i < count; i++)
+      grown[i] = ring[(head + i) & (ring.length - 1)];
+    ring = grown;
+    head = 0;
+  }
+
+  /**
+   * A chunk, and metadata describing the events it holds. Events are recorded by ChunkSizeList.appendEvent;
+   * bytes added by the other append methods are counted in the chunk's size, but not its metadata.
+   * <p>
+   * Not thread-safe; see getChunk.
+   */
+  public static class Chunk {
+    private int value;
+
+    /**
+     * Number of bytes in the chunk which may be evicted under memory pressure.
+     */
+    private int evictable;
+
+    private int eventCount;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private final Set<String> threadIds = new HashSet<String>();
+    private final int[] severityCounts;
+
+    /**
+     * The threadId most recently added to threadIds, so that we can skip the lookup for runs of events from
+     * one thread.
+     */
+    private String lastThreadId;
+
+    private Chunk(int severityLevels) {
+      this.severityCounts = new int[severityLevels];
+    }
+
+    /**
+     * Construct a copy of the given chunk's metadata (but not its size).
+     */
+    private Chunk(Chunk original) {
+      this.eventCount = original.eventCount;
+      this.minTimestamp = original.minTimestamp;
+      this.maxTimestamp = original.maxTimestamp;
+      this.threadIds.addAll(original.threadIds);
+      this.severityCounts = original.severityCounts.clone();
+    }
+
+    private void addEvent(long timestamp, String threadId, int severity) {
+      eventCount++;
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+      if (threadId != lastThreadId) {
+        threadIds.add(threadId);
+        lastThreadId = threadId;
+      }
+      if (severity >= 0 && severity < severityCounts.length)
+        severityCounts[severity]++;
+    }
+
+    /**
+     * Record that an event of the given severity has been removed from the chunk. The chunk's time range and
+     * thread set are left as-is, and so become a (conservative) superset.
+     */
+    public void removeEvent(int severity) {
+      eventCount--;
+      if (severity >= 0 && severity < severityCounts.length)
+        severityCounts[severity]--;
+    }
+
+    /**
+     * Return the chunk's length in bytes.
+     */
+    public int size() {
+      return value;
+    }
+
+    /**
+     * Return the number of events in the chunk.
+     */
+    public int getEventCount() {
+      return eventCount;
+    }
+
+    /**
+     * Return the earliest event timestamp in the chunk, or Long.MAX_VALUE if it holds no events.
+     */
+    public long getMinTimestamp() {
+      return minTimestamp;
+    }
+
+    /**
+     * Return the latest event timestamp in the chunk, or Long.MIN_VALUE if it holds no events.
+     */
+    public long getMaxTimestamp() {
+      return maxTimestamp;
+    }
+
+    /**
+     * Return the IDs of the threads which recorded the chunk's events. The set is live; do not modify it.
+     */
+    public Set<String> getThreadIds() {
+      return Collections.unmodifiableSet(threadIds);
+    }
+
+    /**
+     * Return the number of events in the chunk with the given severity level.
+     */
+    public int getSeverityCount(int severity) {
+      return (severity >= 0 && severity < severityCounts.length) ? severityCounts[severity] : 0;
+    }
 
-    public MutableInt(int value) {
-      this.value = value;
+    @Override public String toString() {
+      return "Chunk{size=" + value + ", events=" + eventCount + ", threads=" + threadIds.size()
+          + ", severityCounts=" + Arrays.toString(severityCounts) + "}";
     }
   }
 }
@@ -19,32 +19,120 @@ package com.scalyr.api.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a circular buffer for buffering log data. Designed to minimize blocking.
+ * <p>
+ * Positions in the buffer are tracked as ever-increasing 64-bit cursors, which are mapped
+ * onto the physical array modulo its length. Data is added in three steps: reserve() claims
+ * space with a compare-and-swap on the write cursor, write() copies data into the claimed
+ * region, and publish() makes the region visible to readers. Regions are published in the
+ * order they were reserved, so readers always see a contiguous prefix of complete appends.
+ * This allows many producer threads to copy data into the buffer concurrently. The simple
+ * append() methods perform all three steps.
+ * <p>
+ * Reading (writeOldestBytes) and discarding (discardOldestBytes) should be done by a single
+ * consumer at a time.
+ * <p>
+ * The buffer can live on the Java heap, or off-heap in a direct ByteBuffer. Off-heap storage keeps very
+ * large buffers out of the garbage collector's way.
  */
 public class CircularByteArray {
   /**
-   * The physical buffer.
+   * Number of times awaitTurn() polls the publish cursor before blocking.
+   */
+  private static final int MAX_SPINS = 100;
+
+  /**
+   * Size of the array used by writeBytes to copy off-heap data to an OutputStream.
+   */
+  private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The physical buffer, if we are on-heap; otherwise null.
    */
   private final byte[] rawBuffer;
 
   /**
-   * Index, in buffer, of the first (oldest) value. Undefined if count is 0. Ranges
-   * from 0 to buffer.length - 1.
+   * The physical buffer, if we are off-heap; otherwise null.
+   */
+  private final ByteBuffer directBuffer;
+
+  /**
+   * Length of the physical buffer.
+   */
+  private final int capacity;
+
+  /**
+   * Total number of bytes ever discarded from the buffer. The oldest buffered byte lives at
+   * position readCursor (modulo capacity).
+   */
+  private volatile long readCursor;
+
+  /**
+   * Total number of bytes ever reserved in the buffer, whether or not they have been published.
    */
-  private int bufferStart;
+  private final AtomicLong reserveCursor = new AtomicLong();
 
   /**
-   * Number of buffered bytes.
+   * Total number of bytes ever published. Everything between readCursor and publishCursor is
+   * visible to readers; everything between publishCursor and reserveCursor is still being written.
    */
-  private int numBufferedBytes;
+  private volatile long publishCursor;
 
   /**
-   * Construct a buffer of the given capacity.
+   * Threads blocked in awaitTurn() (because spinning didn't suffice), keyed by the cursor for which
+   * they are waiting. Lets publish() wake exactly the next producer in line.
+   */
+  private final ConcurrentHashMap<Long, Thread> blockedWaiters = new ConcurrentHashMap<>();
+
+  /**
+   * Array used by writeBytes to copy off-heap data to an OutputStream, when not in use; reused so that each
+   * write doesn't allocate one. A concurrent writer which finds it taken allocates its own.
+   */
+  private final AtomicReference<byte[]> spareTransferArray = new AtomicReference<>();
+
+  /**
+   * Construct an on-heap buffer of the given capacity.
    */
   public CircularByteArray(int capacity) {
-    rawBuffer = new byte[capacity];
+    this(capacity, false);
+  }
+
+  /**
+   * Construct a buffer of the given capacity. If offHeap is true, the data is stored in a direct
+   * ByteBuffer rather than a Java array.
+   */
+  public CircularByteArray(int capacity, boolean offHeap) {
+    this.capacity = capacity;
+    if (offHeap) {
+      rawBuffer = null;
+      directBuffer = ByteBuffer.allocateDirect(capacity);
+    } else {
+      rawBuffer = new byte[capacity];
+      directBuffer = null;
+    }
+  }
+
+  /**
+   * Return the total capacity of the buffer, in bytes.
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Return true if the buffer is stored off-heap.
+   */
+  public boolean isOffHeap() {
+    return directBuffer != null;
   }
 
   /**
@@ -69,42 +157,125 @@ public class CircularByteArray {
    * If the data will not fit in its entirely, with reserveLength bytes left over,
    * then do nothing (don't add a fragment) and return false.
    */
-  public synchronized boolean append(byte[] newData, int offsetInNewData, int newDataLength,
+  public boolean append(byte[] newData, int offsetInNewData, int newDataLength,
       int reserveLength) {
-    int spaceAvailable = rawBuffer.length - numBufferedBytes - reserveLength;
-    if (spaceAvailable < newDataLength)
+    long cursor = reserve(newDataLength, reserveLength);
+    if (cursor < 0)
       return false;
 
-    // Add as much data as will fit before hitting the wraparound point.
-    if (numBufferedBytes == 0)
-      bufferStart = 0;
+    write(cursor, newData, offsetInNewData, newDataLength);
+    awaitTurn(cursor);
+    publish(cursor, newDataLength);
+    return true;
+  }
 
-    int bufferEnd = (bufferStart + numBufferedBytes) % rawBuffer.length;
-    int chunk1Length = Math.min(newDataLength, rawBuffer.length - bufferEnd);
-    System.arraycopy(newData, offsetInNewData, rawBuffer, bufferEnd, chunk1Length);
-    offsetInNewData += chunk1Length;
-    newDataLength -= chunk1Length;
+  /**
+   * Claim length bytes at the end of the buffer, and return the cursor at which the claimed
+   * region begins. If the region will not fit with reserveLength bytes left over, claim
+   * nothing and return -1.
+   * <p>
+   * Every successful reserve() must eventually be followed by awaitTurn() and publish() for
+   * the same region; otherwise, no later region can be published.
+   */
+  public long reserve(int length, int reserveLength) {
+    while (true) {
+      long cursor = reserveCursor.get();
+      long used = cursor - readCursor;
+      if (capacity - used - reserveLength < length)
+        return -1;
 
-    bufferEnd = (bufferEnd + chunk1Length) % rawBuffer.length;
-    numBufferedBytes += chunk1Length;
+      if (reserveCursor.compareAndSet(cursor, cursor + length))
+        return cursor;
+    }
+  }
+
+  /**
+   * Copy length bytes, beginning at data[offset], into the buffer at the given cursor position.
+   * The target range must lie within a region claimed by reserve() and not yet published.
+   */
+  public void write(long cursor, byte[] data, int offset, int length) {
+    int pos = (int) (cursor % capacity);
+    int chunk1Length = Math.min(length, capacity - pos);
+    copyIn(pos, data, offset, chunk1Length);
+    if (chunk1Length < length)
+      copyIn(0, data, offset + chunk1Length, length - chunk1Length);
+  }
 
-    // If we didn't get everything in the first pass, add the rest now.
-    if (newDataLength > 0) {
-      ScalyrUtil.Assert(bufferEnd == 0, "CircularByteArray confused about buffer position");
-      ScalyrUtil.Assert(newDataLength <= bufferStart, "CircularByteArray confused about buffer capacity");
+  /**
+   * Copy length bytes, beginning at data[offset], to the given position in the physical buffer.
+   */
+  private void copyIn(int pos, byte[] data, int offset, int length) {
+    if (rawBuffer != null) {
+      System.arraycopy(data, offset, rawBuffer, pos, length);
+    } else {
+      // Use a private view of the buffer, as several producers may be writing concurrently. (See slice() regarding
+      // the cast.)
+      ByteBuffer view = directBuffer.duplicate();
+      ((Buffer) view).position(pos);
+      view.put(data, offset, length);
+    }
+  }
 
-      System.arraycopy(newData, offsetInNewData, rawBuffer, bufferEnd, newDataLength);
-      numBufferedBytes += newDataLength;
+  /**
+   * Wait until every region reserved before the given cursor has been published. While a
+   * caller is between awaitTurn() and publish(), no other region can be published, so the
+   * caller may perform work which must happen in buffer order.
+   */
+  public void awaitTurn(long cursor) {
+    // Spin briefly, as the preceding producer is normally just finishing a memory copy. If it takes longer
+    // (e.g. because that producer was descheduled), park until publish() wakes us, so that we don't starve
+    // the preceding producer of CPU.
+    for (int spins = 0; spins < MAX_SPINS; spins++) {
+      if (publishCursor == cursor)
+        return;
     }
 
-    return true;
+    blockedWaiters.put(cursor, Thread.currentThread());
+    try {
+      while (publishCursor != cursor)
+        LockSupport.park(this);
+    } finally {
+      blockedWaiters.remove(cursor);
+    }
+  }
+
+  /**
+   * Make the region of the given length, starting at cursor, visible to readers. The caller
+   * must have called awaitTurn(cursor).
+   */
+  public void publish(long cursor, int length) {
+    ScalyrUtil.Assert(publishCursor == cursor, "CircularByteArray regions published out of order");
+    publishCursor = cursor + length;
+
+    // A waiter registers in blockedWaiters before checking publishCursor, and we update publishCursor before
+    // checking blockedWaiters, so a waiter which missed our update is guaranteed to be woken.
+    if (!blockedWaiters.isEmpty()) {
+      Thread waiter = blockedWaiters.get(cursor + length);
+      if (waiter != null)
+        LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * Return the total number of bytes ever published to this buffer.
+   */
+  public long totalBytesPublished() {
+    return publishCursor;
+  }
+
+  /**
+   * Return the cursor of the oldest byte currently in the buffer, i.e. the total number of
+   * bytes ever discarded.
+   */
+  public long oldestCursor() {
+    return readCursor;
   }
 
   /**
    * Return the number of bytes of data currently in the buffer.
    */
-  public synchronized int numBufferedBytes() {
-    return numBufferedBytes;
+  public int numBufferedBytes() {
+    return (int) (publishCursor - readCursor);
   }
 
   /**
@@ -113,11 +284,35 @@ public class CircularByteArray {
    * an exception.
    */
   public synchronized void discardOldestBytes(int count) {
+    int numBufferedBytes = numBufferedBytes();
     if (count > numBufferedBytes)
       throw new RuntimeException("Attempting to discard " + count + " bytes from a buffer which contains only " + numBufferedBytes);
 
-    bufferStart = (bufferStart + count) % rawBuffer.length;
-    numBufferedBytes -= count;
+    readCursor += count;
+  }
+
+  /**
+   * Replace the specified number of bytes at the beginning (oldest portion) of the buffer with
+   * the first length bytes of data, where length <= count, and discard the rest: the buffer
+   * shrinks by count - length bytes. Used to remove data from the oldest region of the buffer
+   * while retaining what follows it.
+   *
+   * The replaced range must not be read concurrently.
+   */
+  public synchronized void replaceOldestBytes(int count, byte[] data, int length) {
+    checkedReadCursor(count);
+    if (length > count)
+      throw new RuntimeException("Attempting to replace " + count + " bytes with " + length);
+
+    // Write the retained data at the end of the range, then discard the remainder from the front.
+    long cursor = readCursor + count - length;
+    int pos = (int) (cursor % capacity);
+    int chunk1Length = Math.min(length, capacity - pos);
+    copyIn(pos, data, 0, chunk1Length);
+    if (chunk1Length < length)
+      copyIn(0, data, chunk1Length, length - chunk1Length);
+
+    readCursor = cursor;
   }
 
   /**
@@ -125,28 +320,122 @@ public class CircularByteArray {
    * to the stream. If count is larger than the number of bytes in the buffer, throw
    * an exception.
    *
-   * This operation does not modify or advance the buffer, it merely copies data.
+   * This operation does not modify or advance the buffer, it merely copies data. If the
+   * buffer is off-heap and out is a WritableByteChannel, the data is handed to the channel
+   * directly, without being copied onto the heap.
    *
    * writeOldestBytes should not be called concurrently with discardldestBytes.
    */
   public void writeOldestBytes(OutputStream out, int count) throws IOException {
-    // Snapshot the current buffer position and length.
-    int bytesToWrite;
-    int startPos;
-    synchronized (this) {
-      if (count > numBufferedBytes)
-        throw new RuntimeException("Attempting to write " + count + " bytes from a buffer which contains only " + numBufferedBytes);
-
-      bytesToWrite = count;
-      startPos = bufferStart;
+    writeBytes(out, checkedReadCursor(count), count);
+  }
+
+  /**
+   * Copy the specified number of bytes, beginning at the given cursor, to the stream. The
+   * range must lie within the buffered data; otherwise, throw an exception. See
+   * writeOldestBytes.
+   *
+   * Several ranges may be written concurrently, but a range must not be written concurrently
+   * with a call to discardOldestBytes which discards it.
+   */
+  public void writeBytes(OutputStream out, long startCursor, int count) throws IOException {
+    checkRange(startCursor, count);
+    if (rawBuffer != null) {
+      if (count > 0) {
+        int startPos = (int) (startCursor % capacity);
+        int chunk1Length = Math.min(count, capacity - startPos);
+        out.write(rawBuffer, startPos, chunk1Length);
+        if (chunk1Length < count)
+          out.write(rawBuffer, 0, count - chunk1Length);
+      }
+      return;
     }
 
-    // Output the data.
-    if (bytesToWrite > 0) {
-      int chunk1Length = Math.min(bytesToWrite, rawBuffer.length - startPos);
-      out.write(rawBuffer, startPos, chunk1Length);
-      if (chunk1Length < bytesToWrite)
-        out.write(rawBuffer, 0, bytesToWrite - chunk1Length);
+    ByteBuffer[] slices = bytesAt(startCursor, count);
+    if (out instanceof WritableByteChannel) {
+      WritableByteChannel channel = (WritableByteChannel) out;
+      for (ByteBuffer slice : slices) {
+        while (slice.hasRemaining())
+          channel.write(slice);
+      }
+    } else {
+      byte[] transfer = spareTransferArray.getAndSet(null);
+      if (transfer == null)
+        transfer = new byte[TRANSFER_CHUNK_SIZE];
+      try {
+        for (ByteBuffer slice : slices) {
+          while (slice.hasRemaining()) {
+            int length = Math.min(transfer.length, slice.remaining());
+            slice.get(transfer, 0, length);
+            out.write(transfer, 0, length);
+          }
+        }
+      } finally {
+        spareTransferArray.set(transfer);
+      }
     }
   }
+
+  /**
+   * Return read-only views of the specified number of bytes from the beginning (oldest
+   * portion) of the buffer, in order. There is one view, or two if the data wraps around
+   * the end of the physical buffer. If count is larger than the number of bytes in the
+   * buffer, throw an exception.
+   *
+   * The views share storage with the buffer, so they must not be used after the bytes
+   * are discarded.
+   */
+  public ByteBuffer[] oldestBytes(int count) {
+    return bytesAt(checkedReadCursor(count), count);
+  }
+
+  /**
+   * Return read-only views of the specified number of bytes, beginning at the given cursor.
+   * The range must lie within the buffered data; otherwise, throw an exception. See
+   * oldestBytes.
+   */
+  public ByteBuffer[] bytesAt(long startCursor, int count) {
+    checkRange(startCursor, count);
+    ByteBuffer storage = (rawBuffer != null) ? ByteBuffer.wrap(rawBuffer) : directBuffer;
+
+    int startPos = (int) (startCursor % capacity);
+    int chunk1Length = Math.min(count, capacity - startPos);
+    if (chunk1Length == count)
+      return new ByteBuffer[]{slice(storage, startPos, count)};
+    else
+      return new ByteBuffer[]{slice(storage, startPos, chunk1Length), slice(storage, 0, count - chunk1Length)};
+  }
+
+  /**
+   * Return a read-only view of length bytes of storage, beginning at pos.
+   */
+  private static ByteBuffer slice(ByteBuffer storage, int pos, int length) {
+    // The casts to Buffer keep this code runnable on Java 8 when compiled with a newer JDK (Java 9 added
+    // covariant ByteBuffer overrides of these methods).
+    ByteBuffer view = storage.asReadOnlyBuffer();
+    ((Buffer) view).position(pos);
+    ((Buffer) view).limit(pos + length);
+    return view.slice();
+  }
+
+  /**
+   * Snapshot the current read position, verifying that at least count bytes are buffered.
+   */
+  private long checkedReadCursor(int count) {
+    long startCursor = readCursor;
+    int numBufferedBytes = (int) (publishCursor - startCursor);
+    if (count > numBufferedBytes)
+      throw new RuntimeException("Attempting to write " + count + " bytes from a buffer which contains only " + numBufferedBytes);
+
+    return startCursor;
+  }
+
+  /**
+   * Verify that the count bytes beginning at startCursor are all currently buffered.
+   */
+  private void checkRange(long startCursor, int count) {
+    if (startCursor < readCursor || startCursor + count > publishCursor)
+      throw new RuntimeException("Attempting to access bytes [" + startCursor + ", " + (startCursor + count)
+          + ") of a buffer which contains [" + readCursor + ", " + publishCursor + ")");
+  }
 }
@@ -17,20 +17,43 @@
 
 package com.scalyr.api.internal;
 
+import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * OutputStream implementation which discards all output, but counts the number of
- * bytes which were written.
+ * OutputStream implementation which counts the number of bytes which were written, and
+ * either discards them or passes them through to another stream.
  */
 public class CountingOutputStream extends OutputStream {
+  /**
+   * Stream to which we pass output, or null to discard it.
+   */
+  private final OutputStream innerStream;
+
   public int bytesWritten;
 
-  @Override public void write(int b) {
+  public CountingOutputStream() {
+    this(null);
+  }
+
+  public CountingOutputStream(OutputStream innerStream) {
+    this.innerStream = innerStream;
+  }
+
+  @Override public void write(int b) throws IOException {
+    if (innerStream != null)
+      innerStream.write(b);
     bytesWritten++;
   }
 
-  @Override public void write (byte[] b, int offset, int length) {
+  @Override public void write (byte[] b, int offset, int length) throws IOException {
+    if (innerStream != null)
+      innerStream.write(b, offset, length);
     bytesWritten += length;
   }
+
+  @Override public void flush() throws IOException {
+    if (innerStream != null)
+      innerStream.flush();
+  }
 }
@@ -0,0 +1,335 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.logs.EventAttributes;
+import com.scalyr.api.logs.Severity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks the health of each server a ScalyrService sends requests to, and uses it to decide the order in
+ * which to try the servers for each request.
+ * <p>
+ * For each server we keep moving averages of its latency and error rate, and a circuit breaker. After
+ * TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD consecutive failures, the breaker opens, and the server is
+ * only tried once all others have failed. After ENDPOINT_BREAKER_OPEN_MS, the breaker is half-open: the next
+ * request tries the server first, as a probe. If the probe succeeds, the breaker closes; if it fails, the
+ * breaker stays open for another interval.
+ * <p>
+ * Among servers whose breakers are closed, we choose the first to try by "power of two choices": we pick two
+ * at random, and take the one whose latency (inflated by its error rate) is lower. This steers traffic away
+ * from a degraded server without stampeding the single fastest one. The remaining servers are tried in
+ * order of latency. A server's averages fade while it receives no requests (see
+ * ENDPOINT_HEALTH_HALF_LIFE_MS), so that a server which was slow is eventually given another chance.
+ * <p>
+ * Thread-safe.
+ */
+public class EndpointHealth {
+  /**
+   * State of a server's circuit breaker.
+   */
+  public enum BreakerState {
+    /**
+     * The server is healthy, and receives its share of requests.
+     */
+    Closed,
+
+    /**
+     * The server has failed repeatedly, and is only tried once all other servers have failed.
+     */
+    Open,
+
+    /**
+     * A probe request has been sent to a server whose breaker was open.
+     */
+    HalfOpen
+  }
+
+  private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+  /**
+   * Return the given servers in the order in which to try them for a new request. The array is not modified.
+   */
+  public String[] order(String[] servers) {
+    int count = servers.length;
+    if (count <= 1)
+      return servers.clone();
+
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    Endpoint[] candidates = new Endpoint[count];
+    for (int i = 0; i < count; i++)
+      candidates[i] = endpoint(servers[i]);
+
+    List<Endpoint> ordered = new ArrayList<Endpoint>(count);
+
+    // A server which is due a probe goes first. We probe at most one server per request.
+    int offset = random.nextInt(count);
+    for (int i = 0; i < count; i++) {
+      Endpoint candidate = candidates[(offset + i) % count];
+      if (candidate.tryStartProbe(nowMs)) {
+        ordered.add(candidate);
+        break;
+      }
+    }
+
+    // Then the servers whose breakers are closed: the better of two random choices, then the rest by score.
+    List<Endpoint> closed = new ArrayList<Endpoint>(count);
+    List<Double> scores = new ArrayList<Double>(count);
+    for (Endpoint candidate : candidates) {
+      if (!ordered.contains(candidate) && candidate.getState() == BreakerState.Closed) {
+        closed.add(candidate);
+        scores.add(candidate.score(nowMs));
+      }
+    }
+
+    if (closed.size() >= 2) {
+      int first = random.nextInt(closed.size());
+      int second = random.nextInt(closed.size() - 1);
+      if (second >= first)
+        second++;
+      int chosen = (scores.get(second) < scores.get(first)) ? second : first;
+      ordered.add(closed.remove(chosen));
+      scores.remove(chosen);
+    }
+
+    while (!closed.isEmpty()) {
+      int best = 0;
+      for (int i = 1; i < closed.size(); i++) {
+        if (scores.get(i) < scores.get(best))
+          best = i;
+      }
+      ordered.add(closed.remove(best));
+      scores.remove(best);
+    }
+
+    // Finally, as a last resort, the servers whose breakers are open.
+    for (Endpoint candidate : candidates) {
+      if (!ordered.contains(candidate))
+        ordered.add(candidate);
+    }
+
+    String[] result = new String[count];
+    for (int i = 0; i < count; i++)
+      result[i] = ordered.get(i).server;
+    return result;
+  }
+
+  /**
+   * Record that a request to the given server received a response after latencyMs.
+   */
+  public void requestSucceeded(String server, long latencyMs) {
+    endpoint(server).recordOutcome(true, latencyMs, ScalyrUtil.currentTimeMillis());
+  }
+
+  /**
+   * Record that a request to the given server was abandoned after latencyMs without a response (e.g. a hedged
+   * request which lost the race). This says nothing about whether the server is healthy, so it counts only as
+   * a latency sample: the server's error rate and circuit breaker are unaffected.
+   */
+  public void requestAbandoned(String server, long latencyMs) {
+    endpoint(server).recordLatency(latencyMs, ScalyrUtil.currentTimeMillis());
+  }
+
+  /**
+   * Record that a request to the given server failed (e.g. with a network error, or an error/server status).
+   */
+  public void requestFailed(String server) {
+    endpoint(server).recordOutcome(false, -1, ScalyrUtil.currentTimeMillis());
+  }
+
+  /**
+   * Return the health of each of the given servers.
+   */
+  public List<Stats> getStats(String[] servers) {
+    List<Stats> stats = new ArrayList<Stats>(servers.length);
+    for (String server : servers)
+      stats.add(endpoint(server).getStats());
+    return stats;
+  }
+
+  private Endpoint endpoint(String server) {
+    Endpoint endpoint = endpoints.get(server);
+    if (endpoint == null) {
+      Endpoint created = new Endpoint(server);
+      endpoint = endpoints.putIfAbsent(server, created);
+      if (endpoint == null)
+        endpoint = created;
+    }
+    return endpoint;
+  }
+
+  /**
+   * Health of a single server. All fields are synchronized on the instance.
+   */
+  private static class Endpoint {
+    final String server;
+
+    private BreakerState state = BreakerState.Closed;
+
+    /**
+     * When the breaker last opened, or when we last started a probe.
+     */
+    private long breakerChangedMs;
+
+    /**
+     * Moving averages of latency (in milliseconds, or -1 before the first response), and of the fraction of
+     * requests which failed.
+     */
+    private double latencyMs = -1;
+    private double errorRate = 0;
+
+    /**
+     * When we last recorded an outcome.
+     */
+    private long lastOutcomeMs;
+
+    private int consecutiveFailures = 0;
+    private long requests = 0;
+    private long failures = 0;
+    private long breakerTrips = 0;
+
+    Endpoint(String server) {
+      this.server = server;
+    }
+
+    synchronized BreakerState getState() {
+      return state;
+    }
+
+    /**
+     * If the breaker is open (or a probe is outstanding) and ENDPOINT_BREAKER_OPEN_MS has passed since it
+     * changed, make it half-open and return true: the caller must send the server a request. A probe whose
+     * outcome is never recorded is thereby replaced after the same interval.
+     */
+    synchronized boolean tryStartProbe(long nowMs) {
+      if (state == BreakerState.Closed || nowMs - breakerChangedMs < TuningConstants.ENDPOINT_BREAKER_OPEN_MS)
+        return false;
+
+      state = BreakerState.HalfOpen;
+      breakerChangedMs = nowMs;
+      return true;
+    }
+
+    /**
+     * Return the server's latency inflated by its error rate, faded according to how long it has been idle.
+     * Lower is better. A server we haven't heard from yet scores best, so that it is tried.
+     */
+    synchronized double score(long nowMs) {
+      double fade = Math.pow(0.5, Math.max(nowMs - lastOutcomeMs, 0) / (double) TuningConstants.ENDPOINT_HEALTH_HALF_LIFE_MS);
+      double latency = Math.max(latencyMs, 0) * fade;
+      return (latency + 1) * (1 + TuningConstants.ENDPOINT_ERROR_PENALTY * errorRate * fade);
+    }
+
+    synchronized void recordLatency(long sampleLatencyMs, long nowMs) {
+      double weight = TuningConstants.ENDPOINT_HEALTH_AVERAGING_WEIGHT;
+      latencyMs = (latencyMs < 0) ? sampleLatencyMs : latencyMs + (sampleLatencyMs - latencyMs) * weight;
+      lastOutcomeMs = nowMs;
+    }
+
+    void recordOutcome(boolean success, long outcomeLatencyMs, long nowMs) {
+      BreakerState newState = null;
+      synchronized (this) {
+        double weight = TuningConstants.ENDPOINT_HEALTH_AVERAGING_WEIGHT;
+        requests++;
+        lastOutcomeMs = nowMs;
+        if (success) {
+          latencyMs = (latencyMs < 0) ? outcomeLatencyMs : latencyMs + (outcomeLatencyMs - latencyMs) * weight;
+          errorRate -= errorRate * weight;
+          consecutiveFailures = 0;
+          if (state != BreakerState.Closed) {
+            state = newState = BreakerState.Closed;
+            breakerChangedMs = nowMs;
+          }
+        } else {
+          failures++;
+          errorRate += (1 - errorRate) * weight;
+          consecutiveFailures++;
+          if (state == BreakerState.HalfOpen
+              || (state == BreakerState.Closed && consecutiveFailures >= TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD)) {
+            state = newState = BreakerState.Open;
+            breakerChangedMs = nowMs;
+            breakerTrips++;
+          }
+        }
+      }
+
+      if (newState != null) {
+        Logging.log(newState == BreakerState.Open ? Severity.warning : Severity.info, Logging.tagServerError,
+            "Circuit breaker for " + server + " is now " + newState);
+        Logging.metaMonitorInfo(new EventAttributes(
+            "tag", "endpointBreaker",
+            "server", server,
+            "state", newState.name()));
+      }
+    }
+
+    synchronized Stats getStats() {
+      return new Stats(server, state, latencyMs, errorRate, requests, failures, breakerTrips);
+    }
+  }
+
+  /**
+   * Snapshot of a server's health.
+   */
+  public static class Stats {
+    public final String server;
+    public final BreakerState state;
+
+    /**
+     * Moving average of the server's latency, in milliseconds, or -1 if it has not yet responded.
+     */
+    public final double latencyMs;
+
+    /**
+     * Moving average of the fraction of requests to the server which failed.
+     */
+    public final double errorRate;
+
+    /**
+     * Number of requests to the server to date, the number which failed, and the number of times its
+     * circuit breaker has opened.
+     */
+    public final long requests;
+    public final long failures;
+    public final long breakerTrips;
+
+    public Stats(String server, BreakerState state, double latencyMs, double errorRate, long requests,
+        long failures, long breakerTrips) {
+      this.server = server;
+      this.state = state;
+      this.latencyMs = latencyMs;
+      this.errorRate = errorRate;
+      this.requests = requests;
+      this.failures = failures;
+      this.breakerTrips = breakerTrips;
+    }
+
+    @Override public String toString() {
+      return "Stats{server=" + server + ", state=" + state + ", latencyMs=" + latencyMs + ", errorRate="
+          + errorRate + ", requests=" + requests + ", failures=" + failures + ", breakerTrips=" + breakerTrips
+          + "}";
+    }
+  }
+}
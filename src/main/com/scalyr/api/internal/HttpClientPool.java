@@ -0,0 +1,211 @@
+package com.scalyr.api.internal;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.knobs.Knob;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived Apache HTTP client, and the pool of keep-alive connections behind it, used for synchronous
+ * requests to the Scalyr server (see ApacheHttpClient). Building a client is costly, and each new connection
+ * costs a TCP (and usually TLS) handshake, so requests share one client and reuse its connections.
+ * <p>
+ * The pool is sized by the scalyrClientMaxConnections and scalyrClientMaxConnectionsPreRoute knobs, and
+ * resized if they change. Connections which have been idle for TuningConstants.HTTP_IDLE_CONNECTION_TIMEOUT_MS
+ * are closed; rather than dedicate a thread to this, we check (at most every
+ * HTTP_IDLE_CONNECTION_CHECK_INTERVAL_MS) whenever a request is issued.
+ * <p>
+ * Thread-safe.
+ */
+public class HttpClientPool {
+  /**
+   * Connection pool limits, in total and per server. These apply to ApacheAsyncHttpClient's pool as well as
+   * to each HttpClientPool; see applyPoolLimits.
+   */
+  static final Knob.Integer scalyrClientMaxConnections = new Knob.Integer("scalyrClientMaxConnections", 20);
+  static final Knob.Integer scalyrClientMaxConnectionsPreRoute = new Knob.Integer("scalyrClientMaxConnectionsPreRoute", 15);
+
+  /**
+   * Pool used by ScalyrService instances which haven't been given one of their own. Created on first use.
+   */
+  private static volatile HttpClientPool shared;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * System.nanoTime() when we last closed idle connections.
+   */
+  private volatile long lastIdleCheckNs = System.nanoTime();
+
+  /**
+   * Number of connections opened (each requiring a TCP handshake, and a TLS handshake for HTTPS).
+   */
+  private final AtomicLong connectionsOpened = new AtomicLong();
+
+  /**
+   * Number of requests issued through this pool.
+   */
+  private final AtomicLong requests = new AtomicLong();
+
+  public HttpClientPool() {
+    Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", new PlainConnectionSocketFactory() {
+          @Override public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+              InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            connectionsOpened.incrementAndGet();
+            return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+          }})
+        .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault(),
+            SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+          @Override public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+              InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            connectionsOpened.incrementAndGet();
+            return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+          }})
+        .build();
+
+    connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+    applyPoolLimits(connectionManager);
+
+    httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+          @Override public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long durationMs = super.getKeepAliveDuration(response, context);
+            return (durationMs > 0) ? Math.min(durationMs, TuningConstants.HTTP_IDLE_CONNECTION_TIMEOUT_MS)
+                : TuningConstants.HTTP_IDLE_CONNECTION_TIMEOUT_MS;
+          }})
+        .build();
+  }
+
+  /**
+   * Return the pool used by ScalyrService instances which haven't been given one of their own.
+   */
+  public static HttpClientPool shared() {
+    if (shared == null) {
+      synchronized (HttpClientPool.class) {
+        if (shared == null) {
+          shared = new HttpClientPool();
+        }
+      }
+    }
+
+    return shared;
+  }
+
+  /**
+   * Return the client through which to issue a request. We first close idle connections, if it's time, and
+   * apply any change to the pool size knobs.
+   */
+  CloseableHttpClient getClient() {
+    requests.incrementAndGet();
+    applyPoolLimits(connectionManager);
+
+    long nowNs = System.nanoTime();
+    if (nowNs - lastIdleCheckNs >= TuningConstants.HTTP_IDLE_CONNECTION_CHECK_INTERVAL_MS * 1000000L) {
+      lastIdleCheckNs = nowNs;
+      connectionManager.closeExpiredConnections();
+      connectionManager.closeIdleConnections(TuningConstants.HTTP_IDLE_CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    return httpClient;
+  }
+
+  /**
+   * Apply the scalyrClientMaxConnections and scalyrClientMaxConnectionsPreRoute knobs to the given connection
+   * pool, if they have changed. Called before each request, so that a change to the knobs takes effect
+   * promptly.
+   */
+  static void applyPoolLimits(ConnPoolControl<HttpRoute> pool) {
+    int maxTotal = scalyrClientMaxConnections.get();
+    if (pool.getMaxTotal() != maxTotal)
+      pool.setMaxTotal(maxTotal);
+
+    int maxPerRoute = scalyrClientMaxConnectionsPreRoute.get();
+    if (pool.getDefaultMaxPerRoute() != maxPerRoute)
+      pool.setDefaultMaxPerRoute(maxPerRoute);
+  }
+
+  /**
+   * Return a snapshot of the pool's state and activity.
+   */
+  public Stats getStats() {
+    PoolStats poolStats = connectionManager.getTotalStats();
+    return new Stats(poolStats.getLeased(), poolStats.getAvailable(), poolStats.getPending(), poolStats.getMax(),
+        connectionManager.getDefaultMaxPerRoute(), connectionsOpened.get(), requests.get());
+  }
+
+  /**
+   * Snapshot of an HttpClientPool's state and activity.
+   */
+  public static class Stats {
+    /**
+     * Number of connections currently carrying a request.
+     */
+    public final int leased;
+
+    /**
+     * Number of idle connections available for reuse.
+     */
+    public final int available;
+
+    /**
+     * Number of requests waiting for a connection.
+     */
+    public final int pending;
+
+    /**
+     * Maximum number of connections, in total and to any one server.
+     */
+    public final int maxTotal;
+    public final int maxPerRoute;
+
+    /**
+     * Number of connections opened to date (each requiring a TCP handshake, and a TLS handshake for HTTPS).
+     */
+    public final long connectionsOpened;
+
+    /**
+     * Number of requests issued to date.
+     */
+    public final long requests;
+
+    public Stats(int leased, int available, int pending, int maxTotal, int maxPerRoute, long connectionsOpened,
+        long requests) {
+      this.leased = leased;
+      this.available = available;
+      this.pending = pending;
+      this.maxTotal = maxTotal;
+      this.maxPerRoute = maxPerRoute;
+      this.connectionsOpened = connectionsOpened;
+      this.requests = requests;
+    }
+
+    @Override public String toString() {
+      return "Stats{leased=" + leased + ", available=" + available + ", pending=" + pending + ", maxTotal="
+          + maxTotal + ", maxPerRoute=" + maxPerRoute + ", connectionsOpened=" + connectionsOpened + ", requests="
+          + requests + "}";
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.scalyr.api.internal;
+
+import com.scalyr.api.json.JSONStreamAware;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.Args;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * HttpEntity which serializes a JSON value directly to the request stream (through a compressing
+ * entity, if one wraps us), rather than first copying it into a byte array. Any RawJson values --
+ * such as a batch of events in a CircularByteArray -- are copied straight from their storage.
+ * <p>
+ * The number of (uncompressed) bytes written is counted during the same pass, and is available
+ * from getBytesWritten() once the request has been sent.
+ */
+public class JsonRequestEntity extends AbstractHttpEntity {
+  /**
+   * Size of the buffer between the JSON serializer, which issues many small writes, and the
+   * request stream (or compressor).
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final JSONStreamAware value;
+
+  private volatile int bytesWritten = -1;
+
+  public JsonRequestEntity(JSONStreamAware value, String contentType) {
+    this.value = value;
+    setContentType(contentType);
+  }
+
+  /**
+   * Return the number of bytes written by the most recent call to writeTo, or -1 if it has not been called.
+   */
+  public int getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * The entity can be written again, provided the JSON value (e.g. the events it refers to) has not
+   * changed in the meantime.
+   */
+  @Override public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override public long getContentLength() {
+    return -1L;
+  }
+
+  @Override public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Serialize the value into memory and return a stream over it. Not used when sending a request; provided
+   * for completeness.
+   */
+  @Override public InputStream getContent() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    writeTo(buffer);
+    return new ByteArrayInputStream(buffer.toByteArray());
+  }
+
+  @Override public void writeTo(OutputStream outStream) throws IOException {
+    Args.notNull(outStream, "Output stream");
+    if (outStream instanceof SegmentedCompressingEntity.SegmentStream) {
+      // The stream buffers and counts for itself, and precompressed values must be able to see it.
+      SegmentedCompressingEntity.SegmentStream segmentStream = (SegmentedCompressingEntity.SegmentStream) outStream;
+      long startBytes = segmentStream.getUncompressedBytes();
+      value.writeJSONBytes(segmentStream);
+      bytesWritten = (int) (segmentStream.getUncompressedBytes() - startBytes);
+      return;
+    }
+
+    // Flushing our buffer must not flush outStream, as that could force a compressor to end a block early.
+    BufferedOutputStream buffered = new BufferedOutputStream(new FlushlessOutputStream(outStream), BUFFER_SIZE);
+    CountingOutputStream counter = new CountingOutputStream(buffered);
+    value.writeJSONBytes(counter);
+    buffered.flush();
+    bytesWritten = counter.bytesWritten;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import java.util.Arrays;
+
+/**
+ * Records the latencies of the most recent requests to an API method, and reports percentiles of them. Used
+ * to decide when to hedge a request (see ScalyrService.invokeApiHedged).
+ * <p>
+ * Thread-safe.
+ */
+final class LatencyTracker {
+  /**
+   * Ring buffer of recent latencies, in milliseconds. All fields are synchronized on this.
+   */
+  private final long[] samples;
+
+  /**
+   * Number of valid entries in samples, and the index at which to store the next.
+   */
+  private int count = 0;
+  private int next = 0;
+
+  LatencyTracker(int capacity) {
+    samples = new long[capacity];
+  }
+
+  synchronized void record(long latencyMs) {
+    samples[next] = latencyMs;
+    next = (next + 1) % samples.length;
+    if (count < samples.length)
+      count++;
+  }
+
+  /**
+   * Return the given percentile (0 to 1) of the recorded latencies, or -1 if fewer than minSamples have
+   * been recorded.
+   */
+  synchronized long percentile(double fraction, int minSamples) {
+    if (count == 0 || count < minSamples)
+      return -1;
+
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(fraction * count) - 1;
+    return sorted[Math.max(0, Math.min(index, count - 1))];
+  }
+}
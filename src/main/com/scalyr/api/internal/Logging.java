@@ -163,6 +163,17 @@ public class Logging {
    */
   public static final String tagLogBufferOverflow = "local/error/logBufferOverflow";
 
+  /**
+   * Scalyr Logs client unable to read or write spilled event segments.
+   */
+  public static final String tagEventSpillError = "local/error/eventSpill";
+
+  /**
+   * Scalyr Logs client splitting a batch of events whose upload failed, or discarding an event which the
+   * server refused to accept.
+   */
+  public static final String tagEventRejected = "local/error/eventRejected";
+
   /**
    * Knob file is not parseable as JSON.
    */
@@ -196,6 +207,23 @@ public class Logging {
    */
   public static final String tagEventUploadOutcome = "local/info/eventUploadOutcome";
 
+  /**
+   * This tag is issued when the Scalyr Logs client spills buffered events to disk, or finds
+   * previously spilled events at startup.
+   */
+  public static final String tagEventSpill = "local/info/eventSpill";
+
+  /**
+   * This tag is issued when the Scalyr Logs client trains (or fails to train or publish) a
+   * Zstandard dictionary for compressing event uploads.
+   */
+  public static final String tagZstdDictionary = "local/info/zstdDictionary";
+
+  /**
+   * This tag is issued when the Scalyr Logs client forgets threads which have been idle for a while.
+   */
+  public static final String tagThreadScavenge = "local/info/threadScavenge";
+
   /**
    * This tag issued after a new EventUpload instance is created for uploading events.
    * It is a human readable message meant to give extra information, such as a link to
@@ -0,0 +1,119 @@
+package com.scalyr.api.internal;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.json.RawJson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A JSON array whose elements have been compressed ahead of time, as a single gzip member or Zstandard
+ * frame. When the array is written to a request compressed with the same method (and dictionary), the
+ * compressed bytes are copied directly into the request (see SegmentedCompressingEntity). Otherwise, they
+ * are decompressed as they are written.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public class PrecompressedJson extends RawJson {
+  /**
+   * "gzip" or "zstd".
+   */
+  public final String contentEncoding;
+
+  /**
+   * Zstandard dictionary the content was compressed with, or null.
+   */
+  public final ZstdDictionary dictionary;
+
+  /**
+   * Length of the array's content (excluding the enclosing brackets), before compression.
+   */
+  public final int uncompressedLength;
+
+  private final byte[] compressed;
+
+  private PrecompressedJson(String contentEncoding, ZstdDictionary dictionary, int uncompressedLength,
+      byte[] compressed) {
+    this.contentEncoding = contentEncoding;
+    this.dictionary = dictionary;
+    this.uncompressedLength = uncompressedLength;
+    this.compressed = compressed;
+  }
+
+  /**
+   * Compress the content of a JSON array, i.e. a comma-separated list of values (without the enclosing
+   * brackets), as written by the given object.
+   *
+   * @param contentEncoding "gzip", "zstd", or "zstandard".
+   * @param dictionary Zstandard dictionary to compress with, or null.
+   */
+  public static PrecompressedJson compress(JSONStreamAware content, String contentEncoding, ZstdDictionary dictionary)
+      throws IOException {
+    String encoding = SegmentedCompressingEntity.normalizeEncoding(contentEncoding);
+    if (encoding == null)
+      throw new IllegalArgumentException("Unsupported content encoding [" + contentEncoding + "]");
+    if (!encoding.equals("zstd"))
+      dictionary = null;
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    OutputStream compressor = SegmentedCompressingEntity.openCompressor(buffer, encoding, dictionary);
+    CountingOutputStream counter = new CountingOutputStream(compressor);
+    content.writeJSONBytes(counter);
+    compressor.close();
+
+    return new PrecompressedJson(encoding, dictionary, counter.bytesWritten, buffer.toByteArray());
+  }
+
+  /**
+   * Return the number of bytes of compressed content.
+   */
+  public int compressedLength() {
+    return compressed.length;
+  }
+
+  /**
+   * Return the array's content (excluding the enclosing brackets), uncompressed.
+   */
+  public byte[] decompress() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(uncompressedLength);
+    writeDecompressed(buffer);
+    return buffer.toByteArray();
+  }
+
+  @Override public void writeJSONBytes(OutputStream out) throws IOException {
+    out.write('[');
+    if (out instanceof SegmentedCompressingEntity.SegmentStream
+        && ((SegmentedCompressingEntity.SegmentStream) out).accepts(contentEncoding, dictionary)) {
+      ((SegmentedCompressingEntity.SegmentStream) out).writePrecompressed(compressed, uncompressedLength);
+    } else {
+      writeDecompressed(out);
+    }
+    out.write(']');
+  }
+
+  private void writeDecompressed(OutputStream out) throws IOException {
+    InputStream input = new ByteArrayInputStream(compressed);
+    if (contentEncoding.equals("gzip")) {
+      input = new GZIPInputStream(input);
+    } else {
+      ZstdInputStream zstd = new ZstdInputStream(input);
+      if (dictionary != null)
+        zstd.setDict(dictionary.getContent());
+      input = zstd;
+    }
+
+    try {
+      byte[] transfer = new byte[8192];
+      int count;
+      while ((count = input.read(transfer)) > 0)
+        out.write(transfer, 0, count);
+    } finally {
+      input.close();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import com.scalyr.api.TuningConstants;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether, and after how long, to retry a failed request.
+ * <p>
+ * Delays are computed by "decorrelated jitter" (see nextDelayMs): each delay is drawn at random from a range
+ * which grows with the previous delay. When many clients lose connectivity at once, this spreads their
+ * retries out, rather than having them retry in lockstep and hit the server in synchronized waves.
+ * <p>
+ * Retries are also limited by a budget: each request earns TuningConstants.RETRY_BUDGET_RATIO of a retry, and
+ * up to RETRY_BUDGET_BURST unused retries may be saved up. During an outage, when most requests fail, the
+ * budget runs dry and failed requests are no longer retried, so that retries can't multiply the load on the
+ * servers just as they are struggling. A ScalyrService holds one RetryPolicy, shared by all of its callers.
+ * <p>
+ * Thread-safe.
+ */
+public class RetryPolicy {
+  /**
+   * Thread on which delayed retries of asynchronous requests are issued. Created on first use.
+   */
+  private static volatile ScheduledExecutorService timer;
+
+  private final double budgetRatio;
+  private final double budgetBurst;
+
+  /**
+   * Number of retries we may currently issue. This and the counters below are synchronized on this.
+   */
+  private double budget;
+
+  private long requests = 0;
+  private long retries = 0;
+  private long retriesDenied = 0;
+
+  public RetryPolicy() {
+    this(TuningConstants.RETRY_BUDGET_RATIO, TuningConstants.RETRY_BUDGET_BURST);
+  }
+
+  public RetryPolicy(double budgetRatio, double budgetBurst) {
+    this.budgetRatio = budgetRatio;
+    this.budgetBurst = budgetBurst;
+    this.budget = budgetBurst;
+  }
+
+  /**
+   * Return the delay (in milliseconds) before the next attempt, given the previous delay (or 0 before the first
+   * retry): a random value between baseMs and three times the previous delay, capped at capMs.
+   */
+  public static long nextDelayMs(long previousDelayMs, long baseMs, long capMs) {
+    long upperMs = Math.min(capMs, Math.max(previousDelayMs, baseMs) * 3);
+    if (upperMs <= baseMs)
+      return upperMs;
+
+    return ThreadLocalRandom.current().nextLong(baseMs, upperMs + 1);
+  }
+
+  /**
+   * Record that a request is being issued, earning a fraction of a retry.
+   */
+  public synchronized void requestIssued() {
+    requests++;
+    budget = Math.min(budget + budgetRatio, budgetBurst);
+  }
+
+  /**
+   * Return true, and spend one retry from the budget, if a failed request may be retried.
+   */
+  public synchronized boolean tryRetry() {
+    if (budget < 1) {
+      retriesDenied++;
+      return false;
+    }
+
+    budget--;
+    retries++;
+    return true;
+  }
+
+  public synchronized Stats getStats() {
+    return new Stats(requests, retries, retriesDenied, budget);
+  }
+
+  /**
+   * Run task after delayMs, on a shared timer thread. The task should not block.
+   */
+  static void schedule(Runnable task, long delayMs) {
+    if (timer == null) {
+      synchronized (RetryPolicy.class) {
+        if (timer == null) {
+          ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Scalyr retry timer");
+            thread.setDaemon(true);
+            return thread;
+          });
+          executor.setRemoveOnCancelPolicy(true);
+          timer = executor;
+        }
+      }
+    }
+
+    timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Snapshot of a RetryPolicy's activity.
+   */
+  public static class Stats {
+    /**
+     * Number of requests issued, retries issued, and retries not issued because the budget was exhausted.
+     */
+    public final long requests;
+    public final long retries;
+    public final long retriesDenied;
+
+    /**
+     * Number of retries which may currently be issued.
+     */
+    public final double budget;
+
+    public Stats(long requests, long retries, long retriesDenied, double budget) {
+      this.requests = requests;
+      this.retries = retries;
+      this.retriesDenied = retriesDenied;
+      this.budget = budget;
+    }
+
+    @Override public String toString() {
+      return "Stats{requests=" + requests + ", retries=" + retries + ", retriesDenied=" + retriesDenied
+          + ", budget=" + budget + "}";
+    }
+  }
+}
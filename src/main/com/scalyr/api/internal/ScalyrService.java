@@ -24,15 +24,26 @@ import com.scalyr.api.TuningConstants;
 import com.scalyr.api.json.JSONObject;
 import com.scalyr.api.json.JSONParser;
 import com.scalyr.api.json.JSONParser.ByteScanner;
+import com.scalyr.api.json.JSONParser.JsonParseException;
 import com.scalyr.api.logs.Events;
 import com.scalyr.api.logs.Severity;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class for encapsulating the raw HTTP-level API to a Scalyr service.
@@ -62,9 +73,10 @@ public abstract class ScalyrService {
 
   /**
    * If true, then we set connection="close" on each request. This avoids any possibility of problems with the HTTP
-   * client failing to correctly track the connection state.
+   * client failing to correctly track the connection state, but each request then pays for a new connection
+   * (including a TLS handshake). Defaults to false, so that connections are kept alive and reused.
    */
-  public boolean closeConnections = true;
+  public boolean closeConnections = false;
 
   /**
    * If true, then we explicitly disconnect after each web request. Defaults to false, but can be set to true
@@ -72,6 +84,54 @@ public abstract class ScalyrService {
    */
   public boolean explicitlyDisconnect = false;
 
+  /**
+   * Pool of connections through which we issue synchronous requests, or null to use the pool shared by all
+   * ScalyrService instances (see HttpClientPool.shared).
+   */
+  private volatile HttpClientPool httpClientPool = null;
+
+  /**
+   * Latency, error rate, and circuit breaker state of each server, which determine the order in which we try
+   * them for each request.
+   */
+  private final EndpointHealth endpointHealth = new EndpointHealth();
+
+  /**
+   * If true, then requests to idempotent methods -- queries, and knob file reads -- are hedged: if no response
+   * has arrived by the time most responses to the method have (see TuningConstants.HEDGE_DELAY_PERCENTILE),
+   * the same request is sent to a second server, and we take whichever succeeds first. This trims the tail
+   * latency caused by an occasional slow server, at the cost of a few percent more requests (see
+   * HEDGE_BUDGET_FRACTION). Defaults to false.
+   */
+  public boolean hedgeIdempotentRequests = false;
+
+  /**
+   * Recent latencies of successful requests, per API method, from which we compute the hedge delay.
+   */
+  private final ConcurrentHashMap<String, LatencyTracker> methodLatencies = new ConcurrentHashMap<>();
+
+  /**
+   * Number of hedgeable requests issued, hedges sent, hedges which returned first, and hedges not sent
+   * because the budget was exhausted.
+   */
+  private final AtomicLong hedgeableRequests = new AtomicLong();
+  private final AtomicLong hedgesSent = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+  private final AtomicLong hedgesDenied = new AtomicLong();
+
+  /**
+   * Number of hedges we may currently send, shared by all ScalyrService instances (see
+   * TuningConstants.HEDGE_BUDGET_FRACTION). Synchronized on hedgeBudgetLock.
+   */
+  private static final Object hedgeBudgetLock = new Object();
+  private static double hedgeBudget = TuningConstants.HEDGE_BUDGET_BURST;
+
+  /**
+   * Decides whether, and after how long, to retry a failed request. Its retry budget is shared by all callers
+   * of this service.
+   */
+  private final RetryPolicy retryPolicy = new RetryPolicy();
+
   /**
    * Construct a ScalyrService.
    *
@@ -88,6 +148,59 @@ public abstract class ScalyrService {
         "https://api4.scalyr.com");
   }
 
+  /**
+   * Issue our synchronous requests through the given connection pool, rather than the pool shared by all
+   * ScalyrService instances. Pass null to revert to the shared pool.
+   *
+   * @return this ScalyrService object.
+   */
+  public ScalyrService setHttpClientPool(HttpClientPool pool) {
+    httpClientPool = pool;
+    return this;
+  }
+
+  /**
+   * Return the connection pool through which we issue synchronous requests.
+   */
+  public HttpClientPool getHttpClientPool() {
+    HttpClientPool pool = httpClientPool;
+    return (pool != null) ? pool : HttpClientPool.shared();
+  }
+
+  /**
+   * Return a snapshot of the state and activity of the connection pool through which we issue synchronous
+   * requests. If the pool is shared, this covers all requests issued through it.
+   */
+  public HttpClientPool.Stats getConnectionPoolStats() {
+    return getHttpClientPool().getStats();
+  }
+
+  /**
+   * Return the health (latency, error rate, and circuit breaker state) of each of our servers.
+   */
+  public List<EndpointHealth.Stats> getEndpointStats() {
+    String[] servers;
+    synchronized (this) {
+      servers = serverAddresses.clone();
+    }
+    return endpointHealth.getStats(servers);
+  }
+
+  /**
+   * Return counts of the requests we have hedged (see hedgeIdempotentRequests).
+   */
+  public HedgingStats getHedgingStats() {
+    return new HedgingStats(hedgeableRequests.get(), hedgesSent.get(), hedgesWon.get(), hedgesDenied.get());
+  }
+
+  /**
+   * Return counts of the requests we have issued and retried, and of retries denied by the retry budget (see
+   * RetryPolicy).
+   */
+  public RetryPolicy.Stats getRetryStats() {
+    return retryPolicy.getStats();
+  }
+
   /**
    * Return the server URL(s) we use, as a comma-delimited list.
    */
@@ -173,6 +286,146 @@ public abstract class ScalyrService {
     return invokeApiX(methodName, parameters, Events.DEFAULT_COMPRESSION_TYPE.getContentType()).response;
   }
 
+  /**
+   * Like invokeApi(methodName, parameters), for a method which is idempotent (has no side effects), and so
+   * may safely be sent to more than one server. If hedgeIdempotentRequests is set, the request is hedged (see
+   * invokeApiHedged).
+   * <p>
+   * This method should not be called directly. Instead, work through method-specific wrappers.
+   *
+   * @throws ScalyrException
+   * @throws ScalyrNetworkException
+   */
+  public JSONObject invokeIdempotentApi(String methodName, JSONObject parameters) {
+    if (!hedgeIdempotentRequests)
+      return invokeApi(methodName, parameters);
+
+    return invokeApiHedged(methodName, parameters, new RpcOptions(),
+        Events.DEFAULT_COMPRESSION_TYPE.getContentType()).response;
+  }
+
+  /**
+   * Invoke methodName, which must be idempotent, hedging against a slow server. We send the request to the
+   * first server (retrying on others after a retriable error, as for invokeApiAsync). If no response has
+   * arrived after the hedge delay -- the TuningConstants.HEDGE_DELAY_PERCENTILE latency of recent requests to
+   * the method -- and the hedge budget allows, we send the same request to the next server. We return the
+   * first successful response, and abort the other request. We fail only if both requests fail.
+   * <p>
+   * This method should not be called directly. Instead, work through method-specific wrappers.
+   *
+   * @param contentEncoding compression method to use
+   * @throws ScalyrException
+   * @throws ScalyrNetworkException
+   */
+  public InvokeApiResult invokeApiHedged(String methodName, JSONObject parameters, RpcOptions options,
+      String contentEncoding) {
+    String[] servers = orderedServerAddresses();
+    if (servers.length < 2)
+      return invokeApiX(methodName, parameters, options, contentEncoding);
+
+    hedgeableRequests.incrementAndGet();
+    synchronized (hedgeBudgetLock) {
+      hedgeBudget = Math.min(hedgeBudget + TuningConstants.HEDGE_BUDGET_FRACTION, TuningConstants.HEDGE_BUDGET_BURST);
+    }
+
+    retryPolicy.requestIssued();
+    long retryDeadlineMs = options.retryDeadlineMs(ScalyrUtil.currentTimeMillis());
+    CompletableFuture<InvokeApiResult> primary = new CompletableFuture<>();
+    CompletableFuture<InvokeApiResult> hedge = null;
+    try {
+      invokeApiAsync(servers, 0, retryDeadlineMs, 0, methodName, parameters, options, contentEncoding, primary);
+      try {
+        return primary.get(hedgeDelayMs(methodName), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+        // Fall through and hedge.
+      }
+
+      boolean withinBudget;
+      synchronized (hedgeBudgetLock) {
+        withinBudget = hedgeBudget >= 1;
+        if (withinBudget)
+          hedgeBudget--;
+      }
+      if (!withinBudget) {
+        hedgesDenied.incrementAndGet();
+        return primary.get();
+      }
+
+      // The hedge tries the remaining servers in the same order, ending with the primary's server.
+      String[] hedgeServers = new String[servers.length];
+      System.arraycopy(servers, 1, hedgeServers, 0, servers.length - 1);
+      hedgeServers[servers.length - 1] = servers[0];
+
+      hedgesSent.incrementAndGet();
+      hedge = new CompletableFuture<>();
+      invokeApiAsync(hedgeServers, 0, retryDeadlineMs, 0, methodName, parameters, options, contentEncoding, hedge);
+
+      CompletableFuture<InvokeApiResult> first = new CompletableFuture<>();
+      AtomicInteger outstanding = new AtomicInteger(2);
+      primary.whenComplete((value, throwable) -> {
+        if (throwable == null)
+          first.complete(value);
+        else if (outstanding.decrementAndGet() == 0)
+          first.completeExceptionally(throwable);
+      });
+      hedge.whenComplete((value, throwable) -> {
+        if (throwable == null)
+          first.complete(value);
+        else if (outstanding.decrementAndGet() == 0)
+          first.completeExceptionally(throwable);
+      });
+
+      // Tally the win here rather than in the callback, so that it is counted before we return.
+      InvokeApiResult result = first.get();
+      if (hedge.isDone() && !hedge.isCompletedExceptionally() && hedge.getNow(null) == result)
+        hedgesWon.incrementAndGet();
+      return result;
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new ScalyrNetworkException("Error while communicating with Scalyr server", cause);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ScalyrNetworkException("Interrupted while waiting for Scalyr server", ex);
+    } finally {
+      // Abort whichever request is still in flight.
+      primary.cancel(true);
+      if (hedge != null)
+        hedge.cancel(true);
+    }
+  }
+
+  /**
+   * Return how long to wait for a response to methodName before hedging.
+   */
+  private long hedgeDelayMs(String methodName) {
+    LatencyTracker latencies = methodLatencies.get(methodName);
+    long percentileMs = (latencies != null)
+        ? latencies.percentile(TuningConstants.HEDGE_DELAY_PERCENTILE, TuningConstants.HEDGE_MIN_LATENCY_SAMPLES)
+        : -1;
+    if (percentileMs < 0)
+      return TuningConstants.HEDGE_DEFAULT_DELAY_MS;
+
+    return Math.max(percentileMs, TuningConstants.HEDGE_MIN_DELAY_MS);
+  }
+
+  /**
+   * Record the latency of a successful request to methodName, for use in computing the hedge delay.
+   *
+   * @param requestStartNs ScalyrUtil.nanoTime() when the request was issued.
+   */
+  private void recordLatency(String methodName, long requestStartNs) {
+    LatencyTracker latencies = methodLatencies.get(methodName);
+    if (latencies == null) {
+      LatencyTracker created = new LatencyTracker(TuningConstants.HEDGE_LATENCY_SAMPLES);
+      latencies = methodLatencies.putIfAbsent(methodName, created);
+      if (latencies == null)
+        latencies = created;
+    }
+    latencies.record((ScalyrUtil.nanoTime() - requestStartNs) / 1000000);
+  }
+
   /**
    * Invoke methodName on a selected server, sending the specified parameters as the request
    * body. Return the (JSON-format) response, as well as additional data about the request and
@@ -251,53 +504,220 @@ public abstract class ScalyrService {
    * @throws ScalyrNetworkException
    */
   public InvokeApiResult invokeApiX(String methodName, JSONObject parameters, RpcOptions options, String contentEncoding) {
-    // Produce a shuffled copy of the server addresses, so that load is distributed
-    // across the servers.
-    int N = serverAddresses.length;
-    String[] shuffled = new String[N];
-    System.arraycopy(serverAddresses, 0, shuffled, 0, N);
-
-    for (int i = 0; i < N - 1; i++) {
-      int j = i + random.nextInt(N - i);
-      String temp = shuffled[i];
-      shuffled[i] = shuffled[j];
-      shuffled[j] = temp;
-    }
+    String[] servers = orderedServerAddresses();
+    retryPolicy.requestIssued();
 
     // Try the operation on each server in turn.
-    long startTimeMs = ScalyrUtil.currentTimeMillis();
+    long retryDeadlineMs = options.retryDeadlineMs(ScalyrUtil.currentTimeMillis());
+    long retryDelayMs = 0;
     int serverIndex = 0;
     while (true) {
-      String serverAddress = shuffled[serverIndex];
+      String serverAddress = servers[serverIndex];
+      RpcOptions attemptOptions = options.forAttempt(methodName);
       long requestStartTimeMs = ScalyrUtil.currentTimeMillis();
+      long requestStartNs = ScalyrUtil.nanoTime();
+      InvokeApiResult result;
       try {
-        return invokeApiOnServer(serverAddress, methodName, parameters, options, contentEncoding);
+        result = invokeApiOnServer(serverAddress, methodName, parameters, attemptOptions, contentEncoding);
       } catch (ScalyrNetworkException ex) {
-        // Fall into the loop and retry the operation on the next server.
-        // If there are no more servers, or our deadline has expired, then
-        // rethrow the exception.
+        recordOutcome(serverAddress, requestStartNs, ex);
+
+        // Wait, then fall into the loop and retry the operation on the next server.
+        // If the server refused the request, there are no more servers, our deadline
+        // would expire, or the retry budget is exhausted, then rethrow the exception.
         serverIndex++;
+        retryDelayMs = retryDelayMs(methodName, serverAddress, serverIndex, servers.length, retryDeadlineMs,
+            requestStartTimeMs, retryDelayMs, ex);
+        if (retryDelayMs < 0)
+          throw ex;
+        Sleeper.instance.sleep((int) retryDelayMs);
+        continue;
+      } catch (RuntimeException ex) {
+        recordOutcome(serverAddress, requestStartNs, ex);
+        throw ex;
+      }
 
-        long totalElapsedMs = ScalyrUtil.currentTimeMillis() - startTimeMs;
+      recordOutcome(serverAddress, requestStartNs, null);
+      recordLatency(methodName, requestStartNs);
+      return result;
+    }
+  }
 
-        if (serverIndex >= N) {
-          long requestElapsedMs = ScalyrUtil.currentTimeMillis() - requestStartTimeMs;
-          Logging.log(Severity.warning, Logging.tagServerError,
-              "invokeApi: " + methodName + " failed on " + serverAddress
-              + " (after " + requestElapsedMs + " milliseconds); no more servers to try, so giving up", ex);
-          throw ex;
-        } else if (totalElapsedMs >= options.maxRetryIntervalMs) {
-          Logging.log(Severity.warning, Logging.tagServerError,
-              "invokeApi: " + methodName + " failed on " + serverAddress
-              + "; maximum retry period of " + TuningConstants.MAXIMUM_RETRY_PERIOD_MS
-              + " ms exceeded, so giving up", ex);
-          throw ex;
-        }
+  /**
+   * Asynchronous version of invokeApiX. The request is issued through a shared non-blocking HTTP client
+   * (see ApacheAsyncHttpClient), so no thread is tied up while it is in flight; a handful of I/O threads
+   * serve all outstanding requests.
+   * <p>
+   * Retriable errors are retried on other servers, exactly as for invokeApiX. The returned future completes
+   * with the result, or exceptionally with a ScalyrException (usually a ScalyrNetworkException).
+   * <p>
+   * The request is serialized and compressed on the calling thread. Responses are parsed, and retries
+   * serialized, on ScalyrUtil.asyncApiExecutor, never on the I/O threads, where CPU-heavy work would stall
+   * every connection. Completion callbacks run on an asyncApiExecutor thread, so they should not block for
+   * long.
+   * <p>
+   * This method should not be called directly. Instead, work through method-specific wrappers.
+   *
+   * @param contentEncoding compression method to use
+   */
+  public CompletableFuture<InvokeApiResult> invokeApiAsync(String methodName, JSONObject parameters, RpcOptions options,
+      String contentEncoding) {
+    CompletableFuture<InvokeApiResult> result = new CompletableFuture<>();
+    String[] servers = orderedServerAddresses();
+    retryPolicy.requestIssued();
+    invokeApiAsync(servers, 0, options.retryDeadlineMs(ScalyrUtil.currentTimeMillis()), 0, methodName, parameters,
+        options, contentEncoding, result);
+    return result;
+  }
 
-        Logging.log(Severity.warning, Logging.tagServerError,
-            "invokeApi: " + methodName + " failed on " + serverAddress + "; will retry", ex);
-      }
+  /**
+   * Overloading 4-parameter invokeApiAsync() with default options and compression.
+   */
+  public CompletableFuture<InvokeApiResult> invokeApiAsync(String methodName, JSONObject parameters) {
+    return invokeApiAsync(methodName, parameters, new RpcOptions(), Events.DEFAULT_COMPRESSION_TYPE.getContentType());
+  }
+
+  /**
+   * Issue the request to servers[serverIndex], moving on to the next server (after a delay) following a
+   * retriable error. The outcome is delivered to result. If result is cancelled, the request in flight is
+   * aborted, and no further servers are tried.
+   *
+   * @param retryDeadlineMs Time after which we may no longer start a retry (see RpcOptions.retryDeadlineMs).
+   * @param previousDelayMs Delay before this attempt, or 0 for the first attempt.
+   */
+  private void invokeApiAsync(final String[] servers, final int serverIndex, final long retryDeadlineMs,
+      final long previousDelayMs, final String methodName, final JSONObject parameters, final RpcOptions options,
+      final String contentEncoding, final CompletableFuture<InvokeApiResult> result) {
+    final String serverAddress = servers[serverIndex];
+    RpcOptions attemptOptions;
+    try {
+      attemptOptions = options.forAttempt(methodName);
+    } catch (ScalyrNetworkException ex) {
+      result.completeExceptionally(ex);
+      return;
+    }
+
+    final long requestStartTimeMs = ScalyrUtil.currentTimeMillis();
+    final long requestStartNs = ScalyrUtil.nanoTime();
+    final CompletableFuture<InvokeApiResult> attempt = invokeApiOnServerAsync(serverAddress, methodName, parameters,
+        attemptOptions, contentEncoding);
+    result.whenComplete((value, throwable) -> {
+      if (result.isCancelled())
+        attempt.cancel(true);
+    });
+    attempt.whenComplete(
+        (value, throwable) -> {
+          if (throwable == null) {
+            recordOutcome(serverAddress, requestStartNs, null);
+            recordLatency(methodName, requestStartNs);
+            result.complete(value);
+            return;
+          }
+
+          Throwable cause = (throwable instanceof CompletionException && throwable.getCause() != null)
+              ? throwable.getCause() : throwable;
+          recordOutcome(serverAddress, requestStartNs, cause);
+          if (result.isDone())
+            return;
+
+          final long delayMs = (cause instanceof ScalyrNetworkException) ? retryDelayMs(methodName, serverAddress,
+              serverIndex + 1, servers.length, retryDeadlineMs, requestStartTimeMs, previousDelayMs,
+              (ScalyrNetworkException) cause) : -1;
+          if (delayMs < 0) {
+            result.completeExceptionally(cause);
+            return;
+          }
+
+          // The retry timer only keeps time; the retry's serialization and compression run on asyncApiExecutor.
+          RetryPolicy.schedule(() -> ScalyrUtil.asyncApiExecutor.execute(() -> {
+            if (!result.isDone())
+              invokeApiAsync(servers, serverIndex + 1, retryDeadlineMs, delayMs, methodName, parameters, options,
+                  contentEncoding, result);
+          }), delayMs);
+        });
+  }
+
+  /**
+   * Return the server addresses in the order in which to try them for a new request, so that load is
+   * distributed across the servers, favoring those which are responding quickly (see EndpointHealth).
+   */
+  private String[] orderedServerAddresses() {
+    String[] servers;
+    synchronized (this) {
+      servers = serverAddresses.clone();
     }
+
+    return endpointHealth.order(servers);
+  }
+
+  /**
+   * Record the outcome of a request to serverAddress in endpointHealth.
+   *
+   * @param requestStartNs ScalyrUtil.nanoTime() when the request was issued.
+   * @param failure The exception with which the request failed, or null if it succeeded. Network errors, and
+   *     error/server statuses, count against the server; other errors (including client error statuses and
+   *     HTTP 4xx responses, though they arrive wrapped in a ScalyrNetworkException; see isClientError) mean
+   *     that the server responded, and the problem lay with the request. A CancellationException means that we abandoned the request (e.g. a
+   *     hedged request which lost the race): the server had been working on it for at least this long, so we
+   *     record the time so far as a latency sample, but it tells us nothing about the server's health.
+   */
+  private void recordOutcome(String serverAddress, long requestStartNs, Throwable failure) {
+    if (failure instanceof CancellationException) {
+      endpointHealth.requestAbandoned(serverAddress, (ScalyrUtil.nanoTime() - requestStartNs) / 1000000);
+      return;
+    }
+
+    String status = errorStatus(failure);
+    boolean serverFailed = (status != null) ? status.startsWith("error/server")
+        : (failure instanceof ScalyrNetworkException && !isClientError(failure));
+    if (serverFailed)
+      endpointHealth.requestFailed(serverAddress);
+    else
+      endpointHealth.requestSucceeded(serverAddress, (ScalyrUtil.nanoTime() - requestStartNs) / 1000000);
+  }
+
+  /**
+   * Called when a request to serverAddress fails with a retriable error. Return the delay (in milliseconds)
+   * after which it should be retried on the server at nextServerIndex, or -1 (having logged the failure) if we
+   * should give up: the server refused the request (see isClientError), so that any server would refuse it,
+   * there are no more servers to try, the retry would start after retryDeadlineMs, or the retry budget is
+   * exhausted. A refused request is not charged to the retry budget.
+   *
+   * @param previousDelayMs Delay before the attempt which failed, or 0 if it was the first.
+   */
+  private long retryDelayMs(String methodName, String serverAddress, int nextServerIndex, int serverCount,
+      long retryDeadlineMs, long requestStartTimeMs, long previousDelayMs, ScalyrNetworkException ex) {
+    if (isClientError(ex)) {
+      Logging.log(Severity.warning, Logging.tagServerError,
+          "invokeApi: " + methodName + " refused by " + serverAddress + "; not retrying", ex);
+      return -1;
+    }
+
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    long delayMs = RetryPolicy.nextDelayMs(previousDelayMs, TuningConstants.RETRY_BASE_DELAY_MS,
+        TuningConstants.RETRY_MAX_DELAY_MS);
+
+    if (nextServerIndex >= serverCount) {
+      long requestElapsedMs = nowMs - requestStartTimeMs;
+      Logging.log(Severity.warning, Logging.tagServerError,
+          "invokeApi: " + methodName + " failed on " + serverAddress
+          + " (after " + requestElapsedMs + " milliseconds); no more servers to try, so giving up", ex);
+      return -1;
+    } else if (nowMs + delayMs >= retryDeadlineMs) {
+      Logging.log(Severity.warning, Logging.tagServerError,
+          "invokeApi: " + methodName + " failed on " + serverAddress
+          + "; retry deadline reached, so giving up", ex);
+      return -1;
+    } else if (!retryPolicy.tryRetry()) {
+      Logging.log(Severity.warning, Logging.tagServerError,
+          "invokeApi: " + methodName + " failed on " + serverAddress
+          + "; retry budget exhausted, so giving up", ex);
+      return -1;
+    }
+
+    Logging.log(Severity.warning, Logging.tagServerError,
+        "invokeApi: " + methodName + " failed on " + serverAddress + "; will retry in " + delayMs + " ms", ex);
+    return delayMs;
   }
 
   /**
@@ -332,6 +752,86 @@ public abstract class ScalyrService {
      * no longer issue retries.
      */
     public int maxRetryIntervalMs = TuningConstants.MAXIMUM_RETRY_PERIOD_MS;
+
+    /**
+     * If nonzero, the time (in ScalyrUtil.currentTimeMillis() terms) by which the operation must complete. No
+     * retry is started after this time, and the connection and read timeouts of each attempt are cut short to
+     * expire by it. Unlike the timeouts, the deadline is absolute, so it holds across retries, hedges, and any
+     * layers through which these options are passed.
+     */
+    public long deadlineMs = 0;
+
+    /**
+     * If not null, and the request is Zstandard-compressed, then we compress with this dictionary. The server
+     * must already have a copy of the dictionary.
+     */
+    public ZstdDictionary zstdDictionary;
+
+    /**
+     * Return the time after which no retry may be started, for an operation which started at startTimeMs.
+     */
+    long retryDeadlineMs(long startTimeMs) {
+      long retryDeadlineMs = startTimeMs + maxRetryIntervalMs;
+      return (deadlineMs > 0) ? Math.min(retryDeadlineMs, deadlineMs) : retryDeadlineMs;
+    }
+
+    /**
+     * Return the options for one attempt at the operation: these options, with the timeouts shortened if need
+     * be to expire at deadlineMs. Throw ScalyrNetworkException if the deadline has already passed.
+     */
+    RpcOptions forAttempt(String methodName) {
+      if (deadlineMs <= 0)
+        return this;
+
+      long remainingMs = deadlineMs - ScalyrUtil.currentTimeMillis();
+      if (remainingMs <= 0)
+        throw new ScalyrNetworkException("Deadline passed before " + methodName + " could be issued");
+      if (remainingMs >= connectionTimeoutMs && remainingMs >= readTimeoutMs)
+        return this;
+
+      RpcOptions attemptOptions = new RpcOptions();
+      attemptOptions.queryParameters = queryParameters;
+      attemptOptions.connectionTimeoutMs = (int) Math.min(connectionTimeoutMs, remainingMs);
+      attemptOptions.readTimeoutMs = (int) Math.min(readTimeoutMs, remainingMs);
+      attemptOptions.maxRetryIntervalMs = maxRetryIntervalMs;
+      attemptOptions.deadlineMs = deadlineMs;
+      attemptOptions.zstdDictionary = zstdDictionary;
+      return attemptOptions;
+    }
+  }
+
+  /**
+   * Counts of the requests a ScalyrService has hedged (see hedgeIdempotentRequests).
+   */
+  public static class HedgingStats {
+    /**
+     * Number of requests eligible for hedging.
+     */
+    public final long requests;
+
+    /**
+     * Number of hedge requests sent, and the number which returned a response before the original request.
+     */
+    public final long hedgesSent;
+    public final long hedgesWon;
+
+    /**
+     * Number of requests which were slow enough to hedge, but weren't hedged because the hedge budget (see
+     * TuningConstants.HEDGE_BUDGET_FRACTION) was exhausted.
+     */
+    public final long hedgesDenied;
+
+    public HedgingStats(long requests, long hedgesSent, long hedgesWon, long hedgesDenied) {
+      this.requests = requests;
+      this.hedgesSent = hedgesSent;
+      this.hedgesWon = hedgesWon;
+      this.hedgesDenied = hedgesDenied;
+    }
+
+    @Override public String toString() {
+      return "HedgingStats{requests=" + requests + ", hedgesSent=" + hedgesSent + ", hedgesWon=" + hedgesWon
+          + ", hedgesDenied=" + hedgesDenied + "}";
+    }
   }
 
   /**
@@ -375,10 +875,6 @@ public abstract class ScalyrService {
     long timeAfterReceivingResponse = -1;
 
     try {
-      CountingOutputStream countingStream = new CountingOutputStream();
-      parameters.writeJSONBytes(countingStream);
-      int requestLength = countingStream.bytesWritten;
-
       // Send the request.
       long startTimeMs = ScalyrUtil.currentTimeMillis();
       String urlString = serverAddress + methodName;
@@ -391,80 +887,33 @@ public abstract class ScalyrService {
         TuningConstants.serverInvocationCounter.increment();
 
       try {
-        ByteArrayOutputStream requestBuffer = new ByteArrayOutputStream();
-        parameters.writeJSONBytes(requestBuffer);
-
-        byte[] byteArray = requestBuffer.toByteArray();
-        httpClient = new ApacheHttpClient(url, options, byteArray, byteArray.length, "application/json", contentEncoding);
+        // The request body is serialized directly to the connection, and measured on the same pass.
+        JsonRequestEntity requestEntity = new JsonRequestEntity(parameters, "application/json");
+        httpClient = new ApacheHttpClient(getHttpClientPool(), url, options, requestEntity, "application/json",
+            contentEncoding, closeConnections);
+        int requestLength = requestEntity.getBytesWritten();
 
         // Retrieve the response.
         timeBeforeRequestingResponse = System.nanoTime();
         int responseCode = httpClient.getResponseCode();
         timeAfterReceivingResponse = System.nanoTime();
 
-        byte[] rawResponse;
-
+        // The response is parsed as it arrives, rather than first being read in full.
         try {
-          InputStream input = httpClient.getInputStream();
-          rawResponse = readEntireStream(input);
+          return processResponse(serverAddress, methodName, requestLength, startTimeMs, responseCode,
+              httpClient.getInputStream());
         } finally {
           httpClient.finishedReadingResponse();
         }
-
-        // Log a random sample of server response times.
-        Severity severity = Severity.fine;
-        if (latencyRecordingFraction == 1) {
-          severity = Severity.info;
-        } else if (latencyRecordingFraction > 0) {
-          synchronized (random) {
-            if (random.nextInt(latencyRecordingFraction) == 0) {
-              severity = Severity.info;
-            }
-          }
-        }
-
-        int runtimeMs = (int) (ScalyrUtil.currentTimeMillis() - startTimeMs);
-        Logging.log(severity, Logging.tagServerCommunication,
-            serverAddress + "/" + methodName + ": "
-            + runtimeMs + " ms, "
-            + requestLength + " bytes sent, "
-            + rawResponse.length + " bytes received, "
-            + "response status " + responseCode
-            );
-
-        if (responseCode != 200) {
-          // TODO: log StringUtil.noisyTruncate(response.responseBody.trim(), 1000));
-          // also do this in the "Malformed response" case
-          throw new ScalyrNetworkException("Scalyr server returned error code " + responseCode);
-        }
-
-        ByteScanner responseScanner = new ByteScanner(rawResponse);
-        Object responseObj = new JSONParser(responseScanner).parseValue();
-        if (responseObj instanceof JSONObject) {
-          JSONObject responseJson = (JSONObject)responseObj;
-          Object status = responseJson.get("status");
-          Logging.log(Severity.finer, Logging.tagServerCommunication,
-              "Response status [" + (status == null ? "(none)" : status) + "]"
-              );
-
-          throwIfErrorStatus(responseJson);
-
-          InvokeApiResult result = new InvokeApiResult();
-          result.requestLength = requestLength;
-          result.responseLength = responseScanner.getPos();
-          result.response = responseJson;
-          result.latencyMs = runtimeMs;
-          return result;
-        } else {
-          throw new ScalyrException("Malformed response from Scalyr server");
-        }
-
       } finally {
         if (TuningConstants.serverInvocationTimeCounterSecs != null) {
           TuningConstants.serverInvocationTimeCounterSecs.increment((ScalyrUtil.currentTimeMillis() - startTimeMs) / 1000.0);
         }
       }
-    } catch (Exception ex) {
+    } catch (Exception caught) {
+      // An I/O error while parsing the response arrives wrapped in an UncheckedIOException.
+      Exception ex = (caught instanceof UncheckedIOException) ? ((UncheckedIOException) caught).getCause() : caught;
+
       String timingDetails = "";
       if (timeAfterReceivingResponse != -1) {
         timingDetails = "creating client -> request response -> receive response -> now: "
@@ -492,6 +941,196 @@ public abstract class ScalyrService {
     }
   }
 
+  /**
+   * Asynchronous version of invokeApiOnServer, using ApacheAsyncHttpClient. The returned future completes
+   * exceptionally with a ScalyrNetworkException on failure.
+   */
+  protected CompletableFuture<InvokeApiResult> invokeApiOnServerAsync(final String serverAddress,
+      final String methodName, JSONObject parameters, RpcOptions options, String contentEncoding) {
+    final long timeBeforeCreatingClient = System.nanoTime();
+    final long startTimeMs = ScalyrUtil.currentTimeMillis();
+
+    CompletableFuture<ApacheAsyncHttpClient> response;
+    final int requestLength;
+    try {
+      ByteArrayOutputStream requestBuffer = new ByteArrayOutputStream();
+      parameters.writeJSONBytes(requestBuffer);
+      requestLength = requestBuffer.size();
+
+      String urlString = serverAddress + methodName;
+      if (options.queryParameters != null && !"".equals(options.queryParameters))
+        urlString += "?" + options.queryParameters;
+
+      if (TuningConstants.serverInvocationCounter != null)
+        TuningConstants.serverInvocationCounter.increment();
+
+      byte[] byteArray = requestBuffer.toByteArray();
+      response = ApacheAsyncHttpClient.execute(new URL(urlString), options, byteArray, byteArray.length,
+          "application/json", contentEncoding);
+    } catch (Exception ex) {
+      CompletableFuture<InvokeApiResult> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new ScalyrNetworkException("Error while communicating with Scalyr server ("
+          + "creating client -> now: " + (System.nanoTime() - timeBeforeCreatingClient) / 1000000 + " ms)", ex));
+      return failed;
+    }
+
+    CompletableFuture<InvokeApiResult> result = new CompletableFuture<>();
+    result.whenComplete((value, throwable) -> {
+      if (result.isCancelled())
+        response.cancel(true);
+    });
+    // The response is completed on an I/O thread; we parse it on asyncApiExecutor, so as not to hold up the
+    // I/O threads' other connections.
+    response.whenCompleteAsync((httpClient, throwable) -> {
+      if (TuningConstants.serverInvocationTimeCounterSecs != null) {
+        TuningConstants.serverInvocationTimeCounterSecs.increment((ScalyrUtil.currentTimeMillis() - startTimeMs) / 1000.0);
+      }
+
+      Throwable cause = throwable;
+      if (cause == null) {
+        try {
+          try {
+            result.complete(processResponse(serverAddress, methodName, requestLength, startTimeMs,
+                httpClient.getResponseCode(), httpClient.getInputStream()));
+          } finally {
+            httpClient.finishedReadingResponse();
+          }
+          return;
+        } catch (UncheckedIOException ex) {
+          cause = ex.getCause();
+        } catch (Exception ex) {
+          cause = ex;
+        }
+      }
+
+      String timingDetails = "creating client -> now: " + (System.nanoTime() - timeBeforeCreatingClient) / 1000000 + " ms";
+      if (cause instanceof SocketTimeoutException) {
+        result.completeExceptionally(new ScalyrNetworkException(
+            "Timeout while communicating with Scalyr server (" + timingDetails + ")", cause));
+      } else {
+        result.completeExceptionally(new ScalyrNetworkException(
+            "Error while communicating with Scalyr server (" + timingDetails + ")", cause));
+      }
+    }, ScalyrUtil.asyncApiExecutor);
+    return result;
+  }
+
+  /**
+   * Read and log a server response, and parse it into an InvokeApiResult. Throw an exception if the response
+   * indicates an error.
+   * <p>
+   * The response is parsed directly from the (decompressed) stream, so that parsing overlaps the arrival of
+   * the response, and we never hold the entire response body in memory. An I/O error while reading the stream
+   * is thrown as an UncheckedIOException.
+   */
+  private InvokeApiResult processResponse(String serverAddress, String methodName, int requestLength, long startTimeMs,
+      int responseCode, InputStream input) {
+    ByteScanner responseScanner = (input != null) ? new ByteScanner(input) : new ByteScanner(new byte[0]);
+
+    // We parse only a successful response. Any parse error is thrown after the response is logged.
+    Object responseObj = null;
+    JsonParseException parseError = null;
+    int responseLength = 0;
+    if (responseCode == 200) {
+      try {
+        responseObj = new JSONParser(responseScanner).parseValue();
+      } catch (JsonParseException ex) {
+        parseError = ex;
+      }
+      responseLength = responseScanner.getPos();
+    }
+    responseScanner.skipToEnd();
+
+    // Log a random sample of server response times.
+    Severity severity = Severity.fine;
+    if (latencyRecordingFraction == 1) {
+      severity = Severity.info;
+    } else if (latencyRecordingFraction > 0) {
+      synchronized (random) {
+        if (random.nextInt(latencyRecordingFraction) == 0) {
+          severity = Severity.info;
+        }
+      }
+    }
+
+    int runtimeMs = (int) (ScalyrUtil.currentTimeMillis() - startTimeMs);
+    Logging.log(severity, Logging.tagServerCommunication,
+        serverAddress + "/" + methodName + ": "
+        + runtimeMs + " ms, "
+        + requestLength + " bytes sent, "
+        + responseScanner.getPos() + " bytes received, "
+        + "response status " + responseCode
+        );
+
+    if (responseCode != 200) {
+      // TODO: log StringUtil.noisyTruncate(response.responseBody.trim(), 1000));
+      // also do this in the "Malformed response" case
+      throw new ScalyrNetworkException("Scalyr server returned error code " + responseCode, responseCode);
+    }
+
+    if (parseError != null)
+      throw parseError;
+
+    if (responseObj instanceof JSONObject) {
+      JSONObject responseJson = (JSONObject)responseObj;
+      Object status = responseJson.get("status");
+      Logging.log(Severity.finer, Logging.tagServerCommunication,
+          "Response status [" + (status == null ? "(none)" : status) + "]"
+          );
+
+      throwIfErrorStatus(responseJson);
+
+      InvokeApiResult result = new InvokeApiResult();
+      result.requestLength = requestLength;
+      result.responseLength = responseLength;
+      result.response = responseJson;
+      result.latencyMs = runtimeMs;
+      return result;
+    } else {
+      throw new ScalyrException("Malformed response from Scalyr server");
+    }
+  }
+
+  /**
+   * Return the status of the error response with which a request failed, or null if it didn't fail with an
+   * error status. The ScalyrServerException thrown for an error status reaches the caller wrapped in a
+   * ScalyrNetworkException (see invokeApiOnServer), so we search ex's chain of causes.
+   */
+  public static String errorStatus(Throwable ex) {
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof ScalyrServerException)
+        return ((ScalyrServerException) t).getStatus();
+    }
+    return null;
+  }
+
+  /**
+   * Return true if a request failed because the server refused it -- an error status other than error/server,
+   * or an HTTP 4xx response other than 408 (Request Timeout) or 429 (Too Many Requests) -- rather than
+   * because of a problem with the server or the network. Such a failure would recur on any server. As for
+   * errorStatus, we search ex's chain of causes.
+   */
+  public static boolean isClientError(Throwable ex) {
+    String status = errorStatus(ex);
+    if (status != null)
+      return !status.startsWith("error/server");
+
+    int responseCode = errorResponseCode(ex);
+    return responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429;
+  }
+
+  /**
+   * Return the HTTP status code of the non-200 response with which a request failed, or -1 if it didn't fail
+   * that way. As for errorStatus, we search ex's chain of causes.
+   */
+  public static int errorResponseCode(Throwable ex) {
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof ScalyrNetworkException && ((ScalyrNetworkException) t).getResponseCode() != -1)
+        return ((ScalyrNetworkException) t).getResponseCode();
+    }
+    return -1;
+  }
+
   public static void throwIfErrorStatus(JSONObject responseJson) {
     Object status = responseJson.get("status");
     Object statusCode = responseJson.get("__status");
@@ -503,25 +1142,14 @@ public abstract class ScalyrService {
       long statusCode_ = (Long) statusCode;
       if (statusCode_ != 200) {
         throw new ScalyrServerException("Error response from Scalyr server: status " + statusCode_
-            + " (" + status + "), message [" + responseJson.get("message") + "]");
+            + " (" + status + "), message [" + responseJson.get("message") + "]",
+            (status instanceof String) ? (String) status : null);
       }
     }
 
     if (status instanceof String && ((String)status).startsWith("error")) {
       throw new ScalyrServerException("Error response from Scalyr server: status [" + status + "], message ["
-          + responseJson.get("message") + "]");
-    }
-  }
-
-  private byte[] readEntireStream(InputStream input) throws IOException {
-    ByteArrayOutputStream accumulator = new ByteArrayOutputStream();
-    byte[] buffer = new byte[4096];
-    while (true) {
-      int count = input.read(buffer, 0, buffer.length);
-      if (count <= 0)
-        break;
-      accumulator.write(buffer, 0, count);
+          + responseJson.get("message") + "]", (String) status);
     }
-    return accumulator.toByteArray();
   }
 }
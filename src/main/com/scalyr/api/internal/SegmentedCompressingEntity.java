@@ -0,0 +1,200 @@
+package com.scalyr.api.internal;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.Args;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wrapping entity that compresses content when writing, using gzip or Zstandard, and which can splice
+ * already-compressed content (see PrecompressedJson) into the request without recompressing it.
+ * <p>
+ * Both formats allow a stream to consist of several independently compressed members (gzip) or frames
+ * (Zstandard), which decompress to the concatenation of their contents. We compress the content written
+ * around each precompressed value as a member / frame of its own, and copy the precompressed bytes in
+ * between.
+ */
+public class SegmentedCompressingEntity extends HttpEntityWrapper {
+  /**
+   * Size of the buffer between the JSON serializer, which issues many small writes, and the compressor.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * "gzip" or "zstd".
+   */
+  private final String contentEncoding;
+
+  /**
+   * Zstandard dictionary to compress with, or null.
+   */
+  private final ZstdDictionary dictionary;
+
+  public SegmentedCompressingEntity(HttpEntity entity, String contentEncoding, ZstdDictionary dictionary) {
+    super(entity);
+    this.contentEncoding = normalizeEncoding(contentEncoding);
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Return "gzip" or "zstd" for the given Content-Encoding, or null if it is not one we support.
+   */
+  static String normalizeEncoding(String contentEncoding) {
+    if ("gzip".equals(contentEncoding))
+      return "gzip";
+    else if ("zstd".equals(contentEncoding) || "zstandard".equals(contentEncoding))
+      return "zstd";
+    else
+      return null;
+  }
+
+  @Override public Header getContentEncoding() {
+    return new BasicHeader("Content-Encoding", contentEncoding);
+  }
+
+  @Override public long getContentLength() {
+    return -1L;
+  }
+
+  @Override public boolean isChunked() {
+    return true;
+  }
+
+  @Override public InputStream getContent() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void writeTo(OutputStream outStream) throws IOException {
+    Args.notNull(outStream, "Output stream");
+    SegmentStream segmentStream = new SegmentStream(outStream, contentEncoding, dictionary);
+    this.wrappedEntity.writeTo(segmentStream);
+    segmentStream.close();
+  }
+
+  /**
+   * Compress the given bytes as a single, complete gzip member or Zstandard frame.
+   */
+  static byte[] compress(byte[] data, int offset, int length, String contentEncoding, ZstdDictionary dictionary)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(length / 4, 64));
+    OutputStream compressor = openCompressor(buffer, contentEncoding, dictionary);
+    compressor.write(data, offset, length);
+    compressor.close();
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Return a stream which compresses into out. Closing the returned stream completes the member / frame,
+   * but does not close out.
+   */
+  static OutputStream openCompressor(OutputStream out, String contentEncoding, ZstdDictionary dictionary)
+      throws IOException {
+    OutputStream unclosable = new FlushlessOutputStream(out);
+    if ("gzip".equals(contentEncoding))
+      return new GZIPOutputStream(unclosable, BUFFER_SIZE);
+
+    // Recycle the stream's native buffers across requests, rather than allocating new ones each time.
+    ZstdOutputStream zstd = new ZstdOutputStream(unclosable, RecyclingBufferPool.INSTANCE);
+    if (dictionary != null)
+      zstd.setDict(dictionary.compressDictionary);
+    return zstd;
+  }
+
+  /**
+   * OutputStream which compresses everything written to it, except for precompressed values passed to
+   * writePrecompressed, which are copied through as-is. Also counts the number of uncompressed bytes
+   * represented by the output.
+   */
+  static class SegmentStream extends OutputStream {
+    private final OutputStream outStream;
+    private final String contentEncoding;
+    private final ZstdDictionary dictionary;
+
+    /**
+     * Compressor for the current member / frame, or null if none is open. Opened on the first write
+     * following a precompressed value.
+     */
+    private OutputStream compressor;
+
+    /**
+     * Buffer in front of compressor, or null if no member / frame is open.
+     */
+    private BufferedOutputStream buffer;
+
+    private long uncompressedBytes;
+
+    SegmentStream(OutputStream outStream, String contentEncoding, ZstdDictionary dictionary) {
+      this.outStream = outStream;
+      this.contentEncoding = contentEncoding;
+      this.dictionary = dictionary;
+    }
+
+    /**
+     * Return the number of bytes written to us so far, counting precompressed values by their uncompressed length.
+     */
+    long getUncompressedBytes() {
+      return uncompressedBytes;
+    }
+
+    /**
+     * Return true if we can splice in content compressed with the given encoding and dictionary.
+     */
+    boolean accepts(String contentEncoding, ZstdDictionary dictionary) {
+      return this.contentEncoding.equals(contentEncoding) && this.dictionary == dictionary;
+    }
+
+    /**
+     * Copy a complete, precompressed gzip member or Zstandard frame to the output. The caller must first
+     * check accepts().
+     */
+    void writePrecompressed(byte[] compressed, int uncompressedLength) throws IOException {
+      finishSegment();
+      outStream.write(compressed);
+      uncompressedBytes += uncompressedLength;
+    }
+
+    @Override public void write(int b) throws IOException {
+      openSegment().write(b);
+      uncompressedBytes++;
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      openSegment().write(b, off, len);
+      uncompressedBytes += len;
+    }
+
+    /**
+     * Complete any open member / frame. Does not close the underlying stream.
+     */
+    @Override public void close() throws IOException {
+      finishSegment();
+    }
+
+    private OutputStream openSegment() throws IOException {
+      if (buffer == null) {
+        compressor = openCompressor(outStream, contentEncoding, dictionary);
+        buffer = new BufferedOutputStream(compressor, BUFFER_SIZE);
+      }
+      return buffer;
+    }
+
+    private void finishSegment() throws IOException {
+      if (buffer != null) {
+        buffer.flush();
+        compressor.close();
+        buffer = null;
+        compressor = null;
+      }
+    }
+  }
+}
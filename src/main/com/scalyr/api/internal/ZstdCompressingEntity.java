@@ -1,5 +1,6 @@
 package com.scalyr.api.internal;
 
+import com.github.luben.zstd.RecyclingBufferPool;
 import com.github.luben.zstd.ZstdOutputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -17,8 +18,18 @@ import java.io.OutputStream;
  * Almost a verbatim copy of GzipCompressingEntity
  */
 public class ZstdCompressingEntity extends HttpEntityWrapper {
+    /**
+     * Dictionary to compress with, or null.
+     */
+    private final ZstdDictionary dictionary;
+
     public ZstdCompressingEntity(HttpEntity entity) {
+        this(entity, null);
+    }
+
+    public ZstdCompressingEntity(HttpEntity entity, ZstdDictionary dictionary) {
         super(entity);
+        this.dictionary = dictionary;
     }
 
     public Header getContentEncoding() {
@@ -39,7 +50,10 @@ public class ZstdCompressingEntity extends HttpEntityWrapper {
 
     public void writeTo(OutputStream outStream) throws IOException {
         Args.notNull(outStream, "Output stream");
-        ZstdOutputStream zstd = new ZstdOutputStream(outStream);
+        // Recycle the stream's native buffers across requests, rather than allocating new ones each time.
+        ZstdOutputStream zstd = new ZstdOutputStream(outStream, RecyclingBufferPool.INSTANCE);
+        if (dictionary != null)
+            zstd.setDict(dictionary.compressDictionary);
         this.wrappedEntity.writeTo(zstd);
         zstd.close();
     }
@@ -0,0 +1,70 @@
+package com.scalyr.api.internal;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+import java.util.List;
+
+/**
+ * A Zstandard dictionary used to compress request bodies (see RpcOptions.zstdDictionary). Requests
+ * compressed with a dictionary identify it, by ID, in the ID_HEADER header; the server must already
+ * have a copy of the dictionary in order to decompress them.
+ * <p>
+ * The dictionary is held in digested form, so that it can be reused across requests without being
+ * processed again. Instances are immutable and thread-safe.
+ */
+public class ZstdDictionary {
+  /**
+   * HTTP header which carries the ID of the dictionary used to compress a request.
+   */
+  public static final String ID_HEADER = "X-Zstd-Dictionary-Id";
+
+  /**
+   * Compression level used with dictionaries. (Same as the zstd default.)
+   */
+  public static final int DEFAULT_LEVEL = 3;
+
+  /**
+   * Dictionary ID, as embedded in the dictionary and in each frame compressed with it.
+   */
+  public final long id;
+
+  private final byte[] content;
+
+  final ZstdDictCompress compressDictionary;
+
+  public ZstdDictionary(byte[] content) {
+    this.content = content.clone();
+    this.id = Zstd.getDictIdFromDict(content);
+    this.compressDictionary = new ZstdDictCompress(content, DEFAULT_LEVEL);
+  }
+
+  /**
+   * Return a copy of the raw dictionary.
+   */
+  public byte[] getContent() {
+    return content.clone();
+  }
+
+  /**
+   * Train a dictionary of (at most) the given size from the given samples. Return null if training fails,
+   * e.g. because the samples are too few or too uniform.
+   */
+  public static ZstdDictionary train(List<byte[]> samples, int dictionarySize) {
+    int totalSize = 0;
+    for (byte[] sample : samples)
+      totalSize += sample.length;
+
+    ZstdDictTrainer trainer = new ZstdDictTrainer(totalSize, dictionarySize);
+    for (byte[] sample : samples)
+      trainer.addSample(sample);
+
+    try {
+      return new ZstdDictionary(trainer.trainSamples());
+    } catch (ZstdException ex) {
+      return null;
+    }
+  }
+}
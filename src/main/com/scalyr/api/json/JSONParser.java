@@ -19,6 +19,9 @@ package com.scalyr.api.json;
 
 import com.scalyr.api.internal.ScalyrUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 
 public class JSONParser {
@@ -215,6 +218,7 @@ public class JSONParser {
    */
   private String parseIdentifier(int initialChar) {
     int startPos = scanner.getPos() - 1;
+    scanner.retainFrom(startPos);
 
     while (true) {
       int c = scanner.peekUByteOrFlag();
@@ -235,10 +239,11 @@ public class JSONParser {
    */
   private String parseString() {
     int startPos = scanner.getPos();
+    scanner.retainFrom(startPos - 1);
     int len = 0;
     while (true) {
       if (scanner.atEnd())
-        throw new JsonParseException("string literal not terminated", startPos-1, lineNumberForBytePos(scanner.buffer, startPos-1));
+        throw new JsonParseException("string literal not terminated", startPos-1, scanner.lineNumberForPos(startPos-1));
 
       int c = scanner.readUByte();
       if (c == '"') {
@@ -250,7 +255,7 @@ public class JSONParser {
         len++;
       } else if (c == '\r' || c == '\n') {
         throw new JsonParseException("string literal not terminated before end of line", startPos-1,
-            lineNumberForBytePos(scanner.buffer, startPos-1));
+            scanner.lineNumberForPos(startPos-1));
       }
 
       len++;
@@ -267,10 +272,11 @@ public class JSONParser {
    */
   private String parseTripleQuotedString() {
     int startPos = scanner.getPos();
+    scanner.retainFrom(startPos - 1);
     int len = 0;
     while (true) {
       if (scanner.atEnd())
-        throw new JsonParseException("triple quoted string literal not terminated", startPos-1, lineNumberForBytePos(scanner.buffer, startPos-1));
+        throw new JsonParseException("triple quoted string literal not terminated", startPos-1, scanner.lineNumberForPos(startPos-1));
 
       int c = scanner.readUByte();
       if (c == '"' && consumeRepeatedChars('"', 2)) {
@@ -461,7 +467,7 @@ public class JSONParser {
    * Report an error at the specified byte position.
    */
   private void error(String message, int pos) {
-    throw new JsonParseException(message, pos, lineNumberForBytePos(scanner.buffer, pos));
+    throw new JsonParseException(message, pos, scanner.lineNumberForPos(pos));
   }
 
   /**
@@ -470,6 +476,8 @@ public class JSONParser {
    * bytes in the input stream, return -1.
    */
   private int peekNextNonWhitespace() {
+    // Keep the whitespace we skip, for preceedingLineBreak.
+    scanner.retainFrom(scanner.getPos());
     while (true) {
       // TODO: support any Unicode / UTF-8 whitespace sequence.
 
@@ -555,11 +563,21 @@ public class JSONParser {
       this.end   = end;
     }
   }
+  /**
+   * Source of the bytes a JSONParser scans: either a byte array, or an InputStream.
+   * <p>
+   * When scanning a stream, bytes are read into a buffer as they are needed, so that parsing overlaps the
+   * arrival of the input, and the buffer holds only a window of it: the bytes from the position most recently
+   * passed to retainFrom onward. JSONParser advances this position to the start of each token (or run of
+   * whitespace), so memory use is bounded by the largest token, not by the size of the input. Positions
+   * (getPos and the like) always count from the start of the input.
+   */
   public static class ByteScanner {
     /**
-     * The buffer we scan over.
+     * The buffer we scan over. When scanning a stream, buffer[0] holds the byte at position base, and only
+     * buffer[0...limit-1] is valid.
      */
-    private final byte[] buffer;
+    private byte[] buffer;
 
     /**
      * Our current position in the buffer.
@@ -569,8 +587,29 @@ public class JSONParser {
     /**
      * The end of the buffer range which we scan.
      */
+    private int limit;
+
+    /**
+     * The end of the buffer range which we scan, or Integer.MAX_VALUE if scanning a stream.
+     */
     public final int maxPos;
 
+    /**
+     * The stream we scan, or null if scanning a byte array.
+     */
+    private final InputStream input;
+
+    /**
+     * Position (in the input) of buffer[0], and of the first byte we must not discard.
+     */
+    private int base = 0;
+    private int retainPos = 0;
+
+    /**
+     * Number of line breaks in the bytes we have discarded.
+     */
+    private int discardedLineBreaks = 0;
+
     public ByteScanner(byte[] buffer) {
       this(buffer, 0, buffer.length);
     }
@@ -578,15 +617,51 @@ public class JSONParser {
     public ByteScanner(byte[] buffer, int startPos, int maxPos) {
       this.buffer = buffer;
       this.pos    = startPos;
+      this.limit  = maxPos;
       this.maxPos = maxPos;
+      this.input  = null;
+    }
+
+    /**
+     * Scan the given stream, reading it as needed. An IOException while reading is thrown as an
+     * UncheckedIOException. The stream is not closed.
+     */
+    public ByteScanner(InputStream input) {
+      this(input, 8192);
+    }
+
+    public ByteScanner(InputStream input, int initialBufferSize) {
+      this.buffer = new byte[Math.max(initialBufferSize, 16)];
+      this.pos    = 0;
+      this.limit  = 0;
+      this.maxPos = Integer.MAX_VALUE;
+      this.input  = input;
     }
 
     public boolean atEnd() {
-      return pos >= maxPos;
+      return pos >= limit && !fill(1);
     }
 
     public int getPos() {
-      return pos;
+      return base + pos;
+    }
+
+    /**
+     * Declare that bytes before the given position will no longer be needed (by readBytesFromBuffer or
+     * preceedingLineBreak), so that they may be discarded. Has no effect when scanning a byte array.
+     */
+    public void retainFrom(int position) {
+      retainPos = position;
+    }
+
+    /**
+     * Consume the remainder of the input, so that getPos() returns its length.
+     */
+    public void skipToEnd() {
+      do {
+        pos = limit;
+        retainPos = getPos();
+      } while (fill(1));
     }
 
     /**
@@ -611,7 +686,7 @@ public class JSONParser {
      * Return the next byte, unsigned, without consuming it. If there are no more bytes to be read, return -1.
      */
     public int peekUByteOrFlag() {
-      if (pos >= maxPos)
+      if (pos >= limit && !fill(1))
         return -1;
 
       return buffer[pos] & 255;
@@ -626,7 +701,7 @@ public class JSONParser {
       if (pos + offset < 0)
         return -1;
 
-      if (pos + offset >= maxPos)
+      if (pos + offset >= limit && !fill(offset + 1))
         return -1;
 
       return buffer[pos + offset] & 255;
@@ -653,13 +728,59 @@ public class JSONParser {
     }
 
     private void checkReadSize(int readLen) {
-      if (pos + readLen > maxPos)
-        throw new JsonParseException("Ran off end of buffer (position " + pos + ", limit " + maxPos + ", reading " + readLen + " bytes",
-            pos, lineNumberForBytePos(buffer, pos));
+      if (pos + readLen > limit && !fill(readLen))
+        throw new JsonParseException("Ran off end of buffer (position " + getPos() + ", limit " + (base + limit)
+            + ", reading " + readLen + " bytes", getPos(), lineNumberForPos(getPos()));
+    }
+
+    /**
+     * Read from the stream until at least count bytes are available at pos. Return false if the stream ends
+     * first (or if we are scanning a byte array).
+     */
+    private boolean fill(int count) {
+      if (input == null)
+        return false;
+
+      while (limit - pos < count) {
+        if (limit == buffer.length)
+          compact();
+
+        int bytesRead;
+        try {
+          bytesRead = input.read(buffer, limit, buffer.length - limit);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+        if (bytesRead < 0)
+          return false;
+        limit += bytesRead;
+      }
+      return true;
+    }
+
+    /**
+     * Make room in the buffer: discard the bytes before retainPos, and, if that frees less than half of the
+     * buffer, move to a buffer twice the size.
+     */
+    private void compact() {
+      int discard = Math.max(0, Math.min(retainPos - base, pos));
+
+      // Don't separate the halves of a CRLF, which would throw off lineNumberForPos.
+      if (discard > 0 && discard < limit && buffer[discard - 1] == '\r' && buffer[discard] == '\n')
+        discard--;
+
+      int kept = limit - discard;
+      byte[] target = (kept > buffer.length / 2) ? new byte[buffer.length * 2] : buffer;
+      discardedLineBreaks += lineNumberForBytePos(buffer, discard) - 1;
+      System.arraycopy(buffer, discard, target, 0, kept);
+      buffer = target;
+      base += discard;
+      pos -= discard;
+      limit = kept;
     }
 
     public void readBytesFromBuffer(int startPos, byte[] destination, int destPos, int length) {
-      System.arraycopy(buffer, startPos, destination, destPos, length);
+      System.arraycopy(buffer, startPos - base, destination, destPos, length);
     }
 
     /**
@@ -678,6 +799,15 @@ public class JSONParser {
       }
       return false;
     }
+
+    /**
+     * Return the 1-based line number of the given position. When scanning a stream, a position which has been
+     * discarded is reported as being on the first line we still hold.
+     */
+    public int lineNumberForPos(int position) {
+      int index = Math.max(0, Math.min(position - base, (input != null) ? limit : buffer.length));
+      return discardedLineBreaks + lineNumberForBytePos(buffer, index);
+    }
   }
 
   /**
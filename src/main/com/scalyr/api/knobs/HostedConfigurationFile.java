@@ -25,6 +25,7 @@ import java.util.Date;
 import com.scalyr.api.Converter;
 import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.Logging;
+import com.scalyr.api.internal.RetryPolicy;
 import com.scalyr.api.internal.ScalyrUtil;
 import com.scalyr.api.internal.Sleeper;
 import com.scalyr.api.json.JSONObject;
@@ -184,8 +185,8 @@ class HostedConfigurationFile extends ConfigurationFile {
                     new Date((long)Converter.toLong(response.get("modDate"   )))));
               }
             } else {
-              // After any sort of error or backoff response, retry after 5 seconds, successively
-              // doubling up to a maximum of 1 minute.
+              // After any sort of error or backoff response, retry after 5 to 15 seconds, successively
+              // growing (with random jitter) up to a maximum of 1 minute.
               retryInterval = increaseBackoff(retryInterval);
 
               if (status.startsWith("error/server/backoff")) {
@@ -200,8 +201,8 @@ class HostedConfigurationFile extends ConfigurationFile {
               }
             }
           } catch (Exception ex) {
-            // After any sort of error or backoff response, retry after 5 seconds, successively
-            // doubling up to a maximum of 1 minute.
+            // After any sort of error or backoff response, retry after 5 to 15 seconds, successively
+            // growing (with random jitter) up to a maximum of 1 minute.
             retryInterval = increaseBackoff(retryInterval);
 
             Logging.log(Severity.warning, Logging.tagServerError,
@@ -222,11 +223,13 @@ class HostedConfigurationFile extends ConfigurationFile {
         }
       }
 
+      /**
+       * Return the interval to wait after a failed fetch. The interval is randomized (see RetryPolicy), so that
+       * many clients which lose contact with the server at once don't retry in lockstep.
+       */
       private int increaseBackoff(int retryInterval) {
-        if (retryInterval < TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR)
-          return TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR;
-        else
-          return Math.min(retryInterval*2, TuningConstants.MAXIMUM_FETCH_INTERVAL);
+        return (int) RetryPolicy.nextDelayMs(retryInterval, TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR,
+            TuningConstants.MAXIMUM_FETCH_INTERVAL);
       }
     });
   }
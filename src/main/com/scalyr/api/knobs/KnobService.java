@@ -23,6 +23,7 @@ import com.scalyr.api.internal.ScalyrService;
 import com.scalyr.api.json.JSONObject;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Encapsulates the raw HTTP-level API to the Knobs service.
@@ -82,13 +83,32 @@ public class KnobService extends ScalyrService {
     if (expectedVersion != null)
       parameters.put("expectedVersion", expectedVersion);
 
-    JSONObject parsed = invokeApi("getFile", parameters);
+    JSONObject parsed = invokeIdempotentApi("getFile", parameters);
     if (parsed != null)
       return parsed.toString();
     else
       return null;
   }
 
+  /**
+   * Asynchronous version of getFile, which does not tie up a thread while waiting for the server.
+   *
+   * @param path The file path, e.g. "/params.txt". Must begin with a slash.
+   * @param expectedVersion Should normally be null. See getFile.
+   *
+   * @return A future which completes with the response from the server, or exceptionally with a
+   *     ScalyrException or ScalyrNetworkException.
+   */
+  public CompletableFuture<String> getFileAsync(String path, Long expectedVersion) {
+    JSONObject parameters = new JSONObject();
+    parameters.put("token", apiToken);
+    parameters.put("path", path);
+    if (expectedVersion != null)
+      parameters.put("expectedVersion", expectedVersion);
+
+    return invokeApiAsync("getFile", parameters).thenApply(result -> result.response.toString());
+  }
+
   /**
    * Create, update, or delete a configuration file.
    *
@@ -135,6 +155,6 @@ public class KnobService extends ScalyrService {
     JSONObject parameters = new JSONObject();
     parameters.put("token", apiToken);
 
-    return invokeApi("listFiles", parameters);
+    return invokeIdempotentApi("listFiles", parameters);
   }
 }
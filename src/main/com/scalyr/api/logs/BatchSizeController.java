@@ -0,0 +1,162 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import com.scalyr.api.TuningConstants;
+
+/**
+ * Internal class which tunes how EventUploader batches events -- the size at which a batch is uploaded, how
+ * long a batch may wait for more events, and the minimum spacing between uploads -- from the outcome of each
+ * upload. See EventUploader.UploaderOptions.targetLatencyMs.
+ * <p>
+ * After each successful upload, we look at the batch's end-to-end latency (the age of its oldest event when
+ * the server acknowledged it), and at whether more batches are waiting behind it:
+ * <ul>
+ *   <li>If batches are backing up, events are arriving faster than we upload them. Larger requests amortize
+ *       the per-request overhead, so we double the batch size.
+ *   <li>Otherwise, if the latency exceeds the target, events are spending too long waiting for a batch to
+ *       fill, so we halve both the batch size and the batch delay.
+ *   <li>Otherwise, if the latency is under half the target, we can afford to batch more, and grow the batch
+ *       size and delay by a fixed step.
+ * </ul>
+ * A backoff response from the server doubles the batch size and delay, so that it receives the same events
+ * in fewer requests. The batch delay never exceeds the target less the average upload latency.
+ * <p>
+ * Thread-safe.
+ */
+final class BatchSizeController {
+  private final long targetLatencyMs;
+
+  /**
+   * Upper bound on the batch size: the largest request we may send.
+   */
+  private final int maxBatchBytes;
+
+  /**
+   * Size (in bytes) at which the newest batch is uploaded without waiting for the batch delay.
+   */
+  private volatile int batchBytes;
+
+  /**
+   * How long (in milliseconds) after the previous upload the newest batch is uploaded, if it hasn't reached
+   * batchBytes.
+   */
+  private volatile long batchDelayMs;
+
+  /**
+   * Moving averages of the duration (in milliseconds) and throughput (in uncompressed bytes per second) of
+   * successful uploads, or -1 before the first. Synchronized on this.
+   */
+  private double uploadLatencyMs = -1;
+  private double uploadBytesPerSecond = -1;
+
+  /**
+   * Number of times we have changed batchBytes or batchDelayMs. Synchronized on this.
+   */
+  private long adjustments = 0;
+
+  BatchSizeController(long targetLatencyMs, int initialBatchBytes, int maxBatchBytes) {
+    this.targetLatencyMs = targetLatencyMs;
+    this.maxBatchBytes = Math.max(maxBatchBytes, TuningConstants.ADAPTIVE_MIN_BATCH_BYTES);
+    this.batchBytes = clamp(initialBatchBytes, TuningConstants.ADAPTIVE_MIN_BATCH_BYTES, this.maxBatchBytes);
+    this.batchDelayMs = clamp(Math.min(TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS, targetLatencyMs),
+        TuningConstants.ADAPTIVE_MIN_UPLOAD_SPACING_MS, Long.MAX_VALUE);
+  }
+
+  int getBatchBytes() {
+    return batchBytes;
+  }
+
+  long getBatchDelayMs() {
+    return batchDelayMs;
+  }
+
+  /**
+   * Return the lower bound on the start-to-start spacing of uploads. There is no point in spacing uploads
+   * further apart than the batch delay, as that would hold events back for longer.
+   */
+  long getMinUploadSpacingMs() {
+    return clamp(Math.min(TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS, batchDelayMs),
+        TuningConstants.ADAPTIVE_MIN_UPLOAD_SPACING_MS, Long.MAX_VALUE);
+  }
+
+  /**
+   * Record the outcome of an upload, and adjust our batching accordingly.
+   *
+   * @param bytes Uncompressed size of the batch.
+   * @param durationNs How long the upload request took.
+   * @param success True if the server accepted the batch.
+   * @param backoff True if the server asked us to back off (or otherwise returned an error status).
+   * @param eventLatencyMs Age of the batch's oldest event, at completion.
+   * @param backlogged True if other batches are waiting to be uploaded.
+   */
+  synchronized void uploadCompleted(int bytes, long durationNs, boolean success, boolean backoff,
+      long eventLatencyMs, boolean backlogged) {
+    if (success && durationNs > 0) {
+      uploadLatencyMs = average(uploadLatencyMs, durationNs / 1000000.0);
+      uploadBytesPerSecond = average(uploadBytesPerSecond, bytes * 1000000000.0 / durationNs);
+    }
+
+    long newBatchBytes = batchBytes;
+    long newBatchDelayMs = batchDelayMs;
+    if (backoff) {
+      newBatchBytes *= 2;
+      newBatchDelayMs *= 2;
+    } else if (!success) {
+      return;
+    } else if (backlogged) {
+      newBatchBytes *= 2;
+    } else if (eventLatencyMs > targetLatencyMs) {
+      newBatchBytes /= 2;
+      newBatchDelayMs /= 2;
+    } else if (eventLatencyMs < targetLatencyMs / 2) {
+      newBatchBytes += TuningConstants.ADAPTIVE_BATCH_BYTES_STEP;
+      newBatchDelayMs += TuningConstants.ADAPTIVE_BATCH_DELAY_STEP_MS;
+    }
+
+    long maxBatchDelayMs = targetLatencyMs - (long) Math.max(uploadLatencyMs, 0);
+    newBatchBytes = clamp(newBatchBytes, TuningConstants.ADAPTIVE_MIN_BATCH_BYTES, maxBatchBytes);
+    newBatchDelayMs = clamp(Math.min(newBatchDelayMs, maxBatchDelayMs), TuningConstants.ADAPTIVE_MIN_UPLOAD_SPACING_MS,
+        Long.MAX_VALUE);
+
+    if (newBatchBytes != batchBytes || newBatchDelayMs != batchDelayMs) {
+      batchBytes = (int) newBatchBytes;
+      batchDelayMs = newBatchDelayMs;
+      adjustments++;
+    }
+  }
+
+  synchronized EventUploader.BatchingStats getStats() {
+    return new EventUploader.BatchingStats(batchBytes, batchDelayMs, getMinUploadSpacingMs(), uploadLatencyMs,
+        uploadBytesPerSecond, adjustments);
+  }
+
+  private static double average(double average, double value) {
+    if (average < 0)
+      return value;
+    return average + (value - average) * TuningConstants.ADAPTIVE_BATCH_AVERAGING_WEIGHT;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(value, max));
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(value, max));
+  }
+}
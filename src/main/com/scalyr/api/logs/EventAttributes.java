@@ -533,6 +533,14 @@ public class EventAttributes {
     }
   }
 
+  /**
+   * Return the underlying attribute map, without copying it. Callers must synchronize on the returned map
+   * while using it. Used by EventEncoder, which serializes attributes without allocating.
+   */
+  Map<String, Object> liveValues() {
+    return values;
+  }
+
   /** Return a new map containing all the same keys, and with all values coerced to strings (via `toString`). */
   public Map<String, String> coerceToStringMap() {
 
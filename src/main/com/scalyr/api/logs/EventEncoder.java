@@ -0,0 +1,446 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.json.JSONValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Internal class which serializes events into a reusable per-thread scratch buffer, without building
+ * intermediate JSONObjects or byte arrays. Output is equivalent to serializing the JSONObject that
+ * EventUploader used to build for each event, except that the "ts" field always comes first.
+ * <p>
+ * An event is encoded in two steps. encodeBody() writes everything after the timestamp, beginning at
+ * offset TIMESTAMP_SPACE:
+ *
+ *   "thread":"...","type":0,"sev":3,"attrs":{...},"startTS":...},
+ *
+ * and then either writeTimestampPrefix() or writeTimestampPlaceholder() fills in the bytes preceding
+ * the body. This allows the (relatively expensive) body to be encoded before the timestamp is known.
+ */
+final class EventEncoder extends OutputStream {
+  /**
+   * Leading bytes of every encoded event.
+   */
+  private static final byte[] TIMESTAMP_PREFIX = {'{', '"', 't', 's', '"', ':', '"'};
+
+  /**
+   * Space used by writeTimestampPlaceholder for the timestamp digits and closing quote: room for the
+   * 20 characters of Long.MIN_VALUE, plus the quote.
+   */
+  static final int TIMESTAMP_SLOT_LENGTH = 21;
+
+  /**
+   * Offset, from the start of an event written by writeTimestampPlaceholder, of the timestamp slot.
+   */
+  static final int TIMESTAMP_SLOT_OFFSET = TIMESTAMP_PREFIX.length;
+
+  /**
+   * Space reserved ahead of the event body for the timestamp: the prefix, the slot, and a comma.
+   */
+  private static final int TIMESTAMP_SPACE = TIMESTAMP_PREFIX.length + TIMESTAMP_SLOT_LENGTH + 1;
+
+  private static final byte[] LONG_MIN_VALUE_DIGITS = Long.toString(Long.MIN_VALUE).getBytes();
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private static final ThreadLocal<EventEncoder> encoders = new ThreadLocal<EventEncoder>() {
+    @Override protected EventEncoder initialValue() {
+      return new EventEncoder();
+    }
+  };
+
+  /**
+   * Scratch buffer holding the event being encoded. Grows as needed, and is never shrunk.
+   */
+  private byte[] buffer = new byte[1024];
+
+  /**
+   * Number of bytes in buffer which are in use.
+   */
+  private int count;
+
+  /**
+   * True while this encoder has been returned from acquire() and not yet released.
+   */
+  private boolean inUse;
+
+  private static final byte[] TYPE_KEY = {',', '"', 't', 'y', 'p', 'e', '"', ':'};
+  private static final byte[] SEV_KEY = {',', '"', 's', 'e', 'v', '"', ':'};
+
+  /**
+   * Return the offset just past the encoded event (including its trailing comma) which begins at data[start],
+   * scanning no further than limit. Return -1 if the event is incomplete.
+   */
+  static int eventEnd(byte[] data, int start, int limit) {
+    int depth = 0;
+    boolean inString = false;
+    for (int i = start; i < limit; i++) {
+      byte b = data[i];
+      if (inString) {
+        if (b == '\\')
+          i++;
+        else if (b == '"')
+          inString = false;
+      } else if (b == '"') {
+        inString = true;
+      } else if (b == '{') {
+        depth++;
+      } else if (b == '}') {
+        if (--depth == 0)
+          return (i + 1 < limit && data[i + 1] == ',') ? i + 2 : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return the span type of the encoded event occupying data[start, end), or -1 if it can't be found.
+   */
+  static int spanTypeOf(byte[] data, int start, int end) {
+    return intField(data, start, end, TYPE_KEY);
+  }
+
+  /**
+   * Return the severity ordinal of the encoded event occupying data[start, end), or -1 if it can't be found.
+   */
+  static int severityOf(byte[] data, int start, int end) {
+    return intField(data, start, end, SEV_KEY);
+  }
+
+  /**
+   * Return the non-negative integer following the first occurrence of key in data[start, end), or -1. The keys
+   * we look for begin with a comma and a quote, which can't occur inside a JSON string (the quote would be
+   * escaped), and encodeBody writes these fields ahead of any attributes, so the first occurrence is the one
+   * we want.
+   */
+  private static int intField(byte[] data, int start, int end, byte[] key) {
+    outer:
+    for (int i = start; i + key.length < end; i++) {
+      for (int j = 0; j < key.length; j++) {
+        if (data[i + j] != key[j])
+          continue outer;
+      }
+
+      int value = -1;
+      for (int k = i + key.length; k < end && data[k] >= '0' && data[k] <= '9'; k++)
+        value = Math.max(value, 0) * 10 + (data[k] - '0');
+      return value;
+    }
+    return -1;
+  }
+
+  /**
+   * Return an encoder for use by the calling thread. Normally this is a thread-local instance; if that
+   * instance is already in use (e.g. an attribute's toString() method records an event), return a fresh
+   * one. The caller must invoke release() when done.
+   */
+  static EventEncoder acquire() {
+    EventEncoder encoder = encoders.get();
+    if (encoder.inUse)
+      encoder = new EventEncoder();
+
+    encoder.inUse = true;
+    return encoder;
+  }
+
+  /**
+   * Make this encoder available to subsequent calls to acquire().
+   */
+  void release() {
+    inUse = false;
+  }
+
+  /**
+   * Return the scratch buffer. Only valid until the next call to a method which writes data.
+   */
+  byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * Return the offset just past the end of the encoded event.
+   */
+  int end() {
+    return count;
+  }
+
+  /**
+   * Encode the portion of an event which follows the timestamp, replacing any previously encoded event.
+   * Attribute string values longer than TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH are truncated.
+   *
+   * @param attributes The event's attributes, or null.
+   * @param sampleRate If not 1, we add a sampleRate attribute with this value (see EventSampler).
+   * @param startTs The event's startTS field, or null to omit it.
+   */
+  void encodeBody(String threadId, int spanType, Severity severity, EventAttributes attributes, double sampleRate,
+      Long startTs) {
+    count = TIMESTAMP_SPACE;
+
+    writeAscii("\"thread\":");
+    writeString(threadId, Integer.MAX_VALUE);
+    writeAscii(",\"type\":");
+    writeLong(spanType);
+    writeAscii(",\"sev\":");
+    writeLong(severity.ordinal());
+
+    boolean attrsOpen = false;
+    if (attributes != null) {
+      Map<String, Object> values = attributes.liveValues();
+      synchronized (values) {
+        if (values.size() > 0) {
+          writeAscii(",\"attrs\":{");
+          attrsOpen = true;
+          boolean first = true;
+          for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (first)
+              first = false;
+            else
+              write(',');
+
+            writeString(entry.getKey(), Integer.MAX_VALUE);
+            write(':');
+            writeValue(entry.getValue());
+          }
+        }
+      }
+    }
+
+    if (sampleRate != 1) {
+      writeAscii(attrsOpen ? ",\"sampleRate\":" : ",\"attrs\":{\"sampleRate\":");
+      attrsOpen = true;
+      writeValue(sampleRate);
+    }
+
+    if (attrsOpen)
+      write('}');
+
+    if (startTs != null) {
+      writeAscii(",\"startTS\":");
+      writeLong(startTs);
+    }
+
+    write('}');
+    write(',');
+  }
+
+  /**
+   * Write {"ts":"<timestamp>", immediately ahead of the body, and return the offset at which the
+   * complete event begins.
+   */
+  int writeTimestampPrefix(long timestamp) {
+    int bodyEnd = count;
+
+    // Encode the digits at the end of the slot, then slide them into place just before the body.
+    count = TIMESTAMP_SLOT_OFFSET;
+    writeLong(timestamp);
+    int digitsLength = count - TIMESTAMP_SLOT_OFFSET;
+    int start = TIMESTAMP_SPACE - TIMESTAMP_PREFIX.length - digitsLength - 2;
+    System.arraycopy(buffer, TIMESTAMP_SLOT_OFFSET, buffer, start + TIMESTAMP_PREFIX.length, digitsLength);
+    System.arraycopy(TIMESTAMP_PREFIX, 0, buffer, start, TIMESTAMP_PREFIX.length);
+    buffer[TIMESTAMP_SPACE - 2] = '"';
+    buffer[TIMESTAMP_SPACE - 1] = ',';
+
+    count = bodyEnd;
+    return start;
+  }
+
+  /**
+   * Write {"ts":" followed by a blank slot of TIMESTAMP_SLOT_LENGTH bytes and a comma ahead of the body,
+   * and return the offset at which the complete event begins (always 0). The slot can later be filled
+   * in with formatTimestampSlot().
+   */
+  int writeTimestampPlaceholder() {
+    System.arraycopy(TIMESTAMP_PREFIX, 0, buffer, 0, TIMESTAMP_PREFIX.length);
+    for (int i = TIMESTAMP_SLOT_OFFSET; i < TIMESTAMP_SPACE - 1; i++)
+      buffer[i] = ' ';
+    buffer[TIMESTAMP_SPACE - 1] = ',';
+    return 0;
+  }
+
+  /**
+   * Fill in the slot created by writeTimestampPlaceholder with the decimal digits of timestamp, followed
+   * by a closing quote. The remainder of the slot is padded with spaces (which are insignificant whitespace
+   * in the enclosing JSON). The slot occupies TIMESTAMP_SLOT_LENGTH bytes at offset TIMESTAMP_SLOT_OFFSET.
+   */
+  void formatTimestampSlot(long timestamp) {
+    int bodyEnd = count;
+
+    count = TIMESTAMP_SLOT_OFFSET;
+    writeLong(timestamp);
+    write('"');
+    while (count < TIMESTAMP_SLOT_OFFSET + TIMESTAMP_SLOT_LENGTH)
+      buffer[count++] = ' ';
+
+    count = bodyEnd;
+  }
+
+  @Override public void write(int b) {
+    if (count == buffer.length)
+      grow(1);
+    buffer[count++] = (byte) b;
+  }
+
+  @Override public void write(byte[] data, int offset, int length) {
+    if (count + length > buffer.length)
+      grow(length);
+    System.arraycopy(data, offset, buffer, count, length);
+    count += length;
+  }
+
+  /**
+   * Encode an attribute value. Common types are written directly; anything else is delegated to
+   * JSONValue.writeJSONBytes.
+   */
+  private void writeValue(Object value) {
+    if (value instanceof String) {
+      writeString((String) value, TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      writeLong(((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      writeAscii((Boolean) value ? "true" : "false");
+    } else {
+      try {
+        JSONValue.writeJSONBytes(value, this);
+      } catch (IOException ex) {
+        // This should never happen, since we're working with in-memory data.
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Write a string which is known to contain only ASCII characters requiring no escaping.
+   */
+  private void writeAscii(String s) {
+    int length = s.length();
+    if (count + length > buffer.length)
+      grow(length);
+    for (int i = 0; i < length; i++)
+      buffer[count++] = (byte) s.charAt(i);
+  }
+
+  /**
+   * Write the decimal representation of value.
+   */
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      write(LONG_MIN_VALUE_DIGITS, 0, LONG_MIN_VALUE_DIGITS.length);
+      return;
+    }
+
+    if (count + 20 > buffer.length)
+      grow(20);
+
+    if (value < 0) {
+      buffer[count++] = '-';
+      value = -value;
+    }
+
+    int digitCount = 1;
+    for (long remaining = value / 10; remaining > 0; remaining /= 10)
+      digitCount++;
+
+    for (int i = count + digitCount - 1; i >= count; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    count += digitCount;
+  }
+
+  /**
+   * Write s as a quoted JSON string, using the same escaping rules as JSONValue. If s is longer than
+   * maxLength characters, write only the first maxLength - 3 characters, followed by "...".
+   */
+  private void writeString(String s, int maxLength) {
+    int length = s.length();
+    boolean truncate = length > maxLength;
+    if (truncate)
+      length = maxLength - 3;
+
+    // Reserve room for the worst case (six bytes per character, for \\uXXXX escapes), plus quotes and ellipsis.
+    if (count + length * 6 + 5 > buffer.length)
+      grow(length * 6 + 5);
+
+    byte[] buf = buffer;
+    int pos = count;
+    buf[pos++] = '"';
+    for (int i = 0; i < length; i++) {
+      char ch = s.charAt(i);
+      switch (ch) {
+      case '"':  buf[pos++] = '\\'; buf[pos++] = '"';  break;
+      case '\\': buf[pos++] = '\\'; buf[pos++] = '\\'; break;
+      case '\b': buf[pos++] = '\\'; buf[pos++] = 'b';  break;
+      case '\f': buf[pos++] = '\\'; buf[pos++] = 'f';  break;
+      case '\n': buf[pos++] = '\\'; buf[pos++] = 'n';  break;
+      case '\r': buf[pos++] = '\\'; buf[pos++] = 'r';  break;
+      case '\t': buf[pos++] = '\\'; buf[pos++] = 't';  break;
+      case '/':  buf[pos++] = '\\'; buf[pos++] = '/';  break;
+      default:
+        if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+          buf[pos++] = '\\';
+          buf[pos++] = 'u';
+          buf[pos++] = (byte) HEX_DIGITS[(ch >> 12) & 0xF];
+          buf[pos++] = (byte) HEX_DIGITS[(ch >> 8) & 0xF];
+          buf[pos++] = (byte) HEX_DIGITS[(ch >> 4) & 0xF];
+          buf[pos++] = (byte) HEX_DIGITS[ch & 0xF];
+        } else if (ch < 0x80) {
+          buf[pos++] = (byte) ch;
+        } else if (ch < 0x800) {
+          buf[pos++] = (byte) (0xC0 | (ch >> 6));
+          buf[pos++] = (byte) (0x80 | (ch & 0x3F));
+        } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+          buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+          buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (Character.isSurrogate(ch)) {
+          // Unpaired surrogate; String.getBytes would substitute '?', so we do too.
+          buf[pos++] = '?';
+        } else {
+          buf[pos++] = (byte) (0xE0 | (ch >> 12));
+          buf[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+          buf[pos++] = (byte) (0x80 | (ch & 0x3F));
+        }
+      }
+    }
+
+    if (truncate) {
+      buf[pos++] = '.';
+      buf[pos++] = '.';
+      buf[pos++] = '.';
+    }
+    buf[pos++] = '"';
+    count = pos;
+  }
+
+  /**
+   * Ensure that the buffer has room for at least additionalBytes more bytes.
+   */
+  private void grow(int additionalBytes) {
+    int newLength = Math.max(buffer.length * 2, count + additionalBytes);
+    byte[] newBuffer = new byte[newLength];
+    System.arraycopy(buffer, 0, newBuffer, 0, count);
+    buffer = newBuffer;
+  }
+}
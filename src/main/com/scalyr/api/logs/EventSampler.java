@@ -0,0 +1,169 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.knobs.Knob;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Internal class which limits the rate at which events sharing a key value (by default, their "tag" attribute)
+ * are recorded. See EventUploader.UploaderOptions.samplingBudget.
+ * <p>
+ * We count events per key value in one-second windows, using a count-min sketch, so that memory use is fixed
+ * no matter how many distinct values we see. Once a key value's rate (the larger of its count in the current
+ * and previous window) exceeds the budget, each of its events is kept with probability budget / rate, and
+ * kept events are marked with a sampleRate of rate / budget, so that the server can re-weight them.
+ * <p>
+ * Thread-safe, and allocation-free except when a window rolls over.
+ */
+final class EventSampler {
+  private static final long WINDOW_MS = 1000;
+
+  /**
+   * Seeds for the hash function of each row of the sketch.
+   */
+  private static final int[] ROW_SEEDS = {0x2F0B3A49, 0x6A09E667, 0x3C6EF372, 0x510E527F};
+
+  private final Knob.Integer budget;
+
+  /**
+   * Attribute whose value identifies the events which share a budget.
+   */
+  private final String key;
+
+  /**
+   * log2 of the number of counters in each row of the sketch.
+   */
+  private final int widthBits;
+
+  /**
+   * Counts for the current window, and the window before it (or null if that window saw no events, or is
+   * not immediately before the current one).
+   */
+  private volatile Window current, previous;
+
+  /**
+   * Number of events which we have decided not to record.
+   */
+  private final AtomicLong eventsSampledOut = new AtomicLong();
+
+  EventSampler(Knob.Integer budget, String key) {
+    this.budget = budget;
+    this.key = key;
+    this.widthBits = 32 - Integer.numberOfLeadingZeros(TuningConstants.EVENT_SAMPLER_SKETCH_WIDTH - 1);
+    this.current = new Window(ScalyrUtil.currentTimeMillis(), readBudget(), 1 << widthBits);
+  }
+
+  /**
+   * Count the given event, and decide whether to record it. Return 0 if the event should be discarded, 1 if
+   * it should be recorded as-is, or the sampleRate attribute to record it with.
+   */
+  double sample(EventAttributes attributes) {
+    Window window = currentWindow();
+    if (window.budget <= 0)
+      return 1;
+
+    Object value = (attributes != null) ? attributes.get(key) : null;
+    int hash = (value != null) ? value.hashCode() : 0;
+
+    int rate = Integer.MAX_VALUE;
+    for (int row = 0; row < ROW_SEEDS.length; row++)
+      rate = Math.min(rate, window.counts.incrementAndGet(index(row, hash)));
+
+    // A key value which exceeded the budget in the previous window is sampled from the start of this one.
+    Window prior = previous;
+    if (prior != null && prior != window && prior.counts != null) {
+      int priorCount = Integer.MAX_VALUE;
+      for (int row = 0; row < ROW_SEEDS.length; row++)
+        priorCount = Math.min(priorCount, prior.counts.get(index(row, hash)));
+      rate = Math.max(rate, priorCount);
+    }
+
+    if (rate <= window.budget)
+      return 1;
+
+    double keepProbability = (double) window.budget / rate;
+    if (ThreadLocalRandom.current().nextDouble() >= keepProbability) {
+      eventsSampledOut.incrementAndGet();
+      return 0;
+    }
+    return (double) rate / window.budget;
+  }
+
+  /**
+   * Return the number of events which we have decided not to record.
+   */
+  long getEventsSampledOut() {
+    return eventsSampledOut.get();
+  }
+
+  private int index(int row, int hash) {
+    return (row << widthBits) + (((hash ^ ROW_SEEDS[row]) * 0x9E3779B1) >>> (32 - widthBits));
+  }
+
+  /**
+   * Return the window containing the current time, starting a new window if necessary. The budget is read
+   * from its knob once per window, so that changes take effect within a second.
+   */
+  private Window currentWindow() {
+    long now = ScalyrUtil.currentTimeMillis();
+    Window window = current;
+    if (now - window.startMs < WINDOW_MS && now >= window.startMs)
+      return window;
+
+    synchronized (this) {
+      window = current;
+      if (now - window.startMs < WINDOW_MS && now >= window.startMs)
+        return window;
+
+      previous = (now - window.startMs < 2 * WINDOW_MS) ? window : null;
+      current = new Window(now, readBudget(), 1 << widthBits);
+      return current;
+    }
+  }
+
+  private int readBudget() {
+    Integer value = budget.get();
+    return (value != null) ? value : 0;
+  }
+
+  private static class Window {
+    final long startMs;
+
+    /**
+     * Events per key value per window above which we sample, or <= 0 to record all events.
+     */
+    final int budget;
+
+    /**
+     * The count-min sketch: one row of counters per entry in ROW_SEEDS. Null if budget <= 0.
+     */
+    final AtomicIntegerArray counts;
+
+    Window(long startMs, int budget, int width) {
+      this.startMs = startMs;
+      this.budget = budget;
+      this.counts = (budget > 0) ? new AtomicIntegerArray(ROW_SEEDS.length * width) : null;
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import com.scalyr.api.internal.Logging;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.json.RawJson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Internal class which stores chunks of the pending event buffer in memory-mapped segment files, so that
+ * events can survive a prolonged upload outage (or a process restart) instead of being discarded.
+ * <p>
+ * Each segment holds one upload-sized chunk, along with the session ID, session info, and thread list
+ * under which it should be uploaded. Segments are uploaded oldest-first; segment file names sort in
+ * creation order. A segment is first written under a temporary name and then renamed, so that a crash
+ * never leaves a partial segment behind.
+ * <p>
+ * Segment file layout: MAGIC, a 4-byte header length, a JSON header, then the chunk's event bytes
+ * (each event followed by a comma, as in the pending event buffer).
+ * <p>
+ * A spill directory should be used by only one process at a time. Methods are synchronized.
+ */
+final class EventSpillStore {
+  private static final byte[] MAGIC = "scalyrEventSpill1\n".getBytes(ScalyrUtil.utf8);
+
+  private static final String SEGMENT_SUFFIX = ".spill";
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Size of the temporary array used to copy segment data to an upload stream.
+   */
+  private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+
+  private final File directory;
+
+  /**
+   * Maximum total size of all segment files, in bytes.
+   */
+  private final long quotaBytes;
+
+  /**
+   * Segments awaiting upload, oldest first.
+   */
+  private final Deque<SegmentFile> segments = new ArrayDeque<SegmentFile>();
+
+  /**
+   * Total size of the files in segments.
+   */
+  private long bytesUsed;
+
+  /**
+   * Total number of event payload bytes in the files in segments.
+   */
+  private long payloadBytes;
+
+  /**
+   * Used to generate unique, increasing segment file names within a millisecond.
+   */
+  private long nextSequence;
+
+  /**
+   * Open the spill store in the given directory, creating the directory if necessary. Segments left
+   * behind by a previous process are queued for upload.
+   */
+  EventSpillStore(File directory, long quotaBytes) {
+    this.directory = directory;
+    this.quotaBytes = quotaBytes;
+
+    if (!directory.isDirectory() && !directory.mkdirs())
+      Logging.log(Severity.warning, Logging.tagEventSpillError, "Unable to create event spill directory " + directory);
+
+    File[] files = directory.listFiles();
+    if (files == null)
+      return;
+
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TEMP_SUFFIX)) {
+        // Left over from a crash during spill(); the data was never removed from memory, so it's a duplicate.
+        if (!file.delete())
+          Logging.log(Severity.warning, Logging.tagEventSpillError, "Unable to delete " + file);
+      } else if (name.endsWith(SEGMENT_SUFFIX)) {
+        Segment segment = open(file);
+        if (segment != null)
+          add(new SegmentFile(file, file.length(), segment.payloadLength));
+      }
+    }
+
+    if (!segments.isEmpty())
+      Logging.log(Severity.info, Logging.tagEventSpill, "Found " + segments.size() + " spilled event segments ("
+          + payloadBytes + " bytes) in " + directory + "; these will be uploaded");
+  }
+
+  /**
+   * Return true if there are no segments awaiting upload.
+   */
+  synchronized boolean isEmpty() {
+    return segments.isEmpty();
+  }
+
+  /**
+   * Return the number of event payload bytes in segments awaiting upload.
+   */
+  synchronized long payloadBytes() {
+    return payloadBytes;
+  }
+
+  /**
+   * Write a new segment holding the given event bytes. Return false, writing nothing, if the segment would
+   * exceed our disk quota or an I/O error occurs.
+   *
+   * @param threadInfos The threads list for the segment, or null if it has none.
+   * @param slices The chunk's event bytes (see CircularByteArray.oldestBytes).
+   */
+  synchronized boolean spill(String sessionId, JSONStreamAware sessionInfo, JSONStreamAware threadInfos,
+      ByteBuffer[] slices) {
+    JSONObject header = new JSONObject();
+    header.put("session", sessionId);
+    header.put("sessionInfo", sessionInfo);
+    header.put("threads", threadInfos);
+    byte[] headerBytes = header.toString().getBytes(ScalyrUtil.utf8);
+
+    int payloadLength = 0;
+    for (ByteBuffer slice : slices)
+      payloadLength += slice.remaining();
+
+    long fileLength = MAGIC.length + 4 + headerBytes.length + payloadLength;
+    if (bytesUsed + fileLength > quotaBytes)
+      return false;
+
+    String baseName = String.format("%020d-%010d", ScalyrUtil.currentTimeMillis(), nextSequence++);
+    File tempFile = new File(directory, baseName + TEMP_SUFFIX);
+    File segmentFile = new File(directory, baseName + SEGMENT_SUFFIX);
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw"); FileChannel channel = raf.getChannel()) {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+        mapped.put(MAGIC);
+        mapped.putInt(headerBytes.length);
+        mapped.put(headerBytes);
+        for (ByteBuffer slice : slices)
+          mapped.put(slice);
+        mapped.force();
+      }
+
+      if (!tempFile.renameTo(segmentFile))
+        throw new IOException("Unable to rename " + tempFile + " to " + segmentFile);
+    } catch (IOException ex) {
+      Logging.log(Severity.warning, Logging.tagEventSpillError, "Unable to spill events to " + segmentFile, ex);
+      tempFile.delete();
+      return false;
+    }
+
+    add(new SegmentFile(segmentFile, fileLength, payloadLength));
+    return true;
+  }
+
+  /**
+   * Return the oldest segment awaiting upload, or null if there is none. Segments which can't be read
+   * are discarded.
+   */
+  synchronized Segment oldest() {
+    while (!segments.isEmpty()) {
+      Segment segment = open(segments.peekFirst().file);
+      if (segment != null)
+        return segment;
+
+      removeFirst();
+    }
+
+    return null;
+  }
+
+  /**
+   * Delete the given segment, which must be the oldest segment, e.g. because it has been uploaded.
+   */
+  synchronized void remove(Segment segment) {
+    ScalyrUtil.Assert(!segments.isEmpty() && segment.file.equals(segments.peekFirst().file),
+        "spilled segments removed out of order");
+    removeFirst();
+  }
+
+  private void add(SegmentFile segmentFile) {
+    segments.addLast(segmentFile);
+    bytesUsed += segmentFile.fileLength;
+    payloadBytes += segmentFile.payloadLength;
+  }
+
+  private void removeFirst() {
+    SegmentFile segmentFile = segments.removeFirst();
+    bytesUsed -= segmentFile.fileLength;
+    payloadBytes -= segmentFile.payloadLength;
+
+    if (!segmentFile.file.delete())
+      Logging.log(Severity.warning, Logging.tagEventSpillError, "Unable to delete " + segmentFile.file);
+  }
+
+  /**
+   * Map and parse the given segment file. Return null if it can't be read.
+   */
+  private Segment open(File file) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      byte[] magic = new byte[MAGIC.length];
+      mapped.get(magic);
+      if (!Arrays.equals(magic, MAGIC))
+        throw new IOException("bad magic number");
+
+      byte[] headerBytes = new byte[mapped.getInt()];
+      mapped.get(headerBytes);
+      JSONObject header = (JSONObject) JSONParser.parse(new String(headerBytes, ScalyrUtil.utf8));
+
+      return new Segment(file, (String) header.get("session"), (JSONObject) header.get("sessionInfo"),
+          (JSONArray) header.get("threads"), mapped.slice());
+    } catch (IOException | RuntimeException ex) {
+      Logging.log(Severity.warning, Logging.tagEventSpillError, "Discarding unreadable spilled event segment " + file, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Bookkeeping for a segment file awaiting upload.
+   */
+  private static final class SegmentFile {
+    final File file;
+    final long fileLength;
+    final int payloadLength;
+
+    SegmentFile(File file, long fileLength, int payloadLength) {
+      this.file = file;
+      this.fileLength = fileLength;
+      this.payloadLength = payloadLength;
+    }
+  }
+
+  /**
+   * A spilled chunk of events, along with the session metadata under which it should be uploaded.
+   */
+  static final class Segment {
+    final File file;
+    final String sessionId;
+    final JSONObject sessionInfo;
+    final JSONArray threadInfos;
+
+    /**
+     * The chunk's event bytes, each event followed by a comma.
+     */
+    private final ByteBuffer payload;
+
+    final int payloadLength;
+
+    Segment(File file, String sessionId, JSONObject sessionInfo, JSONArray threadInfos, ByteBuffer payload) {
+      this.file = file;
+      this.sessionId = sessionId;
+      this.sessionInfo = sessionInfo;
+      this.threadInfos = threadInfos;
+      this.payload = payload;
+      this.payloadLength = payload.remaining();
+    }
+
+    /**
+     * Return the chunk's events as a JSON array.
+     */
+    RawJson events() {
+      return new RawJson() {
+        @Override public void writeJSONBytes(OutputStream out) throws IOException {
+          out.write('[');
+
+          // Omit the trailing comma after the last event.
+          ByteBuffer view = payload.duplicate();
+          byte[] transfer = new byte[Math.min(payloadLength, TRANSFER_CHUNK_SIZE)];
+          int remaining = payloadLength - 1;
+          while (remaining > 0) {
+            int length = Math.min(transfer.length, remaining);
+            view.get(transfer, 0, length);
+            out.write(transfer, 0, length);
+            remaining -= length;
+          }
+
+          out.write(']');
+        }};
+    }
+  }
+}
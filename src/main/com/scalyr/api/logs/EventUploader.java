@@ -17,28 +17,52 @@
 
 package com.scalyr.api.logs;
 
+import com.scalyr.api.ScalyrNetworkException;
 import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.ChunkSizeList;
 import com.scalyr.api.internal.CircularByteArray;
+import com.scalyr.api.internal.EndpointHealth;
+import com.scalyr.api.internal.HttpClientPool;
 import com.scalyr.api.internal.Logging;
 import com.scalyr.api.internal.Logging.LogLimiter;
+import com.scalyr.api.internal.PrecompressedJson;
+import com.scalyr.api.internal.RetryPolicy;
+import com.scalyr.api.internal.ScalyrService;
 import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.internal.ZstdDictionary;
 import com.scalyr.api.json.JSONArray;
 import com.scalyr.api.json.JSONObject;
 import com.scalyr.api.json.JSONParser.JsonParseException;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.json.JSONValue;
 import com.scalyr.api.json.RawJson;
 import com.scalyr.api.knobs.Knob;
 import com.scalyr.api.logs.EventFilter.FilterInput;
 import com.scalyr.api.logs.EventFilter.FilterOutput;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Internal class which buffers events, and periodically uploads them to the Scalyr Logs service.
@@ -59,6 +83,378 @@ public class EventUploader {
     }
   }
 
+  /**
+   * Strategies for adding events to the pending event buffer.
+   */
+  public enum AppendMode {
+    /**
+     * Each event is serialized and copied into the buffer while holding a lock shared by all threads.
+     * Events occupy the minimum possible space in the buffer.
+     */
+    Synchronized,
+
+    /**
+     * Events are serialized without holding any shared lock, and producers claim space in the buffer
+     * using a compare-and-swap on the buffer's write cursor, so that many threads can copy events into
+     * the buffer concurrently. Only timestamp assignment and chunk bookkeeping happen in a brief, ordered
+     * publish step. Each event may carry a few bytes of whitespace padding after its timestamp.
+     */
+    LockFree
+  }
+
+  /**
+   * What to do with an event when the pending event buffer has no room for it. See
+   * UploaderOptions.overflowPolicy.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Discard the event. Once an event has been discarded, all subsequent events with this policy are also
+     * discarded until an upload frees space, so that the buffer boundary doesn't let through a confusing
+     * scattering of events. This is the default.
+     */
+    Drop,
+
+    /**
+     * Block the recording thread until an upload frees enough space, for up to
+     * UploaderOptions.overflowTimeoutMs. If there is still no room, the event is discarded.
+     */
+    Block,
+
+    /**
+     * Like Block, except that the recording thread performs the upload itself (synchronously), rather than
+     * waiting for the upload timer. Useful when uploads would otherwise be starved of CPU by producers.
+     */
+    CallerRuns,
+
+    /**
+     * Discard the event if it would leave less than a severity-dependent fraction of the buffer free (see
+     * TuningConstants.EVENT_BUFFER_SEVERITY_RESERVED_PERCENT). As the buffer fills up, events are therefore
+     * shed in order of increasing severity, keeping the remaining space for more severe events.
+     */
+    DropLowestSeverityFirst
+  }
+
+  /**
+   * Counters describing how an OverflowPolicy has been applied. See getOverflowStats.
+   */
+  public static class OverflowStats {
+    public final OverflowPolicy policy;
+
+    /**
+     * Number of events discarded because the buffer had no room for them.
+     */
+    public final long eventsShed;
+
+    /**
+     * Number of events for which the recording thread was blocked, waiting for buffer space.
+     */
+    public final long eventsBlocked;
+
+    /**
+     * Total time recording threads have spent blocked, waiting for buffer space (including time spent
+     * uploading, for CallerRuns).
+     */
+    public final long blockedNs;
+
+    public OverflowStats(OverflowPolicy policy, long eventsShed, long eventsBlocked, long blockedNs) {
+      this.policy = policy;
+      this.eventsShed = eventsShed;
+      this.eventsBlocked = eventsBlocked;
+      this.blockedNs = blockedNs;
+    }
+
+    @Override public String toString() {
+      return "OverflowStats{policy=" + policy + ", eventsShed=" + eventsShed + ", eventsBlocked=" + eventsBlocked
+          + ", blockedNs=" + blockedNs + "}";
+    }
+  }
+
+  /**
+   * The current state of adaptive batching. See UploaderOptions.targetLatencyMs and getBatchingStats.
+   */
+  public static class BatchingStats {
+    /**
+     * Size (in bytes) at which a batch is uploaded without waiting for the batch delay.
+     */
+    public final int batchBytes;
+
+    /**
+     * How long after the previous upload a batch is uploaded, if it hasn't reached batchBytes.
+     */
+    public final long batchDelayMs;
+
+    /**
+     * Lower bound on the start-to-start spacing of uploads (which grows beyond this after server errors).
+     */
+    public final long minUploadSpacingMs;
+
+    /**
+     * Moving averages of the duration and throughput (in uncompressed bytes per second) of successful
+     * uploads, or -1 if there have been none.
+     */
+    public final double uploadLatencyMs;
+    public final double uploadBytesPerSecond;
+
+    /**
+     * Number of times batchBytes or batchDelayMs has been changed.
+     */
+    public final long adjustments;
+
+    public BatchingStats(int batchBytes, long batchDelayMs, long minUploadSpacingMs, double uploadLatencyMs,
+        double uploadBytesPerSecond, long adjustments) {
+      this.batchBytes = batchBytes;
+      this.batchDelayMs = batchDelayMs;
+      this.minUploadSpacingMs = minUploadSpacingMs;
+      this.uploadLatencyMs = uploadLatencyMs;
+      this.uploadBytesPerSecond = uploadBytesPerSecond;
+      this.adjustments = adjustments;
+    }
+
+    @Override public String toString() {
+      return "BatchingStats{batchBytes=" + batchBytes + ", batchDelayMs=" + batchDelayMs + ", minUploadSpacingMs="
+          + minUploadSpacingMs + ", uploadLatencyMs=" + uploadLatencyMs + ", uploadBytesPerSecond="
+          + uploadBytesPerSecond + ", adjustments=" + adjustments + "}";
+    }
+  }
+
+  /**
+   * Makes Zstandard dictionaries trained by an EventUploader available to the server which decompresses
+   * its uploads. See UploaderOptions.zstdDictionaryPublisher.
+   */
+  public interface ZstdDictionaryPublisher {
+    /**
+     * Publish the given dictionary. Return true if the server can now decompress requests compressed with it
+     * (which identify the dictionary by ID, in the ZstdDictionary.ID_HEADER header). If false is returned,
+     * the dictionary is not used.
+     */
+    boolean publish(long dictionaryId, byte[] dictionary);
+  }
+
+  /**
+   * Determines the thread ID and name under which a thread's events are reported, and thus which threads
+   * share an entry in the threads list of upload requests. See UploaderOptions.threadIdentity.
+   */
+  public interface ThreadIdentity {
+    /**
+     * Return the ID under which events recorded by the given thread are reported. Threads given the same ID
+     * should also be given the same name.
+     */
+    String threadId(Thread thread);
+
+    /**
+     * Return the name reported for the given thread's ID.
+     */
+    String threadName(Thread thread);
+
+    /**
+     * Reports each thread under its own ID (Thread.getId()) and name. This is the default.
+     */
+    ThreadIdentity PER_THREAD = new ThreadIdentity() {
+      @Override public String threadId(Thread thread) {
+        return Long.toString(thread.getId());
+      }
+
+      @Override public String threadName(Thread thread) {
+        return thread.getName();
+      }
+    };
+
+    /**
+     * Reports threads by the pool they belong to: threads whose names differ only in a trailing number
+     * (e.g. "pool-3-thread-1" and "pool-3-thread-2") share an ID, named for the common prefix. Unnamed
+     * threads (such as virtual threads, which are unnamed by default) share an ID per ThreadGroup. Suited
+     * to applications with many short-lived threads, where per-thread entries would only add bulk.
+     */
+    ThreadIdentity BY_POOL = new ThreadIdentity() {
+      @Override public String threadId(Thread thread) {
+        return "pool:" + threadName(thread);
+      }
+
+      @Override public String threadName(Thread thread) {
+        String name = thread.getName();
+        int end = name.length();
+        while (end > 0 && Character.isDigit(name.charAt(end - 1)))
+          end--;
+        if (end > 0)
+          return name.substring(0, end);
+
+        ThreadGroup group = thread.getThreadGroup();
+        return (group != null) ? group.getName() : "";
+      }
+    };
+  }
+
+  /**
+   * Outcome of a flush (see flushAsync). Byte counts refer to the events which were buffered when the flush
+   * was requested.
+   */
+  public static class FlushResult {
+    /**
+     * True if every event buffered when the flush was requested has been acknowledged by the server (or
+     * dropped). False if the deadline expired first.
+     */
+    public final boolean complete;
+
+    /**
+     * Number of bytes of events which were acknowledged by the server.
+     */
+    public final long bytesFlushed;
+
+    /**
+     * Number of bytes of events which were discarded without being uploaded (e.g. after persistent upload
+     * failures).
+     */
+    public final long bytesDropped;
+
+    /**
+     * Number of bytes of events which were still awaiting upload at the deadline.
+     */
+    public final long bytesPending;
+
+    public FlushResult(boolean complete, long bytesFlushed, long bytesDropped, long bytesPending) {
+      this.complete = complete;
+      this.bytesFlushed = bytesFlushed;
+      this.bytesDropped = bytesDropped;
+      this.bytesPending = bytesPending;
+    }
+
+    @Override public String toString() {
+      return "FlushResult{complete=" + complete + ", bytesFlushed=" + bytesFlushed + ", bytesDropped=" + bytesDropped
+          + ", bytesPending=" + bytesPending + "}";
+    }
+  }
+
+  /**
+   * Options used when constructing an EventUploader.
+   */
+  public static class UploaderOptions {
+    /**
+     * How producer threads add events to the pending event buffer.
+     */
+    public AppendMode appendMode = AppendMode.Synchronized;
+
+    /**
+     * If true, the pending event buffer is allocated off-heap (in a direct ByteBuffer), rather than as a
+     * Java array. Recommended for very large memory limits, as it keeps the buffer out of the garbage
+     * collector's way. Note that the JVM's -XX:MaxDirectMemorySize must accommodate the buffer.
+     */
+    public boolean offHeapBuffer = false;
+
+    /**
+     * If not null, then when the pending event buffer fills up (e.g. because the Scalyr server is unreachable),
+     * the oldest buffered events are moved to memory-mapped segment files in this directory rather than being
+     * discarded. Spilled events are uploaded, oldest first, once the server is reachable -- including after a
+     * process restart, in which case they are uploaded under their original session. Each process should use
+     * its own directory.
+     */
+    public File spillDirectory = null;
+
+    /**
+     * Maximum total size of the segment files in spillDirectory, in bytes. Once this is reached, we fall back
+     * to discarding events.
+     */
+    public long spillQuotaBytes = 1024L * 1024 * 1024;
+
+    /**
+     * Maximum number of upload requests which may be in flight at once, each carrying a successive chunk of
+     * the pending event buffer. A chunk is released from the buffer only once it, and every older chunk, has
+     * been acknowledged by the server. A chunk whose upload fails is retried on its own, once the other
+     * uploads in flight have completed, and newer chunks wait until it succeeds. Values above 1 help sustain
+     * throughput over high-latency links. With the default of 1, each upload completes before the next one
+     * begins.
+     */
+    public int maxInFlightUploads = 1;
+
+    /**
+     * If not null, then while using CompressionType.Zstandard, we periodically train a Zstandard dictionary
+     * from a sample of recently buffered events, and pass it to this publisher. Once a dictionary has been
+     * published, uploads are compressed with it, which considerably improves the compression of small,
+     * repetitive events. The server must support dictionary-compressed uploads.
+     */
+    public ZstdDictionaryPublisher zstdDictionaryPublisher = null;
+
+    /**
+     * If positive, then chunks of pendingEventBuffer which can no longer grow are compressed by a background
+     * thread (using the current CompressionType), and held in compressed form until they are uploaded, freeing
+     * their space in the buffer. When uploads fall behind, this lets the buffer hold several times as many
+     * events, and the upload of a compressed chunk involves no compression work. This value limits the
+     * memory used for compressed chunks (in addition to memoryLimit).
+     */
+    public int precompressedMemoryLimit = 0;
+
+    /**
+     * Scheduler which times the upload timer. If null, we use a single-threaded scheduler shared by all
+     * EventUploaders (including the meta-monitoring uploader; see Logging.enableMetaMonitoring). The scheduler
+     * only keeps time: each tick, and any upload it performs, runs on the uploader's own thread (or on the
+     * upload executor, if one was supplied), so that a slow upload never delays other uploaders.
+     */
+    public ScheduledExecutorService scheduler = null;
+
+    /**
+     * What to do with an event when the pending event buffer has no room for it.
+     */
+    public OverflowPolicy overflowPolicy = OverflowPolicy.Drop;
+
+    /**
+     * Per-severity overrides for overflowPolicy. For instance, audit events recorded at Severity.warning and
+     * above could use OverflowPolicy.Block, while less severe events are dropped.
+     */
+    public Map<Severity, OverflowPolicy> severityOverflowPolicies = new EnumMap<Severity, OverflowPolicy>(Severity.class);
+
+    /**
+     * Maximum time for which OverflowPolicy.Block and OverflowPolicy.CallerRuns hold up the recording thread,
+     * in milliseconds.
+     */
+    public long overflowTimeoutMs = 1000;
+
+    /**
+     * When an event of at least this severity doesn't fit in the pending event buffer, we make room by
+     * evicting the less severe leaf events (not span start or end events) from the oldest buffered chunk,
+     * rather than discarding the new event. Thus, under memory pressure, the oldest low-severity events are
+     * discarded first, and a flood of low-severity events can't crowd out more severe ones. Null (the
+     * default) disables eviction; Severity.warning is a reasonable value to opt in with.
+     */
+    public Severity evictionSeverityThreshold = null;
+
+    /**
+     * If not null, the number of events per second which may be recorded for each value of the samplingKey
+     * attribute (e.g. each tag). Beyond this rate, events with that value are sampled down to roughly the
+     * budget, and each event recorded is given a "sampleRate" attribute, the number of events it stands for,
+     * so that counts can be re-weighted on the server. Thus one code path emitting a flood of events can't
+     * consume the whole event buffer and upload bandwidth.
+     * <p>
+     * The knob is re-read every second, so the budget can be changed on the fly. A value of zero or less
+     * disables sampling. Only leaf events (not span start or end events) less severe than Severity.warning
+     * are sampled. Rates are tracked in a fixed-size sketch (see TuningConstants.EVENT_SAMPLER_SKETCH_WIDTH),
+     * so memory use doesn't grow with the number of distinct values.
+     */
+    public Knob.Integer samplingBudget = null;
+
+    /**
+     * Attribute which identifies the events sharing a samplingBudget. Events without the attribute share
+     * one budget.
+     */
+    public String samplingKey = "tag";
+
+    /**
+     * Determines the thread ID and name under which each thread's events are reported. By default, each
+     * thread is reported individually; ThreadIdentity.BY_POOL groups the threads of each pool (or, for
+     * virtual threads, each ThreadGroup) under one ID, so that a large or rapidly churning set of threads
+     * doesn't produce an equally large thread registry and threads list. Each thread still keeps its own
+     * span nesting state.
+     */
+    public ThreadIdentity threadIdentity = ThreadIdentity.PER_THREAD;
+
+    /**
+     * If greater than zero, batching adapts to observed upload latency, throughput and server backoff, aiming
+     * to keep the time from recording an event to its acknowledgement by the server under this many
+     * milliseconds while uploading in as few requests as possible: the batch size, the time a batch may wait
+     * for more events, and the minimum spacing between uploads are all tuned after each upload (see
+     * getBatchingStats). If zero, batches are uploaded at fixed thresholds (about 100KB, or 4.5 seconds).
+     */
+    public long targetLatencyMs = 0;
+  }
+
   private static final Knob.String defaultCompressionType = new Knob.String("defaultCompressionType", "gzip");
 
   /**
@@ -88,6 +484,17 @@ public class EventUploader {
    */
   private final EventAttributes serverAttributes;
 
+  /**
+   * The sessionInfo value most recently serialized by sessionInfo(), or null if we have not yet built one.
+   */
+  private volatile CachedSessionInfo cachedSessionInfo;
+
+  /**
+   * The threads list most recently serialized by buildThreadInfos(), or null if we have not yet built one.
+   * Successive batches usually come from the same threads, so this is usually reused as-is.
+   */
+  private volatile CachedThreadInfos cachedThreadInfos;
+
   /**
    * If true, then we automatically upload events using a timer. If false, then the client must
    * manually initiate upload. Always true except during tests.
@@ -128,18 +535,14 @@ public class EventUploader {
   public volatile boolean emergencySuspend = false;
 
   /**
-   * ThreadLocal for tracking information per thread -- thread ID, name, etc.
+   * ThreadLocal for tracking information per thread -- thread ID, name, etc. The state is registered in
+   * threads when its first event is recorded.
    */
   final ThreadLocal<PerThreadState> threadEvents = new ThreadLocal<PerThreadState>() {
     @Override protected PerThreadState initialValue() {
       Thread thread = Thread.currentThread();
-      String threadIdString = Long.toString(thread.getId());
-      PerThreadState temp = new PerThreadState(thread.getId(), reportThreadNames ? thread.getName() : "");
-      synchronized (threads) {
-        ScalyrUtil.Assert(!threads.containsKey(threadIdString), "collision in threads table");
-        threads.put(threadIdString, temp);
-      }
-      return temp;
+      return new PerThreadState(threadIdentity.threadId(thread),
+          reportThreadNames ? threadIdentity.threadName(thread) : "", false);
     }
   };
 
@@ -148,23 +551,34 @@ public class EventUploader {
    * create a PerThreadState for it.
    */
   PerThreadState getThreadState(String threadId, String threadName) {
-    synchronized (threads) {
-      PerThreadState state = threads.get(threadId);
-      if (state == null) {
-        state = new PerThreadState(threadId, threadName);
-        threads.put(threadId, state);
-      }
-
-      return state;
+    PerThreadState state = threads.get(threadId);
+    if (state == null) {
+      state = new PerThreadState(threadId, threadName, true);
+      PerThreadState existing = threads.putIfAbsent(threadId, state);
+      if (existing != null)
+        state = existing;
     }
+
+    return state;
   }
 
   /**
-   * All outstanding threads for which we have recorded at least one event, indexed by thread ID.
-   *
-   * TODO: should scavenge records for idle threads.
+   * All threads which have recorded an event and not since been scavenged as idle (see scavengeIdleThreads),
+   * indexed by thread ID. If several threads share an ID (see ThreadIdentity), this holds one of them.
+   */
+  private final ConcurrentHashMap<String, PerThreadState> threads = new ConcurrentHashMap<String, PerThreadState>();
+
+  /**
+   * Incremented each time scavengeIdleThreads removes entries from threads. A PerThreadState whose
+   * registeredGeneration differs from this value re-registers itself before its next event is added to the
+   * buffer. Synchronized on chunkSizes.
+   */
+  private int threadsGeneration;
+
+  /**
+   * Time (in milliseconds) when scavengeIdleThreads last checked for idle threads.
    */
-  private Map<String, PerThreadState> threads = new HashMap<String, PerThreadState>();
+  private long lastThreadScavengeMs = ScalyrUtil.currentTimeMillis();
 
   /**
    * Holds the serialized form of all events which have been recorded since the last call to uploadBuffer.
@@ -181,12 +595,19 @@ public class EventUploader {
    * is always exactly equal to the number of bytes in pendingEventBuffer, and no entry is ever
    * larger than TuningConstants.MAX_EVENT_UPLOAD_BYTES.
    *
-   * This array is used to partition the buffer into upload-sized chunks.
+   * This array is used to partition the buffer into upload-sized chunks. Each chunk also records the number
+   * of events it holds, their time range and severities, and the threads which recorded them.
    *
    * Operations that modify chunkSizes, and/or add or remove data from pendingEventBuffer,
    * are synchronized on chunkSizes.
    */
-  private final ChunkSizeList chunkSizes = new ChunkSizeList();
+  private final ChunkSizeList chunkSizes = new ChunkSizeList(Severity.values().length);
+
+  /**
+   * Holds chunks which have been moved out of pendingEventBuffer to disk, or null if spilling is disabled.
+   * Spilled chunks are always older than the contents of pendingEventBuffer, so we upload them first.
+   */
+  private final EventSpillStore spillStore;
 
   /**
    * Total number of bytes written to pendingEventBuffer (and added to chunkSizes). Synchronized
@@ -194,18 +615,36 @@ public class EventUploader {
    */
   private long totalBytesWritten = 0;
 
+  /**
+   * Total number of bytes of events which we have discarded without uploading them (see dropUploadedBatch).
+   * Synchronized on uploadSynchronizer.
+   */
+  private long totalBytesDropped = 0;
+
+  /**
+   * Flushes which have not yet completed (see flushAsync). Synchronized on uploadSynchronizer.
+   */
+  private final List<FlushWaiter> flushWaiters = new ArrayList<FlushWaiter>();
+
+  /**
+   * True while flushWaiters is non-empty. Upload ticks then bypass the usual wait timers.
+   */
+  private volatile boolean flushPending = false;
+
   /**
    * True if we've discarded at least one event because we reached pendingEventBuffer
    * is full. Reset whenever an upload completes (thus freeing up memory). This ensures
    * that we don't "stutter" at the edge of the memory boundary, yielding a
    * confusing situation where events are dropped intermittently.
+   *
+   * Volatile, as it is read without locking when appendMode is LockFree.
    */
-  private boolean pendingEventsReachedLimit = false;
+  private volatile boolean pendingEventsReachedLimit = false;
 
   /**
    * Incremented each time pendingEventsReachedLimit transitions from false to true.
    */
-  private volatile int pendingEventsLimitCounter = 0;
+  private final AtomicInteger pendingEventsLimitCounter = new AtomicInteger();
 
   /**
    * Used to rate-limit buffer overflow warnings.
@@ -213,22 +652,125 @@ public class EventUploader {
   private static LogLimiter memoryWarnLimiter = new LogLimiter();
 
   /**
-   * True if we have an in-flight upload request to the server.
+   * Number of upload requests currently in flight to the server.
    */
-  private boolean uploadInProgress = false;
+  private int uploadsInFlight = 0;
 
   /**
-   * Externally supplied Timer used to schedule upload RPCs. Can be null, in which case we use privateTimer.
+   * Maximum value for uploadsInFlight. See UploaderOptions.maxInFlightUploads.
    */
-  private Timer sharedTimer = null;
+  private final int maxInFlightUploads;
+
+  /**
+   * Chunks of pendingEventBuffer for which an upload has been initiated, oldest first. Entry i always describes
+   * entry i in chunkSizes. An entry is removed (and its chunk released from pendingEventBuffer) once it, and all
+   * older entries, have been acknowledged.
+   */
+  private final ArrayDeque<UploadBatch> uploadBatches = new ArrayDeque<UploadBatch>();
+
+  /**
+   * Chunks which have been compressed ahead of time (see UploaderOptions.precompressedMemoryLimit), oldest
+   * first. They are always older than the contents of pendingEventBuffer, and newer than any spilled segment.
+   * Synchronized on uploadSynchronizer.
+   */
+  private final ArrayDeque<UploadBatch> precompressedBatches = new ArrayDeque<UploadBatch>();
+
+  /**
+   * Total compressed (respectively, uncompressed) size of the chunks in precompressedBatches. Synchronized
+   * on uploadSynchronizer.
+   */
+  private long precompressedBytes = 0;
+  private long precompressedPayloadBytes = 0;
+
+  /**
+   * The chunk of pendingEventBuffer currently being compressed by precompressChunks, or null. It is always
+   * the first entry in uploadBatches, and is marked as in flight so that it isn't uploaded meanwhile.
+   * Synchronized on uploadSynchronizer.
+   */
+  private UploadBatch compressingBatch = null;
+
+  /**
+   * True while a call to precompressChunks is queued or running. Synchronized on uploadSynchronizer.
+   */
+  private boolean precompressionScheduled = false;
+
+  /**
+   * See UploaderOptions.precompressedMemoryLimit.
+   */
+  private final int precompressedMemoryLimit;
+
+  /**
+   * Thread on which we run precompressChunks. Allocated on first use. Synchronized on "this".
+   */
+  private ExecutorService precompressionExecutor = null;
+
+  /**
+   * Incremented each time uploadTimerTick initiates one or more uploads. Used to adjust minUploadIntervalMs at
+   * most once per round, however many requests the round contained.
+   */
+  private long uploadRound = 0;
+
+  /**
+   * The most recent rounds in which we decreased (respectively, increased) minUploadIntervalMs.
+   */
+  private long lastSpeedupRound = 0;
+  private long lastBackoffRound = 0;
+
+  /**
+   * Thread pool for pipelined uploads (maxInFlightUploads > 1), if uploadExecutor is null. Allocated on first use.
+   */
+  private ExecutorService privateUploadPool = null;
 
   /**
-   * Timer used to generate upload RPCs. Allocated when the first event is recorded. If sharedTimer is not
-   * null, we don't use privateTimer.
+   * Externally supplied Timer used to schedule upload RPCs. Can be null, in which case we use scheduler.
    */
-  private Timer privateTimer = null;
+  private Timer sharedTimer = null;
   private TimerTask uploadTask = null;
 
+  /**
+   * Scheduler shared by all EventUploaders that aren't given a Timer or UploaderOptions.scheduler. Allocated
+   * on first use.
+   */
+  private static ScheduledExecutorService defaultScheduler = null;
+
+  /**
+   * Scheduler which times our upload ticks (see runScheduledTick), or null if we poll using sharedTimer (or
+   * autoUpload is false, or we have been terminated). Rather than polling, we schedule each tick for when the next upload will be
+   * due, and producers bring it forward when they make a batch ready (see requestUpload).
+   */
+  private volatile ScheduledExecutorService scheduler = null;
+
+  /**
+   * The pending upload tick on scheduler, or null if none; the (System.nanoTime) time for which it is
+   * scheduled; and a counter incremented each time a tick is scheduled. Synchronized on tickScheduleLock.
+   */
+  private ScheduledFuture<?> scheduledTick = null;
+  private long scheduledTickAtNs;
+  private long tickGeneration = 0;
+  private final Object tickScheduleLock = new Object();
+
+  /**
+   * True once cancelScheduledTicks has been called.
+   */
+  private volatile boolean ticksCancelled = false;
+
+  /**
+   * Thread on which we run scheduled upload ticks, if uploadExecutor is null. The scheduler may be shared
+   * with other uploaders, so a tick (which may perform a blocking upload) must never run on it. Allocated on
+   * first use. Synchronized on tickScheduleLock.
+   */
+  private ExecutorService tickThread = null;
+
+  /**
+   * True while a tick has been handed to tickThread (or uploadExecutor), and has not yet started.
+   */
+  private final AtomicBoolean tickQueued = new AtomicBoolean();
+
+  /**
+   * True if requestUpload has been called since the most recent scheduled tick began.
+   */
+  private volatile boolean uploadRequested = false;
+
   /**
    * If not null, then we perform uploads on this executor. Used to avoid tying up the sharedTimer thread.
    */
@@ -238,14 +780,36 @@ public class EventUploader {
    * Time when we last initiated an event batch upload, or null if we have not yet
    * started one.
    */
-  private Long lastUploadStartMs = ScalyrUtil.currentTimeMillis();
+  private volatile Long lastUploadStartMs = ScalyrUtil.currentTimeMillis();
 
   /**
    * Object used to synchronize access to pendingEventBuffer, pendingEventsReachedLimit,
-   * and uploadInProgress.
+   * uploadsInFlight, uploadBatches, and the upload round counters.
    */
   private final Object uploadSynchronizer = new Object();
 
+  /**
+   * See UploaderOptions.zstdDictionaryPublisher.
+   */
+  private final ZstdDictionaryPublisher zstdDictionaryPublisher;
+
+  /**
+   * Dictionary with which we compress Zstandard uploads, or null if none has been published.
+   */
+  private volatile ZstdDictionary zstdDictionary = null;
+
+  /**
+   * Time when we last attempted to train a Zstandard dictionary, or null if we have not yet
+   * done so. Synchronized on "this".
+   */
+  private Long lastDictionaryTrainingMs = null;
+
+  /**
+   * Thread on which we train and publish Zstandard dictionaries (see trainZstdDictionary). Allocated on first
+   * use. Synchronized on "this".
+   */
+  private ExecutorService dictionaryTrainingExecutor = null;
+
   /**
    * Service we upload to.
    */
@@ -274,7 +838,96 @@ public class EventUploader {
   private final boolean enableMetaMonitoring;
 
   /**
-   * Construct an EventUploader to buffer events and upload them to the given LogService instance.
+   * True if events are added to pendingEventBuffer using AppendMode.LockFree.
+   */
+  private final boolean lockFreeAppend;
+
+  /**
+   * OverflowPolicy for each Severity, indexed by ordinal. See UploaderOptions.overflowPolicy.
+   */
+  private final OverflowPolicy[] overflowPolicies = new OverflowPolicy[Severity.values().length];
+
+  /**
+   * See UploaderOptions.overflowTimeoutMs.
+   */
+  private final long overflowTimeoutMs;
+
+  /**
+   * Per-OverflowPolicy counters (indexed by ordinal) for getOverflowStats.
+   */
+  private final AtomicLongArray overflowEventsShed = new AtomicLongArray(OverflowPolicy.values().length);
+  private final AtomicLongArray overflowEventsBlocked = new AtomicLongArray(OverflowPolicy.values().length);
+  private final AtomicLongArray overflowBlockedNs = new AtomicLongArray(OverflowPolicy.values().length);
+
+  /**
+   * Incremented each time space is released from pendingEventBuffer. Used to wake producers blocked by
+   * OverflowPolicy.Block or CallerRuns, and to emit at most one overflow message per thread each time the
+   * buffer fills up under other policies than Drop. Synchronized on uploadSynchronizer (for writes).
+   */
+  private volatile long bufferReleases = 0;
+
+  /**
+   * Value of bufferReleases when we last incremented pendingEventsLimitCounter due to an event discarded
+   * under an OverflowPolicy other than Drop.
+   */
+  private volatile long overflowNotedAtRelease = -1;
+
+  /**
+   * Number of producers waiting on uploadSynchronizer for buffer space. Synchronized on uploadSynchronizer.
+   */
+  private int blockedProducers = 0;
+
+  /**
+   * Ordinal of UploaderOptions.evictionSeverityThreshold, or Integer.MAX_VALUE if eviction is disabled.
+   */
+  private final int evictionThreshold;
+
+  /**
+   * True while the oldest chunk of pendingEventBuffer is being read outside of uploadSynchronizer (by
+   * spillExcessChunks or trainZstdDictionary), so that evictLowSeverityEvents must leave it alone.
+   * Synchronized on uploadSynchronizer.
+   */
+  private boolean headChunkPinned = false;
+
+  /**
+   * Total number of events removed from pendingEventBuffer by evictLowSeverityEvents.
+   */
+  private final AtomicLong eventsEvicted = new AtomicLong();
+
+  /**
+   * Events and bytes evicted by evictLowSeverityEvents which have not yet been reported by logEvictions.
+   * Guarded by uploadSynchronizer.
+   */
+  private long unloggedEvictedEvents, unloggedEvictedBytes;
+
+  /**
+   * Scratch space into which evictLowSeverityEvents copies the oldest chunk; reused across passes, and grown as
+   * needed. Guarded by chunkSizes.
+   */
+  private byte[] evictionScratch;
+
+  /**
+   * Total number of events discarded because the server rejected them (see bisectFailedBatch).
+   */
+  private final AtomicLong eventsRejected = new AtomicLong();
+
+  /**
+   * Sampler for UploaderOptions.samplingBudget, or null if no budget was given.
+   */
+  private final EventSampler sampler;
+
+  /**
+   * See UploaderOptions.threadIdentity.
+   */
+  private final ThreadIdentity threadIdentity;
+
+  /**
+   * Controller which tunes our batching, or null if UploaderOptions.targetLatencyMs was not set.
+   */
+  private final BatchSizeController batchController;
+
+  /**
+   * Construct an EventUploader to buffer events and upload them to the given LogService instance.
    * <p>
    * THIS METHOD IS INTENDED FOR INTERNAL USE ONLY.
    */
@@ -291,15 +944,45 @@ public class EventUploader {
   public EventUploader(LogService logService, int memoryLimit, String sessionId, boolean autoUpload,
       EventAttributes serverAttributes, boolean enableMetaMonitoring, boolean reportThreadNames,
       Timer sharedTimer_, Executor uploadExecutor_) {
+    this(logService, memoryLimit, sessionId, autoUpload, serverAttributes, enableMetaMonitoring, reportThreadNames,
+        sharedTimer_, uploadExecutor_, new UploaderOptions());
+  }
+
+  /**
+   * Construct an EventUploader to buffer events and upload them to the given LogService instance.
+   * <p>
+   * THIS METHOD IS INTENDED FOR INTERNAL USE ONLY.
+   */
+  public EventUploader(LogService logService, int memoryLimit, String sessionId, boolean autoUpload,
+      EventAttributes serverAttributes, boolean enableMetaMonitoring, boolean reportThreadNames,
+      Timer sharedTimer_, Executor uploadExecutor_, UploaderOptions options) {
     this.logService           = logService;
     this.autoUpload           = autoUpload;
     this.reportThreadNames    = reportThreadNames;
     this.memoryLimit          = memoryLimit;
-    this.pendingEventBuffer   = new CircularByteArray(memoryLimit);
+    this.pendingEventBuffer   = new CircularByteArray(memoryLimit, options.offHeapBuffer);
     this.sessionId            = sessionId;
     this.serverAttributes     = serverAttributes;
     this.enableMetaMonitoring = enableMetaMonitoring;
     this.uploadExecutor       = uploadExecutor_;
+    this.lockFreeAppend       = options.appendMode == AppendMode.LockFree;
+    this.maxInFlightUploads   = Math.max(options.maxInFlightUploads, 1);
+    this.zstdDictionaryPublisher = options.zstdDictionaryPublisher;
+    this.precompressedMemoryLimit = options.precompressedMemoryLimit;
+    this.overflowTimeoutMs    = options.overflowTimeoutMs;
+    this.evictionThreshold    = (options.evictionSeverityThreshold != null)
+        ? options.evictionSeverityThreshold.ordinal() : Integer.MAX_VALUE;
+    this.sampler              = (options.samplingBudget != null)
+        ? new EventSampler(options.samplingBudget, options.samplingKey) : null;
+    this.threadIdentity       = (options.threadIdentity != null) ? options.threadIdentity : ThreadIdentity.PER_THREAD;
+    this.batchController      = (options.targetLatencyMs > 0)
+        ? new BatchSizeController(options.targetLatencyMs, _eventUploadByteThreshold, _maxEventUploadBytes) : null;
+    for (Severity severity : Severity.values()) {
+      OverflowPolicy policy = options.severityOverflowPolicies.get(severity);
+      overflowPolicies[severity.ordinal()] = (policy != null) ? policy : options.overflowPolicy;
+    }
+    this.spillStore           = (options.spillDirectory != null)
+        ? new EventSpillStore(options.spillDirectory, options.spillQuotaBytes) : null;
 
     try {
       compression = CompressionType.valueOf(defaultCompressionType.get());
@@ -307,7 +990,7 @@ public class EventUploader {
       compression = CompressionType.Gzip;
     }
 
-    launchUploadTimer(sharedTimer_);
+    launchUploadTimer(sharedTimer_, options.scheduler);
 
     // To aid customers being able to quickly see the results of events being uploaded
     // by this host, include a query URL to match them on the Scalyr log servers.
@@ -386,8 +1069,27 @@ public class EventUploader {
       uploadTask.cancel();
     }
 
-    if (privateTimer != null) {
-      privateTimer.cancel();
+    cancelScheduledTicks();
+
+    // Nothing more will be uploaded, so report pending flushes as they stand.
+    List<FlushWaiter> waiters;
+    synchronized (uploadSynchronizer) {
+      waiters = new ArrayList<FlushWaiter>(flushWaiters);
+    }
+    for (FlushWaiter waiter : waiters)
+      expireFlushWaiter(waiter);
+
+    if (privateUploadPool != null) {
+      privateUploadPool.shutdown();
+    }
+
+    if (precompressionExecutor != null) {
+      precompressionExecutor.shutdown();
+    }
+
+    if (dictionaryTrainingExecutor != null) {
+      dictionaryTrainingExecutor.shutdown();
+      dictionaryTrainingExecutor = null;
     }
   }
 
@@ -398,12 +1100,13 @@ public class EventUploader {
    * when we are called, some events may not be uploaded. This method should only be used where best-effort
    * is ok.)
    */
-  synchronized void flush() {
+  void flush() {
     flush(0L);
   }
 
   /**
-   * Force all events recorded to date to be uploaded to the server.
+   * Force all events recorded to date to be uploaded to the server. Uploads are initiated on the calling
+   * thread, one after another, without waiting for the usual upload spacing (except after a failure).
    * <p>
    * (NOTE: this is not foolproof. If the server request fails, or an upload was already in progress
    * when we are called, some events may not be uploaded. This method should only be used where best-effort
@@ -416,43 +1119,236 @@ public class EventUploader {
    *     indefinitely.
    * @return true if all events that were enqueued when flush was invoked are actually flushed
    */
-  public synchronized boolean flush(long waitTimeMs) {
-    long bytesWrittenPriorToFlush;
-    synchronized (chunkSizes) {
-      bytesWrittenPriorToFlush = totalBytesWritten;
-    }
-
+  public boolean flush(long waitTimeMs) {
     long deadline = -1;
     if (waitTimeMs > 0)
       deadline = System.currentTimeMillis() + waitTimeMs;
 
-    // Upload a chunk at a time until all data prior to our invocation is gone. Sleep briefly
-    // between invocations, in part to avoid frantic spinning if an upload is already in progress
-    // (in which case uploadTimerTick returns immediately).
-    long sleepMs = 100;
-    while (true) {
-      synchronized (chunkSizes) {
-        long bytesWrittenSinceFlush = totalBytesWritten - bytesWrittenPriorToFlush;
-        if (pendingEventBuffer.numBufferedBytes() <= bytesWrittenSinceFlush) {
-          return true;
+    FlushWaiter waiter = addFlushWaiter();
+    try {
+      while (!waiter.future.isDone()) {
+        long remainingMs = deadline - System.currentTimeMillis();
+        if ((deadline > 0) && (remainingMs <= 0))
+          break;
+
+        boolean initiated = uploadTimerTick(true);
+
+        // Wait until an upload completes (see checkFlushWaiters), or it's time to try again.
+        synchronized (uploadSynchronizer) {
+          if (waiter.future.isDone())
+            break;
+
+          long waitMs = flushRetryDelayMs(initiated);
+          if (deadline > 0)
+            waitMs = Math.min(waitMs, deadline - System.currentTimeMillis());
+          if (waitMs > 0)
+            uploadSynchronizer.wait(waitMs);
         }
       }
+    } catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      expireFlushWaiter(waiter);
+    }
 
-      long remainingMs = deadline - System.currentTimeMillis();
-      if ((deadline > 0) && (remainingMs <= 0))
-        return false;
+    return waiter.future.join().complete;
+  }
+
+  /**
+   * Equivalent to flushAsync(0): flush with no deadline.
+   */
+  public CompletableFuture<FlushResult> flushAsync() {
+    return flushAsync(0L);
+  }
 
-      uploadTimerTick(true);
+  /**
+   * Force all events recorded to date to be uploaded to the server, without blocking. Until the flush
+   * completes, uploads are initiated as quickly as the server allows, on our scheduler (see
+   * UploaderOptions.scheduler).
+   * <p>
+   * The returned future completes as soon as every event recorded before this call has been acknowledged
+   * by the server (or dropped, e.g. after persistent upload failures), or when timeoutMs elapses, whichever
+   * comes first. Its FlushResult reports how many bytes were flushed, dropped, or still pending.
+   *
+   * @param timeoutMs deadline for the flush, in milliseconds. A non-positive value means no deadline.
+   */
+  public CompletableFuture<FlushResult> flushAsync(long timeoutMs) {
+    final FlushWaiter waiter = addFlushWaiter();
+    if (waiter.future.isDone())
+      return waiter.future;
+
+    ScheduledExecutorService executor = tickExecutor();
+    if (executor == null) {
+      // We have been terminated, so nothing more will be uploaded.
+      expireFlushWaiter(waiter);
+      return waiter.future;
+    }
 
+    if (timeoutMs > 0) {
       try {
-        Thread.sleep(deadline <= 0 ? sleepMs : Math.min(sleepMs, remainingMs));
-        sleepMs = Math.min(sleepMs * 2, 10000);
-      } catch (InterruptedException ex) {
-        throw new RuntimeException(ex);
+        executor.schedule(new Runnable() {
+          @Override public void run() {
+            expireFlushWaiter(waiter);
+          }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        expireFlushWaiter(waiter);
+        return waiter.future;
+      }
+    }
+
+    scheduleTick(0);
+    return waiter.future;
+  }
+
+  /**
+   * A pending flush.
+   */
+  private static class FlushWaiter {
+    /**
+     * Value of totalBytesWritten when the flush was requested.
+     */
+    final long bytesWrittenPriorToFlush;
+
+    /**
+     * Number of bytes awaiting upload (see pendingBytes) when the flush was requested.
+     */
+    final long bytesToFlush;
+
+    /**
+     * Value of totalBytesDropped when the flush was requested.
+     */
+    final long bytesDroppedPriorToFlush;
+
+    final CompletableFuture<FlushResult> future = new CompletableFuture<FlushResult>();
+
+    FlushWaiter(long bytesWrittenPriorToFlush, long bytesToFlush, long bytesDroppedPriorToFlush) {
+      this.bytesWrittenPriorToFlush = bytesWrittenPriorToFlush;
+      this.bytesToFlush = bytesToFlush;
+      this.bytesDroppedPriorToFlush = bytesDroppedPriorToFlush;
+    }
+  }
+
+  /**
+   * Register a flush of all events recorded to date. If there is nothing to flush, the returned waiter's
+   * future is already complete.
+   */
+  private FlushWaiter addFlushWaiter() {
+    FlushWaiter waiter;
+    synchronized (uploadSynchronizer) {
+      long bytesWritten;
+      synchronized (chunkSizes) {
+        bytesWritten = totalBytesWritten;
+      }
+      waiter = new FlushWaiter(bytesWritten, pendingBytes(), totalBytesDropped);
+      if (waiter.bytesToFlush > 0) {
+        flushWaiters.add(waiter);
+        flushPending = true;
+        return waiter;
+      }
+    }
+
+    waiter.future.complete(new FlushResult(true, 0, 0, 0));
+    return waiter;
+  }
+
+  /**
+   * Return the number of bytes of events which have not yet been acknowledged or dropped: those in
+   * pendingEventBuffer, precompressedBatches, and spillStore.
+   *
+   * Caller must hold the lock on uploadSynchronizer.
+   */
+  private long pendingBytes() {
+    long spilledBytes = (spillStore != null) ? spillStore.payloadBytes() : 0;
+    synchronized (chunkSizes) {
+      return pendingEventBuffer.numBufferedBytes() + precompressedPayloadBytes + spilledBytes;
+    }
+  }
+
+  /**
+   * Return the result of the given flush, as of now.
+   *
+   * Caller must hold the lock on uploadSynchronizer.
+   */
+  private FlushResult flushResult(FlushWaiter waiter) {
+    // Events are uploaded oldest first, and events recorded since the flush was requested are newer than
+    // those it covers. So any excess of pendingBytes over the bytes written since then is still pending.
+    long bytesWrittenSinceFlush;
+    synchronized (chunkSizes) {
+      bytesWrittenSinceFlush = totalBytesWritten - waiter.bytesWrittenPriorToFlush;
+    }
+    long pending = Math.max(0, Math.min(pendingBytes() - bytesWrittenSinceFlush, waiter.bytesToFlush));
+    long dropped = Math.min(totalBytesDropped - waiter.bytesDroppedPriorToFlush, waiter.bytesToFlush - pending);
+    return new FlushResult(pending == 0, waiter.bytesToFlush - pending - dropped, dropped, pending);
+  }
+
+  /**
+   * Complete each pending flush whose events have all been acknowledged or dropped, and wake any thread
+   * blocked in flush(long). Called whenever an upload completes.
+   */
+  private void checkFlushWaiters() {
+    List<FlushWaiter> completed = null;
+    List<FlushResult> results = null;
+    synchronized (uploadSynchronizer) {
+      uploadSynchronizer.notifyAll();
+      if (flushWaiters.isEmpty())
+        return;
+
+      for (Iterator<FlushWaiter> iterator = flushWaiters.iterator(); iterator.hasNext(); ) {
+        FlushWaiter waiter = iterator.next();
+        FlushResult result = flushResult(waiter);
+        if (result.complete) {
+          if (completed == null) {
+            completed = new ArrayList<FlushWaiter>();
+            results = new ArrayList<FlushResult>();
+          }
+          completed.add(waiter);
+          results.add(result);
+          iterator.remove();
+        }
       }
+      flushPending = !flushWaiters.isEmpty();
+    }
+
+    // Complete the futures outside of uploadSynchronizer, as they may run dependent actions.
+    if (completed != null) {
+      for (int i = 0; i < completed.size(); i++)
+        completed.get(i).future.complete(results.get(i));
     }
   }
 
+  /**
+   * Complete the given flush with its current result, if it has not already completed.
+   */
+  private void expireFlushWaiter(FlushWaiter waiter) {
+    FlushResult result;
+    synchronized (uploadSynchronizer) {
+      if (!flushWaiters.remove(waiter))
+        return;
+      flushPending = !flushWaiters.isEmpty();
+      result = flushResult(waiter);
+    }
+    waiter.future.complete(result);
+  }
+
+  /**
+   * Return how long a pending flush should wait before its next upload tick, given whether the previous
+   * tick initiated an upload. Completing uploads cut the wait short.
+   *
+   * Caller must hold the lock on uploadSynchronizer.
+   */
+  private long flushRetryDelayMs(boolean initiated) {
+    // After a failure, respect the upload spacing, which backs off as failures continue.
+    if (uploadFailuresStartMs != null)
+      return (long) minUploadIntervalMs;
+
+    // If the pipeline is full, the next upload to complete will wake us.
+    if (uploadsInFlight >= maxInFlightUploads)
+      return TuningConstants.EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS;
+
+    return initiated ? 0 : TuningConstants.FLUSH_RETRY_INTERVAL_MS;
+  }
+
   /**
    * Close this EventUploader, shutting down our background timer that uploads events.
    * <p>
@@ -464,9 +1360,21 @@ public class EventUploader {
       uploadTask = null;
     }
 
-    if (privateTimer != null) {
-      privateTimer.cancel();
-      privateTimer = null;
+    cancelScheduledTicks();
+
+    if (privateUploadPool != null) {
+      privateUploadPool.shutdown();
+      privateUploadPool = null;
+    }
+
+    if (precompressionExecutor != null) {
+      precompressionExecutor.shutdown();
+      precompressionExecutor = null;
+    }
+
+    if (dictionaryTrainingExecutor != null) {
+      dictionaryTrainingExecutor.shutdown();
+      dictionaryTrainingExecutor = null;
     }
   }
 
@@ -485,6 +1393,58 @@ public class EventUploader {
             "tag", "pendingEventBuffer",
             "size", pendingEventBuffer.numBufferedBytes()));
       Logging.log(Severity.fine, Logging.tagBufferedEventBytes, Long.toString(pendingEventBuffer.numBufferedBytes()));
+
+      if (enableMetaMonitoring) {
+        for (OverflowStats stats : getOverflowStats().values()) {
+          if (stats.eventsShed > 0 || stats.eventsBlocked > 0)
+            Logging.metaMonitorInfo(new EventAttributes(
+                "tag", "eventBufferOverflowPolicy",
+                "policy", stats.policy.name(),
+                "eventsShed", stats.eventsShed,
+                "eventsBlocked", stats.eventsBlocked,
+                "blockedMs", stats.blockedNs / 1000000));
+        }
+
+        if (sampler != null && sampler.getEventsSampledOut() > 0)
+          Logging.metaMonitorInfo(new EventAttributes(
+              "tag", "eventSampler",
+              "eventsSampledOut", sampler.getEventsSampledOut()));
+
+        if (batchController != null) {
+          BatchingStats stats = batchController.getStats();
+          Logging.metaMonitorInfo(new EventAttributes(
+              "tag", "adaptiveBatching",
+              "batchBytes", stats.batchBytes,
+              "batchDelayMs", stats.batchDelayMs,
+              "minUploadSpacingMs", stats.minUploadSpacingMs,
+              "uploadLatencyMs", stats.uploadLatencyMs,
+              "uploadBytesPerSecond", stats.uploadBytesPerSecond,
+              "adjustments", stats.adjustments));
+        }
+
+        HttpClientPool.Stats poolStats = logService.getConnectionPoolStats();
+        if (poolStats.requests > 0)
+          Logging.metaMonitorInfo(new EventAttributes(
+              "tag", "httpConnectionPool",
+              "leased", poolStats.leased,
+              "available", poolStats.available,
+              "pending", poolStats.pending,
+              "connectionsOpened", poolStats.connectionsOpened,
+              "requests", poolStats.requests));
+
+        for (EndpointHealth.Stats endpoint : logService.getEndpointStats()) {
+          if (endpoint.requests > 0)
+            Logging.metaMonitorInfo(new EventAttributes(
+                "tag", "endpointHealth",
+                "server", endpoint.server,
+                "state", endpoint.state.name(),
+                "latencyMs", endpoint.latencyMs,
+                "errorRate", endpoint.errorRate,
+                "requests", endpoint.requests,
+                "failures", endpoint.failures,
+                "breakerTrips", endpoint.breakerTrips));
+        }
+      }
     }
   }
 
@@ -492,98 +1452,157 @@ public class EventUploader {
    * This method is called periodically by a timer. If it's been long enough since we last
    * sent a batch of events to the server, we snapshot the events currently buffered (or
    * a portion thereof, if there are too many to upload all at once) and initiate an upload.
+   * If maxInFlightUploads is greater than 1, we may initiate uploads of several successive
+   * chunks, which proceed in the background.
+   *
+   * @return true if we initiated at least one upload.
    */
-  synchronized void uploadTimerTick(boolean bypassWaitTimers) {
+  synchronized boolean uploadTimerTick(boolean bypassWaitTimers) {
     logBuffer();
+    scavengeIdleThreads();
+    schedulePrecompression();
 
-    final int bufferedBytes;
-    RawJson eventsToUpload;
-
+    // Spilled segments are only written or uploaded while no upload is in flight, so that they never race with
+    // in-flight uploads of the same (or newer) events.
+    boolean idle;
     synchronized (uploadSynchronizer) {
-      bufferedBytes = timeToUpload(bypassWaitTimers);
-      if (bufferedBytes < 0)
-        return;
-
-      eventsToUpload = new RawJson(){
-        @Override public void writeJSONBytes(OutputStream out) throws IOException {
-          out.write('[');
-
-          // We subtract 1 here to eliminate the trailing comma after the last buffered event.
-          pendingEventBuffer.writeOldestBytes(out, bufferedBytes - 1);
+      idle = (uploadsInFlight == 0);
+    }
 
-          out.write(']');
-        }};
+    EventSpillStore.Segment segment = null;
+    if (idle) {
+      spillExcessChunks();
+      trainZstdDictionary();
 
-      uploadInProgress = true;
-      pendingEventsReachedLimit = false;
+      // Open the oldest spilled segment (if any) before taking uploadSynchronizer, so that producers aren't blocked
+      // on disk I/O.
+      segment = (spillStore != null) ? spillStore.oldest() : null;
     }
 
-    // Build a list of thread states to include in this upload request. We include only threads which have
-    // had an event in the last hour. Ideally, we'd include exactly the threads for which there is at least
-    // one event in this upload batch, but that's a bit tricky to determine.
-    List<PerThreadState> threadsSnapshot = new ArrayList<PerThreadState>();
-    long timestampThreadhold = ScalyrUtil.nanoTime() - TuningConstants.MAX_THREAD_AGE_FOR_UPLOAD_NS;
-    synchronized (threads) {
-      for (PerThreadState thread : threads.values()) {
-        if (thread.latestEventTimestamp >= timestampThreadhold) {
-          threadsSnapshot.add(thread);
+    List<UploadBatch> batches = null;
+    long round;
+    synchronized (uploadSynchronizer) {
+      if (!uploadPermitted(bypassWaitTimers))
+        return false;
+
+      if (segment != null) {
+        synchronized (random) {
+          uploadSpacingFuzzFactor = random.nextInt(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
         }
+        uploadsInFlight++;
+      } else {
+        batches = selectBatches(bypassWaitTimers);
+        if (batches.isEmpty())
+          return false;
+
+        for (UploadBatch batch : batches)
+          batch.inFlight = true;
+        uploadsInFlight += batches.size();
       }
+
+      round = ++uploadRound;
+      pendingEventsReachedLimit = false;
     }
 
-    // Sort the threads alphabetically by name -- this ensures a stable order when
-    // uploading, which is helpful for tests.
-    Collections.sort(threadsSnapshot, new Comparator<PerThreadState>(){
-      @Override public int compare(PerThreadState a, PerThreadState b) {
-        if (a.name == null || b.name == null) {
-          if (a.name == null && b.name == null)
-            return 0;
-          return (a.name == null) ? -1 : 1;
-        }
-        return a.name.compareTo(b.name);
-      }});
+    lastUploadStartMs = ScalyrUtil.currentTimeMillis();
 
-    JSONObject sessionInfo = new JSONObject();
+    // Spilled segments are uploaded under the session in which they were recorded, which may be a previous run
+    // of this process.
+    if (segment != null) {
+      upload(segment.sessionId, segment.sessionInfo, segment.threadInfos, segment, null, round);
+      return true;
+    }
 
-    // Note: any new attributes defined here, should be masked in MetaLogger.
-    sessionInfo.put("session", sessionId);
-    sessionInfo.put("launchTime", launchTimeNs);
-    if (ourHostname != null)
-      sessionInfo.put("serverHost", ourHostname);
-    // We no longer explicitly report our IP address as a session attribute, as
-    // the Scalyr Logs server adds this automatically (under the name "serverIP").
-    //
-    // if (ourIpAddress != null)
-    //   sessionInfo.put("serverIP", ourIpAddress);
+    final String uploadSessionId = sessionId;
+    final JSONStreamAware sessionInfo = sessionInfo();
+
+    if (maxInFlightUploads == 1) {
+      UploadBatch batch = batches.get(0);
+      upload(uploadSessionId, sessionInfo, buildThreadInfos(batch.chunk), null, batch, round);
+      return true;
+    }
 
-    if (serverAttributes != null)
-      for (Map.Entry<String, Object> entry : serverAttributes.getEntries())
-        sessionInfo.put(entry.getKey(), entry.getValue());
+    final long finalRound = round;
+    Executor executor = pipelineExecutor();
+    for (final UploadBatch batch : batches) {
+      final JSONStreamAware threadInfos = buildThreadInfos(batch.chunk);
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            upload(uploadSessionId, sessionInfo, threadInfos, null, batch, finalRound);
+          } catch (Throwable ex) {
+            Logging.log(EventUploader.this, Severity.warning, Logging.tagInternalError, "Exception in Logs upload", ex);
+          }
+        }
+      });
+    }
+    return true;
+  }
 
-    JSONArray threadInfos = new JSONArray();
+  /**
+   * Return the executor on which pipelined uploads are performed.
+   *
+   * Caller must hold the lock on "this".
+   */
+  private Executor pipelineExecutor() {
+    if (uploadExecutor != null)
+      return uploadExecutor;
+
+    if (privateUploadPool == null) {
+      privateUploadPool = Executors.newFixedThreadPool(maxInFlightUploads, new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EventUploader-upload");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return privateUploadPool;
+  }
 
-    // TODO: only include threads for which we are uploading at least one event.
-    for (PerThreadState thread : threadsSnapshot) {
-      JSONObject threadInfo = new JSONObject();
-      threadInfo.put("id", thread.threadId);
-      threadInfo.put("name", thread.name);
-      threadInfos.add(threadInfo);
+  /**
+   * Upload one batch of events -- either the given spilled segment or, if segment is null, the given chunk
+   * of pendingEventBuffer -- and process the server's response.
+   *
+   * @param round The value of uploadRound when the upload was initiated.
+   */
+  private void upload(String uploadSessionId, JSONStreamAware sessionInfo, JSONStreamAware threadInfos,
+      EventSpillStore.Segment segment, UploadBatch batch, long round) {
+    final int bufferedBytes = (segment != null) ? segment.payloadLength : batch.size;
+    final int eventCount = (batch != null) ? batch.eventCount() : -1;
+    final long oldestEventNs = (batch != null) ? batch.oldestEventTimestamp() : 0;
+    RawJson eventsToUpload = (segment != null) ? segment.events() : batch.events();
+
+    // A precompressed chunk is sent with the compression it was prepared with, so that it can be copied
+    // into the request as-is.
+    String contentEncoding;
+    ZstdDictionary dictionary;
+    if (batch != null && batch.precompressed != null) {
+      contentEncoding = batch.precompressed.contentEncoding;
+      dictionary = batch.precompressed.dictionary;
+    } else {
+      CompressionType compression = this.compression;
+      contentEncoding = compression.getContentType();
+      dictionary = (compression == CompressionType.Zstandard) ? zstdDictionary : null;
     }
 
     boolean success = false;
+    boolean backoff = false;
     long start = System.nanoTime();
     long duration = -1L;
 
     try {
-      lastUploadStartMs = ScalyrUtil.currentTimeMillis();
       JSONObject rawResponse;
       try {
-        rawResponse = logService.uploadEvents(sessionId, sessionInfo, eventsToUpload, threadInfos, compression.getContentType());
+        rawResponse = logService.uploadEvents(uploadSessionId, sessionInfo, eventsToUpload, threadInfos,
+            contentEncoding, dictionary);
       } catch (RuntimeException ex) {
-        logUploadFailure(bufferedBytes, ex.toString());
+        boolean discarded = logUploadFailure(segment, batch, bufferedBytes, ex.toString());
+        if (!discarded && batch != null && (isBatchRejection(ex) || isUploadTimeout(ex)))
+          bisectFailedBatch(batch, isBatchRejection(ex), ex.toString());
         throw ex;
       } catch (Error ex) {
-        logUploadFailure(bufferedBytes, ex.toString());
+        logUploadFailure(segment, batch, bufferedBytes, ex.toString());
         throw ex;
       }
 
@@ -597,13 +1616,10 @@ public class EventUploader {
         success = status.startsWith("success");
         if (success) {
           logUploadSuccess();
-
-          minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS;
-          minUploadIntervalMs = Math.max(minUploadIntervalMs, TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
-
-          discardOldestPendingEvents(bufferedBytes);
+          adjustUploadInterval(round, false);
+          discardUploadedBatch(segment, batch);
         } else {
-          boolean discarded = logUploadFailure(bufferedBytes, "Server response had bad status [" + rawStatus + "]; complete text: " + parsedResponse.toString());
+          boolean discarded = logUploadFailure(segment, batch, bufferedBytes, "Server response had bad status [" + rawStatus + "]; complete text: " + parsedResponse.toString());
 
           Logging.log(EventUploader.this, Severity.warning, Logging.tagServerError,
               "Bad response from Scalyr Logs (status [" + status + "], message [" +
@@ -612,17 +1628,21 @@ public class EventUploader {
           // Note that we back off for all errors, not just error/server/backoff. Other errors are liable to
           // be systemic, and there's little reason to retry an upload frequently in the face of systemic errors.
           //
-          // There is one exception, though. If server replied with `accountDisabled` error, we will log the error,
-          // discard those events and not backing off.
-          if (!status.startsWith("error/client/noPermission/accountDisabled")) {
-            minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_BACKOFF;
-            minUploadIntervalMs = Math.min(minUploadIntervalMs, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
+          // There are two exceptions, though. If server replied with `accountDisabled` error, we will log the error,
+          // discard those events and not backing off. And if the server rejected the batch itself, we split it (or
+          // drop its single event) and retry right away, as the problem lies with particular events.
+          if (!discarded && batch != null && isBatchRejection(status)
+              && bisectFailedBatch(batch, true, "status [" + status + "]")) {
+            // Nothing more to do.
+          } else if (!status.startsWith("error/client/noPermission/accountDisabled")) {
+            backoff = true;
+            adjustUploadInterval(round, true);
           } else if (!discarded) {
-            discardOldestPendingEvents(bufferedBytes);
+            dropUploadedBatch(segment, batch, bufferedBytes);
           }
         }
       } catch (JsonParseException ex) {
-        logUploadFailure(bufferedBytes, ex.toString());
+        logUploadFailure(segment, batch, bufferedBytes, ex.toString());
 
         // This shouldn't occur, as the underlying service framework verifies that the server's
         // response is valid JSON.
@@ -630,48 +1650,819 @@ public class EventUploader {
       }
     } finally {
       synchronized (uploadSynchronizer) {
-        uploadInProgress = false;
+        uploadsInFlight--;
+
+        // If the batch wasn't acknowledged, this allows it to be retried.
+        if (batch != null) {
+          batch.inFlight = false;
+          if (!batch.acknowledged)
+            batch.failed = true;
+        }
       }
+
+      checkFlushWaiters();
+
+      // A pipelined upload completes outside of any tick, so there may be another batch ready to go. Likewise
+      // if a flush is still pending.
+      if (maxInFlightUploads > 1 || flushPending)
+        requestUpload();
       if (duration == -1L)
         duration = System.nanoTime() - start;
 
-      if (enableMetaMonitoring)
-        Logging.metaMonitorInfo(new EventAttributes(
+      if (batchController != null && batch != null)
+        batchController.uploadCompleted(bufferedBytes, duration, success, backoff,
+            (ScalyrUtil.nanoTime() - oldestEventNs) / 1000000, hasUploadBacklog());
+
+      if (enableMetaMonitoring) {
+        EventAttributes metrics = new EventAttributes(
             "tag", "clientUploadEvents",
             "size", bufferedBytes,
             "duration", duration,
-            "success", success));
+            "success", success);
+        if (eventCount >= 0)
+          metrics.put("events", eventCount);
+        Logging.metaMonitorInfo(metrics);
+      }
       Logging.log(Severity.fine, Logging.tagEventUploadOutcome,
-          "{\"size\": " + bufferedBytes + ", \"duration\": " + duration + ", \"success\", " + success + "}");
+          "{\"size\": " + bufferedBytes + ", \"events\": " + eventCount + ", \"duration\": " + duration
+          + ", \"success\", " + success + "}");
     }
   }
 
-  private void discardOldestPendingEvents(int bufferedBytes) {
+  /**
+   * Adjust minUploadIntervalMs following the completion of an upload initiated in the given round. After a
+   * failure, the new interval is drawn at random (see RetryPolicy.nextDelayMs), so that many clients which
+   * lose connectivity at once don't retry in lockstep. When several
+   * uploads are in flight, we adjust at most once per round in each direction, and a round which saw a failure
+   * never speeds us up; otherwise a pipeline of N requests would change the interval N times as fast.
+   */
+  private void adjustUploadInterval(long round, boolean backoff) {
     synchronized (uploadSynchronizer) {
-      synchronized (chunkSizes) {
-        ScalyrUtil.Assert(chunkSizes.getFirst() == bufferedBytes,
-            "event buffer chunk was resized while being uploaded");
-        chunkSizes.removeFirst();
+      if (backoff) {
+        if (round > lastBackoffRound) {
+          lastBackoffRound = round;
+          minUploadIntervalMs = RetryPolicy.nextDelayMs((long) minUploadIntervalMs,
+              TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
+        }
+      } else if (round > lastSpeedupRound && round > lastBackoffRound) {
+        lastSpeedupRound = round;
+        long floorMs = (batchController != null) ? batchController.getMinUploadSpacingMs()
+            : TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS;
+        minUploadIntervalMs = Math.max(minUploadIntervalMs * TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS, floorMs);
       }
-
-      pendingEventBuffer.discardOldestBytes(bufferedBytes);
-      pendingEventsReachedLimit = false;
     }
   }
 
-  private boolean loggedUploadSuccess = false;
-
   /**
-   * If the most recent upload attempt failed, this holds the millisecond timestamp when the current string of
-   * consecutive failures began. Otherwise null.
+   * Return the session metadata included in upload requests, serialized. We reuse the previous value unless
+   * serverAttributes has been modified since it was built.
    */
-  private Long uploadFailuresStartMs = null;
+  private JSONStreamAware sessionInfo() {
+    CachedSessionInfo cached = cachedSessionInfo;
+    Map<String, Object> attributes = null;
+    if (serverAttributes != null) {
+      Map<String, Object> liveAttributes = serverAttributes.liveValues();
+      synchronized (liveAttributes) {
+        if (cached != null && liveAttributes.equals(cached.serverAttributes))
+          return cached.json;
+        attributes = new HashMap<String, Object>(liveAttributes);
+      }
+    } else if (cached != null) {
+      return cached.json;
+    }
+
+    cached = new CachedSessionInfo(attributes, new SerializedJson(buildSessionInfo(attributes)));
+    cachedSessionInfo = cached;
+    return cached.json;
+  }
 
   /**
-   * This method is called whenever we successfully upload a batch of events to the server.
+   * Build the session metadata included in upload requests.
+   *
+   * @param attributes A copy of serverAttributes, or null.
    */
-  void logUploadSuccess() {
-    uploadFailuresStartMs = null;
+  private JSONObject buildSessionInfo(Map<String, Object> attributes) {
+    JSONObject sessionInfo = new JSONObject();
+
+    // Note: any new attributes defined here, should be masked in MetaLogger.
+    sessionInfo.put("session", sessionId);
+    sessionInfo.put("launchTime", launchTimeNs);
+    if (ourHostname != null)
+      sessionInfo.put("serverHost", ourHostname);
+    // We no longer explicitly report our IP address as a session attribute, as
+    // the Scalyr Logs server adds this automatically (under the name "serverIP").
+    //
+    // if (ourIpAddress != null)
+    //   sessionInfo.put("serverIP", ourIpAddress);
+
+    if (attributes != null)
+      sessionInfo.putAll(attributes);
+
+    return sessionInfo;
+  }
+
+  /**
+   * Return the list of thread metadata included in an upload request for the given chunk, serialized: exactly
+   * the threads which recorded at least one of its events. Return null if there are none.
+   *
+   * If the chunk has the same threads as the last one we were called for, we reuse the previous value.
+   * Otherwise, we assemble a new list from each thread's pre-serialized entry.
+   */
+  private JSONStreamAware buildThreadInfos(ChunkSizeList.Chunk chunk) {
+    List<String> threadIds;
+    synchronized (chunkSizes) {
+      threadIds = new ArrayList<String>(chunk.getThreadIds());
+    }
+
+    List<PerThreadState> threadsSnapshot = new ArrayList<PerThreadState>();
+    for (String threadId : threadIds) {
+      PerThreadState thread = threads.get(threadId);
+      if (thread != null)
+        threadsSnapshot.add(thread);
+    }
+
+    if (threadsSnapshot.isEmpty())
+      return null;
+
+    CachedThreadInfos cached = cachedThreadInfos;
+    if (cached != null && cached.threads.size() == threadsSnapshot.size()
+        && cached.threads.containsAll(threadsSnapshot))
+      return cached.json;
+
+    // Sort the threads alphabetically by name -- this ensures a stable order when
+    // uploading, which is helpful for tests.
+    Collections.sort(threadsSnapshot, THREAD_NAME_ORDER);
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    buffer.write('[');
+    for (int i = 0; i < threadsSnapshot.size(); i++) {
+      if (i > 0)
+        buffer.write(',');
+      byte[] threadInfo = threadsSnapshot.get(i).serializedInfo();
+      buffer.write(threadInfo, 0, threadInfo.length);
+    }
+    buffer.write(']');
+
+    cached = new CachedThreadInfos(new HashSet<PerThreadState>(threadsSnapshot),
+        new SerializedJson(buffer.toByteArray()));
+    cachedThreadInfos = cached;
+    return cached.json;
+  }
+
+  /**
+   * Orders threads alphabetically by name, with unnamed threads first.
+   */
+  private static final Comparator<PerThreadState> THREAD_NAME_ORDER = new Comparator<PerThreadState>(){
+    @Override public int compare(PerThreadState a, PerThreadState b) {
+      if (a.name == null || b.name == null) {
+        if (a.name == null && b.name == null)
+          return 0;
+        return (a.name == null) ? -1 : 1;
+      }
+      return a.name.compareTo(b.name);
+    }};
+
+  /**
+   * A JSON value which has already been serialized.
+   */
+  private static final class SerializedJson extends RawJson {
+    private final byte[] bytes;
+
+    SerializedJson(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    SerializedJson(JSONStreamAware value) {
+      this(JSONValue.toJSONString(value).getBytes(ScalyrUtil.utf8));
+    }
+
+    @Override public void writeJSONBytes(OutputStream out) throws IOException {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * A serialized sessionInfo value, along with the serverAttributes it reflects.
+   */
+  private static final class CachedSessionInfo {
+    /**
+     * Copy of serverAttributes at the time the value was built, or null if we have no serverAttributes.
+     */
+    final Map<String, Object> serverAttributes;
+
+    final SerializedJson json;
+
+    CachedSessionInfo(Map<String, Object> serverAttributes, SerializedJson json) {
+      this.serverAttributes = serverAttributes;
+      this.json = json;
+    }
+  }
+
+  /**
+   * A serialized threads list, along with the threads it lists.
+   */
+  private static final class CachedThreadInfos {
+    final Set<PerThreadState> threads;
+
+    final SerializedJson json;
+
+    CachedThreadInfos(Set<PerThreadState> threads, SerializedJson json) {
+      this.threads = threads;
+      this.json = json;
+    }
+  }
+
+  /**
+   * Remove threads which have not recorded an event for TuningConstants.THREAD_IDLE_SCAVENGE_NS from the
+   * threads table, so that it doesn't grow without bound as threads come and go. We keep threads with events
+   * awaiting upload (whose names are still needed for the threads list), and explicitly named threads with
+   * open or discarded spans (whose nesting state lives only in the table). A scavenged thread which records
+   * another event is registered again. Runs at most once per TuningConstants.THREAD_SCAVENGE_INTERVAL_MS.
+   *
+   * Caller must hold the lock on "this".
+   */
+  private void scavengeIdleThreads() {
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    if (nowMs - lastThreadScavengeMs < TuningConstants.THREAD_SCAVENGE_INTERVAL_MS)
+      return;
+    lastThreadScavengeMs = nowMs;
+
+    long idleSince = ScalyrUtil.nanoTime() - TuningConstants.THREAD_IDLE_SCAVENGE_NS;
+    List<PerThreadState> candidates = new ArrayList<PerThreadState>();
+    for (PerThreadState thread : threads.values()) {
+      if (thread.isScavengeable(idleSince))
+        candidates.add(thread);
+    }
+    if (candidates.isEmpty())
+      return;
+
+    int removed = 0;
+    synchronized (uploadSynchronizer) {
+      synchronized (chunkSizes) {
+        Set<String> awaitingUpload = new HashSet<String>();
+        for (int i = 0; i < chunkSizes.size(); i++)
+          awaitingUpload.addAll(chunkSizes.getChunk(i).getThreadIds());
+        for (UploadBatch batch : precompressedBatches)
+          awaitingUpload.addAll(batch.chunk.getThreadIds());
+
+        for (PerThreadState thread : candidates) {
+          if (!awaitingUpload.contains(thread.threadId) && threads.remove(thread.threadId, thread))
+            removed++;
+        }
+
+        // Holding chunkSizes, so that no thread can add an event to the buffer between its removal and
+        // noticing the new generation.
+        if (removed > 0)
+          threadsGeneration++;
+      }
+    }
+
+    if (removed > 0)
+      Logging.log(Severity.fine, Logging.tagThreadScavenge, "Forgot " + removed + " idle threads; "
+          + threads.size() + " remain");
+  }
+
+  /**
+   * Return the number of threads currently registered: those which have recorded an event, and not since
+   * been forgotten as idle (see TuningConstants.THREAD_IDLE_SCAVENGE_NS). Threads which share an ID (see
+   * UploaderOptions.threadIdentity) count once.
+   */
+  public int getThreadCount() {
+    return threads.size();
+  }
+
+  /**
+   * If we have a spill store, and pendingEventBuffer is more than EVENT_SPILL_THRESHOLD_PERCENT full, move the
+   * oldest chunks to disk, freeing room for new events. Precompressed chunks are older than anything in
+   * pendingEventBuffer, so they are moved first. Stops early if the spill store's quota is reached.
+   *
+   * Caller must hold the lock on "this", and no upload may be in flight.
+   */
+  private void spillExcessChunks() {
+    if (spillStore == null)
+      return;
+
+    synchronized (uploadSynchronizer) {
+      if (compressingBatch != null)
+        return;
+    }
+
+    long thresholdBytes = (long) memoryLimit * TuningConstants.EVENT_SPILL_THRESHOLD_PERCENT / 100;
+    JSONStreamAware sessionInfo = null;
+    while (pendingEventBuffer.numBufferedBytes() > thresholdBytes) {
+      if (sessionInfo == null)
+        sessionInfo = sessionInfo();
+
+      UploadBatch precompressed;
+      synchronized (uploadSynchronizer) {
+        precompressed = precompressedBatches.peekFirst();
+      }
+      if (precompressed != null) {
+        if (!spillPrecompressedBatch(precompressed, sessionInfo, buildThreadInfos(precompressed.chunk)))
+          return;
+        continue;
+      }
+
+      int chunkBytes;
+      ChunkSizeList.Chunk chunk;
+      synchronized (uploadSynchronizer) {
+        synchronized (chunkSizes) {
+          chunkBytes = chunkSizes.getFirst();
+          if (chunkBytes == 0)
+            return;
+
+          // Prevent further data from being added to this chunk.
+          chunkSizes.closeFirst();
+          chunk = chunkSizes.getChunk(0);
+        }
+
+        // Prevent evictLowSeverityEvents from resizing it.
+        headChunkPinned = true;
+      }
+
+      try {
+        if (!spillStore.spill(sessionId, sessionInfo, buildThreadInfos(chunk), pendingEventBuffer.oldestBytes(chunkBytes)))
+          return;
+
+        discardOldestPendingEvents(chunkBytes);
+        synchronized (uploadSynchronizer) {
+          // If we had attempted to upload this chunk, the attempt failed (or it would have been released). It
+          // will now be uploaded from disk instead.
+          if (!uploadBatches.isEmpty()) {
+            uploadBatches.removeFirst();
+            releaseAcknowledgedBatches();
+          }
+
+          // There is room for new events again; don't wait for the next upload to accept them.
+          pendingEventsReachedLimit = false;
+        }
+      } finally {
+        synchronized (uploadSynchronizer) {
+          headChunkPinned = false;
+        }
+      }
+      Logging.log(Severity.fine, Logging.tagEventSpill, "Spilled " + chunkBytes + " bytes of events to disk");
+    }
+  }
+
+  /**
+   * Move the given precompressed chunk to the spill store. Return false if it could not be spilled.
+   *
+   * Caller must hold the lock on "this", and no upload may be in flight.
+   */
+  private boolean spillPrecompressedBatch(UploadBatch batch, JSONStreamAware sessionInfo,
+      JSONStreamAware threadInfos) {
+    byte[] content;
+    try {
+      content = batch.precompressed.decompress();
+    } catch (IOException ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Unable to decompress precompressed event chunk", ex);
+      return false;
+    }
+
+    // Spilled segments hold the chunk as it appeared in pendingEventBuffer, including the trailing comma.
+    ByteBuffer[] slices = {ByteBuffer.wrap(content), ByteBuffer.wrap(new byte[]{','})};
+    if (!spillStore.spill(sessionId, sessionInfo, threadInfos, slices))
+      return false;
+
+    discardUploadedBatch(null, batch);
+    Logging.log(Severity.fine, Logging.tagEventSpill, "Spilled " + batch.size + " bytes of precompressed events to disk");
+    return true;
+  }
+
+  /**
+   * If precompression is enabled (see UploaderOptions.precompressedMemoryLimit), and precompressChunks is not
+   * already pending, schedule it on precompressionExecutor.
+   *
+   * Caller must hold the lock on "this".
+   */
+  private void schedulePrecompression() {
+    if (precompressedMemoryLimit <= 0 || compression == CompressionType.None)
+      return;
+
+    synchronized (uploadSynchronizer) {
+      if (precompressionScheduled || precompressedBytes >= precompressedMemoryLimit)
+        return;
+      precompressionScheduled = true;
+    }
+
+    if (precompressionExecutor == null) {
+      precompressionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EventUploader-precompress");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    precompressionExecutor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          precompressChunks();
+        } catch (Throwable ex) {
+          Logging.log(EventUploader.this, Severity.warning, Logging.tagInternalError, "Exception in event chunk compression", ex);
+        } finally {
+          synchronized (uploadSynchronizer) {
+            precompressionScheduled = false;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Compress the oldest chunks of pendingEventBuffer, moving each to precompressedBatches and releasing its
+   * space in the buffer. We stop when we reach a chunk which is still open (i.e. can still grow), or one
+   * whose upload is in flight, or when precompressedMemoryLimit is reached.
+   *
+   * Runs on precompressionExecutor. The compression itself is performed without holding any lock.
+   */
+  private void precompressChunks() throws IOException {
+    while (true) {
+      UploadBatch batch;
+      CompressionType compression;
+      ZstdDictionary dictionary;
+
+      // Hold the lock on "this" while choosing a chunk, so that we don't begin while spillExcessChunks or
+      // trainZstdDictionary is reading the buffer.
+      synchronized (this) {
+        compression = this.compression;
+        dictionary = (compression == CompressionType.Zstandard) ? zstdDictionary : null;
+        if (compression == CompressionType.None)
+          return;
+
+        synchronized (uploadSynchronizer) {
+          if (precompressedBytes >= precompressedMemoryLimit)
+            return;
+
+          batch = uploadBatches.peekFirst();
+          if (batch != null) {
+            if (batch.inFlight || batch.acknowledged)
+              return;
+          } else {
+            synchronized (chunkSizes) {
+              if (chunkSizes.size() == 0 || !chunkSizes.isClosed(0))
+                return;
+              batch = new UploadBatch(pendingEventBuffer.oldestCursor(), chunkSizes.getFirst(), chunkSizes.getChunk(0));
+            }
+            uploadBatches.addFirst(batch);
+          }
+
+          batch.inFlight = true;
+          compressingBatch = batch;
+        }
+      }
+
+      PrecompressedJson precompressed = null;
+      try {
+        precompressed = PrecompressedJson.compress(batch.content(), compression.getContentType(), dictionary);
+      } finally {
+        synchronized (uploadSynchronizer) {
+          compressingBatch = null;
+          if (precompressed == null) {
+            // Leave the chunk to be uploaded uncompressed.
+            batch.inFlight = false;
+          } else {
+            UploadBatch compressedBatch = new UploadBatch(precompressed, batch.size, batch.chunk);
+            compressedBatch.failed = batch.failed;
+            precompressedBatches.addLast(compressedBatch);
+            precompressedBytes += precompressed.compressedLength();
+            precompressedPayloadBytes += batch.size;
+
+            uploadBatches.removeFirst();
+            discardOldestPendingEvents(batch.size);
+            releaseAcknowledgedBatches();
+          }
+
+          // A flush may be waiting for this chunk to become available for upload.
+          uploadSynchronizer.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the total compressed size of chunks awaiting upload in precompressed form. For use in tests.
+   */
+  long precompressedBytes() {
+    synchronized (uploadSynchronizer) {
+      return precompressedBytes;
+    }
+  }
+
+  /**
+   * If we have a ZstdDictionaryPublisher and are using Zstandard compression, then every
+   * ZSTD_DICTIONARY_RETRAIN_INTERVAL_MS, train a new dictionary from the oldest events in pendingEventBuffer
+   * and publish it. If publication succeeds, subsequent uploads are compressed with the new dictionary.
+   * <p>
+   * Here we only copy the samples; training, and the publisher (which may well perform network I/O), run
+   * on dictionaryTrainingExecutor, so that they don't hold up uploads or flushes.
+   *
+   * Caller must hold the lock on "this", and no upload may be in flight (so that the events we sample
+   * can't be discarded).
+   */
+  private void trainZstdDictionary() {
+    if (zstdDictionaryPublisher == null || compression != CompressionType.Zstandard)
+      return;
+
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    if (lastDictionaryTrainingMs != null && nowMs - lastDictionaryTrainingMs < TuningConstants.ZSTD_DICTIONARY_RETRAIN_INTERVAL_MS)
+      return;
+
+    if (pendingEventBuffer.numBufferedBytes() < TuningConstants.ZSTD_DICTIONARY_MIN_SAMPLE_BYTES)
+      return;
+
+    synchronized (uploadSynchronizer) {
+      // The chunk being compressed may be released from the buffer at any moment.
+      if (compressingBatch != null)
+        return;
+
+      // Keep evictLowSeverityEvents from rewriting the events we sample.
+      headChunkPinned = true;
+    }
+
+    int sampleBytes;
+    final List<byte[]> samples = new ArrayList<byte[]>();
+    try {
+      sampleBytes = Math.min(pendingEventBuffer.numBufferedBytes(), TuningConstants.ZSTD_DICTIONARY_SAMPLE_BYTES);
+      if (sampleBytes < TuningConstants.ZSTD_DICTIONARY_MIN_SAMPLE_BYTES)
+        return;
+
+      lastDictionaryTrainingMs = nowMs;
+
+      for (ByteBuffer slice : pendingEventBuffer.oldestBytes(sampleBytes)) {
+        while (slice.hasRemaining()) {
+          byte[] sample = new byte[Math.min(slice.remaining(), TuningConstants.ZSTD_DICTIONARY_SAMPLE_CHUNK_BYTES)];
+          slice.get(sample);
+          samples.add(sample);
+        }
+      }
+    } finally {
+      synchronized (uploadSynchronizer) {
+        headChunkPinned = false;
+      }
+    }
+
+    if (dictionaryTrainingExecutor == null) {
+      dictionaryTrainingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EventUploader-zstdDictionary");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    final int finalSampleBytes = sampleBytes;
+    dictionaryTrainingExecutor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          trainAndPublishZstdDictionary(samples, finalSampleBytes);
+        } catch (Throwable ex) {
+          Logging.log(EventUploader.this, Severity.warning, Logging.tagInternalError, "Exception in Zstandard dictionary training", ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Train a Zstandard dictionary from the given samples, and publish it. If publication succeeds, install it
+   * for subsequent uploads. Runs on dictionaryTrainingExecutor, without holding any lock.
+   */
+  private void trainAndPublishZstdDictionary(List<byte[]> samples, int sampleBytes) {
+    ZstdDictionary dictionary = ZstdDictionary.train(samples, TuningConstants.ZSTD_DICTIONARY_SIZE);
+    if (dictionary == null) {
+      Logging.log(Severity.warning, Logging.tagZstdDictionary, "Unable to train a Zstandard dictionary from "
+          + sampleBytes + " bytes of events");
+      return;
+    }
+
+    boolean published;
+    try {
+      published = zstdDictionaryPublisher.publish(dictionary.id, dictionary.getContent());
+    } catch (RuntimeException ex) {
+      Logging.log(Severity.warning, Logging.tagZstdDictionary, "Unable to publish Zstandard dictionary " + dictionary.id, ex);
+      return;
+    }
+
+    if (published) {
+      zstdDictionary = dictionary;
+      Logging.log(Severity.info, Logging.tagZstdDictionary, "Compressing event uploads with Zstandard dictionary "
+          + dictionary.id);
+    }
+  }
+
+  /**
+   * Discard a batch of events which has been uploaded (or which we have given up on uploading). The batch is
+   * either the given spilled segment or, if segment is null, the given precompressed chunk or chunk of
+   * pendingEventBuffer. A chunk is released from pendingEventBuffer once all older chunks have also been
+   * discarded.
+   */
+  private void discardUploadedBatch(EventSpillStore.Segment segment, UploadBatch batch) {
+    if (segment != null) {
+      spillStore.remove(segment);
+      synchronized (uploadSynchronizer) {
+        pendingEventsReachedLimit = false;
+      }
+    } else if (batch.precompressed != null) {
+      synchronized (uploadSynchronizer) {
+        batch.acknowledged = true;
+        if (precompressedBatches.remove(batch)) {
+          precompressedBytes -= batch.precompressed.compressedLength();
+          precompressedPayloadBytes -= batch.size;
+        }
+        pendingEventsReachedLimit = false;
+      }
+    } else {
+      synchronized (uploadSynchronizer) {
+        batch.acknowledged = true;
+        releaseAcknowledgedBatches();
+      }
+    }
+  }
+
+  /**
+   * Discard a batch of events which we have given up on uploading, counting it in totalBytesDropped.
+   */
+  private void dropUploadedBatch(EventSpillStore.Segment segment, UploadBatch batch, int bufferedBytes) {
+    discardUploadedBatch(segment, batch);
+    synchronized (uploadSynchronizer) {
+      totalBytesDropped += bufferedBytes;
+    }
+  }
+
+  /**
+   * Return true if an upload which returned the given status was refused because of its content: the request
+   * was malformed or too large. Retrying the same batch would fail again, but a subset of its events may
+   * succeed.
+   */
+  private static boolean isBatchRejection(String status) {
+    return status != null && (status.startsWith("error/client/badParam") || status.startsWith("error/client/tooLarge"));
+  }
+
+  /**
+   * Return true if an upload which threw the given exception was refused because of its content (see
+   * isBatchRejection(String)), including an HTTP 413 (Payload Too Large) response. The server's response
+   * normally arrives wrapped in a ScalyrNetworkException; ScalyrService.errorStatus and errorResponseCode
+   * look through the wrapping.
+   */
+  private static boolean isBatchRejection(RuntimeException ex) {
+    String status = ScalyrService.errorStatus(ex);
+    if (status != null)
+      return isBatchRejection(status);
+    return ScalyrService.errorResponseCode(ex) == 413;
+  }
+
+  /**
+   * Return true if an upload which threw the given exception timed out waiting for the server.
+   */
+  private static boolean isUploadTimeout(RuntimeException ex) {
+    return ex instanceof ScalyrNetworkException && ex.getCause() instanceof SocketTimeoutException;
+  }
+
+  /**
+   * Following a failed upload of the given chunk of pendingEventBuffer, split it at the event boundary nearest
+   * its midpoint, so that each half is retried (and, if need be, split further) on its own. This way a batch
+   * which is too large for the server to accept in time, or which holds an event the server refuses, doesn't
+   * hold up the rest of the event stream until it is discarded as a persistent failure.
+   * <p>
+   * If the batch holds a single event, and the server rejected it (rather than timing out), we drop it:
+   * retrying it can never succeed. After a timeout, we don't split batches smaller than
+   * TuningConstants.MIN_BISECTED_UPLOAD_BYTES, as the server is more likely to be unreachable than
+   * overwhelmed by the batch.
+   * <p>
+   * Precompressed chunks are not split; they are retried as-is. Return true if we split or dropped the batch.
+   *
+   * @param rejected True if the server rejected the batch's content (see isBatchRejection), false if the
+   *     upload timed out.
+   * @param message Description of the failure, for logging.
+   */
+  private boolean bisectFailedBatch(UploadBatch batch, boolean rejected, String message) {
+    if (batch.precompressed != null || (!rejected && batch.size <= TuningConstants.MIN_BISECTED_UPLOAD_BYTES))
+      return false;
+
+    // The batch is still marked as in flight, so its bytes can't be evicted, compressed, spilled, or released
+    // while we read them.
+    byte[] chunk = new byte[batch.size];
+    int offset = 0;
+    for (ByteBuffer slice : pendingEventBuffer.bytesAt(batch.startCursor, batch.size)) {
+      int length = slice.remaining();
+      slice.get(chunk, offset, length);
+      offset += length;
+    }
+
+    List<Integer> eventEnds = new ArrayList<Integer>();
+    List<Integer> severities = new ArrayList<Integer>();
+    int start = 0;
+    while (start < batch.size) {
+      int end = EventEncoder.eventEnd(chunk, start, batch.size);
+      if (end < 0) {
+        ScalyrUtil.Assert(false, "unable to parse buffered event chunk");
+        return false;
+      }
+
+      eventEnds.add(end);
+      severities.add(EventEncoder.severityOf(chunk, start, end));
+      start = end;
+    }
+
+    int eventCount = eventEnds.size();
+    if (eventCount == 1) {
+      if (!rejected)
+        return false;
+
+      dropUploadedBatch(null, batch, batch.size);
+      eventsRejected.incrementAndGet();
+      Logging.log(EventUploader.this, Severity.warning, Logging.tagEventRejected,
+          "Discarding an event of " + batch.size + " bytes, which the server refused to accept. Latest error: ["
+          + message + "]");
+      return true;
+    }
+
+    // Split after the event which ends nearest the midpoint.
+    int splitIndex = 0;
+    for (int i = 1; i < eventCount - 1; i++) {
+      if (Math.abs(eventEnds.get(i) - batch.size / 2) < Math.abs(eventEnds.get(splitIndex) - batch.size / 2))
+        splitIndex = i;
+    }
+    int splitOffset = eventEnds.get(splitIndex);
+
+    synchronized (uploadSynchronizer) {
+      List<UploadBatch> batches = new ArrayList<UploadBatch>(uploadBatches);
+      int index = batches.indexOf(batch);
+      if (index < 0 || batch.acknowledged || (index == 0 && headChunkPinned))
+        return false;
+
+      ChunkSizeList.Chunk second;
+      synchronized (chunkSizes) {
+        ScalyrUtil.Assert(chunkSizes.get(index) == batch.size, "event buffer chunk was resized while being uploaded");
+        second = chunkSizes.split(index, splitOffset);
+        for (int i = 0; i < eventCount; i++)
+          (i <= splitIndex ? second : batch.chunk).removeEvent(severities.get(i));
+      }
+
+      UploadBatch firstHalf = new UploadBatch(batch.startCursor, splitOffset, batch.chunk);
+      UploadBatch secondHalf = new UploadBatch(batch.startCursor + splitOffset, batch.size - splitOffset, second);
+      firstHalf.failed = true;
+      secondHalf.failed = true;
+      batches.set(index, firstHalf);
+      batches.add(index + 1, secondHalf);
+      uploadBatches.clear();
+      uploadBatches.addAll(batches);
+    }
+
+    Logging.log(Severity.fine, Logging.tagEventRejected, "Split an event batch of " + batch.size + " bytes ("
+        + eventCount + " events) after a failed upload: [" + message + "]");
+    return true;
+  }
+
+  /**
+   * Release the longest prefix of uploadBatches which has been acknowledged from pendingEventBuffer.
+   *
+   * Caller must hold the lock on uploadSynchronizer.
+   */
+  private void releaseAcknowledgedBatches() {
+    while (!uploadBatches.isEmpty() && uploadBatches.peekFirst().acknowledged) {
+      UploadBatch batch = uploadBatches.removeFirst();
+      ScalyrUtil.Assert(batch.startCursor == pendingEventBuffer.oldestCursor(),
+          "event buffer chunks released out of order");
+      discardOldestPendingEvents(batch.size);
+    }
+  }
+
+  private void discardOldestPendingEvents(int bufferedBytes) {
+    synchronized (uploadSynchronizer) {
+      synchronized (chunkSizes) {
+        ScalyrUtil.Assert(chunkSizes.getFirst() == bufferedBytes,
+            "event buffer chunk was resized while being uploaded");
+        chunkSizes.removeFirst();
+      }
+
+      pendingEventBuffer.discardOldestBytes(bufferedBytes);
+      pendingEventsReachedLimit = false;
+
+      bufferReleases++;
+      if (blockedProducers > 0)
+        uploadSynchronizer.notifyAll();
+    }
+  }
+
+  private volatile boolean loggedUploadSuccess = false;
+
+  /**
+   * If the most recent upload attempt failed, this holds the millisecond timestamp when the current string of
+   * consecutive failures began. Otherwise null. Synchronized on uploadSynchronizer.
+   */
+  private Long uploadFailuresStartMs = null;
+
+  /**
+   * This method is called whenever we successfully upload a batch of events to the server.
+   */
+  void logUploadSuccess() {
+    synchronized (uploadSynchronizer) {
+      uploadFailuresStartMs = null;
+    }
 
     if (!loggedUploadSuccess) {
       // Write a note to stdout indicating that we've successfully uploaded a batch of events to
@@ -687,28 +2478,35 @@ public class EventUploader {
    * It is called for all failure modes, from local exceptions to network problems to error codes returned from the
    * server.
    */
-  private boolean logUploadFailure(int bufferedBytes, String message) {
+  private boolean logUploadFailure(EventSpillStore.Segment segment, UploadBatch batch, int bufferedBytes,
+      String message) {
     boolean discarded = false;
     long nowMs = ScalyrUtil.currentTimeMillis();
-    if (uploadFailuresStartMs == null)
-      uploadFailuresStartMs = nowMs;
-    else {
-      if (_discardBatchesAfterPersistentFailures &&
-          nowMs - uploadFailuresStartMs >= TuningConstants.DISCARD_EVENT_BATCH_AFTER_PERSISTENT_FAILURE_SECONDS * 1000) {
-
-        // We've persistently failed to upload this chunk for a long time. There may be something fundamentally
-        // wrong with it. In any event, the current server implementation is unable to accept events that are more
-        // than a few minutes old. Either way, we have nothing to gain by holding onto this data chunk. So we'll
-        // discard it, in hopes of helping the upload process to resume.
-        discardOldestPendingEvents(bufferedBytes);
-        discarded = true;
-
-        Logging.log(EventUploader.this, Severity.warning, Logging.tagLogBufferOverflow,
-            "Discarding an event batch of size " + bufferedBytes + " bytes, because we have been persistently unable to upload it. Latest error: ["
-            + message + "]");
+    boolean persistentFailure;
+    synchronized (uploadSynchronizer) {
+      if (uploadFailuresStartMs == null) {
+        uploadFailuresStartMs = nowMs;
+        persistentFailure = false;
+      } else {
+        persistentFailure = _discardBatchesAfterPersistentFailures &&
+            nowMs - uploadFailuresStartMs >= TuningConstants.DISCARD_EVENT_BATCH_AFTER_PERSISTENT_FAILURE_SECONDS * 1000;
       }
     }
 
+    if (persistentFailure) {
+      // We've persistently failed to upload this chunk for a long time. There may be something fundamentally
+      // wrong with it. In any event, the current server implementation is unable to accept events that are more
+      // than a few minutes old. Either way, we have nothing to gain by holding onto this data chunk. So we'll
+      // discard it, in hopes of helping the upload process to resume.
+      dropUploadedBatch(segment, batch, bufferedBytes);
+      discarded = true;
+
+      String events = (batch != null) ? " (" + batch.eventCount() + " events)" : "";
+      Logging.log(EventUploader.this, Severity.warning, Logging.tagLogBufferOverflow,
+          "Discarding an event batch of size " + bufferedBytes + " bytes" + events + ", because we have been persistently unable to upload it. Latest error: ["
+          + message + "]");
+    }
+
     if (!loggedUploadSuccess) {
       // Write a note to stdout indicating that we've had a failed attempt to upload a batch of events to
       // the server. We do this only until the first successful upload. The agent.sh script uses this
@@ -719,62 +2517,241 @@ public class EventUploader {
   }
 
   /**
-   * If it's time to initiate a new upload batch, return the number of event payload bytes
-   * (from pendingEventBuffer) to upload. Otherwise return -1.
+   * Return true if we are currently allowed to initiate an upload: fewer than maxInFlightUploads uploads are
+   * in flight, uploads are not suspended, and (unless bypassWaitTimers is true) enough time has passed since
+   * the last upload.
    *
    * Caller must hold the locks on "this" and uploadSynchronizer.
    */
-  private int timeToUpload(boolean bypassWaitTimers) {
-    // If we have an upload request in flight, don't initiate another one now.
-    if (uploadInProgress)
-      return -1;
+  private boolean uploadPermitted(boolean bypassWaitTimers) {
+    // If our upload pipeline is full, don't initiate another request now.
+    if (uploadsInFlight >= maxInFlightUploads)
+      return false;
 
     if (emergencySuspend)
-      return -1;
-
-    long nowMs = ScalyrUtil.currentTimeMillis();
+      return false;
 
     // Enforce a minimum start-to-start spacing between uploads, to avoid overloading the server.
     if (!bypassWaitTimers && lastUploadStartMs != null) {
-      long msSinceLastUpload = nowMs - lastUploadStartMs;
+      long msSinceLastUpload = ScalyrUtil.currentTimeMillis() - lastUploadStartMs;
       if (msSinceLastUpload < minUploadIntervalMs) {
-        return -1;
+        return false;
       }
 
       if (TuningConstants.adjustableEventUploadSpacingFloorMs != null &&
           msSinceLastUpload < TuningConstants.adjustableEventUploadSpacingFloorMs.get()) {
-        return -1;
+        return false;
       }
 
     }
 
-    // Get the size of the chunk to upload.
+    return true;
+  }
+
+  /**
+   * Choose the chunks to upload now, up to the number of free slots in our upload pipeline: first any
+   * precompressed chunks, then chunks of pendingEventBuffer which are not in flight, oldest first, then chunks
+   * which have not yet been uploaded. The newest chunk, which may still be growing, is only taken if it's time
+   * to upload it. The caller must already have checked uploadPermitted().
+   * <p>
+   * A chunk whose upload failed is retried on its own: while one is pending, we start no other upload, and
+   * until its retry succeeds, no newer chunk. This keeps a chunk the server can't accept from taking the rest
+   * of the pipeline down with it, and ensures that events are not uploaded far out of order.
+   *
+   * Caller must hold the locks on "this" and uploadSynchronizer.
+   */
+  private List<UploadBatch> selectBatches(boolean bypassWaitTimers) {
+    List<UploadBatch> selected = new ArrayList<UploadBatch>();
+    int slots = maxInFlightUploads - uploadsInFlight;
+
+    UploadBatch failed = oldestFailedBatch();
+    if (failed != null) {
+      if (!failed.inFlight && uploadsInFlight == 0)
+        selected.add(failed);
+      return selected;
+    }
+
+    for (UploadBatch batch : precompressedBatches) {
+      if (selected.size() >= slots)
+        return selected;
+
+      if (!batch.inFlight && !batch.acknowledged)
+        selected.add(batch);
+    }
+
+    // The chunk being compressed is older than the rest of pendingEventBuffer; hold off on newer chunks
+    // until it has been added to precompressedBatches, so that events are uploaded in order.
+    if (compressingBatch != null)
+      return selected;
+
+    for (UploadBatch batch : uploadBatches) {
+      if (selected.size() >= slots)
+        return selected;
+
+      if (!batch.inFlight && !batch.acknowledged)
+        selected.add(batch);
+    }
+
+    long nowMs = ScalyrUtil.currentTimeMillis();
     synchronized (chunkSizes) {
-      int bufferedBytes = chunkSizes.getFirst();
-      if (bufferedBytes == 0) {
+      if (chunkSizes.size() == 0) {
         // nothing to upload
         pendingEventsReachedLimit = false;
-        return -1;
+        return selected;
       }
 
-      // Wait until the buffer is reasonably full, or it has been a fair while since we last initiated
-      // an upload.
-      boolean bufferFairlyFull = (bufferedBytes > _eventUploadByteThreshold);
-      boolean itsBeenAWhile = (lastUploadStartMs == null
-          || nowMs - lastUploadStartMs >= TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS + uploadSpacingFuzzFactor);
+      while (selected.size() < slots && uploadBatches.size() < chunkSizes.size()) {
+        int index = uploadBatches.size();
+        int bufferedBytes = chunkSizes.get(index);
 
-      if (bypassWaitTimers || bufferFairlyFull || itsBeenAWhile) {
-        // Prevent further data from being added to this chunk.
-        chunkSizes.closeFirst();
+        if (index == chunkSizes.size() - 1) {
+          // Wait until the buffer is reasonably full, or it has been a fair while since we last initiated
+          // an upload.
+          boolean bufferFairlyFull = (bufferedBytes > batchThresholdBytes());
+          boolean itsBeenAWhile = (lastUploadStartMs == null || nowMs - lastUploadStartMs >= batchDelayMs());
+          if (!bypassWaitTimers && !bufferFairlyFull && !itsBeenAWhile)
+            break;
 
-        synchronized (random) {
-          uploadSpacingFuzzFactor = random.nextInt(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+          // Prevent further data from being added to this chunk.
+          chunkSizes.close(index);
+
+          synchronized (random) {
+            uploadSpacingFuzzFactor = random.nextInt(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+          }
         }
-        return bufferedBytes;
-      } else {
-        return -1;
+
+        UploadBatch previous = uploadBatches.peekLast();
+        long startCursor = (previous != null) ? previous.startCursor + previous.size : pendingEventBuffer.oldestCursor();
+        UploadBatch batch = new UploadBatch(startCursor, bufferedBytes, chunkSizes.getChunk(index));
+        uploadBatches.addLast(batch);
+        selected.add(batch);
       }
     }
+
+    return selected;
+  }
+
+  /**
+   * Return the oldest chunk whose upload failed, and which has not since been acknowledged, or null if there
+   * is none.
+   *
+   * Caller must hold the lock on uploadSynchronizer.
+   */
+  private UploadBatch oldestFailedBatch() {
+    for (UploadBatch batch : precompressedBatches) {
+      if (batch.failed && !batch.acknowledged)
+        return batch;
+    }
+
+    for (UploadBatch batch : uploadBatches) {
+      if (batch.failed && !batch.acknowledged)
+        return batch;
+    }
+
+    return null;
+  }
+
+  /**
+   * A chunk of pendingEventBuffer for which we have initiated an upload (or compression), or a chunk which
+   * has been moved out of pendingEventBuffer in compressed form. Fields other than startCursor, size, and
+   * precompressed are synchronized on uploadSynchronizer.
+   */
+  private class UploadBatch {
+    /**
+     * Position of the chunk in pendingEventBuffer (see CircularByteArray.oldestCursor). Not used for a
+     * precompressed chunk.
+     */
+    final long startCursor;
+
+    /**
+     * Length of the chunk, in bytes (before compression).
+     */
+    final int size;
+
+    /**
+     * The chunk's events, if it has been compressed ahead of time; otherwise null.
+     */
+    final PrecompressedJson precompressed;
+
+    /**
+     * Metadata for the chunk's events (see ChunkSizeList.Chunk). Synchronized on chunkSizes.
+     */
+    final ChunkSizeList.Chunk chunk;
+
+    /**
+     * True while an upload request for this chunk is in flight.
+     */
+    boolean inFlight;
+
+    /**
+     * True once the chunk has been accepted by the server (or we have given up on it).
+     */
+    boolean acknowledged;
+
+    /**
+     * True if an upload of the chunk (or, for a half of a split chunk, of the chunk it was split from) has
+     * failed. Such a chunk is retried on its own; see selectBatches.
+     */
+    boolean failed;
+
+    UploadBatch(long startCursor, int size, ChunkSizeList.Chunk chunk) {
+      this.startCursor = startCursor;
+      this.size = size;
+      this.precompressed = null;
+      this.chunk = chunk;
+    }
+
+    UploadBatch(PrecompressedJson precompressed, int size, ChunkSizeList.Chunk chunk) {
+      this.startCursor = -1;
+      this.size = size;
+      this.precompressed = precompressed;
+      this.chunk = chunk;
+    }
+
+    /**
+     * Return the number of events in the chunk.
+     */
+    int eventCount() {
+      synchronized (chunkSizes) {
+        return chunk.getEventCount();
+      }
+    }
+
+    /**
+     * Return the timestamp of the chunk's oldest event.
+     */
+    long oldestEventTimestamp() {
+      synchronized (chunkSizes) {
+        return chunk.getMinTimestamp();
+      }
+    }
+
+    /**
+     * Return the chunk's events as a JSON array.
+     */
+    RawJson events() {
+      if (precompressed != null)
+        return precompressed;
+
+      final RawJson content = content();
+      return new RawJson(){
+        @Override public void writeJSONBytes(OutputStream out) throws IOException {
+          out.write('[');
+          content.writeJSONBytes(out);
+          out.write(']');
+        }};
+    }
+
+    /**
+     * Return the chunk's events from pendingEventBuffer, separated by commas, without enclosing brackets.
+     */
+    RawJson content() {
+      return new RawJson(){
+        @Override public void writeJSONBytes(OutputStream out) throws IOException {
+          // We subtract 1 here to eliminate the trailing comma after the last buffered event.
+          pendingEventBuffer.writeBytes(out, startCursor, size - 1);
+        }};
+    }
   }
 
   /**
@@ -789,17 +2766,30 @@ public class EventUploader {
    */
   public static volatile boolean _discardBatchesAfterPersistentFailures = true;
 
-  private synchronized void launchUploadTimer(Timer sharedTimer) {
+  private synchronized void launchUploadTimer(Timer sharedTimer, ScheduledExecutorService scheduler) {
     this.sharedTimer = sharedTimer;
 
     ourHostname = ScalyrUtil.getHostname();
     ourIpAddress = ScalyrUtil.getIpAddress();
 
-    if (sharedTimer == null && privateTimer == null) {
-      privateTimer = new Timer("EventUploader", true);
+    if (!autoUpload)
+      return;
+
+    // Randomize the time of the first check, to help ensure that clients aren't all uploading at the same
+    // time. (Especially important in load tests.)
+    int randomDelay;
+    synchronized (random) {
+      randomDelay = random.nextInt(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL) + 1;
+    }
+
+    if (sharedTimer == null) {
+      this.scheduler = (scheduler != null) ? scheduler : defaultScheduler();
+      scheduleTick(randomDelay);
+      return;
     }
 
-    if (autoUpload && uploadTask == null) {
+    // An externally supplied Timer is polled, as it always has been.
+    if (uploadTask == null) {
       uploadTask = new TimerTask(){
         @Override public void run() {
           try {
@@ -823,15 +2813,215 @@ public class EventUploader {
           }
         }};
 
-      // Launch a task to periodically check whether it's time to upload events. Randomize the starting time,
-      // to help ensure that clients aren't all uploading at the same time. (Especially important in load tests.)
-      int randomDelay;
-      synchronized (random) {
-        randomDelay = random.nextInt(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL) + 1;
+      sharedTimer.schedule(uploadTask, randomDelay, TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService defaultScheduler() {
+    if (defaultScheduler == null) {
+      defaultScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EventUploader");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return defaultScheduler;
+  }
+
+  /**
+   * Called by producers when an event has made a batch ready for upload (it filled a chunk, or pushed
+   * it past batchThresholdBytes()), and when a pipelined upload (or any upload, during a flush) completes.
+   * Brings the next upload tick forward to the earliest time at which an upload is permitted.
+   */
+  private void requestUpload() {
+    if (uploadRequested || tickExecutor() == null)
+      return;
+
+    long delayMs;
+    synchronized (uploadSynchronizer) {
+      // If our upload pipeline is full, there is nothing a tick could do; the tick or upload completion
+      // which frees a slot schedules the next tick.
+      if (uploadsInFlight >= maxInFlightUploads)
+        return;
+
+      Long lastStartMs = lastUploadStartMs;
+      if (flushPending && uploadFailuresStartMs == null)
+        delayMs = 0;
+      else
+        delayMs = (lastStartMs == null) ? 0 : lastStartMs + (long) minUploadIntervalMs - ScalyrUtil.currentTimeMillis();
+    }
+    uploadRequested = true;
+    scheduleTick(delayMs);
+  }
+
+  /**
+   * Return the scheduler which times upload ticks: scheduler if we have one, or else the default scheduler
+   * while a flush is pending (so that flushAsync works even if we are polled by a Timer, or autoUpload is
+   * false). Null if there should be no scheduled ticks.
+   */
+  private ScheduledExecutorService tickExecutor() {
+    ScheduledExecutorService scheduler = this.scheduler;
+    if (scheduler == null && flushPending && !ticksCancelled)
+      scheduler = defaultScheduler();
+    return scheduler;
+  }
+
+  /**
+   * Ensure that an upload tick is scheduled on tickExecutor() to run within the given number of milliseconds.
+   */
+  private void scheduleTick(long delayMs) {
+    ScheduledExecutorService scheduler = tickExecutor();
+    if (scheduler == null)
+      return;
+
+    delayMs = Math.max(0, Math.min(delayMs, TuningConstants.EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS));
+    long atNs = System.nanoTime() + delayMs * 1000000L;
+    synchronized (tickScheduleLock) {
+      if (scheduledTick != null) {
+        if (scheduledTickAtNs - atNs <= 0)
+          return;
+        scheduledTick.cancel(false);
+      }
+
+      final long generation = ++tickGeneration;
+      try {
+        scheduledTick = scheduler.schedule(new Runnable() {
+          @Override public void run() {
+            runScheduledTick(generation);
+          }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        scheduledTickAtNs = atNs;
+      } catch (RejectedExecutionException ex) {
+        // The scheduler has been shut down.
+        scheduledTick = null;
+      }
+    }
+  }
+
+  /**
+   * Called on the scheduler when a tick is due. Hand the tick to uploadExecutor, if we have one, or else to
+   * tickThread, where it runs an upload tick and then schedules the next.
+   */
+  private void runScheduledTick(long generation) {
+    Executor executor;
+    synchronized (tickScheduleLock) {
+      if (generation == tickGeneration)
+        scheduledTick = null;
+
+      if (uploadExecutor != null) {
+        executor = uploadExecutor;
+      } else {
+        if (tickThread == null) {
+          tickThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "EventUploader-tick");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+        }
+        executor = tickThread;
+      }
+    }
+    uploadRequested = false;
+
+    // If a tick is already waiting to run, it will do; it schedules the next when it's done.
+    if (!tickQueued.compareAndSet(false, true))
+      return;
+
+    Runnable tick = new Runnable() {
+      @Override public void run() {
+        tickQueued.set(false);
+        boolean initiated = false;
+        try {
+          // A pending flush uploads everything as quickly as the server allows (and proceeds even when the
+          // upload timer is disabled).
+          boolean flushing = flushPending;
+          if (flushing || !_disableUploadTimer)
+            initiated = uploadTimerTick(flushing);
+        } catch (Throwable ex) {
+          Logging.log(EventUploader.this, Severity.warning, Logging.tagInternalError, "Exception in Logs upload timer", ex);
+        } finally {
+          scheduleTick(nextTickDelayMs(initiated));
+        }
+      }
+    };
+
+    try {
+      executor.execute(tick);
+    } catch (RejectedExecutionException ex) {
+      // We have been closed.
+      tickQueued.set(false);
+    }
+  }
+
+  /**
+   * Return the number of milliseconds until the next upload will be due, based on the current contents of
+   * the buffer: as soon as the upload spacing allows, if there is a batch ready to go; at the time threshold,
+   * if there are only a few events; otherwise EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS. While a flush is pending,
+   * see flushRetryDelayMs.
+   *
+   * @param initiated true if the tick which just ran initiated an upload.
+   */
+  private long nextTickDelayMs(boolean initiated) {
+    boolean batchReady;
+    boolean eventsBuffered;
+    synchronized (uploadSynchronizer) {
+      if (flushPending)
+        return flushRetryDelayMs(initiated);
+
+      // If the pipeline is full, the next upload to complete will call requestUpload.
+      if (uploadsInFlight >= maxInFlightUploads)
+        return TuningConstants.EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS;
+
+      batchReady = !precompressedBatches.isEmpty() || !uploadBatches.isEmpty();
+      synchronized (chunkSizes) {
+        int chunkCount = chunkSizes.size();
+        eventsBuffered = chunkCount > 0;
+        if (chunkCount > uploadBatches.size()) {
+          batchReady |= chunkCount - uploadBatches.size() > 1 || chunkSizes.isClosed(chunkCount - 1)
+              || chunkSizes.get(chunkCount - 1) > batchThresholdBytes();
+        }
+      }
+    }
+
+    if (spillStore != null && spillStore.payloadBytes() > 0)
+      batchReady = true;
+
+    if (!batchReady && !eventsBuffered)
+      return TuningConstants.EVENT_UPLOAD_IDLE_CHECK_INTERVAL_MS;
+
+    Long lastStartMs = lastUploadStartMs;
+    if (lastStartMs == null)
+      return 0;
+
+    long spacingMs = (long) minUploadIntervalMs;
+    if (TuningConstants.adjustableEventUploadSpacingFloorMs != null)
+      spacingMs = Math.max(spacingMs, TuningConstants.adjustableEventUploadSpacingFloorMs.get());
+    if (!batchReady)
+      spacingMs = Math.max(spacingMs, batchDelayMs());
+
+    return lastStartMs + spacingMs - ScalyrUtil.currentTimeMillis();
+  }
+
+  /**
+   * Cancel any pending upload tick, and stop scheduling new ones.
+   */
+  private void cancelScheduledTicks() {
+    ticksCancelled = true;
+    scheduler = null;
+    synchronized (tickScheduleLock) {
+      if (scheduledTick != null) {
+        scheduledTick.cancel(false);
+        scheduledTick = null;
       }
 
-      Timer timer = (sharedTimer != null) ? sharedTimer : privateTimer;
-      timer.schedule(uploadTask, randomDelay, TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+      if (tickThread != null) {
+        tickThread.shutdown();
+        tickThread = null;
+      }
     }
   }
 
@@ -840,7 +3030,8 @@ public class EventUploader {
    */
   class PerThreadState {
     /**
-     * Thread.getId() for the thread whose events we store.
+     * ID under which our events are reported: normally Thread.getId() for the thread whose events we store
+     * (see ThreadIdentity).
      */
     final String threadId;
 
@@ -887,13 +3078,67 @@ public class EventUploader {
      */
     private long latestEventTimestamp = 0;
 
-    PerThreadState(long threadId, String name) {
-      this(Long.toString(threadId), name);
-    }
+    /**
+     * This thread's entry in the threads list of an upload request, serialized. Built on first use; the
+     * thread's ID and name never change, so neither does this.
+     */
+    private volatile byte[] serializedInfo;
+
+    /**
+     * True if we were created by getThreadState for an explicitly identified thread, rather than held in
+     * threadEvents for the current thread. Our only reference is then our entry in threads.
+     */
+    private final boolean explicitThread;
+
+    /**
+     * Value of threadsGeneration when we last ensured that we are registered in threads, or -1 if we
+     * never have. Synchronized on chunkSizes.
+     */
+    private int registeredGeneration = -1;
 
-    PerThreadState(String threadId, String name) {
+    PerThreadState(String threadId, String name, boolean explicitThread) {
       this.threadId = threadId;
       this.name = name;
+      this.explicitThread = explicitThread;
+    }
+
+    /**
+     * Ensure that our thread ID is present in threads, after our first event or after scavengeIdleThreads
+     * has removed entries.
+     *
+     * Caller must hold the lock on chunkSizes.
+     */
+    private void register() {
+      threads.putIfAbsent(threadId, this);
+      registeredGeneration = threadsGeneration;
+    }
+
+    /**
+     * Return true if scavengeIdleThreads may forget us: we have recorded no event since idleSince, and
+     * (if we exist only in threads) have no open or discarded spans to remember. Reads fields owned by the
+     * recording thread without synchronization, which is harmless: a thread wrongly forgotten simply
+     * registers again.
+     */
+    boolean isScavengeable(long idleSince) {
+      if (latestEventTimestamp >= idleSince)
+        return false;
+      return !explicitThread
+          || (spanNesting == 0 && filterDiscardSpanNesting == 0 && bufferLimitDiscardSpanNesting == 0);
+    }
+
+    /**
+     * Return this thread's entry in the threads list of an upload request, serialized.
+     */
+    byte[] serializedInfo() {
+      byte[] result = serializedInfo;
+      if (result == null) {
+        JSONObject threadInfo = new JSONObject();
+        threadInfo.put("id", threadId);
+        threadInfo.put("name", name);
+        result = threadInfo.toString().getBytes(ScalyrUtil.utf8);
+        serializedInfo = result;
+      }
+      return result;
     }
 
     /**
@@ -991,56 +3236,200 @@ public class EventUploader {
         }
       }
 
-      JSONObject json = new JSONObject();
+      double sampleRate = (sampler != null) ? sampleRate(spanType, severity, attributes, isOverflowMessage) : 1;
+      if (sampleRate == 0)
+        return discardedBySampler(timestamp);
+
+      // Encode the event into this thread's scratch buffer. The timestamp is added within addEventToBuffer, so that
+      // getMonotonicNanos() can be called at the point where the event's position in the buffer is determined -- see
+      // discussion in appendUnderLock.
+      EventEncoder encoder = EventEncoder.acquire();
+      try {
+        encoder.encodeBody(threadId, spanType, severity, attributes, sampleRate, startTs);
+        return addEventToBuffer(encoder, timestamp, severity, spanType, reservedBufferSpace, isOverflowMessage);
+      } finally {
+        encoder.release();
+      }
+    }
+
+    /**
+     * Consult our sampler (see UploaderOptions.samplingBudget), and return 0 if the event should be discarded,
+     * or else the sampleRate to record it with (1 for none). Kept out of line, to keep convertAndAddToBuffer
+     * small enough to be inlined.
+     */
+    private double sampleRate(int spanType, Severity severity, EventAttributes attributes, boolean isOverflowMessage) {
+      if (spanType != LogService.SPAN_TYPE_LEAF || isOverflowMessage || severity.ordinal() >= Severity.warning.ordinal())
+        return 1;
+      return sampler.sample(attributes);
+    }
+
+    private ResultAndTimestamp discardedBySampler(long timestamp) {
+      return new ResultAndTimestamp(ConvertAndAddResult.discardedBySampler,
+          timestamp == ASSIGN_MONOTONIC_TIMESTAMP ? ScalyrUtil.nanoTime() : timestamp);
+    }
+
+    /**
+     * @param encoder Holds the encoded body of this event (see EventEncoder.encodeBody); we will add the timestamp.
+     * @param timestamp Nanosecond timestamp for this event. Can be ASSIGN_MONOTONIC_TIMESTAMP.
+     * @param severity The event's severity, which selects the OverflowPolicy applied if the buffer is full.
+     * @param spanType The event's span type (LogService.SPAN_TYPE_*).
+     */
+    private ResultAndTimestamp addEventToBuffer(EventEncoder encoder, long timestamp, Severity severity, int spanType,
+        int reservedBufferSpace, boolean isOverflowMessage) {
+      OverflowPolicy policy = isOverflowMessage ? OverflowPolicy.Drop : overflowPolicies[severity.ordinal()];
+      if (policy == OverflowPolicy.DropLowestSeverityFirst) {
+        reservedBufferSpace += (int) ((long) memoryLimit * TuningConstants.EVENT_BUFFER_SEVERITY_RESERVED_PERCENT
+            * (Severity.fatal.ordinal() - severity.ordinal()) / 100);
+      }
 
-      json.put("thread", threadId);
-      json.put("type", spanType);
-      json.put("sev", severity.ordinal());
+      ResultAndTimestamp outcome = append(encoder, timestamp, severity, spanType, reservedBufferSpace, isOverflowMessage,
+          policy);
+      if (outcome.result != ConvertAndAddResult.discardedByEventOverflow)
+        return outcome;
 
-      if (attributes != null && attributes.size() > 0) {
-        JSONObject jsonAttrs = new JSONObject();
+      // The buffer had no room. This is kept out of line, and we pass only the timestamp, so that on the common
+      // path the JIT can still eliminate the allocation of outcome.
+      return handleOverflow(encoder, timestamp, severity, spanType, reservedBufferSpace, isOverflowMessage, policy,
+          outcome.eventTimestamp);
+    }
 
-        for (Map.Entry<String, Object> entry : attributes.getEntries()) {
-          Object value = entry.getValue();
-          if (value instanceof String && ((String)value).length() > TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH) {
-            value = ((String)value).substring(0, TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH - 3) + "...";
-          }
-          jsonAttrs.put(entry.getKey(), value);
-        }
+    /**
+     * Called when addEventToBuffer found no room for an event: apply the event's OverflowPolicy, and if the
+     * event is discarded, record an overflow message.
+     *
+     * @param timestamp The timestamp passed to addEventToBuffer.
+     * @param assignedTimestamp The timestamp assigned to the event by our failed attempt to add it.
+     */
+    private ResultAndTimestamp handleOverflow(EventEncoder encoder, long timestamp, Severity severity, int spanType,
+        int reservedBufferSpace, boolean isOverflowMessage, OverflowPolicy policy, long assignedTimestamp) {
+      if (isOverflowMessage)
+        return new ResultAndTimestamp(ConvertAndAddResult.success, assignedTimestamp);
+
+      ResultAndTimestamp outcome = new ResultAndTimestamp(ConvertAndAddResult.discardedByEventOverflow, assignedTimestamp);
+      if (policy == OverflowPolicy.Block || policy == OverflowPolicy.CallerRuns) {
+        outcome = appendWithBackpressure(encoder, timestamp, severity, spanType, reservedBufferSpace, policy, outcome);
+        if (outcome.result != ConvertAndAddResult.discardedByEventOverflow)
+          return outcome;
+      }
 
-        json.put("attrs", jsonAttrs);
+      overflowEventsShed.incrementAndGet(policy.ordinal());
+
+      // Under policies other than Drop, a discard doesn't set pendingEventsReachedLimit, so we note it here
+      // (once per release of buffer space) to trigger an overflow message.
+      long releases = bufferReleases;
+      if (policy != OverflowPolicy.Drop && overflowNotedAtRelease != releases) {
+        overflowNotedAtRelease = releases;
+        pendingEventsLimitCounter.incrementAndGet();
       }
 
-      if (startTs != null)
-        json.put("startTS", startTs);
+      int snapshot = pendingEventsLimitCounter.get();
+      if (eventDiscardGeneration != snapshot) {
+        eventDiscardGeneration = snapshot;
+
+        // Record a log event noting that we had to discard some events.
+        convertAndAddToBuffer(ASSIGN_MONOTONIC_TIMESTAMP, LogService.SPAN_TYPE_LEAF, Severity.warning,
+            new EventAttributes("tag", "eventBufferOverflow", "message", "Discarding log records due to buffer overflow"),
+            null, 0, true);
+      }
 
-      // We defer population of the timestamp field in the JsonObject to within addEventToBuffer, so that getMonotonicNanos()
-      // can be called inside the synchronized block -- see discussion in that method.
+      if (memoryWarnLimiter.allow(TuningConstants.EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS)) {
+        Logging.log(EventUploader.this, Severity.warning, Logging.tagLogBufferOverflow,
+            "com.scalyr.api.logs: Discarding event, as buffer size of "
+            + memoryLimit + " bytes has been reached.");
+      }
 
-      return addEventToBuffer(json, timestamp, spanType == LogService.SPAN_TYPE_END, reservedBufferSpace, isOverflowMessage);
+      return outcome;
     }
 
     /**
-     * @param eventJson JSON structure for this event, minus the "ts" field, which we will populate.
-     * @param timestamp Nanosecond timestamp for this event. Can be ASSIGN_MONOTONIC_TIMESTAMP.
-     * @param isEndEvent True for end events, false for start or non-span events.
+     * Add the event to pendingEventBuffer using our AppendMode. Under OverflowPolicy.Drop, a failure to find
+     * space sets pendingEventsReachedLimit, and events are refused while it is set. Other policies neither
+     * set nor observe it. Events at or above evictionThreshold may evict less severe leaf events to make room
+     * (see evictLowSeverityEvents), and are not refused due to pendingEventsReachedLimit.
+     */
+    private ResultAndTimestamp append(EventEncoder encoder, long timestamp, Severity severity, int spanType,
+        int reservedBufferSpace, boolean isOverflowMessage, OverflowPolicy policy) {
+      boolean isEndEvent = (spanType == LogService.SPAN_TYPE_END);
+      boolean observeLimit = (policy == OverflowPolicy.Drop);
+      boolean evictable = !isOverflowMessage && spanType == LogService.SPAN_TYPE_LEAF
+          && severity.ordinal() < evictionThreshold;
+      boolean mayEvict = !isOverflowMessage && severity.ordinal() >= evictionThreshold;
+      return lockFreeAppend
+          ? appendWithoutLocking(encoder, timestamp, severity.ordinal(), isEndEvent, reservedBufferSpace,
+              isOverflowMessage, observeLimit, evictable, mayEvict)
+          : appendUnderLock(encoder, timestamp, severity.ordinal(), isEndEvent, reservedBufferSpace,
+              isOverflowMessage, observeLimit, evictable, mayEvict);
+    }
+
+    /**
+     * Retry adding an event for which the buffer had no room, under OverflowPolicy.Block or CallerRuns: wait
+     * (or, for CallerRuns, upload) until space is released, for up to overflowTimeoutMs. Return the outcome of
+     * the final attempt.
+     *
+     * @param outcome The outcome of the first attempt, returned if we can't wait.
+     */
+    private ResultAndTimestamp appendWithBackpressure(EventEncoder encoder, long timestamp, Severity severity,
+        int spanType, int reservedBufferSpace, OverflowPolicy policy, ResultAndTimestamp outcome) {
+      // Waiting while holding one of our locks (e.g. when an event is recorded from within an upload) could
+      // deadlock.
+      if (Thread.holdsLock(uploadSynchronizer) || Thread.holdsLock(EventUploader.this))
+        return outcome;
+
+      overflowEventsBlocked.incrementAndGet(policy.ordinal());
+      long startNs = System.nanoTime();
+      long deadlineNs = startNs + overflowTimeoutMs * 1000000L;
+      try {
+        while (true) {
+          long releases = bufferReleases;
+          if (policy == OverflowPolicy.CallerRuns) {
+            try {
+              uploadTimerTick(true);
+            } catch (RuntimeException ex) {
+              // The failure has been recorded by upload(); we'll wait for the next attempt.
+              Logging.log(EventUploader.this, Severity.warning, Logging.tagInternalError, "Exception in Logs upload", ex);
+            }
+          } else {
+            requestUpload();
+          }
+
+          outcome = append(encoder, timestamp, severity, spanType, reservedBufferSpace, false, policy);
+          if (outcome.result != ConvertAndAddResult.discardedByEventOverflow)
+            return outcome;
+
+          if (!awaitBufferRelease(releases, deadlineNs))
+            return outcome;
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return outcome;
+      } finally {
+        overflowBlockedNs.addAndGet(policy.ordinal(), System.nanoTime() - startNs);
+      }
+    }
+
+    /**
+     * Implementation of addEventToBuffer for AppendMode.Synchronized.
+     *
+     * @param severity The event's severity ordinal, for the chunk metadata (see ChunkSizeList.Chunk).
+     * @param observeLimit True if we should refuse events while pendingEventsReachedLimit is set, and set it
+     *     if this event doesn't fit.
+     * @param evictable True if this event may later be evicted by evictLowSeverityEvents.
+     * @param mayEvict True if, should this event not fit, we may call evictLowSeverityEvents to make room.
      */
-    private ResultAndTimestamp addEventToBuffer(JSONObject eventJson, long timestamp, boolean isEndEvent, int reservedBufferSpace,
-        boolean isOverflowMessage) {
+    private ResultAndTimestamp appendUnderLock(EventEncoder encoder, long timestamp, int severity, boolean isEndEvent,
+        int reservedBufferSpace, boolean isOverflowMessage, boolean observeLimit, boolean evictable, boolean mayEvict) {
       boolean discardingDueToMemoryLimit;
+      boolean batchReady = false;
+      boolean evicted = false;
       synchronized (uploadSynchronizer) {
         // Call getMonotonicNanos inside the synchronized block, so that events are added to the buffer in the order in which their
         // timestamps are assigned.
         if (timestamp == ASSIGN_MONOTONIC_TIMESTAMP)
           timestamp = getMonotonicNanos();
 
-        // Note that we store the timestamp as a string, not a number. This is because some JSON packages
-        // convert all numbers to floating point, and a 64-bit floating point value doesn't have sufficient
-        // precision to represent a nanosecond timestamp. We take a similar precaution for the thread ID.
-        eventJson.put("ts", Long.toString(timestamp));
         latestEventTimestamp = timestamp;
 
-        if (pendingEventsReachedLimit && !isEndEvent && !isOverflowMessage) {
+        if (observeLimit && pendingEventsReachedLimit && !isEndEvent && !isOverflowMessage && !mayEvict) {
           // If pendingEventsReachedLimit is true, we discard all events, to avoid
           // "stuttering" (letting in some events and not others) at the memory boundary.
           // However, we still let end events through, to maintain the integrity of span
@@ -1051,55 +3440,349 @@ public class EventUploader {
           // end event.
           discardingDueToMemoryLimit = true;
         } else {
-          ByteArrayOutputStream stream = new ByteArrayOutputStream();
-          try {
-            eventJson.writeJSONBytes(stream);
-          } catch (IOException ex) {
-            // This should never happen, since we're working with in-memory data.
-            throw new RuntimeException(ex);
-          }
-          stream.write(',');
-          byte[] serialized = stream.toByteArray();
-          int serializedLen = serialized.length;
+          // Note that we store the timestamp as a string, not a number. This is because some JSON packages
+          // convert all numbers to floating point, and a 64-bit floating point value doesn't have sufficient
+          // precision to represent a nanosecond timestamp. We take a similar precaution for the thread ID.
+          int start = encoder.writeTimestampPrefix(timestamp);
+          int serializedLen = encoder.end() - start;
 
           synchronized (chunkSizes) {
-            if (pendingEventBuffer.append(serialized, 0, serializedLen, reservedBufferSpace)) {
-              chunkSizes.append(serializedLen, _maxEventUploadBytes);
+            boolean appended = pendingEventBuffer.append(encoder.buffer(), start, serializedLen, reservedBufferSpace);
+            if (!appended && mayEvict && evictLowSeverityEvents(serializedLen + reservedBufferSpace) > 0) {
+              evicted = true;
+              appended = pendingEventBuffer.append(encoder.buffer(), start, serializedLen, reservedBufferSpace);
+            }
+
+            if (appended) {
+              if (registeredGeneration != threadsGeneration)
+                register();
+              chunkSizes.appendEvent(serializedLen, evictable ? serializedLen : 0, _maxEventUploadBytes, timestamp,
+                  threadId, severity);
               totalBytesWritten += serializedLen;
+              batchReady = !uploadRequested && isBatchReady();
               discardingDueToMemoryLimit = false;
             } else {
               discardingDueToMemoryLimit = true;
-              pendingEventsReachedLimit = true;
-              pendingEventsLimitCounter++;
+              if (observeLimit) {
+                pendingEventsReachedLimit = true;
+                pendingEventsLimitCounter.incrementAndGet();
+              }
             }
           }
         }
       }
 
-      if (discardingDueToMemoryLimit && !isOverflowMessage) {
-        int snapshot = pendingEventsLimitCounter;
-        if (eventDiscardGeneration != snapshot) {
-          eventDiscardGeneration = snapshot;
+      // Signal the scheduler, and log, outside of uploadSynchronizer, to keep the critical section short.
+      if (evicted)
+        logEvictions();
+      if (batchReady)
+        requestUpload();
 
-          // Record a log event noting that we had to discard some events.
-          convertAndAddToBuffer(ASSIGN_MONOTONIC_TIMESTAMP, LogService.SPAN_TYPE_LEAF, Severity.warning,
-              new EventAttributes("tag", "eventBufferOverflow", "message", "Discarding log records due to buffer overflow"),
-              null, 0, true);
-        }
+      return new ResultAndTimestamp(discardingDueToMemoryLimit ? ConvertAndAddResult.discardedByEventOverflow
+          : ConvertAndAddResult.success, timestamp);
+    }
+
+    /**
+     * Implementation of addEventToBuffer for AppendMode.LockFree. The event is copied, with a fixed-size
+     * placeholder for its timestamp, into space claimed with CircularByteArray.reserve(), and then
+     * published in reservation order. The timestamp is assigned during the ordered publish step, so that
+     * timestamps are strictly increasing in buffer order, just as in appendUnderLock.
+     *
+     * @param severity See appendUnderLock, as are observeLimit, evictable, and mayEvict.
+     */
+    private ResultAndTimestamp appendWithoutLocking(EventEncoder encoder, long timestamp, int severity,
+        boolean isEndEvent, int reservedBufferSpace, boolean isOverflowMessage, boolean observeLimit, boolean evictable,
+        boolean mayEvict) {
+      if ((observeLimit && pendingEventsReachedLimit && !isEndEvent && !isOverflowMessage && !mayEvict)
+          || (bufferLimitDiscardSpanNesting > 0 && !isOverflowMessage)) {
+        // See the corresponding checks in appendUnderLock.
+        if (timestamp == ASSIGN_MONOTONIC_TIMESTAMP)
+          timestamp = getMonotonicNanos();
+        latestEventTimestamp = timestamp;
+        return new ResultAndTimestamp(ConvertAndAddResult.discardedByEventOverflow, timestamp);
+      }
 
-        if (memoryWarnLimiter.allow(TuningConstants.EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS)) {
-          Logging.log(EventUploader.this, Severity.warning, Logging.tagLogBufferOverflow,
-              "com.scalyr.api.logs: Discarding event, as buffer size of "
-              + memoryLimit + " bytes has been reached.");
+      int start = encoder.writeTimestampPlaceholder();
+      int serializedLen = encoder.end() - start;
+
+      long cursor = pendingEventBuffer.reserve(serializedLen, reservedBufferSpace);
+      if (cursor < 0 && mayEvict) {
+        boolean evicted = false;
+        synchronized (uploadSynchronizer) {
+          synchronized (chunkSizes) {
+            if (evictLowSeverityEvents(serializedLen + reservedBufferSpace) > 0) {
+              evicted = true;
+              cursor = pendingEventBuffer.reserve(serializedLen, reservedBufferSpace);
+            }
+          }
         }
+        if (evicted)
+          logEvictions();
+      }
+      if (cursor < 0) {
+        if (timestamp == ASSIGN_MONOTONIC_TIMESTAMP)
+          timestamp = getMonotonicNanos();
+        latestEventTimestamp = timestamp;
 
+        if (observeLimit) {
+          pendingEventsReachedLimit = true;
+          pendingEventsLimitCounter.incrementAndGet();
+        }
         return new ResultAndTimestamp(ConvertAndAddResult.discardedByEventOverflow, timestamp);
+      }
+
+      pendingEventBuffer.write(cursor, encoder.buffer(), start, serializedLen);
+
+      // Everything from here to publish() happens in buffer order, one producer at a time.
+      pendingEventBuffer.awaitTurn(cursor);
+      if (timestamp == ASSIGN_MONOTONIC_TIMESTAMP)
+        timestamp = getMonotonicNanos();
+      latestEventTimestamp = timestamp;
+
+      encoder.formatTimestampSlot(timestamp);
+      pendingEventBuffer.write(cursor + EventEncoder.TIMESTAMP_SLOT_OFFSET, encoder.buffer(),
+          start + EventEncoder.TIMESTAMP_SLOT_OFFSET, EventEncoder.TIMESTAMP_SLOT_LENGTH);
+
+      boolean batchReady;
+      synchronized (chunkSizes) {
+        if (registeredGeneration != threadsGeneration)
+          register();
+        chunkSizes.appendEvent(serializedLen, evictable ? serializedLen : 0, _maxEventUploadBytes, timestamp, threadId,
+            severity);
+        totalBytesWritten += serializedLen;
+        pendingEventBuffer.publish(cursor, serializedLen);
+        batchReady = !uploadRequested && isBatchReady();
+      }
+
+      if (batchReady)
+        requestUpload();
+
+      return new ResultAndTimestamp(ConvertAndAddResult.success, timestamp);
+    }
+  }
+
+  /**
+   * Free at least neededBytes in pendingEventBuffer, if possible, by evicting the oldest events in its oldest
+   * chunk which are less severe than UploaderOptions.evictionSeverityThreshold, sliding the remaining events
+   * forward. Only leaf events are evicted, so span nesting is unaffected. Return the number of bytes freed.
+   * <p>
+   * To amortize the cost of compacting the chunk, we free at least 1/EVENT_EVICTION_BATCH_FRACTION of it
+   * (if it holds that many evictable bytes).
+   * <p>
+   * Only the oldest chunk can be compacted this way, and only while it is not being uploaded, compressed,
+   * spilled, or sampled. ChunkSizeList tracks the evictable bytes in each chunk, so we know when there is
+   * nothing to gain.
+   *
+   * Caller must hold the locks on uploadSynchronizer and chunkSizes.
+   */
+  private int evictLowSeverityEvents(int neededBytes) {
+    if (chunkSizes.getFirstEvictable() == 0 || headChunkPinned || compressingBatch != null)
+      return 0;
+
+    UploadBatch head = uploadBatches.peekFirst();
+    if (head != null && (head.inFlight || head.acknowledged))
+      return 0;
+
+    int chunkBytes = chunkSizes.getFirst();
+    if (evictionScratch == null || evictionScratch.length < chunkBytes)
+      evictionScratch = new byte[chunkBytes];
+    byte[] chunk = evictionScratch;
+    int offset = 0;
+    for (ByteBuffer slice : pendingEventBuffer.oldestBytes(chunkBytes)) {
+      int length = slice.remaining();
+      slice.get(chunk, offset, length);
+      offset += length;
+    }
+
+    // Compact the events we keep toward the start of the array.
+    ChunkSizeList.Chunk metadata = chunkSizes.getChunk(0);
+    int targetBytes = Math.max(neededBytes, chunkBytes / TuningConstants.EVENT_EVICTION_BATCH_FRACTION);
+    int retainedBytes = 0;
+    int evictedCount = 0;
+    int freedBytes = 0;
+    int start = 0;
+    while (start < chunkBytes && freedBytes < targetBytes) {
+      int end = EventEncoder.eventEnd(chunk, start, chunkBytes);
+      if (end < 0) {
+        ScalyrUtil.Assert(false, "unable to parse buffered event chunk");
+        return 0;
+      }
+
+      int severity = EventEncoder.severityOf(chunk, start, end);
+      if (EventEncoder.spanTypeOf(chunk, start, end) == LogService.SPAN_TYPE_LEAF && severity >= 0
+          && severity < evictionThreshold) {
+        evictedCount++;
+        freedBytes += end - start;
+        metadata.removeEvent(severity);
       } else {
-        return new ResultAndTimestamp(ConvertAndAddResult.success, timestamp);
+        System.arraycopy(chunk, start, chunk, retainedBytes, end - start);
+        retainedBytes += end - start;
+      }
+      start = end;
+    }
+
+    // Events past the point where we stopped are kept as-is, in place; only the region we scanned is
+    // rewritten. If we scanned the whole chunk, nothing evictable is left in it.
+    int evictableRemaining = (start < chunkBytes) ? chunkSizes.getFirstEvictable() - freedBytes : 0;
+    chunkSizes.shrinkFirst(freedBytes, evictableRemaining);
+    if (freedBytes == 0)
+      return 0;
+
+    pendingEventBuffer.replaceOldestBytes(start, chunk, retainedBytes);
+
+    // The chunk's earlier upload attempt failed; it will be retried with its new extent.
+    int newChunkBytes = chunkBytes - freedBytes;
+    if (head != null) {
+      uploadBatches.removeFirst();
+      if (newChunkBytes > 0)
+        uploadBatches.addFirst(new UploadBatch(pendingEventBuffer.oldestCursor(), newChunkBytes, metadata));
+    }
+
+    totalBytesDropped += freedBytes;
+    eventsEvicted.addAndGet(evictedCount);
+    unloggedEvictedEvents += evictedCount;
+    unloggedEvictedBytes += freedBytes;
+    bufferReleases++;
+    if (blockedProducers > 0)
+      uploadSynchronizer.notifyAll();
+
+    return freedBytes;
+  }
+
+  /**
+   * Log the evictions performed by evictLowSeverityEvents since we last did so, subject to memoryWarnLimiter.
+   * Called after an eviction, once the caller has released uploadSynchronizer and chunkSizes.
+   */
+  private void logEvictions() {
+    if (!memoryWarnLimiter.allow(TuningConstants.EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS))
+      return;
+
+    long evictedCount, evictedBytes;
+    synchronized (uploadSynchronizer) {
+      evictedCount = unloggedEvictedEvents;
+      evictedBytes = unloggedEvictedBytes;
+      unloggedEvictedEvents = 0;
+      unloggedEvictedBytes = 0;
+    }
+
+    if (evictedCount > 0) {
+      Logging.log(EventUploader.this, Severity.warning, Logging.tagLogBufferOverflow,
+          "com.scalyr.api.logs: Evicted " + evictedCount + " low-severity events (" + evictedBytes
+          + " bytes), as buffer size of " + memoryLimit + " bytes has been reached.");
+    }
+  }
+
+  /**
+   * Return the number of buffered events which have been evicted to make room for more severe events. See
+   * UploaderOptions.evictionSeverityThreshold.
+   */
+  public long getEvictedEventCount() {
+    return eventsEvicted.get();
+  }
+
+  /**
+   * Return the number of events which have been discarded because the server refused to accept them (even
+   * in a batch of their own).
+   */
+  public long getRejectedEventCount() {
+    return eventsRejected.get();
+  }
+
+  /**
+   * Return the number of events discarded by sampling. See UploaderOptions.samplingBudget.
+   */
+  public long getSampledOutEventCount() {
+    return (sampler != null) ? sampler.getEventsSampledOut() : 0;
+  }
+
+  /**
+   * Wait until space is released from pendingEventBuffer (i.e. bufferReleases differs from the given value),
+   * or System.nanoTime() reaches deadlineNs. Return false if the deadline passed first.
+   */
+  private boolean awaitBufferRelease(long releases, long deadlineNs) throws InterruptedException {
+    synchronized (uploadSynchronizer) {
+      blockedProducers++;
+      try {
+        while (bufferReleases == releases) {
+          long remainingNs = deadlineNs - System.nanoTime();
+          if (remainingNs <= 0)
+            return false;
+          TimeUnit.NANOSECONDS.timedWait(uploadSynchronizer, remainingNs);
+        }
+        return true;
+      } finally {
+        blockedProducers--;
+      }
+    }
+  }
+
+  /**
+   * Return counters describing how each OverflowPolicy has been applied since this uploader was created.
+   */
+  public Map<OverflowPolicy, OverflowStats> getOverflowStats() {
+    Map<OverflowPolicy, OverflowStats> stats = new EnumMap<OverflowPolicy, OverflowStats>(OverflowPolicy.class);
+    for (OverflowPolicy policy : OverflowPolicy.values()) {
+      int i = policy.ordinal();
+      stats.put(policy, new OverflowStats(policy, overflowEventsShed.get(i), overflowEventsBlocked.get(i),
+          overflowBlockedNs.get(i)));
+    }
+    return stats;
+  }
+
+  /**
+   * Return true if pendingEventBuffer holds a batch which is ready for upload: a chunk which can no longer
+   * grow, or one which exceeds batchThresholdBytes(). (This may also return true for a chunk whose
+   * upload is already under way; in that case, the only cost is an extra upload tick.)
+   *
+   * Caller must hold the lock on chunkSizes.
+   */
+  private boolean isBatchReady() {
+    int chunkCount = chunkSizes.size();
+    return chunkCount > 1 || (chunkCount == 1 && chunkSizes.getFirst() > batchThresholdBytes());
+  }
+
+  /**
+   * Return the size at which the newest chunk is uploaded without waiting for batchDelayMs().
+   */
+  private int batchThresholdBytes() {
+    return (batchController != null) ? batchController.getBatchBytes() : _eventUploadByteThreshold;
+  }
+
+  /**
+   * Return how long after the previous upload the newest chunk is uploaded, if it hasn't reached
+   * batchThresholdBytes(). Includes uploadSpacingFuzzFactor (scaled to the delay, if adaptive).
+   */
+  private long batchDelayMs() {
+    if (batchController == null)
+      return TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS + uploadSpacingFuzzFactor;
+
+    long delayMs = batchController.getBatchDelayMs();
+    return delayMs + uploadSpacingFuzzFactor * delayMs / TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS;
+  }
+
+  /**
+   * Return true if events are arriving faster than we upload them: apart from those in flight, there are
+   * chunks waiting for upload besides the newest, or the newest has already outgrown batchThresholdBytes().
+   */
+  private boolean hasUploadBacklog() {
+    synchronized (uploadSynchronizer) {
+      synchronized (chunkSizes) {
+        int chunkCount = chunkSizes.size();
+        int waiting = precompressedBatches.size() + chunkCount - uploadsInFlight;
+        if (waiting > 1)
+          return true;
+        return waiting == 1 && chunkCount > 0 && chunkSizes.get(chunkCount - 1) > batchThresholdBytes();
       }
     }
   }
 
+  /**
+   * Return the current state of adaptive batching, or null if UploaderOptions.targetLatencyMs was not set.
+   */
+  public BatchingStats getBatchingStats() {
+    return (batchController != null) ? batchController.getStats() : null;
+  }
+
   /**
    * See TuningConstants.MAX_EVENT_UPLOAD_BYTES. Sometimes modified in tests. Should not be used
    * by client applications (this means you!).
@@ -1116,34 +3799,33 @@ public class EventUploader {
    * Most recently assigned timestamp. Used to ensure that timestamps are strictly increasing (within
    * a given process): nanoTime() can sometimes run backwards.
    */
-  private long lastTimestamp = ScalyrUtil.nanoTime();
-
-  /**
-   * Object used to synchronize access to lastTimestamp.
-   */
-  private final Object timestampLocker = new Object();
+  private final AtomicLong lastTimestamp = new AtomicLong(ScalyrUtil.nanoTime());
 
   /**
    * Return the current time (in nanoseconds since the epoch), but strictly greater than any
    * previous result from this method.
+   * <p>
+   * Lock-free: the append paths call this while holding their own lock (or their turn to publish), which
+   * is what orders timestamps in the buffer, so we needn't take a second lock here.
    *
    * Don't call this method directly unless you know what you are doing; it is primarily intended for internal use.
    */
   public long getMonotonicNanos() {
     long now = ScalyrUtil.nanoTime();
-    synchronized (timestampLocker) {
+    while (true) {
       // TODO: warn when nanoTime runs backwards.
-      long timestamp = Math.max(lastTimestamp + 1, now);
-      lastTimestamp = timestamp;
-
-      return timestamp;
+      long last = lastTimestamp.get();
+      long timestamp = Math.max(last + 1, now);
+      if (lastTimestamp.compareAndSet(last, timestamp))
+        return timestamp;
     }
   }
 
   enum ConvertAndAddResult {
     success,
     discardedByFilter,
-    discardedByEventOverflow
+    discardedByEventOverflow,
+    discardedBySampler
   }
 
   /**
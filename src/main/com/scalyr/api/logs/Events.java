@@ -20,7 +20,10 @@ package com.scalyr.api.logs;
 import com.scalyr.api.internal.Logging;
 import com.scalyr.api.internal.ScalyrUtil;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -94,6 +97,25 @@ public class Events {
    */
   public static synchronized void init(String apiToken, int memoryLimit, String scalyrServerAddress,
       EventAttributes serverAttributes, boolean reportThreadNames) {
+    init(apiToken, memoryLimit, scalyrServerAddress, serverAttributes, reportThreadNames, new EventUploader.UploaderOptions());
+  }
+
+  /**
+   * Variant which allows specifying advanced options for the event buffer and uploader.
+   *
+   * @param apiToken The API authorization token to use when communicating with the Scalyr Logs server.
+   * @param memoryLimit We limit memory usage (for buffering events to be uploaded)
+   *     to approximately this many bytes.
+   * @param scalyrServerAddress URL on which we invoke the Scalyr Logs API. If null, we use the standard
+   *     production server (currently https://log.scalyr.com).
+   * @param serverAttributes Attributes to associate with this event stream. All events in the stream
+   *     inherit these attributes. Can be null.
+   * @param reportThreadNames If true, then we include thread names in the metadata we upload to the server.
+   *     Set this to false only if your thread names contain sensitive data that should not be uploaded.
+   * @param options Advanced options; see EventUploader.UploaderOptions.
+   */
+  public static synchronized void init(String apiToken, int memoryLimit, String scalyrServerAddress,
+      EventAttributes serverAttributes, boolean reportThreadNames, EventUploader.UploaderOptions options) {
     if (uploaderInstance.get() != null)
       return;
 
@@ -102,7 +124,7 @@ public class Events {
       logService.setServerAddress(scalyrServerAddress);
 
     EventUploader instance = new EventUploader(logService, memoryLimit,
-        "sess_" + UUID.randomUUID(), true, serverAttributes, true, reportThreadNames);
+        "sess_" + UUID.randomUUID(), true, serverAttributes, true, reportThreadNames, null, null, options);
     instance.eventFilter = eventFilter;
 
     uploaderInstance.set(instance);
@@ -119,8 +141,8 @@ public class Events {
 
   /**
    * Specify whether to set connection="close" on each HTTP request to the Scalyr server.
-   * Defaults to true. This avoids any possibility of problems with the HTTP client failing
-   * to correctly track the connection state.
+   * Defaults to false, so that connections are kept alive and reused. Setting it avoids any
+   * possibility of problems with the HTTP client failing to correctly track the connection state.
    */
   public static void setCloseConnections(boolean value) {
     EventUploader instance = uploaderInstance.get();
@@ -453,6 +475,87 @@ public class Events {
     return false;
   }
 
+  /**
+   * Force all events recorded so far to be uploaded to the server, without blocking. Unlike flush(), the
+   * returned future completes as soon as the server has acknowledged the last of these events, rather than
+   * at the next polling interval.
+   *
+   * @param timeoutMs deadline for the flush, in milliseconds. A non-positive value means no deadline.
+   * @return a future which completes with the outcome of the flush, including the number of bytes of
+   *     events which were flushed, dropped, or still pending at the deadline
+   */
+  public static CompletableFuture<EventUploader.FlushResult> flushAsync(long timeoutMs) {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.flushAsync(timeoutMs);
+    return CompletableFuture.completedFuture(new EventUploader.FlushResult(false, 0, 0, 0));
+  }
+
+  /**
+   * Return counters describing how each EventUploader.OverflowPolicy has been applied: the number of events
+   * discarded because the event buffer was full, and the time recording threads spent blocked waiting for
+   * space. See EventUploader.UploaderOptions.overflowPolicy.
+   */
+  public static Map<EventUploader.OverflowPolicy, EventUploader.OverflowStats> getOverflowStats() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getOverflowStats();
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Return the number of events evicted from the event buffer to make room for more severe events. See
+   * EventUploader.UploaderOptions.evictionSeverityThreshold.
+   */
+  public static long getEvictedEventCount() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getEvictedEventCount();
+    return 0;
+  }
+
+  /**
+   * Return the number of events which have been discarded because the server refused to accept them. A batch
+   * of events which the server rejects is split and retried until the offending events are isolated.
+   */
+  public static long getRejectedEventCount() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getRejectedEventCount();
+    return 0;
+  }
+
+  /**
+   * Return the number of events discarded by sampling. See EventUploader.UploaderOptions.samplingBudget.
+   */
+  public static long getSampledOutEventCount() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getSampledOutEventCount();
+    return 0;
+  }
+
+  /**
+   * Return the current state of adaptive batching, or null if it is not enabled. See
+   * EventUploader.UploaderOptions.targetLatencyMs.
+   */
+  public static EventUploader.BatchingStats getBatchingStats() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getBatchingStats();
+    return null;
+  }
+
+  /**
+   * Return the number of threads for which events are being tracked. See EventUploader.getThreadCount.
+   */
+  public static int getThreadCount() {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      return instance.getThreadCount();
+    return 0;
+  }
+
   /**
    * Invoke the event upload logic. Only for use in tests.
    * <p>
@@ -473,15 +576,36 @@ public class Events {
     return uploaderInstance.get().minUploadIntervalMs;
   }
 
+  /**
+   * Return the number of bytes of compressed event chunks awaiting upload (see
+   * EventUploader.UploaderOptions.precompressedMemoryLimit). Only for use in tests.
+   * <p>
+   * Should not be used by client applications (this means you!).
+   */
+  public static synchronized long _getPrecompressedBytes() {
+    return uploaderInstance.get().precompressedBytes();
+  }
+
   /**
    * Wipe the state of the Events reporting system. Should only be used for internal tests.
    */
   public static synchronized void _reset(String artificialSessionId,
       LogService logService, int memoryLimit, boolean autoUpload, boolean reportThreadNames) {
+    _reset(artificialSessionId, logService, memoryLimit, autoUpload, reportThreadNames, new EventUploader.UploaderOptions());
+  }
+
+  /**
+   * Wipe the state of the Events reporting system, using the given uploader options. Should only be used
+   * for internal tests.
+   */
+  public static synchronized void _reset(String artificialSessionId,
+      LogService logService, int memoryLimit, boolean autoUpload, boolean reportThreadNames,
+      EventUploader.UploaderOptions options) {
     if (uploaderInstance.get() != null)
       uploaderInstance.get().terminate();
 
-    EventUploader instance = new EventUploader(logService, memoryLimit, artificialSessionId, autoUpload, null, true, reportThreadNames);
+    EventUploader instance = new EventUploader(logService, memoryLimit, artificialSessionId, autoUpload, null, true,
+        reportThreadNames, null, null, options);
     uploaderInstance.set(instance);
     instance.eventFilter = eventFilter;
     instance.compression = Events.DEFAULT_COMPRESSION_TYPE;
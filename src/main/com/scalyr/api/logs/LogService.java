@@ -20,6 +20,7 @@ package com.scalyr.api.logs;
 import com.scalyr.api.ScalyrException;
 import com.scalyr.api.ScalyrNetworkException;
 import com.scalyr.api.internal.ScalyrService;
+import com.scalyr.api.internal.ZstdDictionary;
 import com.scalyr.api.json.JSONArray;
 import com.scalyr.api.json.JSONObject;
 import com.scalyr.api.json.JSONStreamAware;
@@ -83,10 +84,59 @@ public class LogService extends ScalyrService {
    *
    * @throws ScalyrException
    * @throws ScalyrNetworkException
+   *
+   * @deprecated EventUploader no longer calls this overload, so overriding it does not intercept uploads.
+   *     Override {@link #uploadEvents(String, JSONStreamAware, JSONStreamAware, JSONStreamAware, String, ZstdDictionary)}
+   *     instead; this overload delegates to it.
    */
+  @Deprecated
   public JSONObject uploadEvents(String sessionId, JSONObject sessionInfo,
       JSONStreamAware events, JSONArray threadInfos, String contentEncoding)
       throws ScalyrException, ScalyrNetworkException {
+    return uploadEvents(sessionId, (JSONStreamAware) sessionInfo, events, (JSONStreamAware) threadInfos,
+        contentEncoding, null);
+  }
+
+  /**
+   * Upload a batch of events to the Scalyr Logs service, compressing them with the given Zstandard dictionary
+   * (if contentEncoding is zstd). The server must already have a copy of the dictionary. Parameters are as for
+   * the other overloads.
+   *
+   * @throws ScalyrException
+   * @throws ScalyrNetworkException
+   */
+  public JSONObject uploadEvents(String sessionId, JSONObject sessionInfo,
+      JSONStreamAware events, JSONArray threadInfos, String contentEncoding, ZstdDictionary zstdDictionary)
+      throws ScalyrException, ScalyrNetworkException {
+    return uploadEvents(sessionId, (JSONStreamAware) sessionInfo, events, (JSONStreamAware) threadInfos,
+        contentEncoding, zstdDictionary);
+  }
+
+  /**
+   * Upload a batch of events, with the session and thread metadata given as arbitrary JSON values -- for
+   * instance, RawJson holding metadata which was serialized ahead of time. Parameters are as for the other
+   * overloads; threadInfos may be null, and is then omitted from the request, and zstdDictionary may be null.
+   *
+   * This is the overload which EventUploader calls, and to which the other overloads delegate; subclasses
+   * which intercept or redirect uploads should override it.
+   *
+   * @throws ScalyrException
+   * @throws ScalyrNetworkException
+   */
+  public JSONObject uploadEvents(String sessionId, JSONStreamAware sessionInfo,
+      JSONStreamAware events, JSONStreamAware threadInfos, String contentEncoding, ZstdDictionary zstdDictionary)
+      throws ScalyrException, ScalyrNetworkException {
+    if (zstdDictionary == null)
+      return invokeApi("addEvents", buildUploadParameters(sessionId, sessionInfo, events, threadInfos), contentEncoding);
+
+    RpcOptions options = new RpcOptions();
+    options.zstdDictionary = zstdDictionary;
+    return invokeApiX("addEvents", buildUploadParameters(sessionId, sessionInfo, events, threadInfos), options,
+        contentEncoding).response;
+  }
+
+  private JSONObject buildUploadParameters(String sessionId, JSONStreamAware sessionInfo, JSONStreamAware events,
+      JSONStreamAware threadInfos) {
     JSONObject parameters = new JSONObject();
 
     parameters.put("clientVersion", 1);
@@ -95,10 +145,10 @@ public class LogService extends ScalyrService {
     if (sessionInfo != null)
       parameters.put("sessionInfo", sessionInfo);
     parameters.put("events", events);
-    if (threadInfos != null && threadInfos.size() > 0)
+    if (threadInfos != null && !(threadInfos instanceof JSONArray && ((JSONArray) threadInfos).isEmpty()))
       parameters.put("threads", threadInfos);
 
-    return invokeApi("addEvents", parameters, contentEncoding);
+    return parameters;
   }
 
   /**
@@ -209,7 +209,7 @@ public class QueryService extends ScalyrService {
     if (continuationToken != null)
       parameters.put("continuationToken", continuationToken);
 
-    JSONObject rawApiResponse = invokeApi("api/query", parameters);
+    JSONObject rawApiResponse = invokeIdempotentApi("api/query", parameters);
     checkResponseStatus(rawApiResponse);
     debugLog("Finishing query for [" + startTime + "..." + endTime + "] after " + (System.currentTimeMillis() - launchTime) + " ms");
     return unpackLogQueryResult(rawApiResponse);
@@ -428,7 +428,7 @@ public class QueryService extends ScalyrService {
     if (buckets != null)
       parameters.put("buckets", buckets);
 
-    JSONObject rawApiResponse = invokeApi("api/numericQuery", parameters);
+    JSONObject rawApiResponse = invokeIdempotentApi("api/numericQuery", parameters);
     checkResponseStatus(rawApiResponse);
     debugLog("Finishing query for [" + startTime + "..." + endTime + "] after " + (System.currentTimeMillis() - launchTime) + " ms");
     return unpackNumericQueryResult(rawApiResponse);
@@ -502,7 +502,7 @@ public class QueryService extends ScalyrService {
     if (endTime != null)
       parameters.put("endTime", endTime);
 
-    JSONObject rawApiResponse = invokeApi("api/facetQuery", parameters);
+    JSONObject rawApiResponse = invokeIdempotentApi("api/facetQuery", parameters);
     checkResponseStatus(rawApiResponse);
     return unpackFacetQueryResult(rawApiResponse);
   }
@@ -587,7 +587,7 @@ public class QueryService extends ScalyrService {
       queriesJson.add(queryJson);
     }
 
-    JSONObject rawApiResponse = invokeApi("api/timeseriesQuery", parameters);
+    JSONObject rawApiResponse = invokeIdempotentApi("api/timeseriesQuery", parameters);
     checkResponseStatus(rawApiResponse);
 
     return unpackTimeseriesQueryResult(rawApiResponse);
@@ -0,0 +1,113 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.tests;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.scalyr.api.internal.ZstdDictionary;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.OutputStream;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares compression ratio and CPU cost of gzip, Zstandard, and Zstandard with a trained dictionary, for
+ * upload-sized batches of synthetic events. Not run as part of the regular test suite; remove the @Ignore
+ * annotation (or invoke the test directly) to run it. Results are written to stdout.
+ */
+@Ignore public class CompressionBenchmark {
+  private static final int[] BATCH_SIZES = {4 * 1024, 32 * 1024, 256 * 1024};
+  private static final int TOTAL_BYTES = 64 * 1024 * 1024;
+
+  @Test public void benchmark() throws IOException {
+    Random random = new Random(0);
+
+    List<byte[]> samples = new ArrayList<byte[]>();
+    for (int i = 0; i < 10000; i++)
+      samples.add(syntheticEvent(random));
+    ZstdDictionary dictionary = ZstdDictionary.train(samples, 32 * 1024);
+
+    System.out.println(String.format("%10s %-16s %8s %10s", "batch", "method", "ratio", "CPU ms/MB"));
+    for (int batchSize : BATCH_SIZES) {
+      byte[] batch = syntheticBatch(random, batchSize);
+      run(batch, "gzip", null);
+      run(batch, "zstd", null);
+      run(batch, "zstd+dictionary", dictionary);
+    }
+  }
+
+  /**
+   * Compress TOTAL_BYTES worth of copies of the given batch, and report the compression ratio and CPU time used.
+   */
+  private void run(byte[] batch, String label, ZstdDictionary dictionary) throws IOException {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    int iterations = TOTAL_BYTES / batch.length;
+
+    long compressedBytes = 0;
+    long startNs = threadBean.getCurrentThreadCpuTime();
+    for (int i = 0; i < iterations; i++) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      OutputStream compressor;
+      if (label.equals("gzip")) {
+        compressor = new GZIPOutputStream(output);
+      } else {
+        ZstdOutputStream zstd = new ZstdOutputStream(output, RecyclingBufferPool.INSTANCE);
+        zstd.setLevel(ZstdDictionary.DEFAULT_LEVEL);
+        if (dictionary != null)
+          zstd.setDict(dictionary.getContent());
+        compressor = zstd;
+      }
+      compressor.write(batch);
+      compressor.close();
+      compressedBytes += output.size();
+    }
+    long cpuNs = threadBean.getCurrentThreadCpuTime() - startNs;
+
+    double ratio = (double) batch.length * iterations / compressedBytes;
+    double msPerMb = cpuNs / 1e6 / ((double) batch.length * iterations / (1024 * 1024));
+    System.out.println(String.format("%10d %-16s %8.2f %10.2f", batch.length, label, ratio, msPerMb));
+  }
+
+  private static byte[] syntheticBatch(Random random, int size) {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    while (batch.size() < size) {
+      byte[] event = syntheticEvent(random);
+      batch.write(event, 0, event.length);
+    }
+    return batch.toByteArray();
+  }
+
+  private static byte[] syntheticEvent(Random random) {
+    String[] tags = {"request", "query", "cache", "gc"};
+    String[] paths = {"/api/addEvents", "/api/query", "/api/getFile", "/static/app.js"};
+    return ("{\"thread\":\"" + random.nextInt(16) + "\",\"ts\":\"" + (1600000000000000000L + random.nextInt(1000000000))
+        + "\",\"sev\":3,\"attrs\":{\"tag\":\"" + tags[random.nextInt(tags.length)]
+        + "\",\"path\":\"" + paths[random.nextInt(paths.length)] + "\",\"status\":" + (random.nextInt(10) == 0 ? 500 : 200)
+        + ",\"latencyMs\":" + random.nextInt(2000) + ",\"message\":\"request handled\"}},")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+}
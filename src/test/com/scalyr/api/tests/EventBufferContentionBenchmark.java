@@ -0,0 +1,133 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.tests;
+
+import com.scalyr.api.internal.CountingOutputStream;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.knobs.ConfigurationFile;
+import com.scalyr.api.knobs.Knob;
+import com.scalyr.api.logs.EventAttributes;
+import com.scalyr.api.logs.EventUploader;
+import com.scalyr.api.logs.Events;
+import com.scalyr.api.logs.LogService;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many events per second can be recorded as the number of producer threads grows, for each
+ * EventUploader.AppendMode. Not run as part of the regular test suite; remove the @Ignore annotation (or
+ * invoke the test directly) to run it. Results are written to stdout.
+ */
+@Ignore public class EventBufferContentionBenchmark {
+  private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+  private static final int RUN_MILLIS = 2000;
+  private static final int MEMORY_LIMIT = 64 * 1024 * 1024;
+
+  @Test public void benchmark() throws Exception {
+    Knob.setDefaultFiles(new ConfigurationFile[0]);
+
+    System.out.println(String.format("%8s %20s %20s", "threads", "Synchronized ev/s", "LockFree ev/s"));
+    for (int threadCount : THREAD_COUNTS) {
+      double synchronizedRate = run(EventUploader.AppendMode.Synchronized, threadCount);
+      double lockFreeRate = run(EventUploader.AppendMode.LockFree, threadCount);
+      System.out.println(String.format("%8d %20.0f %20.0f", threadCount, synchronizedRate, lockFreeRate));
+    }
+  }
+
+  /**
+   * Record events from threadCount threads for RUN_MILLIS, while a separate thread continuously drains
+   * the buffer. Return the number of events recorded per second.
+   */
+  private double run(EventUploader.AppendMode mode, int threadCount) throws InterruptedException {
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.appendMode = mode;
+    Events._reset("benchmarkSession", new DiscardingLogServer(), MEMORY_LIMIT, false, true, options);
+
+    final AtomicLong eventCount = new AtomicLong();
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final long[] stopAtMs = new long[1];
+
+    Thread drainer = new Thread() {
+      @Override public void run() {
+        while (System.currentTimeMillis() < stopAtMs[0] || stopAtMs[0] == 0)
+          Events._uploadTimerTick(true);
+      }
+    };
+
+    Thread[] producers = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int threadIndex = i;
+      producers[i] = new Thread() {
+        @Override public void run() {
+          try {
+            startLatch.await();
+          } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+          }
+
+          long count = 0;
+          while (System.currentTimeMillis() < stopAtMs[0]) {
+            for (int j = 0; j < 100; j++)
+              Events.info(new EventAttributes("tag", "benchmark", "thread", threadIndex, "seq", count + j,
+                  "message", "request handled"));
+            count += 100;
+          }
+          eventCount.addAndGet(count);
+        }
+      };
+      producers[i].start();
+    }
+
+    long startMs = System.currentTimeMillis();
+    stopAtMs[0] = startMs + RUN_MILLIS;
+    drainer.start();
+    startLatch.countDown();
+
+    for (Thread producer : producers)
+      producer.join();
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    drainer.join();
+
+    return eventCount.get() * 1000.0 / elapsedMs;
+  }
+
+  /**
+   * LogService which accepts every upload. The uploaded events are serialized (so that the buffer is
+   * actually read), but otherwise discarded.
+   */
+  private static class DiscardingLogServer extends LogService {
+    public DiscardingLogServer() {
+      super("dummyToken");
+      setServerAddress("dummyServerAddress");
+    }
+
+    @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+      try {
+        ((JSONStreamAware) parameters.get("events")).writeJSONBytes(new CountingOutputStream());
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      return new JSONObject().set("status", "success");
+    }
+  }
+}
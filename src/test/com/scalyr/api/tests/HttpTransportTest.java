@@ -0,0 +1,761 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.tests;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.scalyr.api.Converter;
+import com.scalyr.api.ScalyrNetworkException;
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.EndpointHealth;
+import com.scalyr.api.internal.HttpClientPool;
+import com.scalyr.api.internal.PrecompressedJson;
+import com.scalyr.api.internal.RetryPolicy;
+import com.scalyr.api.internal.ScalyrService;
+import com.scalyr.api.internal.ScalyrService.InvokeApiResult;
+import com.scalyr.api.internal.ZstdDictionary;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.RawJson;
+import com.scalyr.api.knobs.ConfigurationFile;
+import com.scalyr.api.knobs.Knob;
+import com.scalyr.api.knobs.KnobService;
+import com.scalyr.api.logs.EventAttributes;
+import com.scalyr.api.logs.EventUploader;
+import com.scalyr.api.logs.Events;
+import com.scalyr.api.logs.LogService;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the HTTP transport in ScalyrService (both invokeApiX and invokeApiAsync), against a local HTTP server.
+ */
+public class HttpTransportTest extends ScalyrApiTestBase {
+  private HttpServer httpServer;
+
+  /**
+   * Request bodies received by httpServer, decompressed. Synchronize access.
+   */
+  private final List<String> requestBodies = new ArrayList<String>();
+
+  /**
+   * Zstandard dictionaries known to httpServer, keyed by ID.
+   */
+  private final Map<Long, byte[]> zstdDictionaries = new ConcurrentHashMap<Long, byte[]>();
+
+  /**
+   * Number of requests received by httpServer which were compressed with a dictionary.
+   */
+  private final AtomicInteger dictionaryRequests = new AtomicInteger();
+
+  /**
+   * Number of Zstandard frames in each zstd-compressed request received by httpServer. Synchronize access.
+   */
+  private final List<Integer> zstdFrameCounts = new ArrayList<Integer>();
+
+  /**
+   * Number of upcoming requests to which httpServer should delay its response by SLOW_RESPONSE_MS.
+   */
+  private final AtomicInteger slowResponses = new AtomicInteger();
+
+  private static final long SLOW_RESPONSE_MS = 5000;
+
+  /**
+   * If not null, httpServer rejects any request whose body contains this text: with an error/client/badParam
+   * status, or, if rejectWithHttp413 is set, with an HTTP 413 (Payload Too Large) response.
+   */
+  private volatile String rejectedBodyText;
+  private volatile boolean rejectWithHttp413;
+
+  private ExecutorService serverExecutor;
+
+  @Override @Before public void setup() {
+    super.setup();
+    Knob.setDefaultFiles(new ConfigurationFile[0]);
+
+    try {
+      httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    serverExecutor = Executors.newCachedThreadPool();
+    httpServer.setExecutor(serverExecutor);
+    httpServer.createContext("/", exchange -> {
+      InputStream input = exchange.getRequestBody();
+      String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      if ("zstd".equals(contentEncoding) || "zstandard".equals(contentEncoding)) {
+        byte[] compressed = readBytes(input);
+        synchronized (zstdFrameCounts) {
+          zstdFrameCounts.add(countZstdFrames(compressed));
+        }
+        input = new ByteArrayInputStream(compressed);
+      }
+      if ("gzip".equals(contentEncoding))
+        input = new GZIPInputStream(input);
+      else if ("zstd".equals(contentEncoding) || "zstandard".equals(contentEncoding)) {
+        ZstdInputStream zstdInput = new ZstdInputStream(input);
+        String dictionaryId = exchange.getRequestHeaders().getFirst(ZstdDictionary.ID_HEADER);
+        if (dictionaryId != null) {
+          zstdInput.setDict(zstdDictionaries.get(Long.parseLong(dictionaryId)));
+          dictionaryRequests.incrementAndGet();
+        }
+        input = zstdInput;
+      }
+      String body = readString(input);
+      synchronized (requestBodies) {
+        requestBodies.add(body);
+      }
+
+      if (slowResponses.getAndDecrement() > 0) {
+        try {
+          Thread.sleep(SLOW_RESPONSE_MS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      String rejectedText = rejectedBodyText;
+      boolean rejected = rejectedText != null && body.contains(rejectedText);
+      int responseCode = (rejected && rejectWithHttp413) ? 413 : 200;
+      String responseText;
+      if (responseCode == 413)
+        responseText = "Payload Too Large";
+      else if (rejected)
+        responseText = "{\"status\": \"error/client/badParam\", \"message\": \"rejected\"}";
+      else if (exchange.getRequestURI().getPath().endsWith("/getFile"))
+        responseText = "{\"status\": \"success/unchanged\", \"version\": 3}";
+      else
+        responseText = "{\"status\": \"success\"}";
+      byte[] response = responseText.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(responseCode, response.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(response);
+      }
+    });
+    httpServer.start();
+  }
+
+  @Override @After public void teardown() {
+    httpServer.stop(0);
+    serverExecutor.shutdownNow();
+    super.teardown();
+  }
+
+  @Test public void testInvokeApiAsync() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    String rawResponse = service.getFileAsync("/params.txt", 2L).get(10, TimeUnit.SECONDS);
+    JSONObject response = (JSONObject) JSONParser.parse(rawResponse);
+    assertEquals("success/unchanged", response.get("status"));
+
+    assertEquals(1, requestBodies.size());
+    JSONObject request = (JSONObject) JSONParser.parse(requestBodies.get(0));
+    assertEquals("/params.txt", request.get("path"));
+    assertEquals(2L, request.get("expectedVersion"));
+  }
+
+  /**
+   * Verify that many requests can be outstanding at once.
+   */
+  @Test public void testConcurrentRequests() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    // Responses are parsed, and futures completed, off the I/O threads.
+    final Set<String> completionThreads = ConcurrentHashMap.newKeySet();
+    List<CompletableFuture<InvokeApiResult>> futures = new ArrayList<CompletableFuture<InvokeApiResult>>();
+    for (int i = 0; i < 50; i++) {
+      CompletableFuture<InvokeApiResult> future = service.invokeApiAsync("getFile", new JSONObject().set("path", "/file" + i));
+      future.whenComplete((result, throwable) -> completionThreads.add(Thread.currentThread().getName()));
+      futures.add(future);
+    }
+
+    for (CompletableFuture<InvokeApiResult> future : futures) {
+      InvokeApiResult result = future.get(10, TimeUnit.SECONDS);
+      assertEquals("success/unchanged", result.response.get("status"));
+      assertTrue(result.requestLength > 0);
+    }
+    assertEquals(50, requestBodies.size());
+    for (String threadName : completionThreads)
+      assertFalse(threadName, threadName.startsWith("Scalyr I/O"));
+  }
+
+  /**
+   * Verify that synchronous requests reuse a kept-alive connection, unless closeConnections is set, and that
+   * the pool reports its activity.
+   */
+  @Test public void testConnectionReuse() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+    service.setHttpClientPool(new HttpClientPool());
+
+    for (int i = 0; i < 10; i++)
+      assertEquals("success", service.invokeApiX("putFile", new JSONObject().set("path", "/file" + i), "gzip")
+          .response.get("status"));
+
+    HttpClientPool.Stats stats = service.getConnectionPoolStats();
+    assertEquals(10, stats.requests);
+    assertEquals(1, stats.connectionsOpened);
+    assertEquals(0, stats.leased);
+    assertEquals(1, stats.available);
+    assertEquals(0, stats.pending);
+    assertEquals(20, stats.maxTotal);
+    assertEquals(15, stats.maxPerRoute);
+
+    service.closeConnections = true;
+    for (int i = 0; i < 5; i++)
+      service.invokeApiX("putFile", new JSONObject().set("path", "/file" + i), "gzip");
+
+    // The first of these requests goes out on the kept-alive connection; each closes its connection afterward.
+    stats = service.getConnectionPoolStats();
+    assertEquals(15, stats.requests);
+    assertEquals(5, stats.connectionsOpened);
+    assertEquals(0, stats.available);
+  }
+
+  /**
+   * Verify that a request which fails on one server is retried on another.
+   */
+  @Test public void testRetryOnAnotherServer() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(deadServerAddress() + "," + liveServerAddress());
+
+    // Servers are tried in random order, so repeat a few times to exercise both orders.
+    for (int i = 0; i < 5; i++) {
+      JSONObject response = (JSONObject) JSONParser.parse(service.getFileAsync("/params.txt", null).get(10, TimeUnit.SECONDS));
+      assertEquals("success/unchanged", response.get("status"));
+    }
+  }
+
+  /**
+   * Verify that a dead server's circuit breaker opens, so that it stops absorbing requests.
+   */
+  @Test public void testCircuitBreaker() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(deadServerAddress() + "," + liveServerAddress());
+
+    for (int i = 0; i < 20; i++)
+      assertEquals("success", service.invokeApiX("putFile", new JSONObject().set("path", "/file" + i), "gzip")
+          .response.get("status"));
+
+    List<EndpointHealth.Stats> stats = service.getEndpointStats();
+    assertEquals(2, stats.size());
+    EndpointHealth.Stats dead = stats.get(0), live = stats.get(1);
+    assertTrue(dead.failures <= TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD);
+    assertEquals(dead.failures, dead.requests);
+    assertEquals(dead.failures == TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD,
+        dead.state == EndpointHealth.BreakerState.Open);
+    assertEquals(20, live.requests);
+    assertEquals(0, live.failures);
+    assertEquals(EndpointHealth.BreakerState.Closed, live.state);
+    assertTrue(live.latencyMs >= 0);
+  }
+
+  /**
+   * Verify that requests refused by the server -- with a client error status, or an HTTP 413 response -- don't
+   * count against the server's health, however many there are.
+   */
+  @Test public void testClientErrorsDontTripBreaker() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+    rejectedBodyText = "poison";
+
+    int requests = 0;
+    for (boolean http413 : new boolean[]{false, true}) {
+      rejectWithHttp413 = http413;
+      for (int i = 0; i < TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD + 1; i++) {
+        try {
+          service.invokeApiX("putFile", new JSONObject().set("path", "/poison.txt"), "gzip");
+          fail("request should have failed");
+        } catch (ScalyrNetworkException ex) {
+          assertTrue(ScalyrService.isClientError(ex));
+        }
+        requests++;
+      }
+    }
+
+    EndpointHealth.Stats stats = service.getEndpointStats().get(0);
+    assertEquals(requests, stats.requests);
+    assertEquals(0, stats.failures);
+    assertEquals(0, stats.errorRate, 0);
+    assertEquals(EndpointHealth.BreakerState.Closed, stats.state);
+  }
+
+  /**
+   * Verify that a slow request to an idempotent method is hedged on another server, and that we take the
+   * hedge's response rather than waiting for the original.
+   */
+  @Test public void testHedgedRequest() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    // Two addresses for the same server, so that the hedge has somewhere to go.
+    service.setServerAddress(liveServerAddress() + "," + liveServerAddress() + "/hedge");
+    service.hedgeIdempotentRequests = true;
+
+    slowResponses.set(1);
+    long startMs = System.currentTimeMillis();
+    JSONObject response = (JSONObject) JSONParser.parse(service.getFile("/params.txt", null, null));
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    assertEquals("success/unchanged", response.get("status"));
+    assertTrue(elapsedMs >= TuningConstants.HEDGE_DEFAULT_DELAY_MS);
+    assertTrue(elapsedMs < SLOW_RESPONSE_MS);
+    assertEquals(2, requestBodies.size());
+
+    ScalyrService.HedgingStats stats = service.getHedgingStats();
+    assertEquals(1, stats.requests);
+    assertEquals(1, stats.hedgesSent);
+    assertEquals(1, stats.hedgesWon);
+    assertEquals(0, stats.hedgesDenied);
+
+    // The abandoned original request counts as neither a success nor a failure of its server.
+    long outcomes = 0;
+    for (EndpointHealth.Stats endpoint : service.getEndpointStats())
+      outcomes += endpoint.requests;
+    assertEquals(1, outcomes);
+
+    // A prompt response isn't hedged.
+    response = (JSONObject) JSONParser.parse(service.getFile("/params.txt", null, null));
+    assertEquals("success/unchanged", response.get("status"));
+    assertEquals(3, requestBodies.size());
+    assertEquals(2, service.getHedgingStats().requests);
+    assertEquals(1, service.getHedgingStats().hedgesSent);
+
+    // Requests to methods with side effects are never hedged.
+    assertEquals("success", service.putFile("/params.txt", null, "{}", false).get("status"));
+    assertEquals(2, service.getHedgingStats().requests);
+  }
+
+  /**
+   * Verify that a request's deadline cuts short a slow response, and that no retry is started after it.
+   */
+  @Test public void testDeadline() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress() + "," + liveServerAddress() + "/retry");
+
+    slowResponses.set(1);
+    ScalyrService.RpcOptions options = new ScalyrService.RpcOptions();
+    options.deadlineMs = System.currentTimeMillis() + 500;
+    long startMs = System.currentTimeMillis();
+    try {
+      service.invokeApiX("getFile", new JSONObject().set("path", "/params.txt"), options, "gzip");
+      fail("request should have failed");
+    } catch (ScalyrNetworkException ex) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - startMs < SLOW_RESPONSE_MS);
+    assertEquals(1, requestBodies.size());
+    assertEquals(0, service.getRetryStats().retries);
+
+    // A deadline which has already passed fails without issuing a request.
+    try {
+      service.invokeApiX("getFile", new JSONObject().set("path", "/params.txt"), options, "gzip");
+      fail("request should have failed");
+    } catch (ScalyrNetworkException ex) {
+      assertTrue(ex.getMessage().contains("Deadline"));
+    }
+    assertEquals(1, requestBodies.size());
+  }
+
+  /**
+   * Verify that retries stop once the retry budget is exhausted.
+   */
+  @Test public void testRetryBudget() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(deadServerAddress() + "," + deadServerAddress());
+
+    for (int i = 0; i < 15; i++) {
+      try {
+        service.invokeApiX("getFile", new JSONObject().set("path", "/params.txt"), "gzip");
+        fail("request should have failed");
+      } catch (ScalyrNetworkException ex) {
+        // Expected.
+      }
+    }
+
+    // The budget allows RETRY_BUDGET_BURST retries, plus RETRY_BUDGET_RATIO per request.
+    RetryPolicy.Stats stats = service.getRetryStats();
+    assertEquals(15, stats.requests);
+    assertEquals(15, stats.retries + stats.retriesDenied);
+    assertTrue(stats.retriesDenied > 0);
+    assertTrue(stats.retries >= TuningConstants.RETRY_BUDGET_BURST - 1);
+    assertTrue(stats.retries <= TuningConstants.RETRY_BUDGET_BURST + 15 * TuningConstants.RETRY_BUDGET_RATIO);
+  }
+
+  /**
+   * Verify that a request which the server refuses with a client error status isn't retried on another server,
+   * and isn't charged to the retry budget.
+   */
+  @Test public void testClientErrorNotRetried() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    // Two addresses for the same server, so that a retry would have somewhere to go.
+    service.setServerAddress(liveServerAddress() + "," + liveServerAddress() + "/second");
+    rejectedBodyText = "poison";
+
+    try {
+      service.invokeApiX("putFile", new JSONObject().set("path", "/poison.txt"), "gzip");
+      fail("request should have failed");
+    } catch (ScalyrNetworkException ex) {
+      assertEquals("error/client/badParam", ScalyrService.errorStatus(ex));
+    }
+
+    try {
+      service.invokeApiAsync("putFile", new JSONObject().set("path", "/poison.txt")).get(10, TimeUnit.SECONDS);
+      fail("request should have failed");
+    } catch (ExecutionException ex) {
+      assertEquals("error/client/badParam", ScalyrService.errorStatus(ex.getCause()));
+    }
+
+    assertEquals(2, requestBodies.size());
+    RetryPolicy.Stats stats = service.getRetryStats();
+    assertEquals(2, stats.requests);
+    assertEquals(0, stats.retries);
+    assertEquals(0, stats.retriesDenied);
+  }
+
+  @Test public void testFailure() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(deadServerAddress());
+
+    try {
+      service.getFileAsync("/params.txt", null).get(10, TimeUnit.SECONDS);
+      fail("request should have failed");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof ScalyrNetworkException);
+    }
+  }
+
+  /**
+   * Verify that a synchronous request's body is streamed intact through each compression method, and that
+   * its uncompressed length is reported.
+   */
+  @Test public void testStreamedRequestBody() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 20000; i++)
+      content.append("line ").append(i).append('\n');
+    JSONObject parameters = new JSONObject().set("path", "/big.txt").set("content", content.toString());
+
+    String[] encodings = {null, "gzip", "zstd"};
+    for (int i = 0; i < encodings.length; i++) {
+      InvokeApiResult result = service.invokeApiX("putFile", parameters, encodings[i]);
+      assertEquals("success", result.response.get("status"));
+
+      String body = requestBodies.get(i);
+      assertEquals(body.getBytes(StandardCharsets.UTF_8).length, result.requestLength);
+      assertEquals(content.toString(), ((JSONObject) JSONParser.parse(body)).get("content"));
+    }
+  }
+
+  /**
+   * Verify that events are uploaded intact when streamed from the event buffer.
+   */
+  @Test public void testEventUpload() throws Exception {
+    LogService service = new LogService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+    Events._reset("testSession", service, 999999, false, true);
+    Events.setCompressionType(EventUploader.CompressionType.Zstandard);
+
+    for (int i = 0; i < 1000; i++)
+      Events.info(new EventAttributes("tag", "streamed", "seq", i));
+    assertTrue(Events.flush(10000));
+
+    int seq = 0;
+    for (String body : requestBodies) {
+      JSONArray events = (JSONArray) ((JSONObject) JSONParser.parse(body)).get("events");
+      for (Object event : events) {
+        JSONObject attrs = (JSONObject) ((JSONObject) event).get("attrs");
+        if ("streamed".equals(attrs.get("tag")))
+          assertEquals(seq++, (long) Converter.toLong(attrs.get("seq")));
+      }
+    }
+    assertEquals(1000, seq);
+  }
+
+  /**
+   * Verify that an event batch which the server rejects -- with an error/client/badParam status, or an HTTP
+   * 413 response -- is split until the offending event is isolated and dropped, and that the other events are
+   * uploaded in order.
+   */
+  @Test public void testRejectedEventUpload() throws Exception {
+    rejectedBodyText = "poison";
+    for (boolean http413 : new boolean[]{false, true}) {
+      rejectWithHttp413 = http413;
+      synchronized (requestBodies) {
+        requestBodies.clear();
+      }
+
+      LogService service = new LogService("dummyToken");
+      service.setServerAddress(liveServerAddress());
+      Events._reset("testSession", service, 999999, false, true);
+
+      final int eventCount = 64;
+      for (int i = 0; i < eventCount; i++)
+        Events.info(new EventAttributes("tag", "rejected", "seq", i, "payload", (i == 37) ? "poison" : "ok"));
+
+      // Events.flush throws when an upload attempt fails; each retry uploads a smaller batch.
+      int rejections = 0;
+      while (true) {
+        try {
+          assertTrue(Events.flush(20000));
+          break;
+        } catch (ScalyrNetworkException ex) {
+          rejections++;
+          assertTrue(rejections < 20);
+        }
+      }
+      assertTrue(rejections > 0);
+      assertEquals(1, Events.getRejectedEventCount());
+
+      int seq = 0;
+      synchronized (requestBodies) {
+        for (String body : requestBodies) {
+          if (body.contains("poison"))
+            continue;
+          JSONArray events = (JSONArray) ((JSONObject) JSONParser.parse(body)).get("events");
+          for (Object event : events) {
+            JSONObject attrs = (JSONObject) ((JSONObject) event).get("attrs");
+            if ("rejected".equals(attrs.get("tag"))) {
+              assertEquals((seq < 37) ? seq : seq + 1, (long) Converter.toLong(attrs.get("seq")));
+              seq++;
+            }
+          }
+        }
+      }
+      assertEquals(eventCount - 1, seq);
+    }
+  }
+
+  /**
+   * Verify that a request compressed with a Zstandard dictionary is identified as such and can be decompressed.
+   */
+  @Test public void testZstdDictionary() throws Exception {
+    List<byte[]> samples = new ArrayList<byte[]>();
+    for (int i = 0; i < 2000; i++)
+      samples.add(("{\"thread\":" + (i % 7) + ",\"sev\":3,\"attrs\":{\"tag\":\"request\",\"seq\":" + i
+          + ",\"latencyMs\":" + (i * 37 % 1000) + "}}").getBytes(StandardCharsets.UTF_8));
+    ZstdDictionary dictionary = ZstdDictionary.train(samples, 4096);
+    assertNotNull(dictionary);
+    zstdDictionaries.put(dictionary.id, dictionary.getContent());
+
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+    ScalyrService.RpcOptions options = new ScalyrService.RpcOptions();
+    options.zstdDictionary = dictionary;
+
+    JSONObject parameters = new JSONObject().set("path", "/dict.txt").set("content", "request seq 12345");
+    InvokeApiResult result = service.invokeApiX("putFile", parameters, options, "zstd");
+    assertEquals("success", result.response.get("status"));
+    assertEquals(1, dictionaryRequests.get());
+    assertEquals("request seq 12345", ((JSONObject) JSONParser.parse(requestBodies.get(0))).get("content"));
+
+    result = service.invokeApiAsync("putFile", parameters, options, "zstd").get(10, TimeUnit.SECONDS);
+    assertEquals("success", result.response.get("status"));
+    assertEquals(2, dictionaryRequests.get());
+    assertEquals("request seq 12345", ((JSONObject) JSONParser.parse(requestBodies.get(1))).get("content"));
+  }
+
+  /**
+   * Verify that EventUploader trains and publishes a dictionary, and compresses subsequent uploads with it.
+   */
+  @Test public void testEventUploadWithZstdDictionary() throws Exception {
+    LogService service = new LogService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    final List<Long> published = new CopyOnWriteArrayList<Long>();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.zstdDictionaryPublisher = (dictionaryId, dictionary) -> {
+      zstdDictionaries.put(dictionaryId, dictionary);
+      published.add(dictionaryId);
+      return true;
+    };
+    Events._reset("testSession", service, 999999, false, true, options);
+    Events.setCompressionType(EventUploader.CompressionType.Zstandard);
+
+    for (int i = 0; i < 3000; i++)
+      Events.info(new EventAttributes("tag", "dictionary", "seq", i, "message", "request handled in " + (i % 100) + " ms"));
+    assertTrue(Events.flush(10000));
+
+    // The dictionary is trained in the background; once it has been published, later uploads use it.
+    for (int i = 0; i < 1000 && published.isEmpty(); i++)
+      Thread.sleep(10);
+    assertEquals(1, published.size());
+
+    for (int i = 3000; i < 4000; i++)
+      Events.info(new EventAttributes("tag", "dictionary", "seq", i, "message", "request handled in " + (i % 100) + " ms"));
+    assertTrue(Events.flush(10000));
+    assertTrue(dictionaryRequests.get() > 0);
+
+    int seq = 0;
+    for (String body : requestBodies) {
+      JSONArray events = (JSONArray) ((JSONObject) JSONParser.parse(body)).get("events");
+      for (Object event : events) {
+        JSONObject attrs = (JSONObject) ((JSONObject) event).get("attrs");
+        if ("dictionary".equals(attrs.get("tag")))
+          assertEquals(seq++, (long) Converter.toLong(attrs.get("seq")));
+      }
+    }
+    assertEquals(4000, seq);
+  }
+
+  /**
+   * Verify that precompressed JSON is spliced into a request compressed the same way, and decompressed
+   * into a request compressed some other way.
+   */
+  @Test public void testPrecompressedJson() throws Exception {
+    KnobService service = new KnobService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    RawJson content = new RawJson() {
+      @Override public void writeJSONBytes(OutputStream out) throws IOException {
+        out.write("1,\"two\",{\"three\":3}".getBytes(StandardCharsets.UTF_8));
+      }
+    };
+
+    String[][] cases = {{"zstd", "zstd"}, {"gzip", "gzip"}, {"gzip", "zstd"}, {"zstd", null}};
+    for (int i = 0; i < cases.length; i++) {
+      PrecompressedJson precompressed = PrecompressedJson.compress(content, cases[i][0], null);
+      JSONObject parameters = new JSONObject().set("path", "/file.txt").set("content", precompressed);
+      InvokeApiResult result = service.invokeApiX("putFile", parameters, cases[i][1]);
+      assertEquals("success", result.response.get("status"));
+
+      String body = requestBodies.get(i);
+      assertEquals(body.getBytes(StandardCharsets.UTF_8).length, result.requestLength);
+      JSONArray array = (JSONArray) ((JSONObject) JSONParser.parse(body)).get("content");
+      assertEquals(3, array.size());
+      assertEquals("two", array.get(1));
+    }
+
+    // The zstd request carried the precompressed frame between frames for the surrounding JSON.
+    assertEquals(3, (int) zstdFrameCounts.get(0));
+  }
+
+  /**
+   * Verify that event chunks compressed in the background are uploaded intact, and in order.
+   */
+  @Test public void testPrecompressedEventUpload() throws Exception {
+    LogService service = new LogService("dummyToken");
+    service.setServerAddress(liveServerAddress());
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.precompressedMemoryLimit = 1024 * 1024;
+    Events._reset("testSession", service, 999999, false, true, options);
+    Events.setCompressionType(EventUploader.CompressionType.Zstandard);
+    EventUploader._maxEventUploadBytes = 8000;
+
+    try {
+      for (int i = 0; i < 300; i++)
+        Events.info(new EventAttributes("tag", "precompressed", "seq", i));
+
+      // Give the background thread a chance to compress the chunks which are already full.
+      Events._uploadTimerTick(false);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (Events._getPrecompressedBytes() == 0 && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      assertTrue(Events._getPrecompressedBytes() > 0);
+
+      assertTrue(Events.flush(30000));
+      assertEquals(0, Events._getPrecompressedBytes());
+    } finally {
+      EventUploader._maxEventUploadBytes = TuningConstants.MAX_EVENT_UPLOAD_BYTES;
+    }
+
+    int seq = 0;
+    for (String body : requestBodies) {
+      JSONArray events = (JSONArray) ((JSONObject) JSONParser.parse(body)).get("events");
+      for (Object event : events) {
+        JSONObject attrs = (JSONObject) ((JSONObject) event).get("attrs");
+        if ("precompressed".equals(attrs.get("tag")))
+          assertEquals(seq++, (long) Converter.toLong(attrs.get("seq")));
+      }
+    }
+    assertEquals(300, seq);
+    assertEquals(3, (int) zstdFrameCounts.get(0));
+  }
+
+  private String liveServerAddress() {
+    return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+  }
+
+  /**
+   * Return the address of a port on which nothing is listening.
+   */
+  private static String deadServerAddress() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return "http://127.0.0.1:" + socket.getLocalPort();
+    }
+  }
+
+  private static String readString(InputStream input) throws IOException {
+    return new String(readBytes(input), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readBytes(InputStream input) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int count;
+    while ((count = input.read(chunk)) > 0)
+      buffer.write(chunk, 0, count);
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Return the number of occurrences of the Zstandard frame magic number in the given data. (This could
+   * overcount if the magic number happened to occur within compressed data, but that's vanishingly unlikely
+   * for the small requests in these tests.)
+   */
+  private static int countZstdFrames(byte[] data) {
+    int count = 0;
+    for (int i = 0; i + 3 < data.length; i++)
+      if (data[i] == 0x28 && data[i + 1] == (byte) 0xB5 && data[i + 2] == 0x2F && data[i + 3] == (byte) 0xFD)
+        count++;
+    return count;
+  }
+}
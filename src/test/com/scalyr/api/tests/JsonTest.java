@@ -26,6 +26,7 @@ import com.scalyr.api.json.JSONParser.JsonParseException;
 import com.scalyr.api.json.JSONValue;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
@@ -169,6 +170,7 @@ public class JsonTest {
     ByteScanner scanner = new ByteScanner(inputBytes);
     JSONObject byteParserOutput = (JSONObject) new JSONParser(scanner).parseValue();
     assertEquivalent(expected, byteParserOutput);
+    assertEquivalent(expected, parseStream(inputBytes));
   }
 
   private void verifyArray(String input, Object ... expecteds) {
@@ -177,6 +179,7 @@ public class JsonTest {
       expectedArray.add(expected);
 
     assertEquivalent(expectedArray, new JSONParser(new ByteScanner(input.getBytes())).parseValue());
+    assertEquivalent(expectedArray, parseStream(input.getBytes()));
   }
 
   private void verifyObject(String input, Object ... expectedKeysAndValues) {
@@ -185,6 +188,28 @@ public class JsonTest {
       expectedObject.put((String) expectedKeysAndValues[i], expectedKeysAndValues[i+1]);
 
     assertEquivalent(expectedObject, new JSONParser(new ByteScanner(input.getBytes())).parseValue());
+    assertEquivalent(expectedObject, parseStream(input.getBytes()));
+  }
+
+  /**
+   * Parse the given input from a stream which delivers it a few bytes at a time, into a small initial buffer,
+   * so that the scanner must repeatedly refill and compact its buffer.
+   */
+  private Object parseStream(byte[] input) {
+    return new JSONParser(new ByteScanner(new TricklingInputStream(input), 16)).parseValue();
+  }
+
+  /**
+   * InputStream which returns at most 3 bytes from each read call.
+   */
+  private static class TricklingInputStream extends ByteArrayInputStream {
+    TricklingInputStream(byte[] input) {
+      super(input);
+    }
+
+    @Override public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, 1 + (pos % 3)));
+    }
   }
 
   /**
@@ -239,6 +264,43 @@ public class JsonTest {
       return (Double)value;
   }
 
+  /**
+   * Test parsing from a stream much larger than the scanner's buffer.
+   */
+  @Test public void testStreamParsing() throws IOException {
+    JSONArray array = new JSONArray();
+    StringBuilder text = new StringBuilder("[\r\n");
+    for (int i = 0; i < 2000; i++) {
+      array.add(new JSONObject().set("id", i).set("name", "event " + i).set("tags", new JSONArray("a", "b")));
+      text.append("  {id: ").append(i).append(", name: \"event ").append(i).append("\", tags: [\"a\"\r\n\"b\"]}\r\n");
+    }
+    text.append("]  \n");
+    byte[] input = b(text.toString());
+
+    assertEquivalent(array, parseStream(input));
+
+    ByteScanner scanner = new ByteScanner(new TricklingInputStream(input), 16);
+    new JSONParser(scanner).parseValue();
+    assertEquals(input.length - 3, scanner.getPos());
+    scanner.skipToEnd();
+    assertEquals(input.length, scanner.getPos());
+    assertEquals(4003, scanner.lineNumberForPos(scanner.getPos()));
+
+    // Line numbers in errors account for the input which has been discarded.
+    try {
+      parseStream(b(text.toString().replace("event 1500\"", "event 1500")));
+      fail("JsonParseException expected");
+    } catch (JsonParseException ex) {
+      assertEquals(3002, ex.lineNumber);
+    }
+
+    // A string much larger than the initial buffer.
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 10000; i++)
+      large.append((char) ('a' + i % 26));
+    verifyObject("{x: \"" + large + "\"}", "x", large.toString());
+  }
+
   @Test public void testLineNumbers() {
     assertEquals(1, JSONParser.lineNumberForBytePos(new byte[0], 0));
     assertEquals(1, JSONParser.lineNumberForBytePos(b("ABC\nDEF\rGHI\r\nJKL"), 0));
@@ -18,8 +18,17 @@
 package com.scalyr.api.tests;
 
 import com.google.common.base.Strings;
+import com.scalyr.api.Converter;
+import com.scalyr.api.ScalyrNetworkException;
 import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.json.JSONValue;
+import com.scalyr.api.knobs.Knob;
+import com.scalyr.api.knobs.util.MockConfigurationFile;
 import com.scalyr.api.logs.EventAttributes;
 import com.scalyr.api.logs.EventFilter;
 import com.scalyr.api.logs.EventUploader;
@@ -30,12 +39,24 @@ import org.junit.After;
 import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 /**
@@ -533,8 +554,8 @@ public class LogsClientTest extends LogsTestBase {
   }
 
   /**
-   * Test verifying that the list of thread metadata in an upload request reflects only threads that have
-   * had a message in the last hour.
+   * Test verifying that the list of thread metadata in an upload request reflects exactly the threads that
+   * have an event in the batch.
    */
   @Test public void oldThreadTest() {
     ScalyrUtil.setCustomTimeNs(1000000000L);
@@ -630,8 +651,8 @@ public class LogsClientTest extends LogsTestBase {
         );
     Events.flush();
 
-    // Wait half an hour, and write another message from thread 1. Each thread is less than an hour old, so the upload
-    // request will mention both threads.
+    // Wait half an hour, and write another message from thread 1. Only thread 1 has an event in this batch, so the
+    // upload request mentions only thread 1.
     ScalyrUtil.setCustomTimeNs(1800 * 1000000000L);
     releaseAndAcquire(semaphore1, semaphoreMain); // thread1.2
 
@@ -658,9 +679,6 @@ public class LogsClientTest extends LogsTestBase {
         "  {" +
         "  'id': '" + threadIds[0] + "'," +
         "  'name': 'thread1'" +
-        "  }, {" +
-        "  'id': '" + threadIds[1] + "'," +
-        "  'name': 'thread2'" +
         "  }" +
         "]" +
         "}",
@@ -668,8 +686,8 @@ public class LogsClientTest extends LogsTestBase {
         );
     Events.flush();
 
-    // Wait another half an hour (plus a bit), and write another message from thread 1. Thread 2 is now more than
-    // an hour old, so its metadata won't be mentioned.
+    // Wait another half an hour (plus a bit), and write another message from thread 1. Again, thread 2's metadata
+    // isn't mentioned.
     ScalyrUtil.setCustomTimeNs(3610 * 1000000000L);
     releaseAndAcquire(semaphore1, semaphoreMain); // thread1.3
 
@@ -704,7 +722,7 @@ public class LogsClientTest extends LogsTestBase {
         );
     Events.flush();
 
-    // Now write a couple of message from thread 2. Both threads will show up in the upload request.
+    // Now write a couple of messages from thread 2. Only thread 2 shows up in the upload request.
     ScalyrUtil.setCustomTimeNs(3611 * 1000000000L);
     releaseAndAcquire(semaphore2, semaphoreMain); // thread2.2
     releaseAndAcquire(semaphore2, semaphoreMain); // thread2.3
@@ -737,9 +755,6 @@ public class LogsClientTest extends LogsTestBase {
         "]," +
         "'threads': [" +
         "  {" +
-        "  'id': '" + threadIds[0] + "'," +
-        "  'name': 'thread1'" +
-        "  }, {" +
         "  'id': '" + threadIds[1] + "'," +
         "  'name': 'thread2'" +
         "  }" +
@@ -1093,8 +1108,9 @@ public class LogsClientTest extends LogsTestBase {
     assertRequestQueueEmpty();
 
     // That last failed attempt should have caused the client to discard the event batch. The next
-    // upload attempt will involve the next batch; we'll allow it to succeed.
-    ScalyrUtil.setCustomTimeNs(1260 * 1000000000L);
+    // upload attempt will involve the next batch; we'll allow it to succeed. (The backoff interval is
+    // randomized, so we wait out the maximum.)
+    ScalyrUtil.setCustomTimeNs(1250 * 1000000000L + TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS * 1000000L);
     expectSimpleUpload(threadId, threadName, SUCCESS, "three", "four");
     Events._uploadTimerTick(false);
     assertRequestQueueEmpty();
@@ -1156,6 +1172,8 @@ public class LogsClientTest extends LogsTestBase {
 
     Events.info(new EventAttributes("tag", "four"));
 
+    // Each backoff draws the new interval at random, between the minimum spacing and three times the previous
+    // interval, capped at the maximum spacing.
     double interval = 900;
     for (int i = 0; i < 20; i++) {
       expectSimpleUpload(threadId, threadName, BACKOFF, "four");
@@ -1163,15 +1181,14 @@ public class LogsClientTest extends LogsTestBase {
       Events._uploadTimerTick(false);
       assertRequestQueueEmpty();
 
-      interval = Math.min(interval * TuningConstants.UPLOAD_SPACING_FACTOR_ON_BACKOFF, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
-      assertEquals(Events._getMinUploadIntervalMs(), interval, 1E-9);
+      double newInterval = Events._getMinUploadIntervalMs();
+      assertTrue(newInterval >= TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
+      assertTrue(newInterval <= Math.min(interval * 3, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS));
+      interval = newInterval;
     }
 
-    // The interval is now at 30 seconds. Verify that upload attempts indeed won't occur more
-    // frequently than this.
-    assertEquals(TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS, Events._getMinUploadIntervalMs(), 1E-9);
-
-    ScalyrUtil.advanceCustomTimeMs(29000);
+    // Verify that upload attempts indeed won't occur more frequently than the interval.
+    ScalyrUtil.advanceCustomTimeMs((long) interval - 500);
     Events._uploadTimerTick(false);
     assertRequestQueueEmpty();
 
@@ -1181,7 +1198,8 @@ public class LogsClientTest extends LogsTestBase {
     assertRequestQueueEmpty();
 
     // The last upload was successful, so the interval decreases.
-    interval = interval * TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS;
+    interval = Math.max(interval * TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS,
+        TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
     assertEquals(interval, Events._getMinUploadIntervalMs(), 1E-9);
 
     // Even after a long passage of time, no further uploads occur, since there are no more
@@ -1194,6 +1212,1049 @@ public class LogsClientTest extends LogsTestBase {
     assertRequestQueueEmpty();
   }
 
+  /**
+   * Test a minimal case of recording events with AppendMode.LockFree.
+   */
+  @Test public void testLockFreeAppend() {
+    long threadId = Thread.currentThread().getId();
+    String threadName = Thread.currentThread().getName();
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.appendMode = EventUploader.AppendMode.LockFree;
+    Events._reset("testSession", server, 999999, false, true, options);
+
+    Events.info(new EventAttributes("tag", "one"));
+    Events.info(new EventAttributes("tag", "two"));
+    Span span = Events.startInfo(new EventAttributes("tag", "three"));
+    Events.end(span, new EventAttributes("tag", "four"));
+
+    expectSimpleUpload(threadId, threadName, SUCCESS, "one", "two", "three", "end:four");
+    Events.flush();
+    assertRequestQueueEmpty();
+  }
+
+  /**
+   * Test a minimal case of recording events with an off-heap event buffer.
+   */
+  @Test public void testOffHeapBuffer() {
+    long threadId = Thread.currentThread().getId();
+    String threadName = Thread.currentThread().getName();
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.offHeapBuffer = true;
+    Events._reset("testSession", server, 999999, false, true, options);
+
+    Events.info(new EventAttributes("tag", "one"));
+    Events.info(new EventAttributes("tag", "two"));
+
+    expectSimpleUpload(threadId, threadName, SUCCESS, "one", "two");
+    Events.flush();
+    assertRequestQueueEmpty();
+  }
+
+  /**
+   * Verify that AppendMode.LockFree loses no events, and keeps timestamps strictly increasing in buffer
+   * order, when many threads record events concurrently.
+   */
+  @Test public void testLockFreeAppendContention() throws InterruptedException {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.appendMode = EventUploader.AppendMode.LockFree;
+    Events._reset("testSession", recorder, 10 * 1000 * 1000, false, true, options);
+    EventUploader._maxEventUploadBytes = 16 * 1024;
+
+    final int threadCount = 8;
+    final int eventsPerThread = 2000;
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int threadIndex = i;
+      threads[i] = new Thread() {
+        @Override public void run() {
+          for (int j = 0; j < eventsPerThread; j++)
+            Events.info(new EventAttributes("tag", "contention", "thread", threadIndex, "seq", j));
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    // Upload one chunk per tick until everything has been received.
+    for (int i = 0; i < 1000 && recorder.events.size() < threadCount * eventsPerThread; i++)
+      Events._uploadTimerTick(true);
+
+    assertEquals(threadCount * eventsPerThread, recorder.events.size());
+    long previousTs = Long.MIN_VALUE;
+    int[] nextSeq = new int[threadCount];
+    for (JSONObject event : recorder.events) {
+      long ts = Long.parseLong((String) event.get("ts"));
+      assertTrue(ts > previousTs);
+      previousTs = ts;
+
+      // Events from a single thread must appear in the order they were recorded.
+      JSONObject attrs = (JSONObject) event.get("attrs");
+      int threadIndex = (int) (long) Converter.toLong(attrs.get("thread"));
+      assertEquals(nextSeq[threadIndex]++, (long) Converter.toLong(attrs.get("seq")));
+    }
+  }
+
+  /**
+   * Verify that timestamps remain unique and strictly increasing in buffer order, in both append modes, when
+   * many threads record events while the clock is frozen (so that every timestamp is assigned by incrementing
+   * the previous one).
+   */
+  @Test public void testMonotonicTimestampContention() throws InterruptedException {
+    for (EventUploader.AppendMode mode : EventUploader.AppendMode.values()) {
+      long frozenNs = 1500000000000L * 1000000L;
+      ScalyrUtil.setCustomTimeNs(frozenNs);
+
+      RecordingLogServer recorder = new RecordingLogServer();
+      EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+      options.appendMode = mode;
+      Events._reset("testSession", recorder, 10 * 1000 * 1000, false, true, options);
+
+      final int threadCount = 16;
+      final int eventsPerThread = 2000;
+      final CountDownLatch startLatch = new CountDownLatch(1);
+      Thread[] threads = new Thread[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        final int threadIndex = i;
+        threads[i] = new Thread() {
+          @Override public void run() {
+            try {
+              startLatch.await();
+            } catch (InterruptedException ex) {
+              return;
+            }
+            for (int j = 0; j < eventsPerThread; j++)
+              Events.info(new EventAttributes("tag", "monotonic", "thread", threadIndex, "seq", j));
+          }
+        };
+        threads[i].start();
+      }
+      startLatch.countDown();
+      for (Thread thread : threads)
+        thread.join();
+
+      for (int i = 0; i < 1000 && recorder.events.size() < threadCount * eventsPerThread; i++)
+        Events._uploadTimerTick(true);
+
+      assertEquals(threadCount * eventsPerThread, recorder.events.size());
+      long previousTs = frozenNs;
+      int[] nextSeq = new int[threadCount];
+      for (JSONObject event : recorder.events) {
+        long ts = Long.parseLong((String) event.get("ts"));
+        assertTrue(ts > previousTs);
+        previousTs = ts;
+
+        JSONObject attrs = (JSONObject) event.get("attrs");
+        int threadIndex = (int) (long) Converter.toLong(attrs.get("thread"));
+        assertEquals(nextSeq[threadIndex]++, (long) Converter.toLong(attrs.get("seq")));
+      }
+
+      ScalyrUtil.removeCustomTime();
+    }
+  }
+
+  /**
+   * Verify that, with a spill directory, events recorded while the server is unavailable are moved to disk
+   * rather than discarded, and are uploaded in order once the server recovers.
+   */
+  @Test public void testSpillToDisk() throws IOException {
+    File spillDirectory = Files.createTempDirectory("eventSpill").toFile();
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.failUploads = true;
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.spillDirectory = spillDirectory;
+    Events._reset("testSession", recorder, 4000, false, true, options);
+    EventUploader._maxEventUploadBytes = 300;
+
+    // Record far more data than fits in memory, giving the uploader a chance to spill every few events.
+    final int eventCount = 200;
+    for (int i = 0; i < eventCount; i++) {
+      Events.info(new EventAttributes("tag", "spill", "seq", i));
+      if (i % 5 == 4)
+        Events._uploadTimerTick(true);
+    }
+    assertEquals(0, recorder.events.size());
+    assertTrue(spillDirectory.list().length > 0);
+
+    recorder.failUploads = false;
+    for (int i = 0; i < 1000 && recorder.events.size() < eventCount; i++)
+      Events._uploadTimerTick(true);
+
+    assertEquals(eventCount, recorder.events.size());
+    for (int i = 0; i < eventCount; i++) {
+      JSONObject attrs = (JSONObject) recorder.events.get(i).get("attrs");
+      assertEquals(i, (long) Converter.toLong(attrs.get("seq")));
+    }
+    assertEquals(0, spillDirectory.list().length);
+    spillDirectory.delete();
+  }
+
+  /**
+   * Verify that spilled events left behind by a previous process are uploaded under their original session.
+   */
+  @Test public void testSpillReplayAfterRestart() throws IOException {
+    File spillDirectory = Files.createTempDirectory("eventSpill").toFile();
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.failUploads = true;
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.spillDirectory = spillDirectory;
+    Events._reset("firstSession", recorder, 4000, false, true, options);
+    EventUploader._maxEventUploadBytes = 300;
+
+    for (int i = 0; i < 40; i++)
+      Events.info(new EventAttributes("tag", "beforeRestart", "seq", i));
+    Events._uploadTimerTick(true);
+    int spilledSegments = spillDirectory.list().length;
+    assertTrue(spilledSegments > 0);
+
+    // Simulate a restart: a new uploader, with a new session, using the same spill directory.
+    recorder.failUploads = false;
+    Events._reset("secondSession", recorder, 4000, false, true, options);
+    Events.info(new EventAttributes("tag", "afterRestart"));
+    for (int i = 0; i < 100 && spillDirectory.list().length > 0; i++)
+      Events._uploadTimerTick(true);
+    Events._uploadTimerTick(true);
+
+    assertEquals(0, spillDirectory.list().length);
+    for (int i = 0; i < spilledSegments; i++)
+      assertEquals("firstSession", recorder.sessions.get(i));
+    assertEquals("secondSession", recorder.sessions.get(recorder.sessions.size() - 1));
+
+    JSONObject lastEvent = recorder.events.get(recorder.events.size() - 1);
+    assertEquals("afterRestart", ((JSONObject) lastEvent.get("attrs")).get("tag"));
+    spillDirectory.delete();
+  }
+
+  /**
+   * Verify that, with maxInFlightUploads > 1, several chunks are uploaded concurrently, and every event is
+   * delivered exactly once.
+   */
+  @Test public void testPipelinedUploads() {
+    final CountDownLatch allStarted = new CountDownLatch(4);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    RecordingLogServer recorder = new RecordingLogServer() {
+      @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+        int count = inFlight.incrementAndGet();
+        maxInFlight.set(Math.max(maxInFlight.get(), count));
+        try {
+          // Hold the first requests until four are in flight at once.
+          allStarted.countDown();
+          allStarted.await(10, TimeUnit.SECONDS);
+          return super.invokeApi(methodName, parameters, contentEncoding);
+        } catch (InterruptedException ex) {
+          throw new RuntimeException(ex);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    };
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.maxInFlightUploads = 4;
+    Events._reset("testSession", recorder, 999999, false, true, options);
+    EventUploader._maxEventUploadBytes = 300;
+
+    final int eventCount = 40;
+    for (int i = 0; i < eventCount; i++)
+      Events.info(new EventAttributes("tag", "pipeline", "seq", i));
+
+    assertTrue(Events.flush(20000));
+    assertEquals(4, maxInFlight.get());
+    assertEachSeqOnce(recorder, eventCount);
+  }
+
+  /**
+   * Verify that a pipelined chunk is released from the buffer only once all older chunks have been acknowledged,
+   * and that a failed chunk is retried on its own.
+   */
+  @Test public void testPipelinedUploadRetry() throws InterruptedException {
+    final CountDownLatch releaseFirstChunk = new CountDownLatch(1);
+    final AtomicInteger firstChunkAttempts = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicBoolean retrying = new AtomicBoolean();
+    final AtomicInteger overlappingRetry = new AtomicInteger();
+    RecordingLogServer recorder = new RecordingLogServer() {
+      @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+        int concurrent = inFlight.incrementAndGet();
+        if (retrying.get())
+          overlappingRetry.incrementAndGet();
+        try {
+          JSONArray events = (JSONArray) JSONParser.parse(JSONValue.toJSONString((JSONStreamAware) parameters.get("events")));
+          JSONObject attrs = (JSONObject) ((JSONObject) events.get(0)).get("attrs");
+          if (Converter.toLong(attrs.get("seq")) == 0) {
+            int attempt = firstChunkAttempts.incrementAndGet();
+            if (attempt == 1) {
+              // Stall, then reject, the first attempt to upload the oldest chunk.
+              try {
+                releaseFirstChunk.await(10, TimeUnit.SECONDS);
+              } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+              }
+              return new JSONObject().set("status", "error/server/backoff");
+            }
+
+            // Hold the retry open for a moment, noting any other upload in flight alongside it.
+            if (concurrent > 1)
+              overlappingRetry.incrementAndGet();
+            retrying.set(true);
+            try {
+              Thread.sleep(200);
+            } catch (InterruptedException ex) {
+              throw new RuntimeException(ex);
+            } finally {
+              retrying.set(false);
+            }
+          }
+
+          return super.invokeApi(methodName, parameters, contentEncoding);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    };
+
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.maxInFlightUploads = 4;
+    Events._reset("testSession", recorder, 999999, false, true, options);
+    EventUploader._maxEventUploadBytes = 300;
+
+    final int eventCount = 40;
+    for (int i = 0; i < eventCount; i++)
+      Events.info(new EventAttributes("tag", "pipeline", "seq", i));
+
+    // Newer chunks are acknowledged, but can't be released while the oldest chunk is outstanding.
+    assertFalse(Events.flush(1000));
+    assertTrue(recorder.events.size() > 0);
+
+    // Once the oldest chunk has failed, record more events. The failed chunk is retried alone, before they
+    // are uploaded.
+    releaseFirstChunk.countDown();
+    for (int i = 0; i < 100 && inFlight.get() > 0; i++)
+      Thread.sleep(10);
+    for (int i = eventCount; i < eventCount * 2; i++)
+      Events.info(new EventAttributes("tag", "pipeline", "seq", i));
+
+    assertTrue(Events.flush(20000));
+    assertEquals(2, firstChunkAttempts.get());
+    assertEquals(0, overlappingRetry.get());
+    assertEachSeqOnce(recorder, eventCount * 2);
+  }
+
+  /**
+   * Verify that a batch which the server rejects is split until the offending event is isolated and dropped,
+   * and that the other events are uploaded in order.
+   */
+  @Test public void testRejectedBatchBisection() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.rejectedEventText = "poison";
+    Events._reset("testSession", recorder, 999999, false, true, new EventUploader.UploaderOptions());
+
+    final int eventCount = 64;
+    for (int i = 0; i < eventCount; i++)
+      Events.info(new EventAttributes("tag", "bisect", "seq", i, "payload", (i == 37) ? "poison" : "ok"));
+
+    assertTrue(Events.flush(20000));
+    assertEquals(1, Events.getRejectedEventCount());
+    synchronized (recorder.events) {
+      assertEquals(eventCount - 1, recorder.events.size());
+      for (int i = 0; i < eventCount - 1; i++) {
+        JSONObject attrs = (JSONObject) recorder.events.get(i).get("attrs");
+        assertEquals((i < 37) ? i : i + 1, Converter.toLong(attrs.get("seq")).longValue());
+      }
+    }
+  }
+
+  /**
+   * Verify that a batch whose upload times out is split into smaller batches, down to
+   * TuningConstants.MIN_BISECTED_UPLOAD_BYTES, and that no events are dropped.
+   */
+  @Test public void testTimedOutBatchBisection() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.maxUploadBytes = TuningConstants.MIN_BISECTED_UPLOAD_BYTES + 50000;
+    Events._reset("testSession", recorder, 4000000, false, true, new EventUploader.UploaderOptions());
+
+    final int eventCount = 200;
+    String payload = new String(new char[4000]).replace('\0', 'x');
+    for (int i = 0; i < eventCount; i++)
+      Events.info(new EventAttributes("tag", "bisect", "seq", i, "payload", payload));
+
+    // Events.flush throws when an upload attempt fails; each retry uploads a smaller batch.
+    int timeouts = 0;
+    while (true) {
+      try {
+        assertTrue(Events.flush(20000));
+        break;
+      } catch (ScalyrNetworkException ex) {
+        timeouts++;
+        assertTrue(timeouts < 10);
+      }
+    }
+    assertTrue(timeouts > 0);
+    assertEquals(0, Events.getRejectedEventCount());
+    assertTrue(recorder.sessions.size() >= 3);
+    assertEachSeqOnce(recorder, eventCount);
+  }
+
+  /**
+   * Verify that, with automatic uploads, an event which makes a batch ready triggers an upload promptly, rather
+   * than at the next periodic check.
+   */
+  @Test public void testEventDrivenUploadScheduling() throws InterruptedException {
+    final LinkedBlockingQueue<Long> uploadTimesNs = new LinkedBlockingQueue<Long>();
+    RecordingLogServer recorder = new RecordingLogServer() {
+      @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+        uploadTimesNs.add(System.nanoTime());
+        return super.invokeApi(methodName, parameters, contentEncoding);
+      }
+    };
+
+    Events._reset("testSession", recorder, 999999, true, true);
+    EventUploader._eventUploadByteThreshold = 1000;
+
+    // Let the minimum upload spacing elapse. A few events, well below the threshold, aren't uploaded yet.
+    Events.info(new EventAttributes("tag", "scheduling", "seq", 0));
+    Thread.sleep(1500);
+    assertTrue(uploadTimesNs.isEmpty());
+
+    // Crossing the threshold should trigger an upload almost immediately.
+    long startNs = System.nanoTime();
+    for (int i = 1; i < 30; i++)
+      Events.info(new EventAttributes("tag", "scheduling", "seq", i));
+
+    Long uploadNs = uploadTimesNs.poll(5, TimeUnit.SECONDS);
+    assertTrue(uploadNs != null);
+    assertTrue((uploadNs - startNs) / 1000000 < 500);
+
+    assertTrue(Events.flush(5000));
+    assertEachSeqOnce(recorder, 30);
+  }
+
+  /**
+   * Verify that an upload which stalls doesn't hold up uploaders which share its scheduler.
+   */
+  @Test public void testStalledUploadDoesNotBlockSharedScheduler() throws Exception {
+    final CountDownLatch uploadStalled = new CountDownLatch(1);
+    final CountDownLatch releaseUpload = new CountDownLatch(1);
+    RecordingLogServer stalledServer = new RecordingLogServer() {
+      @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+        uploadStalled.countDown();
+        try {
+          releaseUpload.await(20, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          throw new RuntimeException(ex);
+        }
+        return super.invokeApi(methodName, parameters, contentEncoding);
+      }
+    };
+    RecordingLogServer recorder = new RecordingLogServer();
+
+    EventUploader stalled = new EventUploader(stalledServer, 999999, "stalledSession", true, new EventAttributes(),
+        false, true);
+    EventUploader healthy = new EventUploader(recorder, 999999, "healthySession", true, new EventAttributes(),
+        false, true);
+    try {
+      stalled.rawEvent(Severity.info, new EventAttributes("tag", "stalled"));
+      stalled.flushAsync(20000);
+      assertTrue(uploadStalled.await(5, TimeUnit.SECONDS));
+
+      // flushAsync relies on the scheduler, which the stalled upload must not be occupying.
+      healthy.rawEvent(Severity.info, new EventAttributes("tag", "healthy", "seq", 0));
+      assertTrue(healthy.flushAsync(5000).get(5, TimeUnit.SECONDS).complete);
+      assertEachSeqOnce(recorder, 1);
+    } finally {
+      releaseUpload.countDown();
+      stalled.closeAfterTest();
+      healthy.closeAfterTest();
+    }
+  }
+
+  /**
+   * Verify that flushAsync completes as soon as the last chunk is acknowledged, reporting the bytes flushed.
+   */
+  @Test public void testFlushAsync() throws Exception {
+    RecordingLogServer recorder = new RecordingLogServer();
+    Events._reset("testSession", recorder, 999999, false, true);
+    EventUploader._maxEventUploadBytes = 300;
+
+    EventUploader.FlushResult result = Events.flushAsync(5000).get();
+    assertTrue(result.complete);
+    assertEquals(0, result.bytesFlushed);
+
+    for (int i = 0; i < 100; i++)
+      Events.info(new EventAttributes("tag", "flush", "seq", i));
+
+    // The events span dozens of chunks. Uploading them back to back should take far less than a second each.
+    long startMs = System.currentTimeMillis();
+    result = Events.flushAsync(20000).get(20, TimeUnit.SECONDS);
+    assertTrue(System.currentTimeMillis() - startMs < 5000);
+    assertTrue(result.complete);
+    assertTrue(result.bytesFlushed > 100 * 20);
+    assertEquals(0, result.bytesDropped);
+    assertEquals(0, result.bytesPending);
+    assertEachSeqOnce(recorder, 100);
+
+    // Likewise for the blocking flush.
+    for (int i = 100; i < 200; i++)
+      Events.info(new EventAttributes("tag", "flush", "seq", i));
+
+    startMs = System.currentTimeMillis();
+    assertTrue(Events.flush(20000));
+    assertTrue(System.currentTimeMillis() - startMs < 5000);
+    assertEachSeqOnce(recorder, 200);
+  }
+
+  /**
+   * Verify that a flush which can't complete reports the pending bytes at its deadline.
+   */
+  @Test public void testFlushAsyncDeadline() throws Exception {
+    RecordingLogServer recorder = new RecordingLogServer();
+    Events._reset("testSession", recorder, 999999, false, true);
+    EventUploader._discardBatchesAfterPersistentFailures = false;
+
+    for (int i = 0; i < 10; i++)
+      Events.info(new EventAttributes("tag", "flush", "seq", i));
+
+    recorder.failUploads = true;
+    EventUploader.FlushResult result = Events.flushAsync(500).get(10, TimeUnit.SECONDS);
+    assertFalse(result.complete);
+    assertEquals(0, result.bytesFlushed);
+    assertEquals(0, result.bytesDropped);
+    assertTrue(result.bytesPending > 0);
+    assertFalse(Events.flush(500));
+
+    recorder.failUploads = false;
+    assertTrue(Events.flush(30000));
+    assertEachSeqOnce(recorder, 10);
+  }
+
+  /**
+   * Verify that OverflowPolicy.CallerRuns uploads on the recording thread instead of discarding events.
+   */
+  @Test public void testOverflowPolicyCallerRuns() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.overflowPolicy = EventUploader.OverflowPolicy.CallerRuns;
+    Events._reset("testSession", recorder, 4000, false, true, options);
+    EventUploader._maxEventUploadBytes = 1000;
+
+    for (int i = 0; i < 200; i++)
+      Events.info(new EventAttributes("tag", "overflow", "seq", i));
+
+    assertTrue(Events.flush(5000));
+    assertEachSeqOnce(recorder, 200);
+
+    EventUploader.OverflowStats stats = Events.getOverflowStats().get(EventUploader.OverflowPolicy.CallerRuns);
+    assertEquals(0, stats.eventsShed);
+    assertTrue(stats.eventsBlocked > 0);
+    assertTrue(stats.blockedNs > 0);
+  }
+
+  /**
+   * Verify that OverflowPolicy.Block holds up the recording thread until an upload frees space, and discards
+   * the event once overflowTimeoutMs expires.
+   */
+  @Test public void testOverflowPolicyBlock() throws InterruptedException {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.overflowPolicy = EventUploader.OverflowPolicy.Block;
+    options.overflowTimeoutMs = 10000;
+    Events._reset("testSession", recorder, 4000, false, true, options);
+    EventUploader._maxEventUploadBytes = 1000;
+
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread producer = new Thread() {
+      @Override public void run() {
+        for (int i = 0; i < 200; i++)
+          Events.info(new EventAttributes("tag", "overflow", "seq", i));
+        done.countDown();
+      }
+    };
+    producer.start();
+
+    // Nothing is uploaded unless we do it, so the producer blocks until we do.
+    while (!done.await(50, TimeUnit.MILLISECONDS))
+      Events._uploadTimerTick(true);
+
+    assertTrue(Events.flush(5000));
+    assertEachSeqOnce(recorder, 200);
+
+    EventUploader.OverflowStats stats = Events.getOverflowStats().get(EventUploader.OverflowPolicy.Block);
+    assertEquals(0, stats.eventsShed);
+    assertTrue(stats.eventsBlocked > 0);
+    assertTrue(stats.blockedNs > 0);
+
+    // With no uploads, the producer gives up after overflowTimeoutMs.
+    options.overflowTimeoutMs = 100;
+    recorder = new RecordingLogServer();
+    Events._reset("testSession", recorder, 4000, false, true, options);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < 50; i++)
+      Events.info(new EventAttributes("tag", "overflow", "seq", i));
+    assertTrue(System.nanoTime() - startNs >= 100 * 1000000L);
+
+    stats = Events.getOverflowStats().get(EventUploader.OverflowPolicy.Block);
+    assertTrue(stats.eventsShed > 0);
+    assertTrue(stats.blockedNs >= stats.eventsShed * 100 * 1000000L);
+  }
+
+  /**
+   * Verify that OverflowPolicy.DropLowestSeverityFirst sheds less severe events first, leaving room for more
+   * severe events, and that policies can be selected per severity.
+   */
+  @Test public void testOverflowPolicyDropLowestSeverityFirst() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.overflowPolicy = EventUploader.OverflowPolicy.DropLowestSeverityFirst;
+    options.severityOverflowPolicies.put(Severity.fatal, EventUploader.OverflowPolicy.Drop);
+    Events._reset("testSession", recorder, 20000, false, true, options);
+
+    for (int i = 0; i < 400; i++)
+      Events.fine(new EventAttributes("tag", "overflow", "seq", i));
+    for (int i = 400; i < 410; i++)
+      Events.error(new EventAttributes("tag", "overflow", "seq", i));
+
+    assertTrue(Events.flush(5000));
+
+    int fineCount = 0, errorCount = 0, overflowMessages = 0;
+    synchronized (recorder.events) {
+      for (JSONObject event : recorder.events) {
+        JSONObject attrs = (JSONObject) event.get("attrs");
+        if ("eventBufferOverflow".equals(attrs.get("tag")))
+          overflowMessages++;
+        else if (Converter.toLong(event.get("sev")) == Severity.fine.ordinal())
+          fineCount++;
+        else if (Converter.toLong(event.get("sev")) == Severity.error.ordinal())
+          errorCount++;
+      }
+    }
+    assertTrue(fineCount > 0 && fineCount < 400);
+    assertEquals(10, errorCount);
+    assertEquals(1, overflowMessages);
+
+    EventUploader.OverflowStats stats = Events.getOverflowStats().get(EventUploader.OverflowPolicy.DropLowestSeverityFirst);
+    assertEquals(400 - fineCount, stats.eventsShed);
+    assertEquals(0, stats.eventsBlocked);
+    assertEquals(0, Events.getOverflowStats().get(EventUploader.OverflowPolicy.Drop).eventsShed);
+  }
+
+  /**
+   * Verify that, when the buffer is full, warning and more severe events evict the oldest less severe events,
+   * in both append modes.
+   */
+  @Test public void testLowSeverityEviction() {
+    for (EventUploader.AppendMode mode : EventUploader.AppendMode.values()) {
+      RecordingLogServer recorder = new RecordingLogServer();
+      EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+      options.appendMode = mode;
+      options.evictionSeverityThreshold = Severity.warning;
+      Events._reset("testSession", recorder, 20000, false, true, options);
+
+      for (int i = 0; i < 400; i++)
+        Events.fine(new EventAttributes("tag", "evict", "seq", i));
+      for (int i = 400; i < 450; i++)
+        Events.error(new EventAttributes("tag", "evict", "seq", i));
+
+      assertTrue(Events.flush(5000));
+
+      Set<Long> fineSeqs = new HashSet<Long>();
+      int errorCount = 0;
+      synchronized (recorder.events) {
+        for (JSONObject event : recorder.events) {
+          JSONObject attrs = (JSONObject) event.get("attrs");
+          if (!"evict".equals(attrs.get("tag")))
+            continue;
+          if (Converter.toLong(event.get("sev")) == Severity.error.ordinal())
+            errorCount++;
+          else
+            fineSeqs.add(Converter.toLong(attrs.get("seq")));
+        }
+      }
+      assertEquals(50, errorCount);
+
+      long evicted = Events.getEvictedEventCount();
+      assertTrue(evicted > 0);
+
+      // The oldest fine events were evicted; the survivors form a contiguous run (later events having been
+      // refused outright once the buffer first filled up).
+      long minSeq = Long.MAX_VALUE, maxSeq = -1;
+      for (long seq : fineSeqs) {
+        minSeq = Math.min(minSeq, seq);
+        maxSeq = Math.max(maxSeq, seq);
+      }
+      assertEquals(evicted, minSeq);
+      assertEquals(fineSeqs.size(), maxSeq - minSeq + 1);
+    }
+  }
+
+  /**
+   * Verify that no events are evicted when evictionSeverityThreshold is left at its default (null).
+   */
+  @Test public void testLowSeverityEvictionDisabled() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    Events._reset("testSession", recorder, 20000, false, true, options);
+
+    for (int i = 0; i < 400; i++)
+      Events.fine(new EventAttributes("tag", "evict", "seq", i));
+    Events.error(new EventAttributes("tag", "evict", "seq", 400));
+
+    assertTrue(Events.flush(5000));
+    assertEquals(0, Events.getEvictedEventCount());
+    synchronized (recorder.events) {
+      for (JSONObject event : recorder.events)
+        assertFalse(Converter.toLong(event.get("sev")) == Severity.error.ordinal());
+    }
+  }
+
+  /**
+   * Verify that events are sampled down once their tag exceeds the sampling budget, that recorded events carry
+   * a sampleRate which re-weights them to the original count, and that the budget can be changed on the fly.
+   */
+  @Test public void testAdaptiveSampling() {
+    MockConfigurationFile configFile = new MockConfigurationFile("/sampling");
+    configFile.setContent("{eventSamplingBudget: 100}");
+
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.samplingBudget = new Knob.Integer("eventSamplingBudget", 0, configFile);
+    ScalyrUtil.setCustomTimeNs(1000000000000L * 1000000L);
+    Events._reset("testSession", recorder, 10000000, false, true, options);
+
+    // In the first window, the flood tag is sampled once it exceeds the budget; the quiet tag and error events
+    // are not sampled.
+    for (int i = 0; i < 2000; i++)
+      Events.fine(new EventAttributes("tag", "flood", "window", 1));
+    for (int i = 0; i < 50; i++)
+      Events.fine(new EventAttributes("tag", "quiet", "window", 1));
+    for (int i = 0; i < 10; i++)
+      Events.error(new EventAttributes("tag", "flood", "window", 1, "error", true));
+
+    // In the second window, the flood tag is sampled from the outset, at its rate in the first window.
+    ScalyrUtil.advanceCustomTimeMs(1000);
+    for (int i = 0; i < 1000; i++)
+      Events.fine(new EventAttributes("tag", "flood", "window", 2));
+
+    // Disabling the budget stops sampling from the next window on.
+    configFile.setContent("{eventSamplingBudget: 0}");
+    ScalyrUtil.advanceCustomTimeMs(1000);
+    for (int i = 0; i < 500; i++)
+      Events.fine(new EventAttributes("tag", "flood", "window", 3));
+
+    Events._uploadTimerTick(true);
+
+    int[] counts = new int[4];
+    double[] weights = new double[4];
+    int quietCount = 0, errorCount = 0;
+    synchronized (recorder.events) {
+      for (JSONObject event : recorder.events) {
+        JSONObject attrs = (JSONObject) event.get("attrs");
+        if (attrs == null || attrs.get("window") == null)
+          continue;
+
+        Object sampleRate = attrs.get("sampleRate");
+        if ("quiet".equals(attrs.get("tag"))) {
+          assertEquals(null, sampleRate);
+          quietCount++;
+        } else if (attrs.get("error") != null) {
+          assertEquals(null, sampleRate);
+          errorCount++;
+        } else {
+          int window = Converter.toInteger(attrs.get("window"));
+          counts[window]++;
+          weights[window] += (sampleRate != null) ? Converter.toDouble(sampleRate) : 1;
+        }
+      }
+    }
+
+    assertEquals(50, quietCount);
+    assertEquals(10, errorCount);
+
+    assertTrue(counts[1] > 100 && counts[1] < 1000);
+    assertEquals(2000, weights[1], 600);
+
+    assertTrue(counts[2] > 10 && counts[2] < 100);
+    assertEquals(1000, weights[2], 500);
+
+    assertEquals(500, counts[3]);
+    assertEquals(500, weights[3], 0);
+
+    assertEquals(3500 - counts[1] - counts[2] - counts[3], Events.getSampledOutEventCount());
+  }
+
+  /**
+   * Verify that the recorder received events with seq values 0 through eventCount - 1, each exactly once.
+   */
+  private static void assertEachSeqOnce(RecordingLogServer recorder, int eventCount) {
+    Set<Long> seqs = new HashSet<Long>();
+    synchronized (recorder.events) {
+      for (JSONObject event : recorder.events) {
+        JSONObject attrs = (JSONObject) event.get("attrs");
+        if (attrs.get("seq") != null)
+          assertTrue(seqs.add(Converter.toLong(attrs.get("seq"))));
+      }
+    }
+    assertEquals(eventCount, seqs.size());
+  }
+
+  /**
+   * Simulate a trickle of events uploaded to a server with modest latency, with adaptive batching aiming for a
+   * one-second end-to-end latency. The batch delay must drop from its static value (4.5 seconds), keeping
+   * each event's time to upload near the target.
+   */
+  @Test public void testAdaptiveBatchingLatencyTarget() throws InterruptedException {
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.latencyMs = 50;
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.targetLatencyMs = 1000;
+    Events._reset("testSession", recorder, 999999, true, true, options);
+
+    long startMs = System.currentTimeMillis();
+    int count = 0;
+    while (System.currentTimeMillis() - startMs < 4000) {
+      Events.info(new EventAttributes("tag", "trickle", "seq", count++));
+      Thread.sleep(20);
+    }
+    assertTrue(Events.flush(5000));
+
+    EventUploader.BatchingStats stats = Events.getBatchingStats();
+    assertTrue(stats.toString(), stats.batchDelayMs <= 1000);
+    assertTrue(stats.toString(), stats.uploadLatencyMs >= 50);
+
+    synchronized (recorder.events) {
+      assertEquals(count, recorder.events.size());
+
+      // Events were batched...
+      assertTrue(recorder.requestCount.get() < count / 5);
+
+      // ... but none waited anywhere near as long as the static batch delay. (The final flush uploads at once.)
+      for (long latencyMs : recorder.eventLatenciesMs)
+        assertTrue("latency " + latencyMs, latencyMs < 2500);
+    }
+  }
+
+  /**
+   * Simulate a flood of events uploaded to a slow server. The batch size must grow, so that uploads keep up,
+   * and grow further when the server asks us to back off.
+   */
+  @Test public void testAdaptiveBatchingThroughput() throws InterruptedException {
+    RecordingLogServer recorder = new RecordingLogServer();
+    recorder.latencyMs = 300;
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.targetLatencyMs = 5000;
+    Events._reset("testSession", recorder, 20 * 1024 * 1024, true, true, options);
+
+    String padding = Strings.repeat("x", 400);
+    long startMs = System.currentTimeMillis();
+    int count = 0;
+    while (System.currentTimeMillis() - startMs < 3000) {
+      for (int i = 0; i < 100; i++)
+        Events.info(new EventAttributes("tag", "flood", "seq", count++, "padding", padding));
+      Thread.sleep(20);
+    }
+    assertTrue(Events.flush(10000));
+
+    EventUploader.BatchingStats stats = Events.getBatchingStats();
+    assertTrue(stats.toString(), stats.batchBytes > TuningConstants.EVENT_UPLOAD_BYTE_THRESHOLD);
+    assertTrue(stats.toString(), stats.uploadBytesPerSecond > 0);
+    synchronized (recorder.events) {
+      assertEquals(count, recorder.events.size());
+    }
+
+    int batchBytes = stats.batchBytes;
+    recorder.failUploads = true;
+    Events.info(new EventAttributes("tag", "flood"));
+    Events._uploadTimerTick(true);
+    assertTrue(Events.getBatchingStats().batchBytes > batchBytes
+        || batchBytes == TuningConstants.MAX_EVENT_UPLOAD_BYTES);
+  }
+
+  /**
+   * Test that threads which have been idle for THREAD_IDLE_SCAVENGE_NS are forgotten, unless they have events
+   * awaiting upload, and that a forgotten thread is registered again when it records another event.
+   */
+  @Test public void testIdleThreadScavenging() {
+    ScalyrUtil.setCustomTimeNs(1000 * 1000000000L);
+    RecordingLogServer recorder = new RecordingLogServer();
+    Events._reset("testSession", recorder, 999999, false, true, new EventUploader.UploaderOptions());
+
+    for (int i = 0; i < 50; i++)
+      Events.event(Severity.info, new EventAttributes("tag", "scavenge"), "worker" + i, "Worker " + i);
+    Events.info(new EventAttributes("tag", "scavenge"));
+    assertTrue(Events.flush(5000));
+    assertEquals(51, Events.getThreadCount());
+
+    // Not yet idle for long enough.
+    ScalyrUtil.advanceCustomTimeMs(TuningConstants.THREAD_SCAVENGE_INTERVAL_MS);
+    Events._uploadTimerTick(true);
+    assertEquals(51, Events.getThreadCount());
+
+    // worker0's new event is awaiting upload when we scavenge, so it is kept.
+    ScalyrUtil.advanceCustomTimeMs(TuningConstants.THREAD_IDLE_SCAVENGE_NS / 1000000);
+    Events.event(Severity.info, new EventAttributes("tag", "scavenge"), "worker0", "Worker 0");
+    assertTrue(Events.flush(5000));
+    assertEquals(1, Events.getThreadCount());
+
+    synchronized (recorder.events) {
+      recorder.threads.clear();
+    }
+    Events.info(new EventAttributes("tag", "scavenge"));
+    assertTrue(Events.flush(5000));
+    assertEquals(2, Events.getThreadCount());
+    synchronized (recorder.events) {
+      assertEquals(1, recorder.threads.size());
+      assertEquals(Long.toString(Thread.currentThread().getId()), recorder.threads.get(0).get("id"));
+    }
+  }
+
+  /**
+   * Test ThreadIdentity.BY_POOL: threads of a pool share a single ID, and a single entry in the threads list.
+   */
+  @Test public void testThreadIdentityByPool() throws InterruptedException {
+    RecordingLogServer recorder = new RecordingLogServer();
+    EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+    options.threadIdentity = EventUploader.ThreadIdentity.BY_POOL;
+    Events._reset("testSession", recorder, 999999, false, true, options);
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < 20; i++) {
+      workers.add(new Thread(new Runnable() {
+        @Override public void run() {
+          Events.info(new EventAttributes("tag", "pooled"));
+        }
+      }, "worker-" + i));
+    }
+    for (Thread worker : workers)
+      worker.start();
+    for (Thread worker : workers)
+      worker.join();
+
+    assertTrue(Events.flush(5000));
+    assertEquals(1, Events.getThreadCount());
+    synchronized (recorder.events) {
+      assertEquals(20, recorder.events.size());
+      for (JSONObject event : recorder.events)
+        assertEquals("pool:worker-", event.get("thread"));
+      assertEquals(1, recorder.threads.size());
+      assertEquals("pool:worker-", recorder.threads.get(0).get("id"));
+      assertEquals("worker-", recorder.threads.get(0).get("name"));
+    }
+  }
+
+  /**
+   * Test that the session and thread metadata, which are serialized once and reused across uploads, reflect
+   * changes to the server attributes and to the set of threads in each batch.
+   */
+  @Test public void testCachedUploadMetadata() {
+    EventAttributes serverAttributes = new EventAttributes("region", "east");
+    EventUploader uploader = new EventUploader(server, 999999, "testSession", false, serverAttributes, false, true);
+
+    expectMetadataRequest("east", "[{'id': 't1', 'name': 'alpha'}]");
+    uploader.rawEventOnExplicitThread("t1", "alpha", Severity.info, new EventAttributes("tag", "one"));
+    assertTrue(uploader.flush(5000));
+    assertRequestQueueEmpty();
+
+    expectMetadataRequest("east", "[{'id': 't1', 'name': 'alpha'}]");
+    uploader.rawEventOnExplicitThread("t1", "alpha", Severity.info, new EventAttributes("tag", "two"));
+    assertTrue(uploader.flush(5000));
+    assertRequestQueueEmpty();
+
+    serverAttributes.put("region", "west");
+    expectMetadataRequest("west", "[{'id': 't2', 'name': 'beta'}]");
+    uploader.rawEventOnExplicitThread("t2", "beta", Severity.info, new EventAttributes("tag", "three"));
+    assertTrue(uploader.flush(5000));
+    assertRequestQueueEmpty();
+
+    expectMetadataRequest("west", "[{'id': 't1', 'name': 'alpha'}, {'id': 't2', 'name': 'beta'}]");
+    uploader.rawEventOnExplicitThread("t2", "beta", Severity.info, new EventAttributes("tag", "four"));
+    uploader.rawEventOnExplicitThread("t1", "alpha", Severity.info, new EventAttributes("tag", "five"));
+    assertTrue(uploader.flush(5000));
+    assertRequestQueueEmpty();
+  }
+
+  private void expectMetadataRequest(String region, String threads) {
+    expectRequest(
+        "addEvents",
+        "{'token': 'dummyToken'," +
+        "'clientVersion': 1," +
+        "'session': 'testSession'," +
+        "'sessionInfo': {" +
+        "  'session': 'testSession'," +
+        "  'launchTime': '$ANY$'," +
+        "  'serverHost': '$ANY$'," +
+        "  'region': '" + region + "'" +
+        "}," +
+        "'events': '$ANY$'," +
+        "'threads': " + threads +
+        "}",
+        "{'status': 'success'}"
+        );
+  }
+
+  /**
+   * Verify that attribute values of various types, including strings which require escaping or contain
+   * non-ASCII characters, survive a round trip through the event buffer.
+   */
+  @Test public void testAttributeEncoding() {
+    RecordingLogServer recorder = new RecordingLogServer();
+    Events._reset("testSession", recorder, 999999, false, true);
+
+    String text = "quote\" backslash\\ slash/ tab\t newline\n control\u0001 dash\u2014 e\u00e9 euro\u20ac cjk\u4e2d emoji\ud83d\ude00";
+    Events.info(new EventAttributes("text", text, "int", 42, "long", -1234567890123L, "double", 2.5,
+        "bool", true, "null", null));
+
+    Events._uploadTimerTick(true);
+
+    assertEquals(1, recorder.events.size());
+    JSONObject attrs = (JSONObject) recorder.events.get(0).get("attrs");
+    assertEquals(text, attrs.get("text"));
+    assertEquals(42L, (long) Converter.toLong(attrs.get("int")));
+    assertEquals(-1234567890123L, (long) Converter.toLong(attrs.get("long")));
+    assertEquals(2.5, Converter.toDouble(attrs.get("double")), 0);
+    assertEquals(true, attrs.get("bool"));
+    assertTrue(attrs.containsKey("null"));
+    assertEquals(null, attrs.get("null"));
+  }
+
+  /**
+   * Verify that recording an event allocates (nearly) no memory beyond the caller's EventAttributes, in
+   * both append modes.
+   */
+  @Test public void testEventRecordingAllocation() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+    for (EventUploader.AppendMode mode : EventUploader.AppendMode.values()) {
+      EventUploader.UploaderOptions options = new EventUploader.UploaderOptions();
+      options.appendMode = mode;
+      Events._reset("testSession", new RecordingLogServer(), 64 * 1024 * 1024, false, true, options);
+
+      EventAttributes attributes = new EventAttributes("tag", "allocation", "message", "request handled",
+          "count", 17, "latency", 123456789L);
+
+      // Warm up, so that the measurement reflects compiled code.
+      final int eventCount = 100000;
+      for (int i = 0; i < eventCount; i++)
+        Events.info(attributes);
+
+      long threadId = Thread.currentThread().getId();
+      long before = allocationBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < eventCount; i++)
+        Events.info(attributes);
+      long bytesPerEvent = (allocationBean.getThreadAllocatedBytes(threadId) - before) / eventCount;
+
+      assertTrue("AppendMode." + mode + " allocated " + bytesPerEvent + " bytes per event", bytesPerEvent < 64);
+    }
+  }
+
   /**
    * Exercise use of EventFilters.
    */
@@ -17,12 +17,23 @@
 
 package com.scalyr.api.tests;
 
+import com.scalyr.api.ScalyrNetworkException;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.json.JSONArray;
 import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.json.JSONValue;
 import com.scalyr.api.knobs.ConfigurationFile;
 import com.scalyr.api.knobs.Knob;
 import com.scalyr.api.logs.LogService;
 import org.junit.Before;
 
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class LogsTestBase extends ScalyrApiTestBase {
   protected MockLogServer server;
 
@@ -51,4 +62,99 @@ public class LogsTestBase extends ScalyrApiTestBase {
       return mockServer.invokeApi(methodName, parameters);
     }
   }
+
+  /**
+   * LogService which accepts every upload, and records the uploaded events for later inspection.
+   */
+  protected static class RecordingLogServer extends LogService {
+    /**
+     * All events uploaded so far, in upload order. Synchronize access.
+     */
+    public final List<JSONObject> events = new ArrayList<JSONObject>();
+
+    /**
+     * Session ID of each successful upload, in upload order. Synchronize access on events.
+     */
+    public final List<String> sessions = new ArrayList<String>();
+
+    /**
+     * Entries from the threads list of each successful upload, in upload order. Synchronize access on events.
+     */
+    public final List<JSONObject> threads = new ArrayList<JSONObject>();
+
+    /**
+     * While true, every upload is rejected with a backoff error.
+     */
+    public volatile boolean failUploads = false;
+
+    /**
+     * If not null, every upload containing an event whose serialized form includes this text is rejected with
+     * a badParam error.
+     */
+    public volatile String rejectedEventText = null;
+
+    /**
+     * If positive, every upload whose events array is larger than this (in bytes) times out.
+     */
+    public volatile int maxUploadBytes = 0;
+
+    /**
+     * Time (in milliseconds) each upload takes before the server responds.
+     */
+    public volatile long latencyMs = 0;
+
+    /**
+     * Number of upload requests received, including rejected ones.
+     */
+    public final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * For each uploaded event, in upload order, the time (in milliseconds) from its timestamp to its upload
+     * being accepted. Synchronize access on events.
+     */
+    public final List<Long> eventLatenciesMs = new ArrayList<Long>();
+
+    public RecordingLogServer() {
+      super("dummyToken");
+      setServerAddress("dummyServerAddress");
+    }
+
+    @Override public JSONObject invokeApi(String methodName, JSONObject parameters, String contentEncoding) {
+      requestCount.incrementAndGet();
+      if (latencyMs > 0) {
+        try {
+          Thread.sleep(latencyMs);
+        } catch (InterruptedException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+
+      if (failUploads)
+        return new JSONObject().set("status", "error/server/backoff");
+
+      String eventsJson = JSONValue.toJSONString((JSONStreamAware) parameters.get("events"));
+      if (maxUploadBytes > 0 && eventsJson.length() > maxUploadBytes)
+        throw new ScalyrNetworkException("Timeout while communicating with Scalyr server",
+            new SocketTimeoutException("Read timed out"));
+      if (rejectedEventText != null && eventsJson.contains(rejectedEventText))
+        return new JSONObject().set("status", "error/client/badParam").set("message", "malformed event");
+
+      JSONArray uploaded = (JSONArray) JSONParser.parse(eventsJson);
+      synchronized (events) {
+        long nowNs = ScalyrUtil.nanoTime();
+        for (Object event : uploaded) {
+          events.add((JSONObject) event);
+          eventLatenciesMs.add((nowNs - Long.parseLong((String) ((JSONObject) event).get("ts"))) / 1000000);
+        }
+        sessions.add((String) parameters.get("session"));
+        if (parameters.get("threads") != null) {
+          JSONArray threadInfos = (JSONArray) JSONParser.parse(
+              JSONValue.toJSONString((JSONStreamAware) parameters.get("threads")));
+          for (Object threadInfo : threadInfos)
+            threads.add((JSONObject) threadInfo);
+        }
+      }
+      return new JSONObject().set("status", "success");
+    }
+  }
 }
@@ -17,19 +17,31 @@
 
 package com.scalyr.api.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Random;
 
 import org.junit.Test;
 
 import com.scalyr.api.Converter;
+import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.ChunkSizeList;
 import com.scalyr.api.internal.CircularByteArray;
+import com.scalyr.api.internal.EndpointHealth;
+import com.scalyr.api.internal.RetryPolicy;
 import com.scalyr.api.internal.ScalyrUtil;
 import com.scalyr.api.internal.Tuple;
 import com.scalyr.api.json.JSONObject;
@@ -146,6 +158,94 @@ public class UtilTests {
     assertEquals(0, buffer.numBufferedBytes());
   }
 
+  /**
+   * Test reserve / write / publish on CircularByteArray: regions become visible only when published,
+   * and only in the order they were reserved.
+   */
+  @Test public void testCircularByteArrayReservePublish() throws IOException {
+    CircularByteArray buffer = new CircularByteArray(10);
+
+    long first = buffer.reserve(3, 0);
+    long second = buffer.reserve(4, 0);
+    assertEquals(0, first);
+    assertEquals(3, second);
+
+    // Only three bytes remain unreserved, so this fails.
+    assertEquals(-1, buffer.reserve(4, 0));
+
+    // Fill the second region first; it's not visible until the first region is published.
+    buffer.write(second, new byte[]{40, 41, 42, 43}, 0, 4);
+    buffer.write(first, new byte[]{30, 31, 32}, 0, 3);
+    assertEquals(0, buffer.numBufferedBytes());
+
+    buffer.awaitTurn(first);
+    buffer.publish(first, 3);
+    assertEquals(3, buffer.numBufferedBytes());
+
+    buffer.awaitTurn(second);
+    buffer.publish(second, 4);
+    testBufferContents(buffer, 30, 31, 32, 40, 41, 42, 43);
+
+    // A region that wraps around the end of the physical buffer.
+    long third = buffer.reserve(6, 0);
+    buffer.write(third, new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+    buffer.awaitTurn(third);
+    buffer.publish(third, 6);
+    testBufferContents(buffer, 1, 2, 3, 4, 5, 6);
+  }
+
+  /**
+   * Test an off-heap CircularByteArray, including data which wraps around the end of the physical buffer.
+   */
+  @Test public void testOffHeapCircularByteArray() throws IOException {
+    CircularByteArray buffer = new CircularByteArray(10, true);
+    assertTrue(buffer.isOffHeap());
+
+    assertTrue(buffer.append(new byte[]{1, 2, 3, 4, 5, 6, 7}));
+    testBufferContents(buffer, 1, 2, 3, 4, 5, 6, 7);
+
+    assertTrue(buffer.append(new byte[]{8, 9, 10, 11, 12}));
+    assertFalse(buffer.append(new byte[]{13, 14, 15, 16, 17, 18}));
+    testBufferContents(buffer, 8, 9, 10, 11, 12);
+
+    // Data handed to a WritableByteChannel is not copied through the heap, but must arrive intact.
+    assertTrue(buffer.append(new byte[]{20, 21, 22, 23, 24, 25, 26, 27, 28}));
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(target);
+    buffer.writeOldestBytes(new ChannelOutputStream(channel), 9);
+    assertArrayEquals(new byte[]{20, 21, 22, 23, 24, 25, 26, 27, 28}, target.toByteArray());
+
+    ByteBuffer[] slices = buffer.oldestBytes(9);
+    assertEquals(2, slices.length);
+    assertTrue(slices[0].isReadOnly());
+    assertEquals(8, slices[0].remaining());
+    assertEquals(1, slices[1].remaining());
+    testBufferContents(buffer, 20, 21, 22, 23, 24, 25, 26, 27, 28);
+  }
+
+  /**
+   * OutputStream which is also a WritableByteChannel, as an HTTP transport writing to a socket might be.
+   */
+  private static class ChannelOutputStream extends OutputStream implements WritableByteChannel {
+    private final WritableByteChannel channel;
+
+    ChannelOutputStream(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override public int write(ByteBuffer source) throws IOException {
+      return channel.write(source);
+    }
+
+    @Override public void write(int b) {
+      throw new RuntimeException("byte-at-a-time writes not expected");
+    }
+
+    @Override public boolean isOpen() {
+      return channel.isOpen();
+    }
+  }
+
   /**
    * Multithreaded tests of CircularByteArray.
    */
@@ -319,4 +419,226 @@ public class UtilTests {
 
     assertEquals(0, list.getFirst());
   }
+
+  /**
+   * Test the per-chunk metadata kept by ChunkSizeList, and growth of its ring of chunks.
+   */
+  @Test public void testChunkMetadata() {
+    ChunkSizeList list = new ChunkSizeList(4);
+
+    // Two events from thread A and one from thread B fill the first chunk; the next event starts a new one.
+    list.appendEvent(4, 0, 10, 100, "A", 1);
+    list.appendEvent(3, 3, 10, 105, "B", 2);
+    list.appendEvent(3, 0, 10, 102, "A", 2);
+    list.appendEvent(5, 0, 10, 110, "C", 3);
+    assertEquals(2, list.size());
+
+    ChunkSizeList.Chunk first = list.getChunk(0);
+    assertEquals(10, first.size());
+    assertEquals(3, first.getEventCount());
+    assertEquals(100, first.getMinTimestamp());
+    assertEquals(105, first.getMaxTimestamp());
+    assertEquals(new HashSet<String>(Arrays.asList("A", "B")), first.getThreadIds());
+    assertEquals(0, first.getSeverityCount(0));
+    assertEquals(1, first.getSeverityCount(1));
+    assertEquals(2, first.getSeverityCount(2));
+    assertEquals(3, list.getFirstEvictable());
+
+    // Evict thread B's event.
+    first.removeEvent(2);
+    list.shrinkFirst(3, 0);
+    assertEquals(7, list.getFirst());
+    assertEquals(2, first.getEventCount());
+    assertEquals(1, first.getSeverityCount(2));
+
+    // Add enough chunks to grow the ring, removing from the front as we go so that it wraps around.
+    for (int i = 0; i < 40; i++) {
+      list.close(list.size() - 1);
+      list.appendEvent(1 + i, 0, 100, 200 + i, "T" + i, 0);
+      if (i % 3 == 0)
+        list.removeFirst();
+    }
+    int expectedSize = 2 + 40 - 14;
+    assertEquals(expectedSize, list.size());
+    for (int i = 0; i < expectedSize; i++) {
+      int seq = 40 - expectedSize + i;
+      assertEquals(1 + seq, list.get(i));
+      assertEquals(200 + seq, list.getChunk(i).getMinTimestamp());
+      assertEquals(Collections.singleton("T" + seq), list.getChunk(i).getThreadIds());
+    }
+
+    while (list.size() > 0)
+      list.removeFirst();
+    assertEquals(0, list.getFirst());
+  }
+
+  /**
+   * Test ChunkSizeList.split(), including splits which wrap around and grow the ring of chunks.
+   */
+  @Test public void testChunkSplit() {
+    ChunkSizeList list = new ChunkSizeList(4);
+
+    list.appendEvent(4, 4, 10, 100, "A", 1);
+    list.appendEvent(3, 0, 10, 105, "B", 2);
+    list.appendEvent(3, 0, 10, 102, "A", 2);
+    list.appendEvent(5, 0, 10, 110, "C", 3);
+    list.close(1);
+
+    // Split the first chunk after its first event: [4, 6, 5].
+    ChunkSizeList.Chunk first = list.getChunk(0);
+    ChunkSizeList.Chunk second = list.split(0, 4);
+    second.removeEvent(1);
+    first.removeEvent(2);
+    first.removeEvent(2);
+
+    assertEquals(3, list.size());
+    assertEquals(4, list.get(0));
+    assertEquals(6, list.get(1));
+    assertEquals(5, list.get(2));
+    assertSame(second, list.getChunk(1));
+    assertEquals(1, first.getEventCount());
+    assertEquals(1, first.getSeverityCount(1));
+    assertEquals(0, first.getSeverityCount(2));
+    assertEquals(2, second.getEventCount());
+    assertEquals(0, second.getSeverityCount(1));
+    assertEquals(2, second.getSeverityCount(2));
+    assertEquals(100, second.getMinTimestamp());
+    assertEquals(new HashSet<String>(Arrays.asList("A", "B")), second.getThreadIds());
+    assertEquals(4, list.getFirstEvictable());
+    assertEquals(110, list.getChunk(2).getMinTimestamp());
+
+    // The newest chunk remains closed after a split.
+    list.split(2, 2);
+    assertTrue(list.isClosed(3));
+    list.append(1, 10);
+    assertEquals(5, list.size());
+
+    // Split repeatedly after the ring has wrapped around, so that it must grow.
+    list.removeFirst();
+    list.removeFirst();
+    list.close(list.size() - 1);
+    list.append(40, 100);
+    for (int i = 0; i < 30; i++)
+      list.split(list.size() - 1, 1);
+    assertEquals(34, list.size());
+    assertEquals(2, list.get(0));
+    assertEquals(3, list.get(1));
+    for (int i = 2; i < 33; i++)
+      assertEquals(1, list.get(i));
+    assertEquals(10, list.get(33));
+  }
+
+  /**
+   * Test EndpointHealth: latency-aware ordering of servers, and circuit breakers with half-open probes.
+   */
+  @Test public void testEndpointHealth() {
+    ScalyrUtil.setCustomTimeNs(1000 * 1000000000L);
+    try {
+      EndpointHealth health = new EndpointHealth();
+      String[] servers = {"a", "b", "c"};
+
+      // A slow server is never chosen first over two faster ones.
+      for (int i = 0; i < 5; i++) {
+        health.requestSucceeded("a", 10);
+        health.requestSucceeded("b", 500);
+        health.requestSucceeded("c", 12);
+      }
+      int[] firstCounts = new int[3];
+      for (int i = 0; i < 1000; i++) {
+        String[] order = health.order(servers);
+        assertEquals(3, new HashSet<String>(Arrays.asList(order)).size());
+        firstCounts[order[0].charAt(0) - 'a']++;
+      }
+      assertEquals(0, firstCounts[1]);
+      assertTrue(firstCounts[0] > 300);
+      assertTrue(firstCounts[2] > 300);
+
+      // Repeated failures open a server's breaker; it is then tried last.
+      for (int i = 0; i < TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD; i++)
+        health.requestFailed("a");
+      EndpointHealth.Stats stats = health.getStats(new String[]{"a"}).get(0);
+      assertEquals(EndpointHealth.BreakerState.Open, stats.state);
+      assertEquals(1, stats.breakerTrips);
+      for (int i = 0; i < 20; i++)
+        assertEquals("a", health.order(servers)[2]);
+
+      // Once the breaker has been open for a while, the next request probes the server first, and no other
+      // request is sent there until the probe completes. A failed probe reopens the breaker.
+      ScalyrUtil.advanceCustomTimeMs(TuningConstants.ENDPOINT_BREAKER_OPEN_MS);
+      assertEquals("a", health.order(servers)[0]);
+      assertEquals(EndpointHealth.BreakerState.HalfOpen, health.getStats(new String[]{"a"}).get(0).state);
+      assertEquals("a", health.order(servers)[2]);
+      health.requestFailed("a");
+      stats = health.getStats(new String[]{"a"}).get(0);
+      assertEquals(EndpointHealth.BreakerState.Open, stats.state);
+      assertEquals(2, stats.breakerTrips);
+
+      // An abandoned probe (e.g. a hedged request which lost the race) leaves the breaker as it was.
+      ScalyrUtil.advanceCustomTimeMs(TuningConstants.ENDPOINT_BREAKER_OPEN_MS);
+      assertEquals("a", health.order(servers)[0]);
+      health.requestAbandoned("a", 10);
+      assertEquals(EndpointHealth.BreakerState.HalfOpen, health.getStats(new String[]{"a"}).get(0).state);
+
+      // A successful probe closes it.
+      ScalyrUtil.advanceCustomTimeMs(TuningConstants.ENDPOINT_BREAKER_OPEN_MS);
+      assertEquals("a", health.order(servers)[0]);
+      health.requestSucceeded("a", 10);
+      stats = health.getStats(new String[]{"a"}).get(0);
+      assertEquals(EndpointHealth.BreakerState.Closed, stats.state);
+      assertEquals(5 + TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD + 2, stats.requests);
+      assertEquals(TuningConstants.ENDPOINT_BREAKER_FAILURE_THRESHOLD + 1, stats.failures);
+
+      // The slow server's latency fades while it is idle, so it is eventually chosen again.
+      ScalyrUtil.advanceCustomTimeMs(10 * TuningConstants.ENDPOINT_HEALTH_HALF_LIFE_MS);
+      health.requestSucceeded("a", 10);
+      health.requestSucceeded("c", 12);
+      boolean slowServerChosen = false;
+      for (int i = 0; i < 100; i++)
+        slowServerChosen |= health.order(servers)[0].equals("b");
+      assertTrue(slowServerChosen);
+    } finally {
+      ScalyrUtil.removeCustomTime();
+    }
+  }
+
+  /**
+   * Test RetryPolicy's jittered delays and retry budget.
+   */
+  @Test public void testRetryPolicy() {
+    // Delays fall between the base and three times the previous delay, up to the cap.
+    HashSet<Long> delays = new HashSet<Long>();
+    long delayMs = 0;
+    for (int i = 0; i < 100; i++) {
+      long nextDelayMs = RetryPolicy.nextDelayMs(delayMs, 100, 10000);
+      assertTrue(nextDelayMs >= 100);
+      assertTrue(nextDelayMs <= Math.min(Math.max(delayMs, 100) * 3, 10000));
+      delays.add(nextDelayMs);
+      delayMs = nextDelayMs;
+    }
+    assertTrue(delays.size() > 10);
+    long cappedMs = RetryPolicy.nextDelayMs(100000, 100, 500);
+    assertTrue(cappedMs >= 100 && cappedMs <= 500);
+    assertEquals(200, RetryPolicy.nextDelayMs(0, 200, 200));
+
+    // The budget starts full, and is replenished by requests.
+    RetryPolicy policy = new RetryPolicy(0.5, 2);
+    assertTrue(policy.tryRetry());
+    assertTrue(policy.tryRetry());
+    assertFalse(policy.tryRetry());
+    policy.requestIssued();
+    assertFalse(policy.tryRetry());
+    policy.requestIssued();
+    assertTrue(policy.tryRetry());
+    for (int i = 0; i < 10; i++)
+      policy.requestIssued();
+    assertTrue(policy.tryRetry());
+    assertTrue(policy.tryRetry());
+    assertFalse(policy.tryRetry());
+
+    RetryPolicy.Stats stats = policy.getStats();
+    assertEquals(12, stats.requests);
+    assertEquals(5, stats.retries);
+    assertEquals(3, stats.retriesDenied);
+    assertEquals(0, stats.budget, 1E-9);
+  }
 }